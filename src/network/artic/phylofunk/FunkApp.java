@@ -2,6 +2,7 @@ package network.artic.phylofunk;
 
 import network.artic.phylofunk.funks.Funk;
 import network.artic.phylofunk.funks.FunkFactory;
+import network.artic.phylofunk.funks.FunkOptions;
 import org.apache.commons.cli.*;
 
 import java.util.Arrays;
@@ -12,6 +13,7 @@ import java.util.Arrays;
  */
 public abstract class FunkApp {
     static final String VERSION = "v1.0.0";
+
     private final FunkFactory[] factories;
     private final String name;
     private final String header;
@@ -44,6 +46,7 @@ public abstract class FunkApp {
                     // add the options here for the help message
                     factory.setOptions(options);
                     options.addOption("v", "verbose", false, "write analysis details to console");
+                    options.addOption(FunkOptions.PROFILE);
                     printHelp(factory, options);
                     return;
                 }
@@ -56,6 +59,7 @@ public abstract class FunkApp {
             factory.setOptions(options);
 
             options.addOption("v", "verbose", false, "write analysis details to console");
+            options.addOption(FunkOptions.PROFILE);
 
             try {
                 commandLine = parser.parse(options, Arrays.copyOfRange(args, 1, args.length));
@@ -95,8 +99,21 @@ public abstract class FunkApp {
 
         long startTime = System.currentTimeMillis();
 
+        boolean isProfiling = commandLine.hasOption(FunkOptions.PROFILE.getLongOpt());
+        if (isProfiling) {
+            Funk.startProfile(factory.getName());
+        }
+
+        Funk.setTreeAttributeNames(factory.getTreeAttributeNames(commandLine));
+        Funk.setMetadataColumnNames(factory.getMetadataColumnNames(commandLine));
+        Funk.setMetadataRowFilters(factory.getMetadataRowFilters(commandLine));
+        Funk.setUsingMetadataIndex(commandLine.hasOption(FunkOptions.METADATA_INDEX.getLongOpt()));
         factory.create(commandLine, isVerbose);
 
+        if (isProfiling) {
+            Funk.writeProfile(commandLine.getOptionValue(FunkOptions.PROFILE.getLongOpt()));
+        }
+
         long timeTaken = (System.currentTimeMillis() - startTime) / 1000;
 
         if (isVerbose) {
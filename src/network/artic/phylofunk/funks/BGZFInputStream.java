@@ -0,0 +1,229 @@
+package network.artic.phylofunk.funks;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An InputStream that decompresses a BGZF file (a series of independent gzip blocks of at most
+ * 64KB, as written by bgzip, samtools and BGZFOutputStream). The blocks are read in order but are
+ * inflated by a pool of threads with a bounded number of blocks ahead of the reader.
+ */
+public class BGZFInputStream extends InputStream {
+    static final int MAX_BLOCK_SIZE = 65536;
+
+    private final DataInputStream input;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private boolean isEndOfInput = false;
+    private byte[] block = new byte[0];
+    private int position = 0;
+
+    /**
+     * Constructor
+     * @param input the compressed stream
+     * @param threadCount the number of threads to use to inflate blocks
+     */
+    public BGZFInputStream(InputStream input, int threadCount) {
+        this.input = new DataInputStream(input);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threadCount), runnable -> {
+            Thread thread = new Thread(runnable, "bgzf-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxPending = Math.max(1, threadCount) * 4;
+    }
+
+    /**
+     * Checks the first bytes of a file for the gzip magic number and a 'BC' extra field
+     * @param header at least the first 16 bytes of the file
+     * @param length the number of bytes in header
+     * @return true if it is the start of a BGZF block
+     */
+    public static boolean isBGZF(byte[] header, int length) {
+        if (length < 16 || !isGzip(header, length) || (header[3] & 0x04) == 0) {
+            return false;
+        }
+        return header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+    }
+
+    /**
+     * @param header the first bytes of a file
+     * @param length the number of bytes in header
+     * @return true if the file starts with the gzip magic number
+     */
+    public static boolean isGzip(byte[] header, int length) {
+        return length >= 2 && (header[0] & 0xFF) == 0x1F && (header[1] & 0xFF) == 0x8B;
+    }
+
+    /**
+     * Reads the next compressed block from the input
+     * @return the block or null at the end of the input
+     */
+    private byte[] readCompressedBlock() throws IOException {
+        byte[] header = new byte[12];
+        int first = input.read();
+        if (first < 0) {
+            return null;
+        }
+        header[0] = (byte) first;
+        input.readFully(header, 1, 11);
+        if (!isGzip(header, 12) || header[2] != 8 || (header[3] & 0x04) == 0) {
+            throw new IOException("Invalid BGZF block header");
+        }
+        int extraLength = (header[10] & 0xFF) | ((header[11] & 0xFF) << 8);
+        byte[] extra = new byte[extraLength];
+        input.readFully(extra);
+
+        int blockSize = -1;
+        int offset = 0;
+        while (offset + 4 <= extraLength) {
+            int subfieldLength = (extra[offset + 2] & 0xFF) | ((extra[offset + 3] & 0xFF) << 8);
+            if (extra[offset] == 'B' && extra[offset + 1] == 'C' && subfieldLength == 2) {
+                blockSize = ((extra[offset + 4] & 0xFF) | ((extra[offset + 5] & 0xFF) << 8)) + 1;
+            }
+            offset += 4 + subfieldLength;
+        }
+        if (blockSize < 0) {
+            throw new IOException("Invalid BGZF block: missing block size");
+        }
+
+        int remaining = blockSize - 12 - extraLength;
+        if (remaining < 8) {
+            throw new IOException("Invalid BGZF block: bad block size");
+        }
+        byte[] data = new byte[remaining];
+        try {
+            input.readFully(data);
+        } catch (EOFException eofe) {
+            throw new IOException("Truncated BGZF block");
+        }
+        return data;
+    }
+
+    /**
+     * Inflates a block (the deflated data followed by the CRC32 and the uncompressed size).
+     */
+    private byte[] inflate(byte[] data) throws IOException {
+        int end = data.length - 8;
+        long crc = readUInt32(data, end);
+        int size = (int) readUInt32(data, end + 4);
+        if (size > MAX_BLOCK_SIZE) {
+            throw new IOException("Invalid BGZF block: bad uncompressed size");
+        }
+
+        byte[] bytes = new byte[size];
+        Inflater inflater = this.inflater.get();
+        inflater.reset();
+        inflater.setInput(data, 0, end);
+        try {
+            int count = 0;
+            while (count < size) {
+                int n = inflater.inflate(bytes, count, size - count);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                count += n;
+            }
+            if (count != size) {
+                throw new IOException("Invalid BGZF block: uncompressed size mismatch");
+            }
+        } catch (DataFormatException dfe) {
+            throw new IOException("Invalid BGZF block: " + dfe.getMessage());
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, size);
+        if (crc32.getValue() != crc) {
+            throw new IOException("Invalid BGZF block: CRC mismatch");
+        }
+        return bytes;
+    }
+
+    private static long readUInt32(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFFL) | ((bytes[offset + 1] & 0xFFL) << 8) |
+                ((bytes[offset + 2] & 0xFFL) << 16) | ((bytes[offset + 3] & 0xFFL) << 24);
+    }
+
+    /**
+     * Makes the next uncompressed block current, skipping empty blocks (such as the EOF marker)
+     * @return false at the end of the stream
+     */
+    private boolean nextBlock() throws IOException {
+        while (true) {
+            while (!isEndOfInput && pending.size() < maxPending) {
+                final byte[] data = readCompressedBlock();
+                if (data == null) {
+                    isEndOfInput = true;
+                } else {
+                    pending.add(executor.submit(() -> inflate(data)));
+                }
+            }
+            if (pending.isEmpty()) {
+                return false;
+            }
+            try {
+                block = pending.removeFirst().get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading BGZF file");
+            } catch (ExecutionException ee) {
+                if (ee.getCause() instanceof IOException) {
+                    throw (IOException) ee.getCause();
+                }
+                throw new IOException(ee.getCause());
+            }
+            position = 0;
+            if (block.length > 0) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= block.length && !nextBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position >= block.length && !nextBlock()) {
+            return -1;
+        }
+        int count = Math.min(length, block.length - position);
+        System.arraycopy(block, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return block.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        input.close();
+    }
+}
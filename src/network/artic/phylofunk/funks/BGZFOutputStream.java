@@ -0,0 +1,196 @@
+package network.artic.phylofunk.funks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An OutputStream that writes BGZF (a series of independent gzip blocks of at most 64KB which any
+ * gzip reader can decompress). Each block is compressed on a pool of threads and written out in
+ * order, so compression is not limited to the speed of a single core.
+ */
+public class BGZFOutputStream extends OutputStream {
+    // the same limit as htslib - ensures incompressible data still fits in a block
+    private static final int MAX_DATA_SIZE = 0xFF00;
+
+    private static final int HEADER_SIZE = 18;
+    private static final int FOOTER_SIZE = 8;
+
+    private static final byte[] EOF_BLOCK = {
+            0x1F, (byte) 0x8B, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xFF, 0x06, 0x00, 0x42, 0x43,
+            0x02, 0x00, 0x1B, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+    };
+
+    private final OutputStream output;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private byte[] buffer = new byte[MAX_DATA_SIZE];
+    private int count = 0;
+    private boolean isClosed = false;
+
+    /**
+     * Constructor
+     * @param output the stream to write the compressed blocks to
+     * @param threadCount the number of threads to use to compress blocks
+     */
+    public BGZFOutputStream(OutputStream output, int threadCount) {
+        this.output = output;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threadCount), runnable -> {
+            Thread thread = new Thread(runnable, "bgzf-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxPending = Math.max(1, threadCount) * 4;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            submitBlock();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == buffer.length) {
+                submitBlock();
+            }
+            int n = Math.min(length, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Hands the current buffer to a worker to compress and starts a new one
+     */
+    private void submitBlock() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        while (pending.size() >= maxPending) {
+            writeBlock(pending.removeFirst());
+        }
+        final byte[] data = buffer;
+        final int length = count;
+        pending.add(executor.submit(() -> compress(data, length)));
+        buffer = new byte[MAX_DATA_SIZE];
+        count = 0;
+    }
+
+    private void writeBlock(Future<byte[]> future) throws IOException {
+        try {
+            output.write(future.get());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing BGZF file");
+        } catch (ExecutionException ee) {
+            throw new IOException(ee.getCause());
+        }
+    }
+
+    /**
+     * Compresses the data into a complete BGZF block
+     */
+    private byte[] compress(byte[] data, int length) {
+        Deflater deflater = this.deflater.get();
+        byte[] block = new byte[BGZFInputStream.MAX_BLOCK_SIZE];
+        int size = deflate(deflater, data, length, block);
+        if (size < 0) {
+            // didn't fit so store it uncompressed
+            deflater.setLevel(Deflater.NO_COMPRESSION);
+            size = deflate(deflater, data, length, block);
+            deflater.setLevel(Deflater.DEFAULT_COMPRESSION);
+        }
+
+        int blockSize = HEADER_SIZE + size + FOOTER_SIZE;
+        block[0] = 0x1F;
+        block[1] = (byte) 0x8B;
+        block[2] = 8; // deflate
+        block[3] = 4; // FEXTRA
+        block[9] = (byte) 0xFF; // unknown OS
+        block[10] = 6; // XLEN
+        block[12] = 'B';
+        block[13] = 'C';
+        block[14] = 2;
+        writeUInt16(block, 16, blockSize - 1);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, length);
+        writeUInt32(block, HEADER_SIZE + size, crc32.getValue());
+        writeUInt32(block, HEADER_SIZE + size + 4, length);
+
+        return Arrays.copyOf(block, blockSize);
+    }
+
+    /**
+     * @return the compressed size or -1 if it doesn't fit in a block
+     */
+    private static int deflate(Deflater deflater, byte[] data, int length, byte[] block) {
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int capacity = block.length - HEADER_SIZE - FOOTER_SIZE;
+        int size = deflater.deflate(block, HEADER_SIZE, capacity);
+        if (!deflater.finished()) {
+            return -1;
+        }
+        return size;
+    }
+
+    private static void writeUInt16(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void writeUInt32(byte[] bytes, int offset, long value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * Ends the current block and writes out all the blocks compressed so far
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        submitBlock();
+        while (!pending.isEmpty()) {
+            writeBlock(pending.removeFirst());
+        }
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        try {
+            flush();
+            output.write(EOF_BLOCK);
+            output.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package network.artic.phylofunk.funks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Reads a large uncompressed CSV or tab-delimited file into a MetadataTable on several threads.
+ * The file is memory-mapped and split into chunks that start and end at line breaks. Each chunk is
+ * parsed into a MetadataTable.Block on a fork-join pool and the blocks are appended to the table
+ * in the order of the file (so the rows and the handling of duplicate keys are just as if the
+ * file was read in one go). Only the keys are appended by the reading thread - the other columns
+ * of each block are copied into the table on the pool.
+ *
+ * Splitting at line breaks is only safe if no quoted field contains one. If a chunk contains a
+ * quote then it and the rest of the file are split by scanning through the records one after
+ * another (without making any strings) to find their true boundaries - the chunks found are
+ * still parsed in parallel. The same is done if no line feed is found near the end of a chunk (as
+ * in a file whose lines end with carriage returns alone).
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+final class ChunkedMetadataReader implements AutoCloseable {
+    static final int DEFAULT_CHUNK_SIZE = 1 << 23;
+
+    // how far past the end of a chunk to map to find the end of its last line (grown if needed)
+    private static final int LINE_OVERHANG = 1 << 16;
+    // the furthest the overhang is grown before the chunks are found by scanning the records
+    private static final int MAX_LINE_OVERHANG = 1 << 22;
+
+    private final FileChannel channel;
+    private final long size;
+    private final boolean isTabDelimited;
+    private final int threadCount;
+    private final int chunkSize;
+
+    // the offset of the first record after the header
+    private long dataStart = -1;
+
+    private final ThreadLocal<MetadataReader> parsers;
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<>();
+
+    /**
+     * Constructor
+     * @param fileName an uncompressed file
+     * @param isTabDelimited
+     * @param threadCount
+     * @param chunkSize the approximate number of bytes in each chunk
+     * @throws IOException
+     */
+    ChunkedMetadataReader(String fileName, boolean isTabDelimited, int threadCount, int chunkSize) throws IOException {
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        this.size = channel.size();
+        this.isTabDelimited = isTabDelimited;
+        this.threadCount = Math.max(1, threadCount);
+        this.chunkSize = chunkSize;
+        this.parsers = ThreadLocal.withInitial(() -> new MetadataReader(isTabDelimited));
+    }
+
+    /**
+     * @param fileName
+     * @param threadCount
+     * @return true if the file is uncompressed and large enough to be worth reading in chunks
+     */
+    static boolean isWorthChunking(String fileName, int threadCount) {
+        if (threadCount < 2 || new File(fileName).length() <= DEFAULT_CHUNK_SIZE * 2L) {
+            return false;
+        }
+        try {
+            return !Funk.isCompressedFile(fileName) && !Funk.isParquetFile(fileName);
+        } catch (IOException ioe) {
+            // the error will be reported when the file is opened
+            return false;
+        }
+    }
+
+    /**
+     * Reads the first record as the column names.
+     * @return the names or null if the file is empty
+     * @throws IOException
+     */
+    List<String> readHeader() throws IOException {
+        channel.position(0);
+        MetadataReader reader = new MetadataReader(Channels.newInputStream(channel), isTabDelimited);
+        List<String> names = reader.readHeader();
+        dataStart = reader.getOffset();
+        return names;
+    }
+
+    /**
+     * Reads the records after the header into the table.
+     * @param columns the column of the table for each column of the file (-1 to skip the column)
+     * @param keyColumn the index column of the table
+     * @param table an empty table
+     * @return the keys of any rows that replaced earlier ones with the same key (in file order)
+     * @throws IOException
+     */
+    List<String> readRecords(int[] columns, int keyColumn, MetadataTable table) throws IOException {
+        if (dataStart < 0) {
+            throw new IllegalStateException("readHeader must be called first");
+        }
+        int columnCount = table.getColumnNames().size();
+        List<String> duplicateKeys = new ArrayList<>();
+
+        ForkJoinPool pool = new ForkJoinPool(threadCount);
+        Deque<ForkJoinTask<Chunk>> pending = new ArrayDeque<>();
+        int maxPending = threadCount * 2;
+
+        // the last copy of a block into each column of the table
+        CompletableFuture<?>[] columnCopies = new CompletableFuture<?>[columnCount];
+        Arrays.fill(columnCopies, CompletableFuture.completedFuture(null));
+        Deque<CompletableFuture<?>> blockCopies = new ArrayDeque<>();
+
+        long next = dataStart;
+        // once set, the chunks are split at the boundaries it finds (scanning from scanStart)
+        MetadataReader scanner = null;
+        long scanStart = 0;
+
+        try {
+            while (true) {
+                while (pending.size() < maxPending && next < size) {
+                    final long start = next;
+                    final long end;
+                    final boolean isExact;
+                    if (scanner == null) {
+                        end = Math.min(size, start + chunkSize);
+                        isExact = false;
+                    } else {
+                        end = scanBoundary(scanner, scanStart, start + chunkSize);
+                        isExact = true;
+                    }
+                    pending.add(pool.submit(() -> parseChunk(start, end, isExact, columns, columnCount, keyColumn)));
+                    next = end;
+                }
+
+                if (pending.isEmpty()) {
+                    break;
+                }
+
+                Chunk chunk = pending.poll().join();
+                if (chunk.block == null) {
+                    // the chunk has quotes so line breaks may not be the ends of records (or it
+                    // has no line feeds to split at) - everything from its start must be split
+                    // by scanning the records.
+                    for (ForkJoinTask<Chunk> task : pending) {
+                        task.cancel(false);
+                    }
+                    pending.clear();
+
+                    next = chunk.start;
+                    scanStart = next;
+                    channel.position(scanStart);
+                    scanner = new MetadataReader(Channels.newInputStream(channel), isTabDelimited);
+                    continue;
+                }
+
+                final MetadataTable.Block block = chunk.block;
+                int rowCount = table.getRowCount() + block.getRowCount();
+                if (rowCount > table.getRowCapacity()) {
+                    // the columns can only be grown once all the blocks have been copied in
+                    awaitColumns(columnCopies);
+                    if (table.getRowCount() == 0) {
+                        // estimate the number of rows in the file from the first block
+                        long estimate = (size - dataStart) * block.getRowCount() / Math.max(1, chunk.end - chunk.start);
+                        rowCount = (int) Math.max(rowCount, Math.min(estimate + estimate / 8, Integer.MAX_VALUE / 4));
+                    }
+                    table.ensureCapacity(Math.max(rowCount, table.getRowCapacity() * 2));
+                }
+
+                // the keys have to be added in order here but the other columns are copied in on
+                // the pool - in order for each column but concurrently with the reading.
+                final int[] rows = table.appendKeys(block, duplicateKeys);
+                final int tableRowCount = table.getRowCount();
+                for (int i = 0; i < columnCount; i++) {
+                    final int column = i;
+                    columnCopies[i] = columnCopies[i].thenRunAsync(() -> table.setColumn(column, rows, block, tableRowCount), pool);
+                }
+
+                // don't let the copying fall too far behind (it holds on to the blocks)
+                blockCopies.add(CompletableFuture.allOf(columnCopies));
+                if (blockCopies.size() > maxPending) {
+                    blockCopies.poll().join();
+                }
+            }
+            awaitColumns(columnCopies);
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return duplicateKeys;
+    }
+
+    /**
+     * Waits for the blocks to be copied into the columns of the table
+     * @param columnCopies
+     */
+    private static void awaitColumns(CompletableFuture<?>[] columnCopies) {
+        CompletableFuture.allOf(columnCopies).join();
+    }
+
+    /**
+     * Reads records from the scanner until it reaches the target offset
+     * @param scanner
+     * @param scanStart the offset in the file that the scanner started at
+     * @param target
+     * @return the offset of the start of the next record (or the end of the file)
+     */
+    private long scanBoundary(MetadataReader scanner, long scanStart, long target) throws IOException {
+        int[] noColumns = new int[0];
+        String[] noValues = new String[0];
+        long offset = scanStart + scanner.getOffset();
+        while (offset < target && scanner.readRecord(noColumns, noValues) >= 0) {
+            offset = scanStart + scanner.getOffset();
+        }
+        return Math.min(offset, size);
+    }
+
+    /**
+     * Parses the records of a chunk into a block
+     * @param start the start of the chunk
+     * @param end the end of the chunk
+     * @param isExact true if start and end are known to be record boundaries, otherwise the chunk
+     *                runs from the first line break at or after each (except at the start of the
+     *                data or the end of the file)
+     * @return the chunk (with a null block if it is not exact and contains a quote or there is no
+     *         line feed within MAX_LINE_OVERHANG of its end)
+     */
+    private Chunk parseChunk(long start, long end, boolean isExact, int[] columns, int columnCount, int keyColumn) {
+        try {
+            // map from the byte before the start so a line break just before it is found
+            long mapStart = (isExact || start == dataStart ? start : start - 1);
+            int overhang = (isExact ? 0 : LINE_OVERHANG);
+
+            byte[] bytes;
+            int recordStart;
+            int recordEnd;
+            while (true) {
+                long mapEnd = Math.min(size, end + overhang);
+                bytes = map(mapStart, mapEnd);
+                int length = (int) (mapEnd - mapStart);
+
+                recordStart = (isExact || start == dataStart ? 0 : nextLine(bytes, 0, length));
+                recordEnd = (isExact || end == size ? (int) (end - mapStart) : nextLine(bytes, (int) (end - 1 - mapStart), length));
+
+                if (recordStart >= 0 && recordEnd >= 0) {
+                    break;
+                }
+                if (mapEnd == size) {
+                    // no more line breaks
+                    if (recordStart < 0) {
+                        recordStart = length;
+                    }
+                    recordEnd = length;
+                    break;
+                }
+                if (overhang >= MAX_LINE_OVERHANG) {
+                    // the lines are too long or don't end with line feeds. If the start wasn't
+                    // found either then the chunk before this one will have given up first.
+                    return new Chunk(mapStart + Math.max(recordStart, 0), end, null);
+                }
+                overhang *= 2;
+            }
+            long chunkStart = mapStart + recordStart;
+            long chunkEnd = mapStart + recordEnd;
+
+            if (recordStart >= recordEnd) {
+                // no records start in this chunk
+                return new Chunk(chunkStart, chunkStart, new MetadataTable.Block(columnCount, keyColumn, 0));
+            }
+
+            if (!isExact) {
+                for (int i = recordStart; i < recordEnd; i++) {
+                    if (bytes[i] == '"') {
+                        return new Chunk(chunkStart, chunkEnd, null);
+                    }
+                }
+            }
+
+            MetadataReader parser = parsers.get();
+            MetadataTable.Block block = new MetadataTable.Block(columnCount, keyColumn, (recordEnd - recordStart) / 128);
+            String[] values = new String[columnCount];
+            int position = recordStart;
+            while (position < recordEnd) {
+                Arrays.fill(values, "");
+                position = parser.parseRecord(bytes, position, recordEnd, true, columns, values);
+                block.addRow(values);
+            }
+            return new Chunk(chunkStart, chunkEnd, block);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * @return the position after the first line feed at or after from or -1 if there is none
+     */
+    private static int nextLine(byte[] bytes, int from, int length) {
+        for (int i = from; i < length; i++) {
+            if (bytes[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Maps part of the file and copies it into this thread's buffer
+     */
+    private byte[] map(long from, long to) throws IOException {
+        if (to - from > Integer.MAX_VALUE - 8) {
+            throw new IOException("a record at offset " + from + " is too long to read");
+        }
+        int length = (int) (to - from);
+        byte[] bytes = buffers.get();
+        if (bytes == null || bytes.length < length) {
+            bytes = new byte[length];
+            buffers.set(bytes);
+        }
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+        mapped.get(bytes, 0, length);
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static final class Chunk {
+        final long start;
+        final long end;
+        final MetadataTable.Block block;
+
+        Chunk(long start, long end, MetadataTable.Block block) {
+            this.start = start;
+            this.end = end;
+            this.block = block;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package network.artic.phylofunk.funks;
+
+import java.math.BigInteger;
+
+/**
+ * Writes doubles as ASCII digits straight into a byte array without creating any objects. The
+ * shortest decimal that reads back to the same double is found with the Schubfach algorithm
+ * (R. Giulietti, "The Schubfach way to render doubles", 2020) and can then be laid out as
+ * Double.toString does or as String.format("%.Ng") does (which rounds the same digits half-up).
+ * An instance holds the digits of the last number so is not thread safe.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public final class DoubleFormatter {
+    /**
+     * The most bytes that a formatted double can take
+     */
+    public static final int MAX_LENGTH = 32;
+
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << 52;
+    private static final int BQ_MASK = 0x7FF;
+    private static final long T_MASK = (1L << 52) - 1;
+    private static final long C_TINY = 3;
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+    private static final int H = 17;
+    private static final long MASK_63 = (1L << 63) - 1;
+
+    private static final long[] POW10 = new long[H + 1];
+
+    // g1 and g0 for each power of ten: 10^-k = g 2^r with 2^125 <= g < 2^126 (rounded up)
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+
+        BigInteger mask = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            int shift = 125 - flog2pow10(-k);
+            BigInteger g;
+            if (k <= 0) {
+                BigInteger pow = BigInteger.TEN.pow(-k);
+                g = shift >= 0 ? pow.shiftLeft(shift) : pow.shiftRight(-shift);
+            } else {
+                g = BigInteger.ONE.shiftLeft(shift).divide(BigInteger.TEN.pow(k));
+            }
+            g = g.add(BigInteger.ONE);
+            G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+            G[2 * (k - K_MIN) + 1] = g.and(mask).longValue();
+        }
+    }
+
+    // the significant digits of the last number (no trailing zeros)
+    private final byte[] digits = new byte[H + 1];
+    private int digitCount;
+    // the value is 0.d1d2d3... x 10^exponent
+    private int exponent;
+
+    /**
+     * Writes the shortest decimal that reads back as the same double, laid out as Double.toString
+     * (e.g. 1.0, 0.00125, 1.25E-4, 1.0E7).
+     * @param value
+     * @param bytes the array to write to (with at least MAX_LENGTH bytes free)
+     * @param offset
+     * @return the offset after the number
+     */
+    public int format(double value, byte[] bytes, int offset) {
+        int special = formatSpecial(value, bytes, offset);
+        if (special >= 0) {
+            return special;
+        }
+        if (value < 0 || (value == 0.0 && 1.0 / value < 0)) {
+            bytes[offset++] = '-';
+        }
+        if (value == 0.0) {
+            return writeAscii("0.0", bytes, offset);
+        }
+        findDigits(value);
+
+        if (exponent > 0 && exponent <= 7) {
+            offset = writeDigits(0, exponent, bytes, offset);
+            bytes[offset++] = '.';
+            if (digitCount > exponent) {
+                offset = writeDigits(exponent, digitCount, bytes, offset);
+            } else {
+                bytes[offset++] = '0';
+            }
+        } else if (exponent <= 0 && exponent > -3) {
+            bytes[offset++] = '0';
+            bytes[offset++] = '.';
+            for (int i = exponent; i < 0; i++) {
+                bytes[offset++] = '0';
+            }
+            offset = writeDigits(0, digitCount, bytes, offset);
+        } else {
+            bytes[offset++] = digits[0];
+            bytes[offset++] = '.';
+            if (digitCount > 1) {
+                offset = writeDigits(1, digitCount, bytes, offset);
+            } else {
+                bytes[offset++] = '0';
+            }
+            bytes[offset++] = 'E';
+            offset = writeInt(exponent - 1, bytes, offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Writes the double with the given number of significant digits laid out as
+     * String.format("%.Ng") (in an English locale), e.g. 0.00125000, 1.25000e-05, 1.00000e+07.
+     * @param value
+     * @param precision the number of significant digits (at least 1)
+     * @param bytes the array to write to (with at least MAX_LENGTH + precision bytes free)
+     * @param offset
+     * @return the offset after the number
+     */
+    public int format(double value, int precision, byte[] bytes, int offset) {
+        int special = formatSpecial(value, bytes, offset);
+        if (special >= 0) {
+            return special;
+        }
+        if (value < 0 || (value == 0.0 && 1.0 / value < 0)) {
+            bytes[offset++] = '-';
+        }
+        if (value == 0.0) {
+            digits[0] = '0';
+            digitCount = 1;
+            exponent = 1;
+        } else {
+            findDigits(value);
+            round(precision);
+        }
+
+        int scientificExponent = exponent - 1;
+        if (value == 0.0 || (scientificExponent >= -4 && scientificExponent < precision)) {
+            if (exponent > 0) {
+                offset = writeDigits(0, exponent, bytes, offset);
+                if (precision > exponent) {
+                    bytes[offset++] = '.';
+                    offset = writeDigits(exponent, precision, bytes, offset);
+                }
+            } else {
+                bytes[offset++] = '0';
+                bytes[offset++] = '.';
+                for (int i = exponent; i < 0; i++) {
+                    bytes[offset++] = '0';
+                }
+                offset = writeDigits(0, precision, bytes, offset);
+            }
+        } else {
+            bytes[offset++] = digits[0];
+            if (precision > 1) {
+                bytes[offset++] = '.';
+                offset = writeDigits(1, precision, bytes, offset);
+            }
+            bytes[offset++] = 'e';
+            if (scientificExponent < 0) {
+                bytes[offset++] = '-';
+                scientificExponent = -scientificExponent;
+            } else {
+                bytes[offset++] = '+';
+            }
+            if (scientificExponent < 10) {
+                bytes[offset++] = '0';
+            }
+            offset = writeInt(scientificExponent, bytes, offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Writes an int in decimal
+     * @param value
+     * @param bytes
+     * @param offset
+     * @return the offset after the number
+     */
+    public static int writeInt(int value, byte[] bytes, int offset) {
+        long v = value;
+        if (v < 0) {
+            bytes[offset++] = '-';
+            v = -v;
+        }
+        int length = 1;
+        while (length < 10 && v >= POW10[length]) {
+            length++;
+        }
+        for (int i = offset + length - 1; i >= offset; i--) {
+            bytes[i] = (byte) ('0' + (v % 10));
+            v /= 10;
+        }
+        return offset + length;
+    }
+
+    private static int formatSpecial(double value, byte[] bytes, int offset) {
+        if (Double.isNaN(value)) {
+            return writeAscii("NaN", bytes, offset);
+        }
+        if (value == Double.POSITIVE_INFINITY) {
+            return writeAscii("Infinity", bytes, offset);
+        }
+        if (value == Double.NEGATIVE_INFINITY) {
+            return writeAscii("-Infinity", bytes, offset);
+        }
+        return -1;
+    }
+
+    private static int writeAscii(String string, byte[] bytes, int offset) {
+        for (int i = 0; i < string.length(); i++) {
+            bytes[offset++] = (byte) string.charAt(i);
+        }
+        return offset;
+    }
+
+    /**
+     * Writes digits from to to (positions after the last significant digit are zeros)
+     */
+    private int writeDigits(int from, int to, byte[] bytes, int offset) {
+        for (int i = from; i < to; i++) {
+            bytes[offset++] = i < digitCount ? digits[i] : (byte) '0';
+        }
+        return offset;
+    }
+
+    /**
+     * Rounds the digits half-up to the precision (as java.util.Formatter does)
+     */
+    private void round(int precision) {
+        if (digitCount <= precision) {
+            return;
+        }
+        boolean roundUp = digits[precision] >= '5';
+        digitCount = precision;
+        if (roundUp) {
+            int i = precision - 1;
+            while (i >= 0 && digits[i] == '9') {
+                i--;
+            }
+            if (i < 0) {
+                digits[0] = '1';
+                digitCount = 1;
+                exponent++;
+                return;
+            }
+            digits[i]++;
+            digitCount = i + 1;
+        }
+        while (digitCount > 1 && digits[digitCount - 1] == '0') {
+            digitCount--;
+        }
+    }
+
+    /**
+     * Finds the shortest digits of a finite, non-zero value
+     */
+    private void findDigits(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        long t = bits & T_MASK;
+        int bq = (int) (bits >>> 52) & BQ_MASK;
+        if (bq != 0) {
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            if (0 < mq && mq < 53) {
+                // an integer
+                long f = c >> mq;
+                if (f << mq == c) {
+                    setDigits(f, 0);
+                    return;
+                }
+            }
+            toDecimal(-mq, c, 0);
+        } else {
+            // subnormal
+            if (t < C_TINY) {
+                toDecimal(Q_MIN, 10 * t, -1);
+            } else {
+                toDecimal(Q_MIN, t, 0);
+            }
+        }
+    }
+
+    private void toDecimal(int q, long c, int dk) {
+        int out = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        long g1 = G[2 * (k - K_MIN)];
+        long g0 = G[2 * (k - K_MIN) + 1];
+
+        long vb = rop(g1, g0, cb << h);
+        long vbl = rop(g1, g0, cbl << h);
+        long vbr = rop(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            long sp10 = 10 * multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                setDigits(upin ? sp10 : tp10, k);
+                return;
+            }
+        }
+
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            setDigits(uin ? s : t, k + dk);
+            return;
+        }
+        long cmp = vb - (s + t << 1);
+        setDigits(cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk);
+    }
+
+    /**
+     * Stores the digits of f x 10^e
+     */
+    private void setDigits(long f, int e) {
+        int length = 1;
+        while (length <= H && f >= POW10[length]) {
+            length++;
+        }
+        exponent = e + length;
+
+        // drop the trailing zeros
+        while (f % 10 == 0) {
+            f /= 10;
+            length--;
+        }
+        digitCount = length;
+        for (int i = length - 1; i >= 0; i--) {
+            digits[i] = (byte) ('0' + (f % 10));
+            f /= 10;
+        }
+    }
+
+    private static long rop(long g1, long g0, long cp) {
+        long x1 = multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    // Math.multiplyHigh is not available in Java 8
+    private static long multiplyHigh(long x, long y) {
+        long x1 = x >> 32;
+        long x2 = x & 0xFFFFFFFFL;
+        long y1 = y >> 32;
+        long y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = t & 0xFFFFFFFFL;
+        long z0 = t >> 32;
+        z1 += x2 * y1;
+        return x1 * y1 + z0 + (z1 >> 32);
+    }
+
+    private static int flog10pow2(int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    private static int flog10threeQuartersPow2(int e) {
+        return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    private static int flog2pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+}
@@ -1,16 +1,23 @@
 package network.artic.phylofunk.funks;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
-
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Base class for all funk commands. Provides some static utility functions.
@@ -19,12 +26,30 @@ public abstract class Funk {
     public final static PrintStream errorStream = System.err;
     public final static PrintStream outStream = System.out;
 
+    private final static int COMPRESSION_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    private final static int READER_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    // the node and branch attributes the command needs from the trees it reads (null for all)
+    private static Set<String> treeAttributeNames = null;
+
+    // the metadata columns the command needs (null for all)
+    private static Set<String> metadataColumnNames = null;
+
+    // the patterns the command will match the values of metadata columns against (null for none)
+    private static Map<String, List<Pattern>> metadataRowFilters = null;
+
+    // read the rows of the metadata table that are looked up using a sidecar index file
+    private static boolean isUsingMetadataIndex = false;
+
+    // records the phases of the command if --profile is given
+    private static Profiler profiler = null;
+
     public final boolean isVerbose;
     public final String indexColumn;
     public final int indexField;
     public final String fieldDelimiter;
 
-    protected Map<String, CSVRecord> metadata = null;
+    protected MetadataTable metadata = null;
     protected List<String> columnNames = null;
 
     Set<String> keys = null;
@@ -33,6 +58,119 @@ public abstract class Funk {
     List<String> metadataHeaders = null;
 
 
+    /**
+     * Sets the node and branch attributes that are read from input trees. Any others are skipped
+     * by the tree parser.
+     * @param treeAttributeNames the attribute names or null to read all of them
+     */
+    public static void setTreeAttributeNames(Set<String> treeAttributeNames) {
+        Funk.treeAttributeNames = treeAttributeNames;
+    }
+
+    protected static Set<String> getTreeAttributeNames() {
+        return treeAttributeNames;
+    }
+
+    /**
+     * Sets the columns that are loaded from the metadata table (as well as the index column). The
+     * fields of any others are skipped when the table is read.
+     * @param metadataColumnNames the column names or null to load all of them
+     */
+    public static void setMetadataColumnNames(Set<String> metadataColumnNames) {
+        Funk.metadataColumnNames = metadataColumnNames;
+    }
+
+    /**
+     * Sets the patterns that the command will look for in the values of metadata columns. Rows
+     * whose values can't match don't need to be read: this is used to skip the row groups of
+     * Parquet files using their statistics.
+     * @param metadataRowFilters the patterns for each column name or null for none
+     */
+    public static void setMetadataRowFilters(Map<String, List<Pattern>> metadataRowFilters) {
+        Funk.metadataRowFilters = metadataRowFilters;
+    }
+
+    /**
+     * Sets whether the metadata table is read through a sidecar index file (the file name with
+     * '.pfidx' appended - built if it is missing or out of date) so only the rows that are looked
+     * up are read.
+     * @param isUsingMetadataIndex
+     */
+    public static void setUsingMetadataIndex(boolean isUsingMetadataIndex) {
+        Funk.isUsingMetadataIndex = isUsingMetadataIndex;
+    }
+
+    /**
+     * Collects the column names given in command line options (which may be null) for
+     * FunkFactory.getMetadataColumnNames.
+     * @param optionValues
+     * @return the set of non-empty names
+     */
+    protected static Set<String> collectColumnNames(String[]... optionValues) {
+        Set<String> names = new HashSet<>();
+        for (String[] values : optionValues) {
+            if (values != null) {
+                for (String value : values) {
+                    if (value != null && !value.isEmpty()) {
+                        names.add(value);
+                    }
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Starts recording the time, allocation and garbage collection of the phases of the command.
+     * Anything outside a named phase is counted as 'process'.
+     * @param commandName
+     */
+    public static void startProfile(String commandName) {
+        profiler = new Profiler(commandName);
+    }
+
+    /**
+     * Reports the profile of the command (if one was started).
+     * @param fileName a file to write the report as JSON or null to print a table to stderr
+     */
+    public static void writeProfile(String fileName) {
+        if (profiler == null) {
+            return;
+        }
+        if (fileName == null) {
+            profiler.printReport(errorStream);
+        } else {
+            try {
+                profiler.writeReport(fileName);
+            } catch (IOException ioe) {
+                errorStream.println("Error writing profile file: " + ioe.getMessage());
+                System.exit(1);
+            }
+        }
+        profiler = null;
+    }
+
+    /**
+     * Starts a named phase of the command (e.g., 'read tree', 'write'). Each call must be matched
+     * by a call to endPhase and phases should only be started on the main thread. Does nothing
+     * if not profiling.
+     * @param name
+     */
+    protected static void startPhase(String name) {
+        if (profiler != null) {
+            profiler.startPhase(name);
+        }
+    }
+
+    /**
+     * Ends the current phase and goes back to the one it was started in.
+     */
+    protected static void endPhase() {
+        if (profiler != null) {
+            profiler.endPhase();
+        }
+    }
+
     /**
      * Constructor
      * @param isVerbose
@@ -87,61 +225,241 @@ public abstract class Funk {
 
 
     protected final void readMetadataTable(String metadataFileName, String indexColumn) {
-        metadata = readCSV(metadataFileName, indexColumn);
-        keys = metadata.keySet();
+        MetadataIndex index = null;
+        if (isUsingMetadataIndex) {
+            index = openMetadataIndex(metadataFileName, indexColumn, metadataColumnNames);
+        }
+        if (index == null) {
+            metadata = readCSV(metadataFileName, indexColumn, metadataColumnNames, metadataRowFilters);
+        }
+        keys = metadata.getKeys();
 
         if (isVerbose) {
             outStream.println("Read metadata table: " + metadataFileName);
-            outStream.println("               Rows: " + metadata.size());
+            if (index != null) {
+                outStream.println("               Rows: " + index.getRowCount() + " (read when looked up using " +
+                        MetadataIndex.getIndexFileName(metadataFileName) + ")");
+            } else {
+                outStream.println("               Rows: " + metadata.getRowCount());
+            }
             outStream.println("       Index column: " + (indexColumn.isEmpty() ? columnNames.get(0) : indexColumn));
+            if (metadataColumnNames != null) {
+                outStream.println("     Columns loaded: " + metadata.getColumnNames().size() + " of " + columnNames.size());
+            }
             outStream.println();
         }
     }
 
-    protected final Map<String, CSVRecord> readCSV(String fileName, String indexColumn) {
-        Map<String, CSVRecord> csv = new HashMap<>();
+    /**
+     * Opens the sidecar index of a metadata table (building it if it is missing or out of date) and
+     * sets metadata to a table whose rows are read from the file as they are looked up.
+     * @param fileName
+     * @param indexColumn the column to key the rows by (empty for the first column)
+     * @param loadColumns the columns to load (the index column is always loaded) or null for all
+     * @return the index or null if it can't be used (the table should then be read in full)
+     */
+    private MetadataIndex openMetadataIndex(String fileName, String indexColumn, Set<String> loadColumns) {
+        MetadataIndex index = null;
+        startPhase("read metadata");
         try {
-            Reader in = new FileReader(fileName);
-
-            CSVParser parser;
-            if (fileName.toLowerCase().endsWith(".tsv")) {
-                parser = CSVFormat.TDF.builder()
-                        .setHeader()
-                        .setSkipHeaderRecord(true)
-                        .build()
-                        .parse(in);
+            if (isCompressedFile(fileName)) {
+                errorStream.println("Metadata index can't be used with a compressed file: reading the whole table");
+                endPhase();
+                return null;
+            }
+            if (isParquetFile(fileName)) {
+                errorStream.println("Metadata index can't be used with a Parquet file: reading the whole table");
+                endPhase();
+                return null;
+            }
+
+            boolean isTabDelimited = stripCompressedExtension(fileName).toLowerCase().endsWith(".tsv");
+            try (InputStream in = openInputStream(fileName)) {
+                columnNames = new MetadataReader(in, isTabDelimited).readHeader();
+            }
+            if (columnNames == null || columnNames.isEmpty()) {
+                errorStream.println("Error parsing metadata file: no header row found");
+                System.exit(1);
+            }
+            if (indexColumn == null || indexColumn.isEmpty()) {
+                indexColumn = columnNames.get(0);
+            }
+            if (!columnNames.contains(indexColumn)) {
+                errorStream.println("Index column, " + indexColumn + ", not found in metadata table");
+                System.exit(1);
+            }
+
+            index = MetadataIndex.open(fileName, isTabDelimited, indexColumn);
+            if (index == null) {
+                if (isVerbose) {
+                    outStream.println("Building metadata index: " + MetadataIndex.getIndexFileName(fileName));
+                }
+                try {
+                    MetadataIndex.build(fileName, isTabDelimited, indexColumn);
+                } catch (IOException ioe) {
+                    errorStream.println("Unable to write metadata index (" + ioe.getMessage() + "): reading the whole table");
+                    endPhase();
+                    return null;
+                }
+                index = MetadataIndex.open(fileName, isTabDelimited, indexColumn);
+                if (index == null) {
+                    errorStream.println("Metadata file changed while it was being indexed");
+                    System.exit(1);
+                }
+            }
+            for (String key : index.getDuplicateKeys()) {
+                errorStream.println("Duplicate index value, " + key + " in metadata table");
+            }
+
+            List<String> tableColumnNames = new ArrayList<>();
+            int[] columns = getTableColumns(columnNames, indexColumn, loadColumns, tableColumnNames);
+            metadata = new MetadataTable(tableColumnNames, indexColumn);
+            index.setColumns(columns, metadata.getColumnIndex(indexColumn), tableColumnNames.size());
+            metadata.setRowSource(index);
+
+        } catch (IllegalArgumentException e) {
+            errorStream.println("Error parsing metadata file: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            errorStream.println("Error reading metadata file: " + e.getMessage());
+            System.exit(1);
+        }
+        endPhase();
+        return index;
+    }
+
+    /**
+     * Finds the columns of a file to load into a table
+     * @param fileColumnNames the columns of the file
+     * @param indexColumn
+     * @param loadColumns the columns to load (the index column is always loaded) or null for all
+     * @param tableColumnNames the names of the columns to load are added to this
+     * @return the position in the table of each column in the file (or -1 if not loaded)
+     */
+    static int[] getTableColumns(List<String> fileColumnNames, String indexColumn, Set<String> loadColumns,
+                                 List<String> tableColumnNames) {
+        int[] columns = new int[fileColumnNames.size()];
+        for (int i = 0; i < columns.length; i++) {
+            String name = fileColumnNames.get(i);
+            boolean isLoaded = (loadColumns == null || name.equals(indexColumn) || loadColumns.contains(name));
+            if (isLoaded && !tableColumnNames.contains(name)) {
+                columns[i] = tableColumnNames.size();
+                tableColumnNames.add(name);
             } else {
-                parser = CSVFormat.RFC4180.builder()
-                        .setHeader()
-                        .setSkipHeaderRecord(true)
-                        .build()
-                        .parse(in);
+                columns[i] = -1;
             }
-            columnNames = parser.getHeaderNames();
+        }
+        return columns;
+    }
 
-            if (indexColumn.isEmpty()) {
-                // a particular column is used to index - check it is there for the first record
-                // and use it to key the records
+    /**
+     * Reads all the columns of a CSV or TSV file into a MetadataTable keyed by the index column.
+     * @param fileName
+     * @param indexColumn the column to key the rows by (null or empty for the first column)
+     * @return the table
+     */
+    protected final MetadataTable readCSV(String fileName, String indexColumn) {
+        return readCSV(fileName, indexColumn, null);
+    }
+
+    /**
+     * Reads a CSV or TSV file into a MetadataTable keyed by the index column. Only the index
+     * column and the given columns are kept - the other fields are skipped over without being
+     * decoded. The names of all the columns in the file are put in columnNames.
+     * @param fileName
+     * @param indexColumn the column to key the rows by (null or empty for the first column)
+     * @param loadColumns the columns to load (the index column is always loaded) or null for all
+     * @return the table
+     */
+    protected final MetadataTable readCSV(String fileName, String indexColumn, Set<String> loadColumns) {
+        return readCSV(fileName, indexColumn, loadColumns, null);
+    }
+
+    /**
+     * Reads a metadata file (CSV, TSV or Parquet) into a MetadataTable keyed by the index column.
+     * The row groups of a Parquet file in which no value of a column can match its patterns
+     * (according to the statistics in the file) are skipped.
+     * @param fileName
+     * @param indexColumn the column to key the rows by (null or empty for the first column)
+     * @param loadColumns the columns to load (the index column is always loaded) or null for all
+     * @param rowFilters the patterns the values of each column will be matched against or null
+     * @return the table
+     */
+    private MetadataTable readCSV(String fileName, String indexColumn, Set<String> loadColumns,
+                                  Map<String, List<Pattern>> rowFilters) {
+        startPhase("read metadata");
+        MetadataTable csv = null;
+        boolean isTabDelimited = stripCompressedExtension(fileName).toLowerCase().endsWith(".tsv");
+        // a large uncompressed file is parsed in chunks on several threads
+        boolean isChunked = ChunkedMetadataReader.isWorthChunking(fileName, READER_THREAD_COUNT);
+        try (RecordReader reader = (isChunked ? null : openRecordReader(fileName));
+             ChunkedMetadataReader chunkedReader = (isChunked ?
+                     new ChunkedMetadataReader(fileName, isTabDelimited, READER_THREAD_COUNT, ChunkedMetadataReader.DEFAULT_CHUNK_SIZE) : null)) {
+            if (isChunked) {
+                columnNames = chunkedReader.readHeader();
+            } else {
+                columnNames = reader.readHeader();
+            }
+            if (reader instanceof ParquetMetadataReader && rowFilters != null) {
+                Map<String, ValueMatcher> matchers = new HashMap<>();
+                for (String column : rowFilters.keySet()) {
+                    matchers.put(column, new ValueMatcher(rowFilters.get(column)));
+                }
+                ((ParquetMetadataReader) reader).setRowFilters(matchers);
+            }
+            if (columnNames == null || columnNames.isEmpty()) {
+                errorStream.println("Error parsing metadata file: no header row found");
+                System.exit(1);
+            }
+
+            if (indexColumn == null || indexColumn.isEmpty()) {
+                // no index column given so use the first column to key the records
                 indexColumn = columnNames.get(0);
             }
+            if (!columnNames.contains(indexColumn)) {
+                errorStream.println("Index column, " + indexColumn + ", not found in metadata table");
+                System.exit(1);
+            }
 
-            boolean first = true;
-            for (CSVRecord record : parser) {
-                if (first) {
-                    if (!record.isMapped(indexColumn)) {
-                        errorStream.println("Index column, " + indexColumn + ", not found in metadata table");
-                        System.exit(1);
-                    }
-                    first = false;
+            List<String> tableColumnNames = new ArrayList<>();
+            int[] columns = getTableColumns(columnNames, indexColumn, loadColumns, tableColumnNames);
+
+            csv = new MetadataTable(tableColumnNames, indexColumn);
+            int keyColumn = csv.getColumnIndex(indexColumn);
+
+            if (isChunked) {
+                for (String key : chunkedReader.readRecords(columns, keyColumn, csv)) {
+                    errorStream.println("Duplicate index value, " + key + " in metadata table");
                 }
-                String key = record.get(indexColumn);
-                if (!key.isEmpty()) {
-                    if (csv.containsKey(key)) {
-                        errorStream.println("Duplicate index value, " + key + " in metadata table");
+            } else {
+                String[] values = new String[tableColumnNames.size()];
+
+                while (true) {
+                    Arrays.fill(values, "");
+                    if (reader.readRecord(columns, values) < 0) {
+                        break;
+                    }
+                    String key = values[keyColumn];
+                    if (!key.isEmpty()) {
+                        int row = csv.getRowIndex(key);
+                        if (row >= 0) {
+                            errorStream.println("Duplicate index value, " + key + " in metadata table");
 //                        System.exit(1);
+                            csv.setRow(row, values);
+                        } else {
+                            csv.addRow(values);
+                        }
                     }
-                    csv.put(key, record);
                 }
+                if (isVerbose && reader instanceof ParquetMetadataReader && rowFilters != null) {
+                    ParquetMetadataReader parquetReader = (ParquetMetadataReader) reader;
+                    outStream.println("Skipped " + parquetReader.getSkippedRowGroupCount() + " of " +
+                            parquetReader.getRowGroupCount() + " Parquet row groups with no possible matches");
+                }
+            }
+            if (isUsingMetadataIndex) {
+                // the table is complete so the keys are put in a more compact (but slower) index
+                csv.indexKeys();
             }
 
         } catch (IllegalArgumentException e) {
@@ -151,49 +469,37 @@ public abstract class Funk {
             errorStream.println("Error reading metadata file: " + e.getMessage());
             System.exit(1);
         }
+        endPhase();
         return csv;
     }
 
     /**
-     * Writes a csv file
-     * @param records
+     * Writes the given rows of the metadata table to a csv file
+     * @param rows
      * @param fileName
      */
-    protected final void writeMetadataFile(List<CSVRecord> records, String fileName) {
-        writeCSVFile(records, fileName);
+    protected final void writeMetadataFile(List<Integer> rows, String fileName) {
+        writeCSVFile(metadata, rows, fileName);
     }
 
     /**
      * Writes a csv file
-     * @param records
+     * @param table
+     * @param rows
      * @param fileName
      */
-    private static void writeCSVFile(List<CSVRecord> records, String fileName) {
-        try {
-            PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName)));
-
-            List<String> headerNames = records.get(0).getParser().getHeaderNames();
-            writer.println(String.join(",", headerNames));
-
-            for (CSVRecord record : records) {
-                boolean first = true;
-                for (String value : record) {
-                    if (first) {
-                        writer.print(value);
-                        first = false;
-                    } else {
-                        writer.print(",");
-                        writer.print(value);
-                    }
-                }
-                writer.println();
+    private static void writeCSVFile(MetadataTable table, List<Integer> rows, String fileName) {
+        startPhase("write");
+        try (MetadataWriter writer = MetadataWriter.open(fileName, false)) {
+            writer.writeRow(table.getColumnNames());
+            for (int row : rows) {
+                writer.writeRow(table, row);
             }
-
-            writer.close();
         } catch (IOException e) {
             errorStream.println("Error writing metadata file: " + e.getMessage());
             System.exit(1);
         }
+        endPhase();
     }
 
     /**
@@ -202,8 +508,9 @@ public abstract class Funk {
      * @param fileName
      */
     static void writeTextFile(List<String> lines, String fileName) {
+        startPhase("write");
         try {
-            PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName)));
+            PrintWriter writer = new PrintWriter(openWriter(fileName));
 
             for (String line : lines) {
                 writer.println(line);
@@ -214,5 +521,161 @@ public abstract class Funk {
             errorStream.println("Error writing text file: " + e.getMessage());
             System.exit(1);
         }
+        endPhase();
+
+    }
+
+    /**
+     * Opens a file for reading. Files starting with the gzip magic number are decompressed, BGZF
+     * files on several threads. Uncompressed files are memory-mapped.
+     * @param fileName
+     * @return the stream
+     * @throws IOException
+     */
+    public static InputStream openInputStream(String fileName) throws IOException {
+        byte[] header = new byte[16];
+        int length = readFileHeader(fileName, header);
+
+        if (BGZFInputStream.isBGZF(header, length)) {
+            return new BGZFInputStream(new MappedFileInputStream(fileName), COMPRESSION_THREAD_COUNT);
+        }
+        if (BGZFInputStream.isGzip(header, length)) {
+            return new GZIPInputStream(new FileInputStream(fileName), 1 << 16);
+        }
+        return new MappedFileInputStream(fileName);
+    }
+
+    /**
+     * Opens a metadata file for reading records: a Parquet file or a CSV file (tab-delimited if
+     * the name, without any compressed extension, ends in '.tsv')
+     * @param fileName
+     * @return the reader
+     * @throws IOException
+     */
+    static RecordReader openRecordReader(String fileName) throws IOException {
+        if (isParquetFile(fileName)) {
+            return new ParquetMetadataReader(fileName);
+        }
+        boolean isTabDelimited = stripCompressedExtension(fileName).toLowerCase().endsWith(".tsv");
+        return new MetadataReader(openInputStream(fileName), isTabDelimited);
+    }
+
+    /**
+     * @param fileName
+     * @return true if the file is a Parquet file (starts with the Parquet magic number)
+     * @throws IOException
+     */
+    static boolean isParquetFile(String fileName) throws IOException {
+        byte[] header = new byte[ParquetMetadataReader.MAGIC.length];
+        return readFileHeader(fileName, header) == header.length && Arrays.equals(header, ParquetMetadataReader.MAGIC);
+    }
+
+    /**
+     * @param fileName
+     * @return true if the file is compressed (starts with the gzip magic number)
+     * @throws IOException
+     */
+    protected static boolean isCompressedFile(String fileName) throws IOException {
+        byte[] header = new byte[2];
+        return BGZFInputStream.isGzip(header, readFileHeader(fileName, header));
+    }
+
+    /**
+     * Reads the first bytes of a file
+     * @return the number of bytes read (less than the header length if the file is shorter)
+     */
+    private static int readFileHeader(String fileName, byte[] header) throws IOException {
+        int length = 0;
+        try (InputStream in = new FileInputStream(fileName)) {
+            int n;
+            while (length < header.length && (n = in.read(header, length, header.length - length)) > 0) {
+                length += n;
+            }
+        }
+        return length;
+    }
 
-    }}
+    /**
+     * Opens a text file for reading, decompressing it if required
+     * @param fileName
+     * @return the reader
+     * @throws IOException
+     */
+    public static Reader openReader(String fileName) throws IOException {
+        return new BufferedReader(new InputStreamReader(openInputStream(fileName)));
+    }
+
+    /**
+     * Opens a text file for writing. If the file name ends in '.gz' or '.bgz' it is written as
+     * BGZF (which can be read by gunzip) compressed on several threads.
+     * @param fileName
+     * @return the writer
+     * @throws IOException
+     */
+    public static Writer openWriter(String fileName) throws IOException {
+        if (isCompressedFileName(fileName)) {
+            return new BufferedWriter(new OutputStreamWriter(openOutputStream(fileName), StandardCharsets.UTF_8), 1 << 16);
+        }
+        return Files.newBufferedWriter(Paths.get(fileName));
+    }
+
+    /**
+     * Opens a binary file for writing, compressing it as BGZF if the file name ends in '.gz' or
+     * '.bgz'.
+     * @param fileName
+     * @return the stream
+     * @throws IOException
+     */
+    public static OutputStream openOutputStream(String fileName) throws IOException {
+        if (isCompressedFileName(fileName)) {
+            return new BGZFOutputStream(new FileOutputStream(fileName), COMPRESSION_THREAD_COUNT);
+        }
+        return new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16);
+    }
+
+    /**
+     * Opens a file for writing as a channel, for writers that do their own buffering. If the file
+     * name ends in '.gz' or '.bgz' it is written as BGZF.
+     * @param fileName
+     * @return the channel
+     * @throws IOException
+     */
+    public static WritableByteChannel openChannel(String fileName) throws IOException {
+        if (isCompressedFileName(fileName)) {
+            return Channels.newChannel(new BGZFOutputStream(new FileOutputStream(fileName), COMPRESSION_THREAD_COUNT));
+        }
+        return FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @param fileName
+     * @return true if the file name has a gzip extension
+     */
+    public static boolean isCompressedFileName(String fileName) {
+        String name = fileName.toLowerCase();
+        return name.endsWith(".gz") || name.endsWith(".bgz");
+    }
+
+    /**
+     * @param fileName
+     * @return the file name without any gzip extension (e.g., for checking the file type)
+     */
+    public static String stripCompressedExtension(String fileName) {
+        if (isCompressedFileName(fileName)) {
+            return fileName.substring(0, fileName.lastIndexOf('.'));
+        }
+        return fileName;
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread so far (if the JVM supports it).
+     * @return the number of bytes or -1 if not available
+     */
+    protected static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
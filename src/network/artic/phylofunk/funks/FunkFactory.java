@@ -3,6 +3,11 @@ package network.artic.phylofunk.funks;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
 /**
  * A factory interface for creating commands.
  */
@@ -14,4 +19,35 @@ public interface FunkFactory {
     void setOptions(Options options);
 
     void create(CommandLine commandLine, boolean isVerbose);
+
+    /**
+     * The node and branch attributes that the command needs from the trees it reads. Any other
+     * attributes are skipped when the trees are parsed.
+     * @param commandLine
+     * @return the attribute names (empty for none) or null if all the attributes are needed
+     */
+    default Set<String> getTreeAttributeNames(CommandLine commandLine) {
+        return null;
+    }
+
+    /**
+     * The metadata columns that the command uses (other than the index column). Any other
+     * columns are skipped when the metadata table is read.
+     * @param commandLine
+     * @return the column names (empty for none) or null if all the columns are needed
+     */
+    default Set<String> getMetadataColumnNames(CommandLine commandLine) {
+        return null;
+    }
+
+    /**
+     * The patterns that the command looks for in the values of metadata columns, where a row is
+     * only used if all of them are found. Rows that can't match may be skipped when the metadata
+     * table is read.
+     * @param commandLine
+     * @return the patterns for each column name or null if every row is needed
+     */
+    default Map<String, List<Pattern>> getMetadataRowFilters(CommandLine commandLine) {
+        return null;
+    }
 }
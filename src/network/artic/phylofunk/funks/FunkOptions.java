@@ -197,5 +197,41 @@ public class FunkOptions {
             .desc( "put the annotations in the sequence description rather than appending to the name (default false)" )
             .type(String.class).build();
 
-}
+    public final static Option THREADS = Option.builder()
+            .longOpt("threads")
+            .argName("number")
+            .hasArg()
+            .required(false)
+            .desc( "the number of threads to use for processing (default 1)" )
+            .type(Integer.class).build();
 
+    public final static Option MEMORY = Option.builder()
+            .longOpt("memory")
+            .argName("megabytes")
+            .hasArg()
+            .required(false)
+            .desc( "the approximate memory to use for the second table before joining it in partitions on disk (default half the maximum heap)" )
+            .type(Long.class).build();
+
+    public final static Option PROFILE = Option.builder()
+            .longOpt("profile")
+            .argName("file")
+            .hasArg()
+            .optionalArg(true)
+            .required(false)
+            .desc( "report the time, CPU, allocation and garbage collection of each phase of the command to stderr (or as JSON to a file)" )
+            .type(String.class).build();
+
+    public final static Option METADATA_INDEX = Option.builder()
+            .longOpt("metadata-index")
+            .required(false)
+            .desc( "only read the rows of the metadata table that are needed using an index file (the metadata filename with '.pfidx' appended, built if it is missing or out of date)" )
+            .build();
+
+    public final static Option FASTA_INDEX = Option.builder()
+            .longOpt("fasta-index")
+            .required(false)
+            .desc( "only read the sequences in the taxon list using a samtools-compatible index file (the FASTA filename with '.fai' appended, built if it is missing or out of date)" )
+            .build();
+
+}
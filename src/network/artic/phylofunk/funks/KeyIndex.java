@@ -0,0 +1,222 @@
+package network.artic.phylofunk.funks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * A static index of a set of distinct keys (e.g., the sequence names in the index column of a
+ * metadata table) that gives the position of a key in the set as a dense int. It is a minimal
+ * perfect hash: each key is hashed into a bit array and the keys that collide are hashed again,
+ * with another seed, into a smaller array at the next level (as in BBHash). The position of a
+ * key's bit among all the set bits is its slot, so the whole index takes about 10 bits per key
+ * (plus 4 bytes to verify the key and give its position) rather than the 16 or more bytes of an
+ * open addressing table or the 50 or so of a HashMap. The bit arrays are 4 times the number of
+ * keys hashed into them so most keys are found at the first level. The count of bits set before each word is
+ * kept next to the word so finding a slot only reads one place in memory at each level.
+ *
+ * A minimal perfect hash gives a slot for any string so the key at the slot is compared with the
+ * one looked up: first by a fingerprint of the hash held in the spare high bits of the slot's
+ * position (so most missing keys are rejected without touching the stored strings) and then in
+ * full.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public final class KeyIndex {
+    // the size of the bit array of each level relative to the keys hashed into it
+    private static final double GAMMA = 4.0;
+    // the keys still colliding after this many levels are put in a map
+    private static final int MAX_LEVELS = 24;
+
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    private final IntFunction<String> keys;
+    private final int keyCount;
+
+    // the words of bits of all the levels one after another, each followed by the number of bits
+    // set in the words before it
+    private final long[] words;
+    // the offset (in bits) and size of each level
+    private final long[] levelOffsets;
+    private final long[] levelSizes;
+
+    // the position of the key in each slot with a fingerprint of its hash in the bits above it
+    private final int[] slots;
+    private final int positionBits;
+    private final int positionMask;
+
+    // the keys that couldn't be placed (only those with the same hash code as another key)
+    private final Map<String, Integer> overflow = new HashMap<>();
+
+    /**
+     * Builds an index of keys
+     * @param keyCount the number of keys
+     * @param keys gives the key at each position (these must all be different) - this is kept to
+     *             verify the keys that are looked up
+     */
+    public KeyIndex(int keyCount, IntFunction<String> keys) {
+        this.keys = keys;
+        this.keyCount = keyCount;
+
+        long[] hashes = new long[keyCount];
+        int[] remaining = new int[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            hashes[i] = hash(keys.apply(i));
+            remaining[i] = i;
+        }
+        int remainingCount = keyCount;
+
+        // the bits of each level are built separately then concatenated
+        long[][] levelBits = new long[MAX_LEVELS][];
+        long[] offsets = new long[MAX_LEVELS + 1];
+        long[] sizes = new long[MAX_LEVELS];
+        int levelCount = 0;
+        while (remainingCount > 0 && levelCount < MAX_LEVELS) {
+            long size = Math.max(64, ((long) Math.ceil(remainingCount * GAMMA) + 63) & ~63L);
+            if (size > (1L << 32)) {
+                throw new IllegalArgumentException("Too many keys to index: " + keyCount);
+            }
+            long[] levelSet = new long[(int) (size >>> 6)];
+            long[] collisions = new long[levelSet.length];
+            for (int i = 0; i < remainingCount; i++) {
+                long bit = levelHash(hashes[remaining[i]], levelCount, size);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                if ((levelSet[word] & mask) != 0) {
+                    collisions[word] |= mask;
+                } else {
+                    levelSet[word] |= mask;
+                }
+            }
+            // only the bits of one key are kept and the others go on to the next level
+            int nextCount = 0;
+            for (int i = 0; i < remainingCount; i++) {
+                long bit = levelHash(hashes[remaining[i]], levelCount, size);
+                if ((collisions[(int) (bit >>> 6)] & (1L << bit)) != 0) {
+                    remaining[nextCount++] = remaining[i];
+                }
+            }
+            for (int w = 0; w < levelSet.length; w++) {
+                levelSet[w] &= ~collisions[w];
+            }
+            levelBits[levelCount] = levelSet;
+            sizes[levelCount] = size;
+            offsets[levelCount + 1] = offsets[levelCount] + size;
+            levelCount++;
+            remainingCount = nextCount;
+        }
+
+        levelOffsets = new long[levelCount];
+        levelSizes = new long[levelCount];
+        System.arraycopy(offsets, 0, levelOffsets, 0, levelCount);
+        System.arraycopy(sizes, 0, levelSizes, 0, levelCount);
+        long wordCount = offsets[levelCount] >>> 6;
+        if (wordCount * 2 > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many keys to index: " + keyCount);
+        }
+        words = new long[(int) wordCount * 2];
+        int rank = 0;
+        int w = 0;
+        for (int level = 0; level < levelCount; level++) {
+            for (long bits : levelBits[level]) {
+                words[w++] = bits;
+                words[w++] = rank;
+                rank += Long.bitCount(bits);
+            }
+            levelBits[level] = null;
+        }
+
+        positionBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(keyCount));
+        positionMask = (int) ((1L << positionBits) - 1);
+        slots = new int[rank];
+        for (int i = 0; i < keyCount; i++) {
+            int slot = getSlot(hashes[i]);
+            if (slot >= 0) {
+                slots[slot] = i | fingerprint(hashes[i]);
+            }
+        }
+        for (int i = 0; i < remainingCount; i++) {
+            overflow.put(keys.apply(remaining[i]), remaining[i]);
+        }
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public int size() {
+        return keyCount;
+    }
+
+    /**
+     * @param key
+     * @return the position of the key or -1 if it is not one of the keys
+     */
+    public int indexOf(String key) {
+        if (key == null) {
+            return -1;
+        }
+        long hash = hash(key);
+        int slot = getSlot(hash);
+        if (slot >= 0) {
+            int value = slots[slot];
+            if ((value & ~positionMask) == fingerprint(hash)) {
+                int position = value & positionMask;
+                if (key.equals(keys.apply(position))) {
+                    return position;
+                }
+            }
+            return -1;
+        }
+        if (overflow.isEmpty()) {
+            return -1;
+        }
+        Integer position = overflow.get(key);
+        return (position != null ? position : -1);
+    }
+
+    /**
+     * @return the slot of a hash or -1 if it doesn't have one (it is not a key's hash)
+     */
+    private int getSlot(long hash) {
+        for (int level = 0; level < levelOffsets.length; level++) {
+            long bit = levelOffsets[level] + levelHash(hash, level, levelSizes[level]);
+            int word = (int) (bit >>> 6) << 1;
+            long mask = 1L << bit;
+            long bits = words[word];
+            if ((bits & mask) != 0) {
+                return (int) words[word + 1] + Long.bitCount(bits & (mask - 1));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The hash is made from String.hashCode, which the string caches, so a label that has already
+     * been used as a map key (or looked up before) isn't hashed again. Keys with the same hash code
+     * collide at every level and end up in the overflow map - there are few of these as long as
+     * there are fewer than a few hundred million keys.
+     */
+    static long hash(String key) {
+        return mix(key.hashCode() * GOLDEN);
+    }
+
+    private static long levelHash(long hash, int level, long size) {
+        long h = mix(hash + GOLDEN * (level + 1));
+        // maps the top 32 bits onto 0..size-1 without a division
+        return ((h >>> 32) * size) >>> 32;
+    }
+
+    /**
+     * @return the bits of the hash above the position bits of a slot
+     */
+    private int fingerprint(long hash) {
+        return (int) hash & ~positionMask;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -0,0 +1,116 @@
+package network.artic.phylofunk.funks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An InputStream over a memory-mapped file. The file is mapped in windows (so files larger than
+ * 2GB can be read) and bytes are bulk copied out of the mapping rather than through read calls
+ * on the file.
+ */
+public class MappedFileInputStream extends InputStream {
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private long windowStart = 0;
+    private MappedByteBuffer window;
+
+    /**
+     * Constructor
+     * @param fileName
+     * @throws IOException
+     */
+    public MappedFileInputStream(String fileName) throws IOException {
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        this.size = channel.size();
+        mapWindow(0);
+    }
+
+    private void mapWindow(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+    }
+
+    private boolean ensureAvailable() throws IOException {
+        if (window.hasRemaining()) {
+            return true;
+        }
+        long next = windowStart + window.capacity();
+        if (next >= size) {
+            return false;
+        }
+        mapWindow(next);
+        return true;
+    }
+
+    /**
+     * @return the total size of the file in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the channel of the file (e.g., for positional reads or transfers of parts already read)
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the current position in the file
+     */
+    public long position() {
+        return windowStart + window.position();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        return window.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        int count = Math.min(length, window.remaining());
+        window.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long target = Math.min(size, position() + Math.max(0, count));
+        long skipped = target - position();
+        if (target < windowStart + window.capacity()) {
+            window.position((int) (target - windowStart));
+        } else if (target < size) {
+            mapWindow(target);
+        } else {
+            window.position(window.capacity());
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, size - position());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
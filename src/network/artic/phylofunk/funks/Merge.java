@@ -1,21 +1,33 @@
 package network.artic.phylofunk.funks;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.PriorityQueue;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
-import org.apache.commons.csv.CSVRecord;
 
 import static network.artic.phylofunk.funks.FunkOptions.*;
 
 /**
  * Merges two metadata tables based on an index column (usually taxon names).
+ *
+ * The first table is streamed a row at a time and the rows are written out in the same order.
+ * The second table is held in memory as a MetadataTable if it is likely to fit in the memory
+ * budget. If not, both tables are split into partitions on disk by the hash of the index value,
+ * each partition is joined in turn and the merged rows are then put back into the order of the
+ * first table.
  */
 public class Merge extends Funk {
     public static final FunkFactory FACTORY = new FunkFactory() {
@@ -38,10 +50,24 @@ public class Merge extends Funk {
             options.addOption(FunkOptions.LABEL_FIELDS);
             options.addOption(REPLACE);
             options.addOption(IGNORE_MISSING);
+            options.addOption(MEMORY);
         }
 
         @Override
         public void create(CommandLine commandLine, boolean isVerbose) {
+            long memory = 0;
+            if (commandLine.hasOption("memory")) {
+                try {
+                    memory = Long.parseLong(commandLine.getOptionValue("memory")) << 20;
+                } catch (NumberFormatException nfe) {
+                    memory = -1;
+                }
+                if (memory <= 0) {
+                    errorStream.println("Memory should be a positive number of megabytes: " + commandLine.getOptionValue("memory"));
+                    System.exit(1);
+                }
+            }
+
             new Merge(
                     commandLine.getOptionValue("input"),
                     commandLine.getOptionValue("metadata"),
@@ -50,11 +76,32 @@ public class Merge extends Funk {
                     null,
                     commandLine.hasOption("overwrite"),
                     commandLine.hasOption("ignore-missing"),
+                    memory,
                     isVerbose);
         }
 
     };
 
+    // how many bytes of heap a table may take for each byte of the file (short values that are
+    // mostly distinct take the most, as each is a String)
+    private static final int TABLE_SIZE_FACTOR = 8;
+    // and how much bigger than a compressed (or Parquet) file the table is likely to be
+    private static final int COMPRESSED_SIZE_FACTOR = 4;
+
+    private static final int MAX_PARTITION_COUNT = 128;
+    private static final int SPILL_BUFFER_SIZE = 1 << 15;
+
+    private final boolean overwriteExisting;
+    private final boolean extractMatches;
+
+    // for each column of the output, its column in the first table and the second (or -1)
+    private int[] outputColumns1;
+    private int[] outputColumns2;
+
+    private int rowCount1 = 0;
+    private int mergedRowCount = 0;
+    private int mergedValueCount = 0;
+
     public Merge(String metadataFileName1,
                  String metadataFileName2,
                  String outputFileName,
@@ -63,31 +110,43 @@ public class Merge extends Funk {
                  boolean overwriteExisting,
                  boolean extractMatches,
                  boolean isVerbose) {
+        this(metadataFileName1, metadataFileName2, outputFileName, indexColumn, addColumns,
+                overwriteExisting, extractMatches, 0, isVerbose);
+    }
+
+    /**
+     * Constructor
+     * @param memory the number of bytes the second table may use in memory (0 for the default)
+     */
+    public Merge(String metadataFileName1,
+                 String metadataFileName2,
+                 String outputFileName,
+                 String indexColumn,
+                 String[] addColumns,
+                 boolean overwriteExisting,
+                 boolean extractMatches,
+                 long memory,
+                 boolean isVerbose) {
 
         super(isVerbose);
 
-        Map<String, CSVRecord> metadata1 = readCSV(metadataFileName1, null);
-        List<String> headerNames1 = columnNames;
-        Map<String, CSVRecord> metadata2 = readCSV(metadataFileName2, indexColumn);
-        List<String> headerNames2 = columnNames;
+        this.overwriteExisting = overwriteExisting;
+        this.extractMatches = extractMatches;
 
-        indexColumn = (indexColumn == null ? headerNames2.get(0) : indexColumn);
+        List<String> headerNames1 = readHeader(metadataFileName1);
+        List<String> headerNames2 = readHeader(metadataFileName2);
 
+        indexColumn = (indexColumn == null || indexColumn.isEmpty() ? headerNames2.get(0) : indexColumn);
+
+        if (!headerNames2.contains(indexColumn)) {
+            errorStream.println("Index column, " + indexColumn + ", not found in metadata table");
+            System.exit(1);
+        }
         if (!headerNames1.contains(indexColumn)) {
             errorStream.println("Metadata file, " + metadataFileName1 + ", does not contain index column, " + indexColumn);
             System.exit(1);
         }
 
-        if (isVerbose) {
-            outStream.println("Read metadata table 1: " + metadataFileName1);
-            outStream.println("                 Rows: " + metadata1.size());
-            outStream.println();
-            outStream.println("Read metadata table 2: " + metadataFileName2);
-            outStream.println("                 Rows: " + metadata2.size());
-            outStream.println("         Index column: " + indexColumn);
-            outStream.println();
-        }
-
         List<String> headerNames = new ArrayList<>(headerNames1);
         for (String name : headerNames2) {
             if (!headerNames1.contains(name)) {
@@ -95,57 +154,61 @@ public class Merge extends Funk {
             }
         }
 
+        List<String> tableColumnNames2 = new ArrayList<>();
+        int[] columns2 = getTableColumns(headerNames2, indexColumn, null, tableColumnNames2);
+
+        outputColumns1 = new int[headerNames.size()];
+        outputColumns2 = new int[headerNames.size()];
+        for (int i = 0; i < headerNames.size(); i++) {
+            String name = headerNames.get(i);
+            outputColumns1[i] = headerNames1.indexOf(name);
+            outputColumns2[i] = (name.equals(indexColumn) ? -1 : tableColumnNames2.indexOf(name));
+        }
+
+        if (memory <= 0) {
+            memory = Runtime.getRuntime().maxMemory() / 2;
+        }
+        long tableSize = estimateTableSize(metadataFileName2);
+        int partitionCount = (int) Math.min(MAX_PARTITION_COUNT, (tableSize + memory - 1) / memory);
+
+        if (isVerbose) {
+            outStream.println("Metadata table 1: " + metadataFileName1);
+            outStream.println("Metadata table 2: " + metadataFileName2);
+            outStream.println("    Index column: " + indexColumn);
+            if (partitionCount > 1) {
+                outStream.println("      Partitions: " + partitionCount + " (table 2 is too large to hold in memory)");
+            }
+            outStream.println();
+        }
+
         if (outputFileName != null) {
             if (isVerbose) {
                 outStream.println("Writing merged metadata file, " + outputFileName);
                 outStream.println();
             }
-            int rowCount = 0;
-            int valueCount = 0;
 
-            try {
-                PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(outputFileName)));
+            int indexColumn1 = headerNames1.indexOf(indexColumn);
+            try (MetadataWriter writer = MetadataWriter.open(outputFileName, false)) {
+                writer.writeRow(headerNames);
 
-                writer.println(String.join(",", headerNames));
-
-                for (String key : metadata1.keySet()) {
-                    CSVRecord record1 = metadata1.get(key);
-                    String index = record1.get(indexColumn);
-                    CSVRecord record2 = metadata2.get(index);
-                    if (record2 != null) {
-                        rowCount += 1;
-                    }
-                    if (!extractMatches || record2 != null) {
-                        boolean first = true;
-                        for (String name : headerNames) {
-                            String value = "";
-                            if (headerNames1.contains(name)) {
-                                value = record1.get(name);
-                            }
-                            if (record2 != null && (value.isEmpty() || overwriteExisting) && !name.equals(indexColumn)) {
-                                if (headerNames2.contains(name)) {
-                                    value = record2.get(name);
-                                    valueCount += 1;
-                                }
-                            }
-                            writer.print(first ? "" : ",");
-                            writer.print(value);
-                            first = false;
-                        }
-                        writer.println();
-                    }
+                if (partitionCount > 1) {
+                    mergePartitioned(metadataFileName1, headerNames1.size(), indexColumn1,
+                            metadataFileName2, columns2, tableColumnNames2, indexColumn,
+                            partitionCount, writer);
+                } else {
+                    MetadataTable metadata2 = readCSV(metadataFileName2, indexColumn);
+                    mergeInMemory(metadataFileName1, headerNames1.size(), indexColumn1, metadata2, writer);
                 }
-
-                writer.close();
             } catch (IOException e) {
                 errorStream.println("Error writing metadata file: " + e.getMessage());
                 System.exit(1);
             }
 
             if (isVerbose) {
+                outStream.println("Rows in table 1: " + rowCount1);
                 outStream.println("Columns added: " + (headerNames.size() - headerNames1.size()));
-                outStream.println("  Rows merged: " + rowCount);
-                outStream.println("  Values merged: " + valueCount);
+                outStream.println("  Rows merged: " + mergedRowCount);
+                outStream.println("  Values merged: " + mergedValueCount);
                 outStream.println();
             }
 
@@ -153,5 +216,320 @@ public class Merge extends Funk {
 
     }
 
-}
+    /**
+     * Streams the first table, looking up each row in the second.
+     */
+    private void mergeInMemory(String fileName1, int columnCount1, int indexColumn1,
+                               MetadataTable metadata2, MetadataWriter writer) throws IOException {
+        startPhase("write");
+        try (RecordReader reader = openRecordReader(fileName1)) {
+            reader.readHeader();
+            int[] columns1 = getAllColumns(columnCount1);
+            String[] values1 = new String[columnCount1];
+            String[] values = new String[outputColumns1.length];
+            while (readRow(reader, columns1, values1, 0)) {
+                rowCount1 += 1;
+                if (mergeRow(values1, metadata2, metadata2.getRowIndex(values1[indexColumn1]), values)) {
+                    writer.writeRow(values);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            errorStream.println("Error parsing metadata file: " + e.getMessage());
+            System.exit(1);
+        }
+        endPhase();
+    }
+
+    /**
+     * Splits both tables into partitions on disk by the hash of the index value so that each
+     * partition of the second table fits in memory. Each partition is joined on its own, writing
+     * the merged rows with their position in the first table, and the partitions of merged rows
+     * are then merged back into the order of the first table.
+     */
+    private void mergePartitioned(String fileName1, int columnCount1, int indexColumn1,
+                                  String fileName2, int[] columns2, List<String> tableColumnNames2, String indexColumn,
+                                  int partitionCount, MetadataWriter writer) throws IOException {
+        Path directory = Files.createTempDirectory("merge");
+        try {
+            int keyColumn2 = tableColumnNames2.indexOf(indexColumn);
+            int columnCount2 = tableColumnNames2.size();
 
+            startPhase("read metadata");
+            long[] rowCounts2 = splitTable(fileName2, columns2, columnCount2, keyColumn2, false, directory, "table2-", partitionCount);
+            long[] rowCounts1 = splitTable(fileName1, getAllColumns(columnCount1), columnCount1, indexColumn1, true, directory, "table1-", partitionCount);
+            endPhase();
+
+            long[] mergedCounts = new long[partitionCount];
+            for (int p = 0; p < partitionCount; p++) {
+                MetadataTable metadata2 = new MetadataTable(tableColumnNames2, indexColumn);
+                File file2 = getPartitionFile(directory, "table2-", p);
+                try (DataInputStream in = openSpillInput(file2)) {
+                    String[] values = new String[columnCount2];
+                    for (long i = 0; i < rowCounts2[p]; i++) {
+                        readValues(in, values);
+                        String key = values[keyColumn2];
+                        int row = metadata2.getRowIndex(key);
+                        if (row >= 0) {
+                            errorStream.println("Duplicate index value, " + key + " in metadata table");
+                            metadata2.setRow(row, values);
+                        } else {
+                            metadata2.addRow(values);
+                        }
+                    }
+                }
+                Files.delete(file2.toPath());
+
+                File file1 = getPartitionFile(directory, "table1-", p);
+                try (DataInputStream in = openSpillInput(file1);
+                     DataOutputStream out = openSpillOutput(getPartitionFile(directory, "merged-", p))) {
+                    String[] values1 = new String[columnCount1];
+                    String[] values = new String[outputColumns1.length];
+                    for (long i = 0; i < rowCounts1[p]; i++) {
+                        long position = in.readLong();
+                        readValues(in, values1);
+                        if (mergeRow(values1, metadata2, metadata2.getRowIndex(values1[indexColumn1]), values)) {
+                            out.writeLong(position);
+                            writeValues(out, values);
+                            mergedCounts[p] += 1;
+                        }
+                    }
+                }
+                Files.delete(file1.toPath());
+            }
+
+            startPhase("write");
+            writeInOrder(directory, mergedCounts, writer);
+            endPhase();
+        } finally {
+            File[] files = directory.toFile().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.toFile().delete();
+        }
+    }
+
+    /**
+     * Reads a table and writes each row to the partition given by the hash of its key.
+     * @param columns the column in the partitions of each column of the file (-1 to drop it)
+     * @param keyColumn the column of the key in the partitions
+     * @param isNumbered if true each row is preceded by its position in the table (and it is
+     *                   the first table)
+     * @return the number of rows written to each partition
+     */
+    private long[] splitTable(String fileName, int[] columns, int columnCount, int keyColumn, boolean isNumbered,
+                              Path directory, String prefix, int partitionCount) throws IOException {
+        long[] rowCounts = new long[partitionCount];
+        DataOutputStream[] outs = new DataOutputStream[partitionCount];
+        try (RecordReader reader = openRecordReader(fileName)) {
+            for (int p = 0; p < partitionCount; p++) {
+                outs[p] = openSpillOutput(getPartitionFile(directory, prefix, p));
+            }
+            reader.readHeader();
+            String[] values = new String[columnCount];
+            long position = 0;
+            // the first table is keyed by its first column when it is read in full
+            while (readRow(reader, columns, values, isNumbered ? 0 : keyColumn)) {
+                String key = values[keyColumn];
+                // the high bits of the hash are used so the rows in each partition are still
+                // spread over the slots of the MetadataTable they are read into
+                int p = (int) (((MetadataTable.hash(key) & 0xFFFFFFFFL) * partitionCount) >>> 32);
+                if (isNumbered) {
+                    outs[p].writeLong(position);
+                    position += 1;
+                    rowCount1 += 1;
+                }
+                writeValues(outs[p], values);
+                rowCounts[p] += 1;
+            }
+        } catch (IllegalArgumentException e) {
+            errorStream.println("Error parsing metadata file: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            for (DataOutputStream out : outs) {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        }
+        return rowCounts;
+    }
+
+    /**
+     * Writes the merged rows of all the partitions in the order of the first table.
+     */
+    private void writeInOrder(Path directory, long[] rowCounts, MetadataWriter writer) throws IOException {
+        List<MergedPartition> partitions = new ArrayList<>();
+        PriorityQueue<MergedPartition> queue = new PriorityQueue<>(Comparator.comparingLong(partition -> partition.position));
+        try {
+            for (int p = 0; p < rowCounts.length; p++) {
+                MergedPartition partition = new MergedPartition(openSpillInput(getPartitionFile(directory, "merged-", p)), rowCounts[p], outputColumns1.length);
+                partitions.add(partition);
+                if (partition.next()) {
+                    queue.add(partition);
+                }
+            }
+            while (!queue.isEmpty()) {
+                MergedPartition partition = queue.poll();
+                writer.writeRow(partition.values);
+                if (partition.next()) {
+                    queue.add(partition);
+                }
+            }
+        } finally {
+            for (MergedPartition partition : partitions) {
+                partition.in.close();
+            }
+        }
+    }
+
+    /**
+     * Makes a row of the output from a row of the first table and its matching row of the second.
+     * @param values1 the values of the row of the first table
+     * @param metadata2 the second table
+     * @param row2 the matching row of the second table or -1 if there is none
+     * @param values the values of the row of the output
+     * @return false if the row should not be written
+     */
+    private boolean mergeRow(String[] values1, MetadataTable metadata2, int row2, String[] values) {
+        if (row2 >= 0) {
+            mergedRowCount += 1;
+        }
+        if (extractMatches && row2 < 0) {
+            return false;
+        }
+        for (int i = 0; i < outputColumns1.length; i++) {
+            String value = "";
+            if (outputColumns1[i] >= 0) {
+                value = values1[outputColumns1[i]];
+            }
+            if (row2 >= 0 && (value.isEmpty() || overwriteExisting) && outputColumns2[i] >= 0) {
+                value = metadata2.getString(row2, outputColumns2[i]);
+                mergedValueCount += 1;
+            }
+            values[i] = value;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next row that has a value in its key column (as rows without one, including
+     * blank lines, are not rows of a MetadataTable).
+     * @param keyColumn the key column in values
+     * @return false if there are no more rows
+     */
+    private static boolean readRow(RecordReader reader, int[] columns, String[] values, int keyColumn) throws IOException {
+        while (true) {
+            Arrays.fill(values, "");
+            if (reader.readRecord(columns, values) < 0) {
+                return false;
+            }
+            if (!values[keyColumn].isEmpty()) {
+                return true;
+            }
+        }
+    }
+
+    private List<String> readHeader(String fileName) {
+        List<String> names = null;
+        try (RecordReader reader = openRecordReader(fileName)) {
+            names = reader.readHeader();
+        } catch (IOException e) {
+            errorStream.println("Error reading metadata file: " + e.getMessage());
+            System.exit(1);
+        }
+        if (names == null || names.isEmpty()) {
+            errorStream.println("Error parsing metadata file: no header row found");
+            System.exit(1);
+        }
+        return names;
+    }
+
+    /**
+     * @return an estimate of the number of bytes of heap that the table in the file would take
+     */
+    private static long estimateTableSize(String fileName) {
+        long size = new File(fileName).length() * TABLE_SIZE_FACTOR;
+        try {
+            if (isCompressedFile(fileName) || isParquetFile(fileName)) {
+                size *= COMPRESSED_SIZE_FACTOR;
+            }
+        } catch (IOException ioe) {
+            // the error will be reported when the file is read
+        }
+        return size;
+    }
+
+    private static int[] getAllColumns(int columnCount) {
+        int[] columns = new int[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columns[i] = i;
+        }
+        return columns;
+    }
+
+    private static File getPartitionFile(Path directory, String prefix, int partition) {
+        return directory.resolve(prefix + partition).toFile();
+    }
+
+    private static DataOutputStream openSpillOutput(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath()), SPILL_BUFFER_SIZE));
+    }
+
+    private static DataInputStream openSpillInput(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), SPILL_BUFFER_SIZE));
+    }
+
+    private static void writeValues(DataOutputStream out, String[] values) throws IOException {
+        for (String value : values) {
+            writeValue(out, value);
+        }
+    }
+
+    private static void readValues(DataInputStream in, String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readValue(in);
+        }
+    }
+
+    // not writeUTF as that is limited to 64K bytes
+    private static void writeValue(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readValue(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A partition of merged rows being read back in order
+     */
+    private static final class MergedPartition {
+        final DataInputStream in;
+        long remaining;
+        long position;
+        final String[] values;
+
+        MergedPartition(DataInputStream in, long rowCount, int columnCount) {
+            this.in = in;
+            this.remaining = rowCount;
+            this.values = new String[columnCount];
+        }
+
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining -= 1;
+            position = in.readLong();
+            readValues(in, values);
+            return true;
+        }
+    }
+}
@@ -1,17 +1,12 @@
 package network.artic.phylofunk.funks;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
-import org.apache.commons.csv.CSVRecord;
 
 import static network.artic.phylofunk.funks.FunkOptions.*;
 
@@ -64,16 +59,16 @@ public class Merge2 extends Funk {
 
         super(isVerbose);
 
-        Map<String, CSVRecord> metadata1 = readCSV(metadataFileName1, indexColumn);
-        List<String> metadataHeaders1 = new LinkedList<>(metadata1.values().iterator().next().getParser().getHeaderNames());
+        MetadataTable metadata1 = readCSV(metadataFileName1, indexColumn);
+        List<String> metadataHeaders1 = new LinkedList<>(metadata1.getColumnNames());
         if (indexColumn != null && !metadataHeaders1.contains(indexColumn)) {
             errorStream.println("Index column, " + indexColumn + ", not found in metadata file " + metadataFileName1);
             System.exit(1);
         }
-        keys = metadata1.keySet();
+        keys = metadata1.getKeys();
 
-        Map<String, CSVRecord> metadata2 = readCSV(metadataFileName2, indexColumn);
-        List<String> metadataHeaders2 = new LinkedList<>(metadata2.values().iterator().next().getParser().getHeaderNames());
+        MetadataTable metadata2 = readCSV(metadataFileName2, indexColumn);
+        List<String> metadataHeaders2 = new LinkedList<>(metadata2.getColumnNames());
         if (indexColumn != null && !metadataHeaders2.contains(indexColumn)) {
             errorStream.println("Index column, " + indexColumn + ", not found in metadata file " + metadataFileName2);
             System.exit(1);
@@ -84,19 +79,18 @@ public class Merge2 extends Funk {
 
         if (isVerbose) {
             outStream.println("Read metadata table: " + metadataFileName1);
-            outStream.println("               Rows: " + metadata1.size());
+            outStream.println("               Rows: " + metadata1.getRowCount());
             outStream.println("       Index column: " + indexColumn1);
             outStream.println();
             outStream.println("Read metadata table: " + metadataFileName2);
-            outStream.println("               Rows: " + metadata2.size());
+            outStream.println("               Rows: " + metadata2.getRowCount());
             outStream.println("       Index column: " + indexColumn2);
             outStream.println();
         }
 
         if (!ignoreMissing) {
-            for (String key : metadata1.keySet()) {
-                CSVRecord record2 = metadata2.get(key);
-                if (record2 == null) {
+            for (String key : metadata1.getKeys()) {
+                if (!metadata2.containsKey(key)) {
                     errorStream.println("Row index, " + key + ", not found in second metadata table");
                     System.exit(1);
                 }
@@ -109,43 +103,41 @@ public class Merge2 extends Funk {
                 outStream.println();
             }
 
-            PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(outputFileName)));
+            MetadataWriter writer = MetadataWriter.open(outputFileName, false);
 
             metadataHeaders2.remove(indexColumn2);
             for (String header : metadataHeaders1) {
                 metadataHeaders2.remove(header);
             }
 
-            writer.print(String.join(",", metadataHeaders1));
-            writer.print("," + String.join(",", metadataHeaders2));
-            writer.println();
+            for (String header : metadataHeaders1) {
+                writer.writeValue(header);
+            }
+            for (String header : metadataHeaders2) {
+                writer.writeValue(header);
+            }
+            writer.endRow();
 
-            for (String key : metadata1.keySet()) {
-                CSVRecord record1 = metadata1.get(key);
-                CSVRecord record2 = metadata2.get(key);
+            for (int row1 = 0; row1 < metadata1.getRowCount(); row1++) {
+                int row2 = metadata2.getRowIndex(metadata1.getKey(row1));
 
-                boolean first = true;
                 for (String header : metadataHeaders1) {
-                    if (!first) {
-                        writer.print(',');
-                    } else {
-                        first = false;
-                    }
-                    if (record2 != null && record2.isSet(header)) {
-                        printValue(writer, record2.get(header));
+                    if (row2 >= 0 && metadata2.hasColumn(header)) {
+                        writer.writeValue(metadata2, row2, metadata2.getColumnIndex(header));
                     } else {
-                        printValue(writer, record1.get(header));
+                        writer.writeValue(metadata1, row1, metadata1.getColumnIndex(header));
                     }
                 }
 
                 for (String header : metadataHeaders2) {
-                    writer.print(',');
-                    if (record2 != null && record2.isSet(header)) {
-                        printValue(writer, record2.get(header));
+                    if (row2 >= 0 && metadata2.hasColumn(header)) {
+                        writer.writeValue(metadata2, row2, metadata2.getColumnIndex(header));
+                    } else {
+                        writer.writeValue("");
                     }
                 }
 
-                writer.println();
+                writer.endRow();
             }
             writer.close();
         } catch (IOException ioe) {
@@ -155,14 +147,5 @@ public class Merge2 extends Funk {
 
 
     }
-
-    private void printValue(PrintWriter writer, String value) {
-        if (value.contains(",")) {
-            writer.print("\"" + value + "\"");
-        } else {
-            writer.print(value);
-        }
-    }
-
 }
 
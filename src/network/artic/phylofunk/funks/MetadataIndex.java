@@ -0,0 +1,407 @@
+package network.artic.phylofunk.funks;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A sidecar index file (the metadata file name with '.pfidx' appended) that records the byte
+ * offset of the row for each key of an uncompressed metadata table. With it a row can be read
+ * straight from the table when it is looked up rather than the whole table being loaded.
+ *
+ * The index is only used if the file size, modification time and a hash of its content match
+ * those recorded when it was built (and it was built for the same index column). The content hash
+ * is of the header and of blocks sampled through the file - hashing all of a large file would take
+ * as long as reading it.
+ *
+ * The offsets are held in an open addressing table in the index file, which is memory-mapped, so
+ * opening the index doesn't read it. Each slot has the offset of a row (plus 1, 0 is an empty
+ * slot) in the low 40 bits and the top 24 bits of the hash of the key in the rest. As with a
+ * MetadataTable, a key that appears more than once in the file is given the row of the last one
+ * (the repeated keys are recorded so they can still be reported).
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+final class MetadataIndex implements MetadataTable.RowSource {
+    static final String EXTENSION = ".pfidx";
+
+    private static final byte[] MAGIC = "PFIDX001".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int SAMPLE_SIZE = 1 << 12;
+    private static final int SAMPLE_COUNT = 64;
+
+    private static final long OFFSET_MASK = (1L << 40) - 1;
+
+    // the slots are mapped in windows so the table can be larger than 2GB
+    private static final int WINDOW_SLOTS = 1 << 27;
+
+    private final String fileName;
+    private final boolean isTabDelimited;
+    private final FileChannel channel;
+    private final int rowCount;
+    private final List<String> duplicateKeys;
+    private final int slotCount;
+    private final MappedByteBuffer[] windows;
+
+    // for reading rows of the table
+    private final MetadataReader parser;
+    private int[] columns;
+    private int keyColumn;
+    private int columnCount;
+    private byte[] buffer = new byte[1 << 12];
+
+    private MetadataIndex(String fileName, boolean isTabDelimited, FileChannel indexChannel, long slotsStart,
+                          int rowCount, List<String> duplicateKeys, int slotCount) throws IOException {
+        this.fileName = fileName;
+        this.isTabDelimited = isTabDelimited;
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        this.rowCount = rowCount;
+        this.duplicateKeys = duplicateKeys;
+        this.slotCount = slotCount;
+
+        windows = new MappedByteBuffer[(slotCount + WINDOW_SLOTS - 1) / WINDOW_SLOTS];
+        for (int i = 0; i < windows.length; i++) {
+            long start = slotsStart + (long) i * WINDOW_SLOTS * 8;
+            long length = Math.min((long) WINDOW_SLOTS, slotCount - (long) i * WINDOW_SLOTS) * 8;
+            windows[i] = indexChannel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+
+        parser = new MetadataReader(isTabDelimited);
+    }
+
+    static String getIndexFileName(String fileName) {
+        return fileName + EXTENSION;
+    }
+
+    /**
+     * Opens the index of a metadata file
+     * @param fileName the metadata file
+     * @param isTabDelimited
+     * @param indexColumn the name of the index column
+     * @return the index or null if there is no index file or it doesn't match the metadata file
+     * @throws IOException
+     */
+    static MetadataIndex open(String fileName, boolean isTabDelimited, String indexColumn) throws IOException {
+        Path indexPath = Paths.get(getIndexFileName(fileName));
+        if (!Files.exists(indexPath)) {
+            return null;
+        }
+
+        try (FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(indexChannel)));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                return null;
+            }
+            FileIdentity identity = new FileIdentity(in);
+            if (!identity.equals(new FileIdentity(fileName))) {
+                return null;
+            }
+            if (!indexColumn.equals(in.readUTF())) {
+                return null;
+            }
+            int rowCount = in.readInt();
+            int duplicateCount = in.readInt();
+            List<String> duplicateKeys = new ArrayList<>();
+            for (int i = 0; i < duplicateCount; i++) {
+                duplicateKeys.add(in.readUTF());
+            }
+            int slotCount = in.readInt();
+            // the slots fill the rest of the file
+            long slotsStart = indexChannel.size() - (long) slotCount * 8;
+            if (slotCount <= 0 || Integer.bitCount(slotCount) != 1 || slotsStart < MAGIC.length) {
+                return null;
+            }
+
+            // the mapping remains valid after the channel is closed
+            return new MetadataIndex(fileName, isTabDelimited, indexChannel, slotsStart, rowCount, duplicateKeys, slotCount);
+        } catch (EOFException eofe) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds the index of a metadata file and writes it next to the file
+     * @param fileName the metadata file (uncompressed)
+     * @param isTabDelimited
+     * @param indexColumn the name of the index column
+     * @throws IOException
+     */
+    static void build(String fileName, boolean isTabDelimited, String indexColumn) throws IOException {
+        FileIdentity identity = new FileIdentity(fileName);
+
+        int slotCount = 1 << 16;
+        long[] slots = new long[slotCount];
+        int[] slotHashes = new int[slotCount];
+        String[] slotKeys = new String[slotCount];
+        int rowCount = 0;
+        List<String> duplicateKeys = new ArrayList<>();
+
+        try (InputStream in = new MappedFileInputStream(fileName)) {
+            MetadataReader reader = new MetadataReader(in, isTabDelimited);
+            List<String> header = reader.readHeader();
+            int keyPosition = (header != null ? header.indexOf(indexColumn) : -1);
+            if (keyPosition < 0) {
+                throw new IllegalArgumentException("Index column, " + indexColumn + ", not found in metadata table");
+            }
+            // only the key is read from each record
+            int[] columns = new int[keyPosition + 1];
+            Arrays.fill(columns, -1);
+            columns[keyPosition] = 0;
+            String[] values = new String[1];
+
+            while (true) {
+                long offset = reader.getOffset();
+                values[0] = "";
+                if (reader.readRecord(columns, values) < 0) {
+                    break;
+                }
+                String key = values[0];
+                if (key.isEmpty()) {
+                    continue;
+                }
+
+                if (rowCount * 2 > slotCount) {
+                    // grow the table
+                    long[] oldSlots = slots;
+                    int[] oldSlotHashes = slotHashes;
+                    String[] oldSlotKeys = slotKeys;
+                    slotCount *= 2;
+                    slots = new long[slotCount];
+                    slotHashes = new int[slotCount];
+                    slotKeys = new String[slotCount];
+                    for (int i = 0; i < oldSlots.length; i++) {
+                        if (oldSlots[i] != 0) {
+                            int slot = findSlot(slots, slotHashes, slotKeys, oldSlotHashes[i], oldSlotKeys[i]);
+                            slots[slot] = oldSlots[i];
+                            slotHashes[slot] = oldSlotHashes[i];
+                            slotKeys[slot] = oldSlotKeys[i];
+                        }
+                    }
+                }
+
+                int hash = MetadataTable.hash(key);
+                int slot = findSlot(slots, slotHashes, slotKeys, hash, key);
+                if (slots[slot] == 0) {
+                    rowCount++;
+                    slotHashes[slot] = hash;
+                    slotKeys[slot] = key;
+                } else {
+                    duplicateKeys.add(key);
+                }
+                // a repeated key is given the offset of the last row
+                slots[slot] = ((long) (hash >>> 8) << 40) | (offset + 1);
+            }
+        }
+
+        // write to a temporary file and move it into place so another process never sees part of it
+        Path indexPath = Paths.get(getIndexFileName(fileName));
+        Path tempPath = Paths.get(indexPath + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 1 << 16))) {
+                out.write(MAGIC);
+                identity.write(out);
+                out.writeUTF(indexColumn);
+                out.writeInt(rowCount);
+                out.writeInt(duplicateKeys.size());
+                for (String key : duplicateKeys) {
+                    out.writeUTF(key);
+                }
+                out.writeInt(slotCount);
+                for (long slot : slots) {
+                    out.writeLong(slot);
+                }
+            }
+            try {
+                Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private static int findSlot(long[] slots, int[] slotHashes, String[] slotKeys, int hash, String key) {
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != 0 && !(slotHashes[slot] == hash && slotKeys[slot].equals(key))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Sets the columns that are read for a table
+     * @param columns the column of the table for each column of the file (-1 to skip the column)
+     * @param keyColumn the index column of the table
+     * @param columnCount the number of columns in the table
+     */
+    void setColumns(int[] columns, int keyColumn, int columnCount) {
+        this.columns = columns;
+        this.keyColumn = keyColumn;
+        this.columnCount = columnCount;
+    }
+
+    /**
+     * @return the number of distinct keys in the table
+     */
+    int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the keys that appear more than once in the table (each time after the first)
+     */
+    List<String> getDuplicateKeys() {
+        return duplicateKeys;
+    }
+
+    @Override
+    public String[] readRow(String key) {
+        int hash = MetadataTable.hash(key);
+        long tag = (long) (hash >>> 8) << 40;
+        int mask = slotCount - 1;
+        int slot = hash & mask;
+        try {
+            long entry;
+            while ((entry = getSlot(slot)) != 0) {
+                if ((entry & ~OFFSET_MASK) == tag) {
+                    String[] values = readRecord((entry & OFFSET_MASK) - 1);
+                    if (key.equals(values[keyColumn])) {
+                        return values;
+                    }
+                }
+                slot = (slot + 1) & mask;
+            }
+        } catch (IOException ioe) {
+            Funk.errorStream.println("Error reading metadata file: " + ioe.getMessage());
+            System.exit(1);
+        }
+        return null;
+    }
+
+    @Override
+    public void readRows(MetadataTable table) {
+        try (InputStream in = new MappedFileInputStream(fileName)) {
+            MetadataReader reader = new MetadataReader(in, isTabDelimited);
+            reader.readHeader();
+            String[] values = new String[columnCount];
+            while (true) {
+                Arrays.fill(values, "");
+                if (reader.readRecord(columns, values) < 0) {
+                    break;
+                }
+                String key = values[keyColumn];
+                if (!key.isEmpty()) {
+                    int row = table.getLoadedRowIndex(key);
+                    if (row >= 0) {
+                        table.setRow(row, values);
+                    } else {
+                        table.addRow(values);
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            Funk.errorStream.println("Error reading metadata file: " + ioe.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private long getSlot(int slot) {
+        return windows[slot / WINDOW_SLOTS].getLong((slot % WINDOW_SLOTS) * 8);
+    }
+
+    /**
+     * Reads the record at an offset in the metadata file
+     */
+    private String[] readRecord(long offset) throws IOException {
+        String[] values = new String[columnCount];
+        while (true) {
+            int length = 0;
+            boolean isEnd = false;
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            while (byteBuffer.hasRemaining()) {
+                int n = channel.read(byteBuffer, offset + byteBuffer.position());
+                if (n < 0) {
+                    isEnd = true;
+                    break;
+                }
+            }
+            length = byteBuffer.position();
+
+            Arrays.fill(values, "");
+            if (parser.parseRecord(buffer, 0, length, isEnd, columns, values) >= 0) {
+                return values;
+            }
+            // the record is longer than the buffer
+            buffer = new byte[buffer.length * 2];
+        }
+    }
+
+    /**
+     * The size, modification time and content hash of a file
+     */
+    private static final class FileIdentity {
+        final long size;
+        final long modifiedTime;
+        final long contentHash;
+
+        FileIdentity(String fileName) throws IOException {
+            Path path = Paths.get(fileName);
+            size = Files.size(path);
+            modifiedTime = Files.getLastModifiedTime(path).toMillis();
+
+            // hash the start and end of the file and blocks evenly spaced through it
+            CRC32 crc = new CRC32();
+            byte[] sample = new byte[SAMPLE_SIZE];
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                for (int i = 0; i <= SAMPLE_COUNT; i++) {
+                    long position = Math.max(0, (size - SAMPLE_SIZE) * i / SAMPLE_COUNT);
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(sample);
+                    while (byteBuffer.hasRemaining() && channel.read(byteBuffer, position + byteBuffer.position()) >= 0) {
+                    }
+                    crc.update(sample, 0, byteBuffer.position());
+                }
+            }
+            contentHash = crc.getValue();
+        }
+
+        FileIdentity(DataInput in) throws IOException {
+            size = in.readLong();
+            modifiedTime = in.readLong();
+            contentHash = in.readLong();
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeLong(size);
+            out.writeLong(modifiedTime);
+            out.writeLong(contentHash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileIdentity)) {
+                return false;
+            }
+            FileIdentity other = (FileIdentity) o;
+            return size == other.size && modifiedTime == other.modifiedTime && contentHash == other.contentHash;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) ^ Long.hashCode(modifiedTime) ^ Long.hashCode(contentHash);
+        }
+    }
+}
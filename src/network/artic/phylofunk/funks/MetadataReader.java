@@ -0,0 +1,282 @@
+package network.artic.phylofunk.funks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the records of a CSV (RFC4180) or tab-delimited file straight from the bytes. Only the
+ * fields of the columns that are wanted are made into Strings - the bytes of the others are just
+ * scanned past - so loading a few columns of a wide table creates very few objects. Quoted fields
+ * (which may contain delimiters, doubled quotes and line breaks) are handled as commons-csv does.
+ * In tab-delimited files the spaces around unquoted values are trimmed.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+final class MetadataReader implements RecordReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream input;
+    private final byte delimiter;
+    private final boolean trimSpaces;
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    // the offset in the input of the start of the buffer
+    private long bufferOffset = 0;
+    private int position = 0;
+    private int limit = 0;
+    private boolean isEndOfInput = false;
+
+    // for unescaping quoted fields
+    private byte[] field = new byte[256];
+    private int fieldLength;
+
+    // the number of fields in the last record parsed
+    private int recordFieldCount;
+
+    /**
+     * Constructor
+     * @param input
+     * @param isTabDelimited
+     */
+    MetadataReader(InputStream input, boolean isTabDelimited) {
+        this.input = input;
+        this.delimiter = (byte) (isTabDelimited ? '\t' : ',');
+        this.trimSpaces = isTabDelimited;
+    }
+
+    /**
+     * Constructor for a reader that is only used to parse records from bytes (see parseRecord).
+     * @param isTabDelimited
+     */
+    MetadataReader(boolean isTabDelimited) {
+        this(null, isTabDelimited);
+    }
+
+    /**
+     * @return the offset in the input of the start of the next record
+     */
+    long getOffset() {
+        return bufferOffset + position;
+    }
+
+    /**
+     * Reads the first record as the column names.
+     * @return the names or null if the file is empty
+     * @throws IOException
+     */
+    @Override
+    public List<String> readHeader() throws IOException {
+        List<String> names = new ArrayList<>();
+        String[] values = new String[16];
+        while (true) {
+            int[] columns = new int[values.length];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = i;
+            }
+            int count = readRecord(columns, values, true);
+            if (count < 0) {
+                return null;
+            }
+            if (count <= values.length) {
+                for (int i = 0; i < count; i++) {
+                    names.add(values[i]);
+                }
+                return names;
+            }
+            // more columns than expected so read it again
+            values = new String[count];
+        }
+    }
+
+    /**
+     * Reads the next record into values.
+     * @param columns the index in values for each column of the file (-1 to skip the column)
+     * @param values the values read (any columns missing from the record are left unchanged)
+     * @return the number of fields in the record or -1 if there are no more records
+     * @throws IOException
+     */
+    @Override
+    public int readRecord(int[] columns, String[] values) throws IOException {
+        return readRecord(columns, values, false);
+    }
+
+    private int readRecord(int[] columns, String[] values, boolean isHeader) throws IOException {
+        while (true) {
+            if (position == limit && isEndOfInput) {
+                return -1;
+            }
+            int next = parseRecord(buffer, position, limit, isEndOfInput, columns, values);
+            if (next >= 0) {
+                int count = recordFieldCount;
+                if (isHeader && count > values.length) {
+                    // leave the header in the buffer to read again
+                    return count;
+                }
+                position = next;
+                return count;
+            }
+            fill();
+        }
+    }
+
+    /**
+     * Parses one record from bytes. The number of fields is left in recordFieldCount.
+     * @param bytes
+     * @param start the start of the record
+     * @param end the end of the available bytes
+     * @param isEnd true if there are no more bytes after end
+     * @param columns the index in values for each column (-1 to skip)
+     * @param values
+     * @return the position after the end of the record (and its line break) or -1 if the record
+     * is not complete before end
+     */
+    int parseRecord(byte[] bytes, int start, int end, boolean isEnd, int[] columns, String[] values) {
+        int pos = start;
+        int column = 0;
+        while (true) {
+            int target = (column < columns.length ? columns[column] : -1);
+
+            // skip leading spaces in tab delimited files
+            if (trimSpaces) {
+                while (pos < end && bytes[pos] == ' ') {
+                    pos++;
+                }
+            }
+
+            if (pos < end && bytes[pos] == '"') {
+                // a quoted field - runs to the next single quote
+                pos++;
+                fieldLength = 0;
+                while (true) {
+                    if (pos >= end) {
+                        if (!isEnd) {
+                            return -1;
+                        }
+                        break;
+                    }
+                    byte b = bytes[pos];
+                    if (b == '"') {
+                        if (pos + 1 >= end && !isEnd) {
+                            return -1;
+                        }
+                        if (pos + 1 < end && bytes[pos + 1] == '"') {
+                            if (target >= 0) {
+                                appendField(b);
+                            }
+                            pos += 2;
+                        } else {
+                            pos++;
+                            break;
+                        }
+                    } else {
+                        if (target >= 0) {
+                            appendField(b);
+                        }
+                        pos++;
+                    }
+                }
+                // anything between the closing quote and the delimiter is kept
+                while (pos < end && bytes[pos] != delimiter && bytes[pos] != '\n' && bytes[pos] != '\r') {
+                    if (target >= 0 && !(trimSpaces && bytes[pos] == ' ')) {
+                        appendField(bytes[pos]);
+                    }
+                    pos++;
+                }
+                if (pos >= end && !isEnd) {
+                    return -1;
+                }
+                if (target >= 0) {
+                    values[target] = new String(field, 0, fieldLength, StandardCharsets.UTF_8);
+                }
+            } else {
+                int fieldStart = pos;
+                while (pos < end && bytes[pos] != delimiter && bytes[pos] != '\n' && bytes[pos] != '\r') {
+                    pos++;
+                }
+                if (pos >= end && !isEnd) {
+                    return -1;
+                }
+                if (target >= 0) {
+                    int fieldEnd = pos;
+                    if (trimSpaces) {
+                        while (fieldEnd > fieldStart && bytes[fieldEnd - 1] == ' ') {
+                            fieldEnd--;
+                        }
+                    }
+                    values[target] = (fieldEnd == fieldStart ? "" :
+                            new String(bytes, fieldStart, fieldEnd - fieldStart, StandardCharsets.UTF_8));
+                }
+            }
+            column++;
+
+            if (pos >= end) {
+                // the end of the input
+                recordFieldCount = column;
+                return end;
+            }
+            byte b = bytes[pos];
+            if (b == delimiter) {
+                pos++;
+                continue;
+            }
+            // the end of the line
+            recordFieldCount = column;
+            if (b == '\r') {
+                if (pos + 1 >= end && !isEnd) {
+                    return -1;
+                }
+                if (pos + 1 < end && bytes[pos + 1] == '\n') {
+                    return pos + 2;
+                }
+            }
+            return pos + 1;
+        }
+    }
+
+    private void appendField(byte b) {
+        if (fieldLength == field.length) {
+            field = Arrays.copyOf(field, fieldLength * 2);
+        }
+        field[fieldLength++] = b;
+    }
+
+    /**
+     * Closes the input (if there is one)
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (input != null) {
+            input.close();
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer and reads more after them
+     */
+    private void fill() throws IOException {
+        int remaining = limit - position;
+        bufferOffset += position;
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+        } else if (remaining == buffer.length) {
+            // a record longer than the buffer
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        position = 0;
+        limit = remaining;
+        while (limit < buffer.length) {
+            int n = input.read(buffer, limit, buffer.length - limit);
+            if (n < 0) {
+                isEndOfInput = true;
+                break;
+            }
+            limit += n;
+        }
+    }
+}
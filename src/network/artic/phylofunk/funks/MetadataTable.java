@@ -0,0 +1,693 @@
+package network.artic.phylofunk.funks;
+
+import java.util.*;
+
+/**
+ * A metadata table held by column. Each column is stored as an array of int codes into a
+ * dictionary of its distinct values so a value that is repeated down a column (e.g., country,
+ * lineage or epi-week) is only held once. Columns with mostly distinct values (e.g., the sequence
+ * names) are switched to an array of the strings themselves as the dictionary would only add to
+ * the size. The rows are found by their key (the value in the index column) using an open
+ * addressing table of row numbers so no map entries are created per row. When memory matters more
+ * than lookup time (a metadata index is being used) this can be replaced, once the table has been
+ * read, by a KeyIndex (a minimal perfect hash of the keys) which takes a third of the space but is
+ * slower to look up.
+ *
+ * Rows with an empty key are not kept and a row with the same key as an earlier one replaces it.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public final class MetadataTable {
+    // a column is only stored as plain strings once it has more distinct values than this (and
+    // these are more than half the rows)
+    private static final int MAX_DICTIONARY_SIZE = 1 << 12;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final List<String> columnNames;
+    private final Map<String, Integer> columnIndices = new HashMap<>();
+    private final int keyColumn;
+    private final Column[] columns;
+
+    private int rowCount = 0;
+    private int rowCapacity = INITIAL_CAPACITY;
+
+    // pairs of row + 1 (0 for an empty slot) and the hash of the row's key (so the keys of other
+    // rows don't need to be compared when probing)
+    private int[] rowTable = new int[INITIAL_CAPACITY * 4];
+    // replaces the row table once all the rows are read (null until then)
+    private KeyIndex keyIndex = null;
+
+    private Set<String> keys = null;
+
+    // reads rows that haven't been loaded yet (null once they all have been)
+    private RowSource rowSource = null;
+
+    /**
+     * Constructor
+     * @param columnNames
+     * @param keyColumnName the column that holds the row keys
+     */
+    public MetadataTable(List<String> columnNames, String keyColumnName) {
+        this.columnNames = Collections.unmodifiableList(new ArrayList<>(columnNames));
+        for (int i = 0; i < columnNames.size(); i++) {
+            columnIndices.putIfAbsent(columnNames.get(i), i);
+        }
+        Integer index = columnIndices.get(keyColumnName);
+        if (index == null) {
+            throw new IllegalArgumentException("Index column, " + keyColumnName + ", not found in metadata table");
+        }
+        this.keyColumn = index;
+
+        columns = new Column[columnNames.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new Column(rowCapacity);
+        }
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    public String getKeyColumnName() {
+        return columnNames.get(keyColumn);
+    }
+
+    /**
+     * @param columnName
+     * @return the index of the column or -1 if there is no such column
+     */
+    public int getColumnIndex(String columnName) {
+        Integer index = columnIndices.get(columnName);
+        return (index != null ? index : -1);
+    }
+
+    public boolean hasColumn(String columnName) {
+        return columnIndices.containsKey(columnName);
+    }
+
+    public int getRowCount() {
+        loadRows();
+        return rowCount;
+    }
+
+    /**
+     * @param key
+     * @return the row with the key or -1 if there is none
+     */
+    public int getRowIndex(String key) {
+        int row = getLoadedRowIndex(key);
+        if (row < 0 && rowSource != null && key != null) {
+            String[] values = rowSource.readRow(key);
+            if (values != null) {
+                row = addRow(values);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * @param key
+     * @return the row with the key or -1 if there is none among the rows loaded so far
+     */
+    int getLoadedRowIndex(String key) {
+        if (key == null) {
+            return -1;
+        }
+        if (keyIndex != null) {
+            return keyIndex.indexOf(key);
+        }
+        int hash = hash(key);
+        int mask = (rowTable.length >> 1) - 1;
+        int slot = hash & mask;
+        while (rowTable[slot << 1] != 0) {
+            int row = rowTable[slot << 1] - 1;
+            if (rowTable[(slot << 1) + 1] == hash && key.equals(getString(row, keyColumn))) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean containsKey(String key) {
+        return getRowIndex(key) >= 0;
+    }
+
+    public String getKey(int row) {
+        return getString(row, keyColumn);
+    }
+
+    /**
+     * @return the keys of the rows in the order they were read (a view of the table)
+     */
+    public Set<String> getKeys() {
+        if (keys == null) {
+            keys = new AbstractSet<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    return new Iterator<String>() {
+                        private int row = 0;
+
+                        {
+                            loadRows();
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return row < rowCount;
+                        }
+
+                        @Override
+                        public String next() {
+                            if (row >= rowCount) {
+                                throw new NoSuchElementException();
+                            }
+                            return getKey(row++);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return getRowCount();
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    return (o instanceof String) && containsKey((String) o);
+                }
+            };
+        }
+        return keys;
+    }
+
+    /**
+     * @param row
+     * @param column
+     * @return the value (an empty string if there is no value)
+     */
+    public String getString(int row, int column) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + row + " out of range");
+        }
+        return columns[column].get(row);
+    }
+
+    /**
+     * @param row
+     * @param column
+     * @return the code of the value in the column's dictionary or -1 if the column holds its
+     * values directly
+     */
+    int getCode(int row, int column) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + row + " out of range");
+        }
+        Column c = columns[column];
+        return (c.dictionary != null ? c.codes[row] : -1);
+    }
+
+    /**
+     * @param column
+     * @return the number of values in the column's dictionary (0 if it holds its values directly)
+     */
+    int getDictionarySize(int column) {
+        Column c = columns[column];
+        return (c.dictionary != null ? c.dictionarySize : 0);
+    }
+
+    /**
+     * @param row
+     * @param columnName
+     * @return the value (an empty string if there is no value)
+     * @throws IllegalArgumentException if there is no such column
+     */
+    public String getString(int row, String columnName) {
+        return getString(row, getRequiredColumnIndex(columnName));
+    }
+
+    /**
+     * @param row
+     * @param column
+     * @return the value as a number or null if it is empty or not a number
+     */
+    public Double getDouble(int row, int column) {
+        String value = getString(row, column);
+        if (value.isEmpty()) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    public Double getDouble(int row, String columnName) {
+        return getDouble(row, getRequiredColumnIndex(columnName));
+    }
+
+    /**
+     * @param row
+     * @param column
+     * @return the value as an integer or null if it is empty or not an integer
+     */
+    public Integer getInteger(int row, int column) {
+        String value = getString(row, column);
+        if (value.isEmpty()) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    public Integer getInteger(int row, String columnName) {
+        return getInteger(row, getRequiredColumnIndex(columnName));
+    }
+
+    /**
+     * @param column
+     * @return the number of distinct values in the column
+     */
+    public int getDistinctValueCount(int column) {
+        loadRows();
+        Column c = columns[column];
+        if (c.dictionary != null) {
+            return c.dictionarySize;
+        }
+        Set<String> values = new HashSet<>();
+        for (int i = 0; i < rowCount; i++) {
+            values.add(c.values[i]);
+        }
+        return values.size();
+    }
+
+    /**
+     * Sets a source for rows that aren't in the table. A row is then read from it when its key is
+     * looked up and all the rows are read (in order after any already loaded) if the whole table
+     * is needed (e.g., for the number of rows or to iterate over the keys).
+     * @param rowSource
+     */
+    void setRowSource(RowSource rowSource) {
+        this.rowSource = rowSource;
+    }
+
+    /**
+     * @return true if all the rows are in the table rather than some being read from the row
+     * source when they are looked up (which adds them to the table so can't be done from more
+     * than one thread at once)
+     */
+    public boolean isLoaded() {
+        return rowSource == null;
+    }
+
+    /**
+     * Replaces the row table with a KeyIndex of the keys, which is smaller but slower to look up
+     * and can't have keys added to it. This is done once all the rows have been read: if more are
+     * added the row table is rebuilt.
+     */
+    void indexKeys() {
+        if (keyIndex == null && rowSource == null && rowCount > 0) {
+            rowTable = null;
+            keyIndex = new KeyIndex(rowCount, this::getKey);
+        }
+    }
+
+    /**
+     * Rebuilds the row table (if the keys have been put in a KeyIndex) so rows can be added
+     */
+    private void unindexKeys() {
+        if (keyIndex != null) {
+            keyIndex = null;
+            int size = INITIAL_CAPACITY * 2;
+            while (rowCount * 2 > size) {
+                size *= 2;
+            }
+            rowTable = new int[size * 2];
+            for (int row = 0; row < rowCount; row++) {
+                insertKey(row, hash(getKey(row)));
+            }
+        }
+    }
+
+    /**
+     * Reads all the rows from the row source (if there is one)
+     */
+    private void loadRows() {
+        if (rowSource != null) {
+            RowSource source = rowSource;
+            rowSource = null;
+            source.readRows(this);
+            indexKeys();
+        }
+    }
+
+    /**
+     * Adds a row to the end of the table. The values are in the order of the columns and any
+     * missing at the end are empty. The key must not be empty or already be in the table.
+     * @param values
+     * @return the row index
+     */
+    int addRow(String[] values) {
+        int row = newRow();
+        setRow(row, values);
+        indexRow(row, getString(row, keyColumn));
+        return row;
+    }
+
+    /**
+     * Replaces the values of a row (which must have the same key)
+     * @param row
+     * @param values
+     */
+    void setRow(int row, String[] values) {
+        for (int i = 0; i < columns.length; i++) {
+            String value = (i < values.length && values[i] != null ? values[i] : "");
+            columns[i].set(row, value, rowCount);
+        }
+    }
+
+    /**
+     * Adds the rows of a block to the end of the table in order. As when the rows are added one
+     * at a time, a row with the same key as an existing one replaces its values. This adds the
+     * keys - the values are then set by calling setColumn for each column.
+     * @param block a block with the same columns as the table
+     * @param duplicateKeys the keys of any rows that replace existing ones are added to this
+     * @return the row in the table for each row of the block
+     */
+    int[] appendKeys(Block block, List<String> duplicateKeys) {
+        int[] rows = new int[block.rowCount];
+        for (int blockRow = 0; blockRow < block.rowCount; blockRow++) {
+            String key = block.getKey(blockRow);
+            int row = getRowIndex(key);
+            if (row >= 0) {
+                duplicateKeys.add(key);
+            } else {
+                row = newRow();
+                // the key is set now in case it is repeated later in the block
+                columns[keyColumn].set(row, key, rowCount);
+                indexRow(row, key);
+            }
+            rows[blockRow] = row;
+        }
+        return rows;
+    }
+
+    /**
+     * Sets the values of a column from a block added by appendKeys (the key column is set by
+     * appendKeys). The codes of the block's dictionary are mapped to those of the table rather
+     * than every value being looked up. Different columns can be set concurrently with each other
+     * and with appendKeys (as long as the table doesn't need to grow) but each column must be set
+     * from the blocks in order.
+     * @param column
+     * @param rows the rows returned by appendKeys
+     * @param block
+     * @param rowCount the number of rows in the table after the block was added
+     */
+    void setColumn(int column, int[] rows, Block block, int rowCount) {
+        if (column != keyColumn) {
+            columns[column].set(rows, block.columns[column], block.rowCount, rowCount);
+        }
+    }
+
+    int getRowCapacity() {
+        return rowCapacity;
+    }
+
+    /**
+     * Makes space for at least the given number of rows (e.g., when the size of a file being read
+     * is known) so the columns and the row table don't have to be grown repeatedly.
+     * @param capacity
+     */
+    void ensureCapacity(int capacity) {
+        unindexKeys();
+        if (capacity > rowCapacity) {
+            rowCapacity = capacity;
+            for (Column column : columns) {
+                column.grow(rowCapacity);
+            }
+        }
+        int size = rowTable.length >> 1;
+        while (capacity * 2 > size) {
+            size *= 2;
+        }
+        if (size > rowTable.length >> 1) {
+            rehash(size);
+        }
+    }
+
+    /**
+     * Makes space for a new row at the end of the table
+     * @return the row index
+     */
+    private int newRow() {
+        if (rowCount == rowCapacity) {
+            rowCapacity *= 2;
+            for (Column column : columns) {
+                column.grow(rowCapacity);
+            }
+        }
+        int row = rowCount;
+        rowCount++;
+        return row;
+    }
+
+    /**
+     * Adds the key of a new row to the row table
+     * @param row
+     * @param key
+     */
+    private void indexRow(int row, String key) {
+        unindexKeys();
+        if (rowCount * 2 > rowTable.length >> 1) {
+            rehash(rowTable.length);
+        }
+        insertKey(row, hash(key));
+    }
+
+    private int getRequiredColumnIndex(String columnName) {
+        Integer index = columnIndices.get(columnName);
+        if (index == null) {
+            throw new IllegalArgumentException("Column, " + columnName + ", not found in metadata table");
+        }
+        return index;
+    }
+
+    private void insertKey(int row, int hash) {
+        int mask = (rowTable.length >> 1) - 1;
+        int slot = hash & mask;
+        while (rowTable[slot << 1] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        rowTable[slot << 1] = row + 1;
+        rowTable[(slot << 1) + 1] = hash;
+    }
+
+    private void rehash(int size) {
+        int[] oldRowTable = rowTable;
+        rowTable = new int[size * 2];
+        for (int i = 0; i < oldRowTable.length; i += 2) {
+            if (oldRowTable[i] != 0) {
+                insertKey(oldRowTable[i] - 1, oldRowTable[i + 1]);
+            }
+        }
+    }
+
+    static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Reads the rows of a table on demand
+     */
+    interface RowSource {
+        /**
+         * @param key
+         * @return the values of the row with the key (in the order of the table's columns) or null
+         * if there is no such row
+         */
+        String[] readRow(String key);
+
+        /**
+         * Adds all the rows to the table (replacing the values of any already in it)
+         * @param table
+         */
+        void readRows(MetadataTable table);
+    }
+
+    /**
+     * A block of rows (e.g., part of a file parsed on another thread) to be added to a table with
+     * appendKeys and setColumn. The columns are encoded in the same way as those of the table but there is no
+     * key index and rows with an empty key are not kept.
+     */
+    static final class Block {
+        private final Column[] columns;
+        private final int keyColumn;
+        private int rowCount = 0;
+        private int rowCapacity;
+
+        Block(int columnCount, int keyColumn, int capacity) {
+            this.keyColumn = keyColumn;
+            this.rowCapacity = Math.max(capacity, 16);
+            columns = new Column[columnCount];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = new Column(rowCapacity);
+            }
+        }
+
+        /**
+         * Adds a row to the end of the block (if its key is not empty)
+         * @param values the values in the order of the columns
+         */
+        void addRow(String[] values) {
+            String key = values[keyColumn];
+            if (key == null || key.isEmpty()) {
+                return;
+            }
+            // the string caches its hash so this is not done again when the block is appended
+            key.hashCode();
+
+            if (rowCount == rowCapacity) {
+                rowCapacity *= 2;
+                for (Column column : columns) {
+                    column.grow(rowCapacity);
+                }
+            }
+            int row = rowCount;
+            rowCount++;
+            for (int i = 0; i < columns.length; i++) {
+                String value = (i < values.length && values[i] != null ? values[i] : "");
+                columns[i].set(row, value, rowCount);
+            }
+        }
+
+        int getRowCount() {
+            return rowCount;
+        }
+
+        String getKey(int row) {
+            return columns[keyColumn].get(row);
+        }
+    }
+
+    /**
+     * A column held as codes into a dictionary of values or, if most of the values are distinct,
+     * as the values themselves.
+     */
+    private static final class Column {
+        private int[] codes;
+        private String[] dictionary;
+        private int dictionarySize;
+        private Map<String, Integer> dictionaryCodes;
+
+        private String[] values = null;
+
+        Column(int capacity) {
+            codes = new int[capacity];
+            dictionary = new String[16];
+            dictionaryCodes = new HashMap<>();
+            // code 0 is always the empty value
+            dictionary[0] = "";
+            dictionaryCodes.put("", 0);
+            dictionarySize = 1;
+        }
+
+        String get(int row) {
+            return (dictionary != null ? dictionary[codes[row]] : values[row]);
+        }
+
+        void set(int row, String value, int rowCount) {
+            if (dictionary != null) {
+                int code = encode(value, rowCount);
+                if (code >= 0) {
+                    codes[row] = code;
+                    return;
+                }
+            }
+            values[row] = (value.isEmpty() ? "" : value);
+        }
+
+        /**
+         * Sets the values of rows from those of another column
+         * @param rows the row to set for each row of from (if a row is given more than once the
+         *             last value is kept)
+         * @param from
+         * @param fromCount the number of rows of from
+         * @param rowCount
+         */
+        void set(int[] rows, Column from, int fromCount, int rowCount) {
+            // the code in this dictionary for each code in from's dictionary (-1 if not yet known)
+            int[] codeMap = null;
+            for (int fromRow = 0; fromRow < fromCount; fromRow++) {
+                int row = rows[fromRow];
+                if (dictionary == null || from.dictionary == null) {
+                    set(row, from.get(fromRow), rowCount);
+                    continue;
+                }
+                if (codeMap == null) {
+                    codeMap = new int[from.dictionarySize];
+                    Arrays.fill(codeMap, -1);
+                }
+                int fromCode = from.codes[fromRow];
+                int code = codeMap[fromCode];
+                if (code < 0) {
+                    code = encode(from.dictionary[fromCode], rowCount);
+                    if (code < 0) {
+                        values[row] = from.dictionary[fromCode];
+                        continue;
+                    }
+                    codeMap[fromCode] = code;
+                }
+                codes[row] = code;
+            }
+        }
+
+        /**
+         * Finds the code for a value, adding it to the dictionary if it is new
+         * @return the code or -1 if the column has switched to holding the values directly
+         */
+        private int encode(String value, int rowCount) {
+            Integer code = dictionaryCodes.get(value);
+            if (code == null) {
+                if (dictionarySize >= MAX_DICTIONARY_SIZE && dictionarySize > rowCount / 2) {
+                    toValues(rowCount);
+                    return -1;
+                }
+                code = dictionarySize;
+                if (dictionarySize == dictionary.length) {
+                    dictionary = Arrays.copyOf(dictionary, dictionarySize * 2);
+                }
+                dictionary[dictionarySize++] = value;
+                dictionaryCodes.put(value, code);
+            }
+            return code;
+        }
+
+        void grow(int capacity) {
+            if (dictionary != null) {
+                codes = Arrays.copyOf(codes, capacity);
+            } else {
+                values = Arrays.copyOf(values, capacity);
+            }
+        }
+
+        /**
+         * Switches the column to holding the values directly
+         */
+        private void toValues(int rowCount) {
+            values = new String[codes.length];
+            for (int i = 0; i < rowCount; i++) {
+                values[i] = dictionary[codes[i]];
+            }
+            codes = null;
+            dictionary = null;
+            dictionaryCodes = null;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package network.artic.phylofunk.funks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes the rows of a CSV (RFC4180) or tab-delimited file into a large byte buffer which is
+ * written to a channel when full. A value is quoted if it contains the delimiter, a double quote
+ * or a line break (or, in tab-delimited files, starts or ends with a space as MetadataReader
+ * trims these) and any double quotes in it are doubled. Plain ASCII values are copied into the
+ * buffer as they are checked so most are only scanned once.
+ *
+ * The rows of a MetadataTable can be written straight from its columns: each value in a column's
+ * dictionary is only encoded the first time it is written.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public final class MetadataWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] bytes = buffer.array();
+    private int position = 0;
+
+    private final char delimiter;
+    private final boolean quoteSpaces;
+    private boolean isFirstField = true;
+
+    private final DoubleFormatter formatter = new DoubleFormatter();
+
+    // the encoded dictionary values of the columns of the last table written from
+    private MetadataTable encodedTable = null;
+    private byte[][][] encodedValues;
+
+    /**
+     * Constructor
+     * @param channel
+     * @param isTabDelimited
+     */
+    public MetadataWriter(WritableByteChannel channel, boolean isTabDelimited) {
+        this.channel = channel;
+        this.delimiter = (isTabDelimited ? '\t' : ',');
+        this.quoteSpaces = isTabDelimited;
+    }
+
+    /**
+     * Opens a file for writing (compressed if the name ends in '.gz' or '.bgz'). It is
+     * tab-delimited if the name (without any compressed extension) ends in '.tsv'.
+     * @param fileName
+     * @return the writer
+     * @throws IOException
+     */
+    public static MetadataWriter open(String fileName) throws IOException {
+        return open(fileName, Funk.stripCompressedExtension(fileName).toLowerCase().endsWith(".tsv"));
+    }
+
+    /**
+     * Opens a file for writing (compressed if the name ends in '.gz' or '.bgz').
+     * @param fileName
+     * @param isTabDelimited
+     * @return the writer
+     * @throws IOException
+     */
+    public static MetadataWriter open(String fileName, boolean isTabDelimited) throws IOException {
+        return new MetadataWriter(Funk.openChannel(fileName), isTabDelimited);
+    }
+
+    /**
+     * Writes the values as a row
+     * @param values
+     */
+    public void writeRow(List<String> values) throws IOException {
+        for (String value : values) {
+            writeValue(value);
+        }
+        endRow();
+    }
+
+    /**
+     * Writes the values as a row
+     * @param values
+     */
+    public void writeRow(String... values) throws IOException {
+        for (String value : values) {
+            writeValue(value);
+        }
+        endRow();
+    }
+
+    /**
+     * Writes the values of a row of a table
+     * @param table
+     * @param row
+     */
+    public void writeRow(MetadataTable table, int row) throws IOException {
+        int columnCount = table.getColumnNames().size();
+        for (int column = 0; column < columnCount; column++) {
+            writeValue(table, row, column);
+        }
+        endRow();
+    }
+
+    /**
+     * Writes the value of a row and column of a table as the next field, using the encoded
+     * value in the column's dictionary if it has one.
+     * @param table
+     * @param row
+     * @param column
+     */
+    public void writeValue(MetadataTable table, int row, int column) throws IOException {
+        int code = table.getCode(row, column);
+        if (code < 0) {
+            writeValue(table.getString(row, column));
+            return;
+        }
+        if (table != encodedTable) {
+            encodedTable = table;
+            encodedValues = new byte[table.getColumnNames().size()][][];
+        }
+        byte[][] values = encodedValues[column];
+        if (values == null || code >= values.length) {
+            byte[][] grown = new byte[Math.max(code + 1, table.getDictionarySize(column))][];
+            if (values != null) {
+                System.arraycopy(values, 0, grown, 0, values.length);
+            }
+            values = grown;
+            encodedValues[column] = values;
+        }
+        byte[] value = values[code];
+        if (value == null) {
+            value = encode(table.getString(row, column));
+            values[code] = value;
+        }
+        startField();
+        writeBytes(value);
+    }
+
+    /**
+     * Writes a value as the next field (nothing for null)
+     * @param value
+     */
+    public void writeValue(Object value) throws IOException {
+        if (value instanceof String) {
+            writeValue((String) value);
+        } else if (value instanceof Double) {
+            writeValue(((Double) value).doubleValue());
+        } else if (value instanceof Integer) {
+            writeValue(((Integer) value).intValue());
+        } else {
+            writeValue(value == null ? "" : value.toString());
+        }
+    }
+
+    /**
+     * Writes a value as the next field
+     * @param value
+     */
+    public void writeValue(String value) throws IOException {
+        startField();
+        int length = value.length();
+        if (length > bytes.length - position) {
+            flush();
+        }
+        if (length <= bytes.length - position) {
+            // copy the value as long as it is plain ASCII
+            int start = position;
+            int i = 0;
+            while (i < length) {
+                char c = value.charAt(i);
+                if (c >= 0x80 || c == delimiter || c == '"' || c == '\n' || c == '\r') {
+                    break;
+                }
+                bytes[position++] = (byte) c;
+                i++;
+            }
+            if (i == length && !(quoteSpaces && length > 0 && (value.charAt(0) == ' ' || value.charAt(length - 1) == ' '))) {
+                return;
+            }
+            position = start;
+        }
+        writeBytes(encode(value));
+    }
+
+    /**
+     * Writes a number as the next field in the form of Double.toString
+     * @param value
+     */
+    public void writeValue(double value) throws IOException {
+        startField();
+        ensureCapacity(DoubleFormatter.MAX_LENGTH);
+        position = formatter.format(value, bytes, position);
+    }
+
+    /**
+     * Writes a number as the next field
+     * @param value
+     */
+    public void writeValue(int value) throws IOException {
+        startField();
+        ensureCapacity(DoubleFormatter.MAX_LENGTH);
+        position = DoubleFormatter.writeInt(value, bytes, position);
+    }
+
+    /**
+     * Ends the current row
+     */
+    public void endRow() throws IOException {
+        for (int i = 0; i < LINE_SEPARATOR.length(); i++) {
+            if (position == bytes.length) {
+                flush();
+            }
+            bytes[position++] = (byte) LINE_SEPARATOR.charAt(i);
+        }
+        isFirstField = true;
+    }
+
+    /**
+     * Encodes a value as UTF-8, quoting it if required
+     */
+    private byte[] encode(String value) {
+        boolean isQuoted = (quoteSpaces && !value.isEmpty() && (value.charAt(0) == ' ' || value.charAt(value.length() - 1) == ' '));
+        for (int i = 0; i < value.length() && !isQuoted; i++) {
+            char c = value.charAt(i);
+            isQuoted = (c == delimiter || c == '"' || c == '\n' || c == '\r');
+        }
+        if (isQuoted) {
+            value = "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void startField() throws IOException {
+        if (!isFirstField) {
+            if (position == bytes.length) {
+                flush();
+            }
+            bytes[position++] = (byte) delimiter;
+        }
+        isFirstField = false;
+    }
+
+    private void writeBytes(byte[] source) throws IOException {
+        int offset = 0;
+        while (offset < source.length) {
+            if (position == bytes.length) {
+                flush();
+            }
+            int n = Math.min(source.length - offset, bytes.length - position);
+            System.arraycopy(source, offset, bytes, position, n);
+            position += n;
+            offset += n;
+        }
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (position + length > bytes.length) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes out the buffer
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        buffer.clear();
+        buffer.limit(position);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        position = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,808 @@
+package network.artic.phylofunk.funks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the rows of a Parquet file as Strings, in the same way as MetadataReader reads a CSV file.
+ * The file is read a row group at a time and only the column chunks of the columns that are wanted
+ * are read and decoded, so a few columns of a wide table can be loaded without touching the rest.
+ *
+ * Row groups can be skipped using the statistics in the file's footer: given the patterns that a
+ * command will look for in a string column, a row group is skipped if the range of values the
+ * column has in it (its min and max) can't contain a match. Values in skipped rows can't be
+ * matched so the command won't miss them - but the rows are not in the table at all.
+ *
+ * Metadata tables are flat so only top-level required or optional columns are supported (not
+ * nested or repeated ones). Pages can be v1 or v2 data pages, PLAIN or dictionary-encoded, and
+ * uncompressed, Snappy or gzip compressed. Values are given as text: numbers as by toString,
+ * dates and times in ISO-8601 form and nulls as empty strings.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+final class ParquetMetadataReader implements RecordReader {
+    static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+
+    // physical types
+    private static final int BOOLEAN = 0;
+    private static final int INT32 = 1;
+    private static final int INT64 = 2;
+    private static final int INT96 = 3;
+    private static final int FLOAT = 4;
+    private static final int DOUBLE = 5;
+    private static final int BYTE_ARRAY = 6;
+    private static final int FIXED_LEN_BYTE_ARRAY = 7;
+
+    // repetition types
+    private static final int OPTIONAL = 1;
+    private static final int REPEATED = 2;
+
+    // compression codecs
+    private static final int UNCOMPRESSED = 0;
+    private static final int SNAPPY = 1;
+    private static final int GZIP = 2;
+    private static final String[] CODEC_NAMES = {
+            "UNCOMPRESSED", "SNAPPY", "GZIP", "LZO", "BROTLI", "LZ4", "ZSTD", "LZ4_RAW"
+    };
+
+    // page types
+    private static final int DATA_PAGE = 0;
+    private static final int DICTIONARY_PAGE = 2;
+    private static final int DATA_PAGE_V2 = 3;
+
+    // encodings
+    private static final int PLAIN = 0;
+    private static final int PLAIN_DICTIONARY = 2;
+    private static final int RLE = 3;
+    private static final int BIT_PACKED = 4;
+    private static final int RLE_DICTIONARY = 8;
+
+    // how values are rendered (from the logical or converted type)
+    private static final int AS_PLAIN = 0;
+    private static final int AS_STRING = 1;
+    private static final int AS_DATE = 2;
+    private static final int AS_TIME = 3;
+    private static final int AS_TIMESTAMP = 4;
+    private static final int AS_DECIMAL = 5;
+    private static final int AS_UNSIGNED = 6;
+    private static final int AS_UUID = 7;
+
+    // time units
+    private static final int MILLIS = 0;
+    private static final int MICROS = 1;
+    private static final int NANOS = 2;
+
+    private final String fileName;
+    private final FileChannel channel;
+
+    private final List<Column> columns = new ArrayList<>();
+    private final List<ThriftCompactDecoder.Struct> rowGroups;
+    private final boolean hasOrderedStatistics;
+
+    // the patterns that the values of columns will be matched against (keyed by column name)
+    private Map<String, ValueMatcher> rowFilters = Collections.emptyMap();
+    private int skippedRowGroupCount = 0;
+
+    private int rowGroupIndex = -1;
+    private int rowGroupRowCount = 0;
+    private int rowGroupRow = 0;
+    // the values of the columns in the current row group (decoded when first needed)
+    private String[][] rowGroupValues;
+
+    /**
+     * Opens a file and reads its footer
+     * @param fileName
+     * @throws IOException if the file can't be read or is not a Parquet file with a flat schema
+     */
+    ParquetMetadataReader(String fileName) throws IOException {
+        this.fileName = fileName;
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < 12) {
+                throw new IOException("not a Parquet file");
+            }
+            byte[] tail = read(size - 8, 8);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (tail[4 + i] != MAGIC[i]) {
+                    throw new IOException("not a Parquet file (or it is encrypted)");
+                }
+            }
+            long footerLength = readInt(tail, 0) & 0xFFFFFFFFL;
+            if (footerLength > size - 12) {
+                throw new IOException("Parquet footer is truncated");
+            }
+            byte[] footer = read(size - 8 - footerLength, (int) footerLength);
+            ThriftCompactDecoder.Struct fileMetaData = new ThriftCompactDecoder(footer, 0, footer.length).readStruct();
+
+            List<ThriftCompactDecoder.Struct> schema = fileMetaData.getStructs(2);
+            if (schema.isEmpty()) {
+                throw new IOException("Parquet file has no schema");
+            }
+            // the first element is the root with the columns as its children
+            int childCount = schema.get(0).getInt(5, 0);
+            if (childCount != schema.size() - 1) {
+                throw new IOException("Parquet files with nested columns are not supported");
+            }
+            for (int i = 1; i < schema.size(); i++) {
+                ThriftCompactDecoder.Struct element = schema.get(i);
+                String name = element.getString(4);
+                if (element.getInt(5, 0) > 0 || !element.has(1)) {
+                    throw new IOException("Parquet files with nested columns are not supported: " + name);
+                }
+                if (element.getInt(3, 0) == REPEATED) {
+                    throw new IOException("Parquet files with repeated columns are not supported: " + name);
+                }
+                columns.add(new Column(element));
+            }
+
+            rowGroups = fileMetaData.getStructs(4);
+            // min_value and max_value are only valid if the file says how they are ordered
+            hasOrderedStatistics = fileMetaData.has(7);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets patterns to skip row groups with. A row group is skipped if, for any of the columns, its
+     * values can't contain a match for the column's matcher (according to the column's statistics).
+     * @param rowFilters a matcher for each column name
+     */
+    void setRowFilters(Map<String, ValueMatcher> rowFilters) {
+        this.rowFilters = rowFilters;
+    }
+
+    /**
+     * @return the number of row groups that have been skipped using the row filters
+     */
+    int getSkippedRowGroupCount() {
+        return skippedRowGroupCount;
+    }
+
+    /**
+     * @return the number of row groups in the file
+     */
+    int getRowGroupCount() {
+        return rowGroups.size();
+    }
+
+    @Override
+    public List<String> readHeader() {
+        List<String> names = new ArrayList<>();
+        for (Column column : columns) {
+            names.add(column.name);
+        }
+        return names;
+    }
+
+    @Override
+    public int readRecord(int[] columnIndices, String[] values) throws IOException {
+        while (rowGroupRow >= rowGroupRowCount) {
+            if (!nextRowGroup()) {
+                return -1;
+            }
+        }
+        int count = Math.min(columnIndices.length, columns.size());
+        for (int i = 0; i < count; i++) {
+            if (columnIndices[i] >= 0) {
+                String[] columnValues = rowGroupValues[i];
+                if (columnValues == null) {
+                    columnValues = readColumnChunk(i);
+                    rowGroupValues[i] = columnValues;
+                }
+                values[columnIndices[i]] = columnValues[rowGroupRow];
+            }
+        }
+        rowGroupRow++;
+        return columns.size();
+    }
+
+    private boolean nextRowGroup() throws IOException {
+        while (true) {
+            rowGroupIndex++;
+            if (rowGroupIndex >= rowGroups.size()) {
+                rowGroupValues = null;
+                return false;
+            }
+            if (isExcluded(rowGroups.get(rowGroupIndex))) {
+                skippedRowGroupCount++;
+            } else {
+                break;
+            }
+        }
+        long rowCount = rowGroups.get(rowGroupIndex).getLong(3, 0);
+        if (rowCount < 0 || rowCount > Integer.MAX_VALUE - 8) {
+            throw new IOException("Parquet row group is too large: " + rowCount + " rows");
+        }
+        rowGroupRowCount = (int) rowCount;
+        rowGroupRow = 0;
+        rowGroupValues = new String[columns.size()][];
+        return true;
+    }
+
+    /**
+     * @return true if the statistics of the row group show none of its rows can match the filters
+     */
+    private boolean isExcluded(ThriftCompactDecoder.Struct rowGroup) {
+        if (rowFilters.isEmpty()) {
+            return false;
+        }
+        List<ThriftCompactDecoder.Struct> chunks = rowGroup.getStructs(1);
+        for (int i = 0; i < columns.size() && i < chunks.size(); i++) {
+            ValueMatcher matcher = rowFilters.get(columns.get(i).name);
+            if (matcher == null || matcher.matches("")) {
+                // any null (given as an empty string) could match
+                continue;
+            }
+            ThriftCompactDecoder.Struct metaData = chunks.get(i).getStruct(3);
+            ThriftCompactDecoder.Struct statistics = (metaData != null ? metaData.getStruct(12) : null);
+            if (statistics == null) {
+                continue;
+            }
+            if (statistics.getLong(3, -1) == metaData.getLong(5, -2)) {
+                // all the values are null
+                return true;
+            }
+            byte[] min = statistics.getBinary(6);
+            byte[] max = statistics.getBinary(5);
+            if (hasOrderedStatistics && columns.get(i).isString() && min != null && max != null &&
+                    !matcher.mayMatchRange(min, max)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads and decodes the values of a column in the current row group
+     */
+    private String[] readColumnChunk(int columnIndex) throws IOException {
+        Column column = columns.get(columnIndex);
+        List<ThriftCompactDecoder.Struct> chunks = rowGroups.get(rowGroupIndex).getStructs(1);
+        ThriftCompactDecoder.Struct metaData = (columnIndex < chunks.size() ? chunks.get(columnIndex).getStruct(3) : null);
+        if (metaData == null) {
+            throw new IOException("Parquet column chunk has no metadata: " + column.name);
+        }
+        int codec = metaData.getInt(4, UNCOMPRESSED);
+        if (codec != UNCOMPRESSED && codec != SNAPPY && codec != GZIP) {
+            throw new IOException("Parquet compression codec, " +
+                    (codec >= 0 && codec < CODEC_NAMES.length ? CODEC_NAMES[codec] : codec) +
+                    ", is not supported (column " + column.name + ")");
+        }
+        long start = metaData.getLong(9, -1);
+        long dictionaryStart = metaData.getLong(11, -1);
+        if (dictionaryStart > 0 && dictionaryStart < start) {
+            start = dictionaryStart;
+        }
+        long length = metaData.getLong(7, -1);
+        if (start < 0 || length < 0 || length > Integer.MAX_VALUE || start + length > channel.size()) {
+            throw new IOException("Parquet column chunk is outside the file: " + column.name);
+        }
+        byte[] chunk = read(start, (int) length);
+
+        String[] values = new String[rowGroupRowCount];
+        int valueCount = 0;
+        String[] dictionary = null;
+        int position = 0;
+        while (valueCount < values.length && position < chunk.length) {
+            ThriftCompactDecoder decoder = new ThriftCompactDecoder(chunk, position, chunk.length);
+            ThriftCompactDecoder.Struct header = decoder.readStruct();
+            position = decoder.getPosition();
+            int pageType = header.getInt(1, -1);
+            int uncompressedLength = header.getInt(2, -1);
+            int compressedLength = header.getInt(3, -1);
+            if (compressedLength < 0 || uncompressedLength < 0 || compressedLength > chunk.length - position) {
+                throw new IOException("Parquet page is truncated (column " + column.name + ")");
+            }
+
+            if (pageType == DICTIONARY_PAGE) {
+                ThriftCompactDecoder.Struct pageHeader = header.getStruct(7);
+                int count = (pageHeader != null ? pageHeader.getInt(1, 0) : 0);
+                byte[] page = decompress(codec, chunk, position, compressedLength, uncompressedLength);
+                dictionary = decodePlain(column, page, 0, page.length, count);
+
+            } else if (pageType == DATA_PAGE) {
+                ThriftCompactDecoder.Struct pageHeader = header.getStruct(5);
+                if (pageHeader == null) {
+                    throw new IOException("Parquet data page has no header (column " + column.name + ")");
+                }
+                int count = checkPageValueCount(pageHeader.getInt(1, -1), valueCount, values.length, column);
+                byte[] page = decompress(codec, chunk, position, compressedLength, uncompressedLength);
+                int pagePosition = 0;
+                int[] definitionLevels = null;
+                if (column.isOptional) {
+                    definitionLevels = new int[count];
+                    int levelEncoding = pageHeader.getInt(3, RLE);
+                    if (levelEncoding == RLE) {
+                        int levelLength = readInt(page, pagePosition);
+                        pagePosition += 4;
+                        if (levelLength < 0 || levelLength > page.length - pagePosition) {
+                            throw new IOException("Parquet page is truncated (column " + column.name + ")");
+                        }
+                        decodeHybrid(page, pagePosition, pagePosition + levelLength, 1, definitionLevels, count);
+                        pagePosition += levelLength;
+                    } else if (levelEncoding == BIT_PACKED) {
+                        int levelLength = (count + 7) / 8;
+                        if (levelLength > page.length - pagePosition) {
+                            throw new IOException("Parquet page is truncated (column " + column.name + ")");
+                        }
+                        for (int i = 0; i < count; i++) {
+                            definitionLevels[i] = (page[pagePosition + (i >>> 3)] >>> (7 - (i & 7))) & 1;
+                        }
+                        pagePosition += levelLength;
+                    } else {
+                        throw new IOException("Parquet level encoding, " + levelEncoding + ", is not supported (column " + column.name + ")");
+                    }
+                }
+                decodeValues(column, pageHeader.getInt(2, PLAIN), page, pagePosition, page.length, count,
+                        definitionLevels, dictionary, values, valueCount);
+                valueCount += count;
+
+            } else if (pageType == DATA_PAGE_V2) {
+                ThriftCompactDecoder.Struct pageHeader = header.getStruct(8);
+                if (pageHeader == null) {
+                    throw new IOException("Parquet data page has no header (column " + column.name + ")");
+                }
+                int count = checkPageValueCount(pageHeader.getInt(1, -1), valueCount, values.length, column);
+                int definitionLength = pageHeader.getInt(5, 0);
+                int repetitionLength = pageHeader.getInt(6, 0);
+                int levelsLength = definitionLength + repetitionLength;
+                if (definitionLength < 0 || repetitionLength < 0 || levelsLength > compressedLength || levelsLength > uncompressedLength) {
+                    throw new IOException("Parquet page is truncated (column " + column.name + ")");
+                }
+                int[] definitionLevels = null;
+                if (column.isOptional) {
+                    // the levels are never compressed
+                    definitionLevels = new int[count];
+                    int levelsStart = position + repetitionLength;
+                    decodeHybrid(chunk, levelsStart, levelsStart + definitionLength, 1, definitionLevels, count);
+                }
+                boolean isCompressed = pageHeader.getBoolean(7, true);
+                byte[] page = decompress(isCompressed ? codec : UNCOMPRESSED, chunk, position + levelsLength,
+                        compressedLength - levelsLength, uncompressedLength - levelsLength);
+                decodeValues(column, pageHeader.getInt(4, PLAIN), page, 0, page.length, count,
+                        definitionLevels, dictionary, values, valueCount);
+                valueCount += count;
+            }
+            // any other pages (i.e., index pages) are skipped
+            position += compressedLength;
+        }
+        if (valueCount != values.length) {
+            throw new IOException("Parquet column chunk has " + valueCount + " values but the row group has " +
+                    values.length + " rows (column " + column.name + ")");
+        }
+        return values;
+    }
+
+    private static int checkPageValueCount(int count, int valueCount, int rowCount, Column column) throws IOException {
+        if (count < 0 || count > rowCount - valueCount) {
+            throw new IOException("Parquet page has more values than the row group has rows (column " + column.name + ")");
+        }
+        return count;
+    }
+
+    /**
+     * Decodes the values of a data page into values (starting at valueIndex)
+     * @param definitionLevels 0 for each null value (or null if the column is required)
+     */
+    private void decodeValues(Column column, int encoding, byte[] page, int start, int end, int count,
+                              int[] definitionLevels, String[] dictionary, String[] values, int valueIndex) throws IOException {
+        int nonNullCount = count;
+        if (definitionLevels != null) {
+            nonNullCount = 0;
+            for (int i = 0; i < count; i++) {
+                nonNullCount += definitionLevels[i];
+            }
+        }
+
+        String[] decoded;
+        if (encoding == PLAIN) {
+            decoded = decodePlain(column, page, start, end, nonNullCount);
+        } else if (encoding == PLAIN_DICTIONARY || encoding == RLE_DICTIONARY) {
+            if (dictionary == null) {
+                throw new IOException("Parquet dictionary page is missing (column " + column.name + ")");
+            }
+            if (start >= end && nonNullCount > 0) {
+                throw new IOException("Parquet page is truncated (column " + column.name + ")");
+            }
+            int[] indices = new int[nonNullCount];
+            if (nonNullCount > 0) {
+                decodeHybrid(page, start + 1, end, page[start] & 0xFF, indices, nonNullCount);
+            }
+            decoded = new String[nonNullCount];
+            for (int i = 0; i < nonNullCount; i++) {
+                if (indices[i] < 0 || indices[i] >= dictionary.length) {
+                    throw new IOException("Parquet dictionary index is out of range (column " + column.name + ")");
+                }
+                decoded[i] = dictionary[indices[i]];
+            }
+        } else if (encoding == RLE && column.type == BOOLEAN) {
+            int[] bits = new int[nonNullCount];
+            if (nonNullCount > 0) {
+                decodeHybrid(page, start + 4, end, 1, bits, nonNullCount);
+            }
+            decoded = new String[nonNullCount];
+            for (int i = 0; i < nonNullCount; i++) {
+                decoded[i] = Boolean.toString(bits[i] != 0);
+            }
+        } else {
+            throw new IOException("Parquet encoding, " + encoding + ", is not supported (column " + column.name + ")");
+        }
+
+        if (definitionLevels == null) {
+            System.arraycopy(decoded, 0, values, valueIndex, count);
+        } else {
+            int k = 0;
+            for (int i = 0; i < count; i++) {
+                values[valueIndex + i] = (definitionLevels[i] != 0 ? decoded[k++] : "");
+            }
+        }
+    }
+
+    /**
+     * Decodes PLAIN encoded values as strings
+     */
+    private static String[] decodePlain(Column column, byte[] bytes, int position, int end, int count) throws IOException {
+        String[] values = new String[count];
+        int width;
+        switch (column.type) {
+            case BOOLEAN:
+                if (count > (long) (end - position) * 8) {
+                    throw truncated(column);
+                }
+                for (int i = 0; i < count; i++) {
+                    values[i] = Boolean.toString(((bytes[position + (i >>> 3)] >>> (i & 7)) & 1) != 0);
+                }
+                return values;
+            case INT32:
+            case FLOAT:
+                width = 4;
+                break;
+            case INT64:
+            case DOUBLE:
+                width = 8;
+                break;
+            case INT96:
+                width = 12;
+                break;
+            case FIXED_LEN_BYTE_ARRAY:
+                width = column.typeLength;
+                break;
+            case BYTE_ARRAY:
+                for (int i = 0; i < count; i++) {
+                    if (end - position < 4) {
+                        throw truncated(column);
+                    }
+                    int length = readInt(bytes, position);
+                    position += 4;
+                    if (length < 0 || length > end - position) {
+                        throw truncated(column);
+                    }
+                    values[i] = column.formatBytes(bytes, position, length);
+                    position += length;
+                }
+                return values;
+            default:
+                throw new IOException("Parquet type, " + column.type + ", is not supported (column " + column.name + ")");
+        }
+
+        if (width < 0 || (long) width * count > end - position) {
+            throw truncated(column);
+        }
+        for (int i = 0; i < count; i++) {
+            switch (column.type) {
+                case INT32:
+                    values[i] = column.formatInt(readInt(bytes, position));
+                    break;
+                case FLOAT:
+                    values[i] = Float.toString(Float.intBitsToFloat(readInt(bytes, position)));
+                    break;
+                case INT64:
+                    values[i] = column.formatLong(readLong(bytes, position));
+                    break;
+                case DOUBLE:
+                    values[i] = Double.toString(Double.longBitsToDouble(readLong(bytes, position)));
+                    break;
+                case INT96:
+                    // a legacy timestamp: nanoseconds of the day then the Julian day
+                    long epochDay = (readInt(bytes, position + 8) & 0xFFFFFFFFL) - 2440588L;
+                    long nanos = readLong(bytes, position);
+                    values[i] = Instant.ofEpochSecond(epochDay * 86400L, nanos).toString();
+                    break;
+                default:
+                    values[i] = column.formatBytes(bytes, position, width);
+            }
+            position += width;
+        }
+        return values;
+    }
+
+    private static IOException truncated(Column column) {
+        return new IOException("Parquet page is truncated (column " + column.name + ")");
+    }
+
+    /**
+     * Decodes values written with the RLE/bit-packing hybrid encoding (for levels and dictionary
+     * indices)
+     * @param bitWidth the number of bits in each value
+     * @param values the decoded values are put here
+     * @param count the number of values to decode
+     */
+    static void decodeHybrid(byte[] bytes, int position, int end, int bitWidth, int[] values, int count) throws IOException {
+        if (bitWidth < 0 || bitWidth > 32) {
+            throw new IOException("Invalid bit width in Parquet page: " + bitWidth);
+        }
+        long mask = (1L << bitWidth) - 1;
+        int byteWidth = (bitWidth + 7) / 8;
+        int index = 0;
+        while (index < count) {
+            // the run header as a varint
+            long header = 0;
+            int shift = 0;
+            while (true) {
+                if (position >= end || shift > 35) {
+                    throw new IOException("Parquet page is truncated");
+                }
+                int b = bytes[position++] & 0xFF;
+                header |= ((long) (b & 0x7F)) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                shift += 7;
+            }
+
+            if ((header & 1) == 0) {
+                // a run of the same value
+                long runLength = header >>> 1;
+                if (byteWidth > end - position) {
+                    throw new IOException("Parquet page is truncated");
+                }
+                int value = 0;
+                for (int i = 0; i < byteWidth; i++) {
+                    value |= (bytes[position++] & 0xFF) << (8 * i);
+                }
+                int n = (int) Math.min(runLength, count - index);
+                for (int i = 0; i < n; i++) {
+                    values[index++] = value;
+                }
+            } else {
+                // groups of 8 bit-packed values (least significant bit first)
+                long valueCount = (header >>> 1) * 8;
+                int runEnd = (int) Math.min(end, position + (header >>> 1) * bitWidth);
+                long buffer = 0;
+                int bufferBits = 0;
+                for (long i = 0; i < valueCount && index < count; i++) {
+                    while (bufferBits < bitWidth) {
+                        // a final group may be cut short (as the values after count are padding)
+                        long b = (position < runEnd ? bytes[position] & 0xFF : 0);
+                        position++;
+                        buffer |= b << bufferBits;
+                        bufferBits += 8;
+                    }
+                    values[index++] = (int) (buffer & mask);
+                    buffer >>>= bitWidth;
+                    bufferBits -= bitWidth;
+                }
+                position = runEnd;
+            }
+        }
+    }
+
+    private byte[] decompress(int codec, byte[] bytes, int offset, int length, int uncompressedLength) throws IOException {
+        switch (codec) {
+            case UNCOMPRESSED:
+                byte[] page = new byte[length];
+                System.arraycopy(bytes, offset, page, 0, length);
+                return page;
+            case SNAPPY:
+                return SnappyDecompressor.decompress(bytes, offset, length, uncompressedLength);
+            case GZIP:
+                byte[] output = new byte[uncompressedLength];
+                try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+                    int n = 0;
+                    while (n < output.length) {
+                        int read = in.read(output, n, output.length - n);
+                        if (read < 0) {
+                            throw new IOException("Parquet page is shorter than expected");
+                        }
+                        n += read;
+                    }
+                }
+                return output;
+            default:
+                throw new IOException("Parquet compression codec, " + codec + ", is not supported");
+        }
+    }
+
+    private byte[] read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of Parquet file: " + fileName);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static int readInt(byte[] bytes, int position) {
+        return (bytes[position] & 0xFF) | (bytes[position + 1] & 0xFF) << 8 |
+                (bytes[position + 2] & 0xFF) << 16 | (bytes[position + 3] & 0xFF) << 24;
+    }
+
+    private static long readLong(byte[] bytes, int position) {
+        return (readInt(bytes, position) & 0xFFFFFFFFL) | ((long) readInt(bytes, position + 4)) << 32;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * A column of the file's schema and how to render its values as strings
+     */
+    private static final class Column {
+        final String name;
+        final int type;
+        final int typeLength;
+        final boolean isOptional;
+
+        int rendering = AS_PLAIN;
+        int scale = 0;
+        int timeUnit = MILLIS;
+        boolean isAdjustedToUTC = true;
+
+        Column(ThriftCompactDecoder.Struct element) {
+            name = element.getString(4);
+            type = element.getInt(1, -1);
+            typeLength = element.getInt(2, 0);
+            isOptional = element.getInt(3, 0) == OPTIONAL;
+
+            ThriftCompactDecoder.Struct logicalType = element.getStruct(10);
+            if (logicalType != null) {
+                if (logicalType.has(1) || logicalType.has(4) || logicalType.has(12)) {
+                    // STRING, ENUM or JSON
+                    rendering = AS_STRING;
+                } else if (logicalType.has(5)) {
+                    rendering = AS_DECIMAL;
+                    scale = logicalType.getStruct(5).getInt(1, 0);
+                } else if (logicalType.has(6)) {
+                    rendering = AS_DATE;
+                } else if (logicalType.has(7)) {
+                    rendering = AS_TIME;
+                    timeUnit = getTimeUnit(logicalType.getStruct(7));
+                } else if (logicalType.has(8)) {
+                    rendering = AS_TIMESTAMP;
+                    timeUnit = getTimeUnit(logicalType.getStruct(8));
+                    isAdjustedToUTC = logicalType.getStruct(8).getBoolean(1, true);
+                } else if (logicalType.has(10)) {
+                    rendering = (logicalType.getStruct(10).getBoolean(2, true) ? AS_PLAIN : AS_UNSIGNED);
+                } else if (logicalType.has(14)) {
+                    rendering = AS_UUID;
+                }
+            } else {
+                switch (element.getInt(6, -1)) {
+                    case 0: // UTF8
+                    case 4: // ENUM
+                    case 19: // JSON
+                        rendering = AS_STRING;
+                        break;
+                    case 5: // DECIMAL
+                        rendering = AS_DECIMAL;
+                        scale = element.getInt(7, 0);
+                        break;
+                    case 6: // DATE
+                        rendering = AS_DATE;
+                        break;
+                    case 7: // TIME_MILLIS
+                    case 8: // TIME_MICROS
+                        rendering = AS_TIME;
+                        timeUnit = (element.getInt(6, -1) == 7 ? MILLIS : MICROS);
+                        break;
+                    case 9: // TIMESTAMP_MILLIS
+                    case 10: // TIMESTAMP_MICROS
+                        rendering = AS_TIMESTAMP;
+                        timeUnit = (element.getInt(6, -1) == 9 ? MILLIS : MICROS);
+                        break;
+                    case 13: // UINT_32
+                    case 14: // UINT_64
+                        rendering = AS_UNSIGNED;
+                        break;
+                    default:
+                }
+            }
+        }
+
+        private static int getTimeUnit(ThriftCompactDecoder.Struct type) {
+            ThriftCompactDecoder.Struct unit = (type != null ? type.getStruct(2) : null);
+            if (unit != null && unit.has(2)) {
+                return MICROS;
+            }
+            if (unit != null && unit.has(3)) {
+                return NANOS;
+            }
+            return MILLIS;
+        }
+
+        /**
+         * @return true if the values are strings (so min and max statistics compare as UTF-8 bytes)
+         */
+        boolean isString() {
+            return type == BYTE_ARRAY && (rendering == AS_STRING || rendering == AS_PLAIN);
+        }
+
+        String formatInt(int value) {
+            switch (rendering) {
+                case AS_DATE:
+                    return LocalDate.ofEpochDay(value).toString();
+                case AS_TIME:
+                    return LocalTime.ofNanoOfDay(value * 1000000L).toString();
+                case AS_DECIMAL:
+                    return BigDecimal.valueOf(value, scale).toPlainString();
+                case AS_UNSIGNED:
+                    return Integer.toUnsignedString(value);
+                default:
+                    return Integer.toString(value);
+            }
+        }
+
+        String formatLong(long value) {
+            switch (rendering) {
+                case AS_TIMESTAMP:
+                    long unitsPerSecond = (timeUnit == MILLIS ? 1000L : (timeUnit == MICROS ? 1000000L : 1000000000L));
+                    long seconds = Math.floorDiv(value, unitsPerSecond);
+                    long nanos = Math.floorMod(value, unitsPerSecond) * (1000000000L / unitsPerSecond);
+                    if (isAdjustedToUTC) {
+                        return Instant.ofEpochSecond(seconds, nanos).toString();
+                    }
+                    return LocalDateTime.ofEpochSecond(seconds, (int) nanos, ZoneOffset.UTC).toString();
+                case AS_TIME:
+                    return LocalTime.ofNanoOfDay(value * (timeUnit == MICROS ? 1000L : 1L)).toString();
+                case AS_DECIMAL:
+                    return BigDecimal.valueOf(value, scale).toPlainString();
+                case AS_UNSIGNED:
+                    return Long.toUnsignedString(value);
+                default:
+                    return Long.toString(value);
+            }
+        }
+
+        String formatBytes(byte[] bytes, int offset, int length) {
+            if (rendering == AS_DECIMAL) {
+                if (length == 0) {
+                    return "0";
+                }
+                byte[] unscaled = new byte[length];
+                System.arraycopy(bytes, offset, unscaled, 0, length);
+                return new BigDecimal(new BigInteger(unscaled), scale).toPlainString();
+            }
+            if (rendering == AS_UUID && length == 16) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                return new UUID(buffer.getLong(), buffer.getLong()).toString();
+            }
+            return new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+    }
+}
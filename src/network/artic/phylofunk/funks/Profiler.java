@@ -0,0 +1,225 @@
+package network.artic.phylofunk.funks;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records the wall time, CPU time, allocation and garbage collection of the named phases of a
+ * command (e.g., 'read metadata', 'read tree', 'process', 'write'). Phases can be nested - the time
+ * spent in a phase started within another is only counted against the inner one so the phases
+ * add up to the whole run. Anything outside a named phase is counted as 'process'. Phases should
+ * only be started and ended on the main thread.
+ *
+ * The CPU time is for the whole process (so includes worker threads and the garbage collector)
+ * but the allocated bytes are only those of the main thread.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+final class Profiler {
+    static final String PROCESS_PHASE = "process";
+
+    private final String commandName;
+    private final Map<String, Phase> phases = new LinkedHashMap<>();
+    private final Deque<Phase> phaseStack = new ArrayDeque<>();
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    private final List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+
+    // the readings when the current phase was last entered
+    private long lastWallTime;
+    private long lastCpuTime;
+    private long lastAllocatedBytes;
+    private long lastGCCount;
+    private long lastGCTime;
+
+    /**
+     * Constructor - starts the profile
+     * @param commandName
+     */
+    Profiler(String commandName) {
+        this.commandName = commandName;
+        phaseStack.push(getPhase(PROCESS_PHASE));
+        phaseStack.peek().count++;
+
+        lastWallTime = System.nanoTime();
+        lastCpuTime = getCpuTime();
+        lastAllocatedBytes = getAllocatedBytes();
+        lastGCCount = getGCCount();
+        lastGCTime = getGCTime();
+    }
+
+    void startPhase(String name) {
+        record();
+        Phase phase = getPhase(name);
+        phase.count++;
+        phaseStack.push(phase);
+    }
+
+    void endPhase() {
+        record();
+        if (phaseStack.size() > 1) {
+            phaseStack.pop();
+        }
+    }
+
+    /**
+     * Prints the profile as a table
+     * @param stream
+     */
+    void printReport(PrintStream stream) {
+        record();
+
+        stream.println("Profile: " + commandName);
+        stream.println(String.format(Locale.ENGLISH, "  %-16s %6s %10s %10s %14s %6s %10s",
+                "phase", "count", "wall (s)", "cpu (s)", "allocated (MB)", "gcs", "gc (s)"));
+        for (Phase phase : getPhasesWithTotal()) {
+            stream.println(String.format(Locale.ENGLISH, "  %-16s %6d %10.3f %10.3f %14.1f %6d %10.3f",
+                    phase.name, phase.count, phase.wallTime / 1.0E9, phase.cpuTime / 1.0E9,
+                    phase.allocatedBytes / (1024.0 * 1024.0), phase.gcCount, phase.gcTime / 1.0E3));
+        }
+        stream.println();
+    }
+
+    /**
+     * Writes the profile as a JSON object
+     * @param fileName
+     * @throws IOException
+     */
+    void writeReport(String fileName) throws IOException {
+        record();
+
+        try (PrintWriter writer = new PrintWriter(Funk.openWriter(fileName))) {
+            writer.println("{");
+            writer.println("  \"command\": \"" + escape(commandName) + "\",");
+            writer.println("  \"phases\": [");
+            Phase[] allPhases = getPhasesWithTotal();
+            for (int i = 0; i < allPhases.length; i++) {
+                Phase phase = allPhases[i];
+                writer.print(String.format(Locale.ENGLISH,
+                        "    {\"name\": \"%s\", \"count\": %d, \"wall_seconds\": %.6f, \"cpu_seconds\": %.6f, " +
+                                "\"allocated_bytes\": %d, \"gc_count\": %d, \"gc_seconds\": %.3f}",
+                        escape(phase.name), phase.count, phase.wallTime / 1.0E9, phase.cpuTime / 1.0E9,
+                        phase.allocatedBytes, phase.gcCount, phase.gcTime / 1.0E3));
+                writer.println(i < allPhases.length - 1 ? "," : "");
+            }
+            writer.println("  ]");
+            writer.println("}");
+        }
+    }
+
+    /**
+     * Adds the usage since the last reading to the current phase
+     */
+    private void record() {
+        long wallTime = System.nanoTime();
+        long cpuTime = getCpuTime();
+        long allocatedBytes = getAllocatedBytes();
+        long gcCount = getGCCount();
+        long gcTime = getGCTime();
+
+        Phase phase = phaseStack.peek();
+        phase.wallTime += wallTime - lastWallTime;
+        phase.cpuTime += cpuTime - lastCpuTime;
+        phase.allocatedBytes += allocatedBytes - lastAllocatedBytes;
+        phase.gcCount += gcCount - lastGCCount;
+        phase.gcTime += gcTime - lastGCTime;
+
+        lastWallTime = wallTime;
+        lastCpuTime = cpuTime;
+        lastAllocatedBytes = allocatedBytes;
+        lastGCCount = gcCount;
+        lastGCTime = gcTime;
+    }
+
+    private Phase getPhase(String name) {
+        Phase phase = phases.get(name);
+        if (phase == null) {
+            phase = new Phase(name);
+            phases.put(name, phase);
+        }
+        return phase;
+    }
+
+    private Phase[] getPhasesWithTotal() {
+        Phase total = new Phase("total");
+        total.count = 1;
+        for (Phase phase : phases.values()) {
+            total.wallTime += phase.wallTime;
+            total.cpuTime += phase.cpuTime;
+            total.allocatedBytes += phase.allocatedBytes;
+            total.gcCount += phase.gcCount;
+            total.gcTime += phase.gcTime;
+        }
+        Phase[] allPhases = phases.values().toArray(new Phase[phases.size() + 1]);
+        allPhases[phases.size()] = total;
+        return allPhases;
+    }
+
+    /**
+     * @return the CPU time of the whole process in nanoseconds (or of this thread if not available)
+     */
+    private long getCpuTime() {
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            long time = ((com.sun.management.OperatingSystemMXBean) osBean).getProcessCpuTime();
+            if (time >= 0) {
+                return time;
+            }
+        }
+        return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : 0;
+    }
+
+    private long getAllocatedBytes() {
+        long bytes = Funk.getAllocatedBytes();
+        return Math.max(bytes, 0);
+    }
+
+    private long getGCCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : gcBeans) {
+            count += Math.max(bean.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    /**
+     * @return the accumulated collection time in milliseconds
+     */
+    private long getGCTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : gcBeans) {
+            time += Math.max(bean.getCollectionTime(), 0);
+        }
+        return time;
+    }
+
+    private static String escape(String string) {
+        return string.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static class Phase {
+        final String name;
+        int count = 0;
+        long wallTime = 0;
+        long cpuTime = 0;
+        long allocatedBytes = 0;
+        long gcCount = 0;
+        long gcTime = 0;
+
+        Phase(String name) {
+            this.name = name;
+        }
+    }
+}
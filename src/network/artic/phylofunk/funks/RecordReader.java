@@ -0,0 +1,30 @@
+package network.artic.phylofunk.funks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads the records of a metadata table file (one row at a time) as Strings.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+interface RecordReader extends Closeable {
+
+    /**
+     * Reads the column names.
+     * @return the names or null if the file is empty
+     * @throws IOException
+     */
+    List<String> readHeader() throws IOException;
+
+    /**
+     * Reads the next record into values.
+     * @param columns the index in values for each column of the file (-1 to skip the column)
+     * @param values the values read (any columns missing from the record are left unchanged)
+     * @return the number of fields in the record or -1 if there are no more records
+     * @throws IOException
+     */
+    int readRecord(int[] columns, String[] values) throws IOException;
+}
@@ -0,0 +1,111 @@
+package network.artic.phylofunk.funks;
+
+import java.io.IOException;
+
+/**
+ * Decompresses raw (unframed) Snappy data, the default compression of Parquet pages.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+final class SnappyDecompressor {
+    private SnappyDecompressor() {
+    }
+
+    /**
+     * @param input
+     * @param offset the start of the compressed data
+     * @param length the length of the compressed data
+     * @param expectedLength the length of the data once decompressed
+     * @return the decompressed data
+     * @throws IOException if the data is not valid
+     */
+    static byte[] decompress(byte[] input, int offset, int length, int expectedLength) throws IOException {
+        int position = offset;
+        int end = offset + length;
+
+        // the uncompressed length as a varint
+        long outputLength = 0;
+        int shift = 0;
+        while (true) {
+            if (position >= end || shift > 28) {
+                throw new IOException("Invalid Snappy data");
+            }
+            int b = input[position++] & 0xFF;
+            outputLength |= ((long) (b & 0x7F)) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        if (outputLength != expectedLength) {
+            throw new IOException("Invalid Snappy data: expected " + expectedLength + " bytes but found " + outputLength);
+        }
+
+        byte[] output = new byte[expectedLength];
+        int outputPosition = 0;
+        while (position < end) {
+            int tag = input[position++] & 0xFF;
+            int type = tag & 0x03;
+            if (type == 0) {
+                // literal
+                int literalLength = tag >>> 2;
+                if (literalLength >= 60) {
+                    int byteCount = literalLength - 59;
+                    if (position + byteCount > end) {
+                        throw new IOException("Invalid Snappy data");
+                    }
+                    literalLength = 0;
+                    for (int i = 0; i < byteCount; i++) {
+                        literalLength |= (input[position++] & 0xFF) << (8 * i);
+                    }
+                }
+                literalLength += 1;
+                if (literalLength <= 0 || position + literalLength > end || outputPosition + literalLength > output.length) {
+                    throw new IOException("Invalid Snappy data");
+                }
+                System.arraycopy(input, position, output, outputPosition, literalLength);
+                position += literalLength;
+                outputPosition += literalLength;
+            } else {
+                // copy of earlier output
+                int copyLength;
+                int copyOffset;
+                if (type == 1) {
+                    if (position + 1 > end) {
+                        throw new IOException("Invalid Snappy data");
+                    }
+                    copyLength = 4 + ((tag >>> 2) & 0x07);
+                    copyOffset = ((tag >>> 5) << 8) | (input[position++] & 0xFF);
+                } else {
+                    int byteCount = (type == 2 ? 2 : 4);
+                    if (position + byteCount > end) {
+                        throw new IOException("Invalid Snappy data");
+                    }
+                    copyLength = (tag >>> 2) + 1;
+                    copyOffset = 0;
+                    for (int i = 0; i < byteCount; i++) {
+                        copyOffset |= (input[position++] & 0xFF) << (8 * i);
+                    }
+                }
+                if (copyOffset <= 0 || copyOffset > outputPosition || outputPosition + copyLength > output.length) {
+                    throw new IOException("Invalid Snappy data");
+                }
+                int from = outputPosition - copyOffset;
+                if (copyOffset >= copyLength) {
+                    System.arraycopy(output, from, output, outputPosition, copyLength);
+                    outputPosition += copyLength;
+                } else {
+                    // the copy overlaps the bytes it is writing (a repeated run)
+                    for (int i = 0; i < copyLength; i++) {
+                        output[outputPosition++] = output[from + i];
+                    }
+                }
+            }
+        }
+        if (outputPosition != output.length) {
+            throw new IOException("Invalid Snappy data: too short");
+        }
+        return output;
+    }
+}
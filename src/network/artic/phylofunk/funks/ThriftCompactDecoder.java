@@ -0,0 +1,248 @@
+package network.artic.phylofunk.funks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes structures written with Thrift's compact protocol (as used for the metadata of Parquet
+ * files) into Struct objects that hold the value of each field by its id. Only what Parquet
+ * uses is supported: maps are skipped.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+final class ThriftCompactDecoder {
+    private static final int TYPE_BOOLEAN_TRUE = 1;
+    private static final int TYPE_BOOLEAN_FALSE = 2;
+    private static final int TYPE_BYTE = 3;
+    private static final int TYPE_I16 = 4;
+    private static final int TYPE_I32 = 5;
+    private static final int TYPE_I64 = 6;
+    private static final int TYPE_DOUBLE = 7;
+    private static final int TYPE_BINARY = 8;
+    private static final int TYPE_LIST = 9;
+    private static final int TYPE_SET = 10;
+    private static final int TYPE_MAP = 11;
+    private static final int TYPE_STRUCT = 12;
+
+    // deeper than any real Parquet structure so a corrupt file can't overflow the stack
+    private static final int MAX_DEPTH = 64;
+
+    private final byte[] bytes;
+    private int position;
+    private final int end;
+
+    /**
+     * Constructor
+     * @param bytes
+     * @param position where the encoded struct starts
+     * @param end the end of the available bytes
+     */
+    ThriftCompactDecoder(byte[] bytes, int position, int end) {
+        this.bytes = bytes;
+        this.position = position;
+        this.end = end;
+    }
+
+    /**
+     * @return the position after the last struct read
+     */
+    int getPosition() {
+        return position;
+    }
+
+    /**
+     * Reads a struct
+     * @return the struct
+     * @throws IOException if the bytes are not a valid struct
+     */
+    Struct readStruct() throws IOException {
+        return readStruct(0);
+    }
+
+    private Struct readStruct(int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Parquet metadata is nested too deeply");
+        }
+        Struct struct = new Struct();
+        int fieldId = 0;
+        while (true) {
+            int header = readByte();
+            int type = header & 0x0F;
+            if (type == 0) {
+                // stop
+                return struct;
+            }
+            int delta = (header >> 4) & 0x0F;
+            fieldId = (delta != 0 ? fieldId + delta : (short) zigzag(readVarint()));
+            Object value;
+            if (type == TYPE_BOOLEAN_TRUE || type == TYPE_BOOLEAN_FALSE) {
+                value = (type == TYPE_BOOLEAN_TRUE);
+            } else {
+                value = readValue(type, depth);
+            }
+            if (value != null) {
+                struct.fields.put(fieldId, value);
+            }
+        }
+    }
+
+    private Object readValue(int type, int depth) throws IOException {
+        switch (type) {
+            case TYPE_BOOLEAN_TRUE:
+            case TYPE_BOOLEAN_FALSE:
+                // in lists booleans are a byte each
+                return readByte() == TYPE_BOOLEAN_TRUE;
+            case TYPE_BYTE:
+                return (long) (byte) readByte();
+            case TYPE_I16:
+            case TYPE_I32:
+            case TYPE_I64:
+                return zigzag(readVarint());
+            case TYPE_DOUBLE:
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits |= ((long) readByte()) << (8 * i);
+                }
+                return Double.longBitsToDouble(bits);
+            case TYPE_BINARY:
+                long length = readVarint();
+                if (length < 0 || length > end - position) {
+                    throw new IOException("Parquet metadata is truncated");
+                }
+                byte[] value = new byte[(int) length];
+                System.arraycopy(bytes, position, value, 0, value.length);
+                position += value.length;
+                return value;
+            case TYPE_LIST:
+            case TYPE_SET:
+                int header = readByte();
+                long size = (header >> 4) & 0x0F;
+                if (size == 15) {
+                    size = readVarint();
+                }
+                if (size < 0 || size > end - position) {
+                    throw new IOException("Parquet metadata is truncated");
+                }
+                int elementType = header & 0x0F;
+                List<Object> list = new ArrayList<>();
+                for (long i = 0; i < size; i++) {
+                    list.add(readValue(elementType, depth + 1));
+                }
+                return list;
+            case TYPE_MAP:
+                long entryCount = readVarint();
+                if (entryCount > 0) {
+                    int types = readByte();
+                    for (long i = 0; i < entryCount; i++) {
+                        readValue((types >> 4) & 0x0F, depth + 1);
+                        readValue(types & 0x0F, depth + 1);
+                    }
+                }
+                return null;
+            case TYPE_STRUCT:
+                return readStruct(depth + 1);
+            default:
+                throw new IOException("Unrecognised type in Parquet metadata: " + type);
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (position >= end) {
+            throw new IOException("Parquet metadata is truncated");
+        }
+        return bytes[position++] & 0xFF;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = readByte();
+            value |= ((long) (b & 0x7F)) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IOException("Invalid integer in Parquet metadata");
+            }
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * The fields of a decoded struct
+     */
+    static final class Struct {
+        private final Map<Integer, Object> fields = new HashMap<>();
+
+        boolean has(int field) {
+            return fields.containsKey(field);
+        }
+
+        long getLong(int field, long defaultValue) {
+            Object value = fields.get(field);
+            return (value instanceof Long ? (Long) value : defaultValue);
+        }
+
+        int getInt(int field, int defaultValue) {
+            return (int) getLong(field, defaultValue);
+        }
+
+        boolean getBoolean(int field, boolean defaultValue) {
+            Object value = fields.get(field);
+            return (value instanceof Boolean ? (Boolean) value : defaultValue);
+        }
+
+        byte[] getBinary(int field) {
+            Object value = fields.get(field);
+            return (value instanceof byte[] ? (byte[]) value : null);
+        }
+
+        String getString(int field) {
+            byte[] value = getBinary(field);
+            return (value != null ? new String(value, StandardCharsets.UTF_8) : null);
+        }
+
+        Struct getStruct(int field) {
+            Object value = fields.get(field);
+            return (value instanceof Struct ? (Struct) value : null);
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Struct> getStructs(int field) {
+            Object value = fields.get(field);
+            List<Struct> structs = new ArrayList<>();
+            if (value instanceof List) {
+                for (Object element : (List<Object>) value) {
+                    if (element instanceof Struct) {
+                        structs.add((Struct) element);
+                    }
+                }
+            }
+            return structs;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Long> getLongs(int field) {
+            Object value = fields.get(field);
+            List<Long> values = new ArrayList<>();
+            if (value instanceof List) {
+                for (Object element : (List<Object>) value) {
+                    if (element instanceof Long) {
+                        values.add((Long) element);
+                    }
+                }
+            }
+            return values;
+        }
+    }
+}
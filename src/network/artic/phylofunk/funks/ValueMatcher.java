@@ -0,0 +1,327 @@
+package network.artic.phylofunk.funks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Tests values against a set of regular expressions, all of which must be found in the value
+ * (as Matcher.find). Expressions that are just literal text (optionally anchored with ^ and $, or
+ * a list of these separated by |) are tested with String methods rather than the regex engine.
+ * The patterns are tried in turn, stopping at the first that fails.
+ *
+ * Metadata values repeat a lot (countries, lineages) so the result for each value is remembered -
+ * for a dictionary-encoded column of a MetadataTable, by the value's code in the dictionary.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public final class ValueMatcher {
+    // stop remembering the results for new values when there are this many (e.g., unique ids)
+    private static final int MAX_REMEMBERED_VALUES = 1 << 16;
+
+    private static final byte UNKNOWN = 0;
+    private static final byte MATCH = 1;
+    private static final byte NO_MATCH = 2;
+
+    private final List<Predicate<String>> predicates = new ArrayList<>();
+
+    private final Map<String, Boolean> valueResults = new ConcurrentHashMap<>();
+
+    private final MetadataTable table;
+    private final int column;
+    // the result for each code of the column's dictionary (replaced when the dictionary grows)
+    private volatile byte[] codeResults = new byte[0];
+
+    /**
+     * Constructor for matching values that are not in a table
+     * @param patterns
+     */
+    public ValueMatcher(List<Pattern> patterns) {
+        this(patterns, null, -1);
+    }
+
+    /**
+     * Constructor for matching the values of a column of a table
+     * @param patterns
+     * @param table
+     * @param column
+     */
+    public ValueMatcher(List<Pattern> patterns, MetadataTable table, int column) {
+        for (Pattern pattern : patterns) {
+            predicates.add(compile(pattern));
+        }
+        this.table = table;
+        this.column = column;
+    }
+
+    /**
+     * @param row a row of the table given to the constructor
+     * @return true if all the patterns are found in the row's value in the column
+     */
+    public boolean matches(int row) {
+        int code = table.getCode(row, column);
+        if (code < 0) {
+            return matches(table.getString(row, column));
+        }
+        byte[] results = codeResults;
+        if (code >= results.length) {
+            byte[] grown = new byte[Math.max(code + 1, table.getDictionarySize(column))];
+            System.arraycopy(results, 0, grown, 0, results.length);
+            results = grown;
+            codeResults = results;
+        }
+        byte result = results[code];
+        if (result == UNKNOWN) {
+            result = (test(table.getString(row, column)) ? MATCH : NO_MATCH);
+            results[code] = result;
+        }
+        return result == MATCH;
+    }
+
+    /**
+     * @param value
+     * @return true if all the patterns are found in the value
+     */
+    public boolean matches(String value) {
+        Boolean result = valueResults.get(value);
+        if (result == null) {
+            result = test(value);
+            if (valueResults.size() < MAX_REMEMBERED_VALUES) {
+                valueResults.put(value, result);
+            }
+        }
+        return result;
+    }
+
+    private boolean test(String value) {
+        for (Predicate<String> predicate : predicates) {
+            if (!predicate.test(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether any value in a range could match. Only patterns that are literal prefixes (i.e., start
+     * with ^) can rule a range out - for any other pattern this is true.
+     * @param min the smallest value in the range as UTF-8 bytes
+     * @param max the largest value in the range as UTF-8 bytes
+     * @return false if no value between min and max (compared as unsigned bytes) can match
+     */
+    public boolean mayMatchRange(byte[] min, byte[] max) {
+        for (Predicate<String> predicate : predicates) {
+            if (predicate instanceof Literal && !((Literal) predicate).mayMatchRange(min, max)) {
+                return false;
+            }
+            if (predicate instanceof Alternatives && !((Alternatives) predicate).mayMatchRange(min, max)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes a test equivalent to pattern.matcher(value).find()
+     */
+    static Predicate<String> compile(Pattern pattern) {
+        if (pattern.flags() == 0) {
+            String expression = pattern.pattern();
+            if (expression.equals(".*") || expression.isEmpty()) {
+                // matches anything (including an empty value)
+                return value -> true;
+            }
+
+            List<Literal> alternatives = new ArrayList<>();
+            for (String alternative : splitAlternatives(expression)) {
+                Literal literal = compileLiteral(alternative);
+                if (literal == null) {
+                    alternatives = null;
+                    break;
+                }
+                alternatives.add(literal);
+            }
+            if (alternatives != null) {
+                return (alternatives.size() == 1 ? alternatives.get(0) : new Alternatives(alternatives));
+            }
+        }
+        return value -> pattern.matcher(value).find();
+    }
+
+    /**
+     * Splits an expression at the |s that are not escaped. Any other special character (including
+     * brackets, which could hold a |) is caught by compileLiteral.
+     */
+    private static List<String> splitAlternatives(String expression) {
+        List<String> alternatives = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '|') {
+                alternatives.add(expression.substring(start, i));
+                start = i + 1;
+            }
+        }
+        alternatives.add(expression.substring(start));
+        return alternatives;
+    }
+
+    /**
+     * @param expression
+     * @return a test for an expression of literal text with an optional ^ at the start and $ at
+     * the end, or null if it is not one
+     */
+    private static Literal compileLiteral(String expression) {
+        boolean isStart = expression.startsWith("^");
+        int end = expression.length();
+        boolean isEnd = end > (isStart ? 1 : 0) && expression.charAt(end - 1) == '$' && !isEscaped(expression, end - 1);
+        if (isEnd) {
+            end--;
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (int i = (isStart ? 1 : 0); i < end; i++) {
+            char c = expression.charAt(i);
+            if (c == '\\') {
+                // an escaped punctuation character stands for itself (but \d, \s etc are classes)
+                if (i + 1 >= end || Character.isLetterOrDigit(expression.charAt(i + 1))) {
+                    return null;
+                }
+                text.append(expression.charAt(++i));
+            } else if (".[]{}()*+?^$|".indexOf(c) >= 0) {
+                return null;
+            } else {
+                text.append(c);
+            }
+        }
+
+        return new Literal(text.toString(), isStart, isEnd);
+    }
+
+    private static boolean endsWith(String value, String literal) {
+        return value != null && value.endsWith(literal);
+    }
+
+    /**
+     * As $ also matches before a line terminator at the end of the input
+     * @return the value without its final line terminator or null if it doesn't have one
+     */
+    private static String stripLineTerminator(String value) {
+        int length = value.length();
+        if (length >= 2 && value.charAt(length - 2) == '\r' && value.charAt(length - 1) == '\n') {
+            return value.substring(0, length - 2);
+        }
+        if (length >= 1 && "\n\r\u0085\u2028\u2029".indexOf(value.charAt(length - 1)) >= 0) {
+            return value.substring(0, length - 1);
+        }
+        return null;
+    }
+
+    private static boolean isEscaped(String expression, int index) {
+        int count = 0;
+        while (index - count - 1 >= 0 && expression.charAt(index - count - 1) == '\\') {
+            count++;
+        }
+        return count % 2 == 1;
+    }
+
+    /**
+     * Literal text, optionally anchored to the start and/or end of the value
+     */
+    private static final class Literal implements Predicate<String> {
+        private final String text;
+        private final byte[] bytes;
+        private final boolean isStart;
+        private final boolean isEnd;
+
+        Literal(String text, boolean isStart, boolean isEnd) {
+            this.text = text;
+            this.bytes = text.getBytes(StandardCharsets.UTF_8);
+            this.isStart = isStart;
+            this.isEnd = isEnd;
+        }
+
+        @Override
+        public boolean test(String value) {
+            if (isStart && isEnd) {
+                return value.equals(text) || text.equals(stripLineTerminator(value));
+            }
+            if (isStart) {
+                return value.startsWith(text);
+            }
+            if (isEnd) {
+                return value.endsWith(text) || endsWith(stripLineTerminator(value), text);
+            }
+            return value.contains(text);
+        }
+
+        boolean mayMatchRange(byte[] min, byte[] max) {
+            if (!isStart) {
+                return true;
+            }
+            // the values starting with the text are those from the text itself up to the last
+            // value with it as a prefix
+            return compareUnsigned(max, bytes) >= 0 && (compareUnsigned(min, bytes) <= 0 || startsWith(min, bytes));
+        }
+    }
+
+    /**
+     * A list of literals, any of which can match
+     */
+    private static final class Alternatives implements Predicate<String> {
+        private final List<Literal> literals;
+
+        Alternatives(List<Literal> literals) {
+            this.literals = literals;
+        }
+
+        @Override
+        public boolean test(String value) {
+            for (Literal literal : literals) {
+                if (literal.test(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean mayMatchRange(byte[] min, byte[] max) {
+            for (Literal literal : literals) {
+                if (literal.mayMatchRange(min, max)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static boolean startsWith(byte[] value, byte[] prefix) {
+        if (value.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (value[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
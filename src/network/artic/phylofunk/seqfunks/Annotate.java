@@ -1,20 +1,13 @@
 package network.artic.phylofunk.seqfunks;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-
-
-import jebl.evolution.sequences.BasicSequence;
-import jebl.evolution.sequences.Sequence;
-import jebl.evolution.taxa.Taxon;
+import java.util.Set;
 
 import network.artic.phylofunk.funks.FunkOptions;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
-import org.apache.commons.csv.CSVRecord;
 
 import network.artic.phylofunk.funks.FunkFactory;
+import network.artic.phylofunk.funks.MetadataTable;
 
 import static network.artic.phylofunk.funks.FunkOptions.*;
 
@@ -22,6 +15,9 @@ import static network.artic.phylofunk.funks.FunkOptions.*;
  *
  */
 public class Annotate extends SequenceFunk {
+    private int missingCount = 0;
+    private int outputCount = 0;
+
     public static final FunkFactory FACTORY = new FunkFactory() {
         @Override
         public String getName() {
@@ -38,6 +34,7 @@ public class Annotate extends SequenceFunk {
             options.addOption(INPUT);
             options.addOption(OUTPUT_FILE);
             options.addOption(METADATA);
+            options.addOption(METADATA_INDEX);
             options.addOption(INDEX_COLUMN);
             options.addOption(INDEX_FIELD);
             options.addOption(FIELD_DELIMITER);
@@ -67,6 +64,11 @@ public class Annotate extends SequenceFunk {
                     isVerbose);
         }
 
+        @Override
+        public Set<String> getMetadataColumnNames(CommandLine commandLine) {
+            return collectColumnNames(commandLine.getOptionValues("label-fields"));
+        }
+
     };
 
     public Annotate(String fastaFileName,
@@ -101,104 +103,100 @@ public class Annotate extends SequenceFunk {
             }
         }
 
-        List<Sequence> sequences = readFasta(fastaFileName);
-
-        Map<String, Sequence> sequenceMap = getSequenceMap(sequences);
+        boolean hasLabelColumns = labelColumns != null && labelColumns.length > 0;
+        if (hasLabelColumns && isVerbose) {
+            outStream.println((replace ? "Replacing" : "Appending") + " label fields with columns: " + String.join(", ", labelColumns));
+            outStream.println();
+        }
 
-        List<Sequence> outSequences = new ArrayList<>();
+        // the headers are rewritten as the sequences are read so the records are written in the
+        // order they are in the file and only one is held at a time
+        processSequences(fastaFileName, outputPath, record -> {
+            if (!hasLabelColumns) {
+                return null;
+            }
+            FastaRecord outRecord = relabelSequence(record, metadata, labelColumns, fieldDelimiter, defaultValue, replace, annotateDescription, ignoreMissing, skipMissing);
+            if (outRecord != null) {
+                outputCount += 1;
+            }
+            return outRecord;
+        });
 
-        if (labelColumns != null && labelColumns.length > 0) {
-            if (isVerbose) {
-                outStream.println((replace ? "Replacing" : "Appending") + " label fields with columns: " + String.join(", ", labelColumns));
-                outStream.println();
+        if (isVerbose && missingCount > 0) {
+            if (ignoreMissing) {
+                outStream.println("Unmatched sequences: " + missingCount + " left unannotated");
+            } else if (skipMissing) {
+                outStream.println("Unmatched sequences: " + missingCount + " skipped and not written to output");
+            } else if (defaultValue != null) {
+                outStream.println("Unmatched sequences: " + missingCount + " given default values");
             }
-            outSequences = relabelSequences(sequenceMap, metadata, labelColumns, fieldDelimiter, defaultValue, replace, annotateDescription, ignoreMissing, skipMissing);
+            outStream.println();
         }
 
         if (isVerbose) {
-            outStream.println("Writing fasta file, " + outputPath + ", with " + outSequences.size() + " sequences");
+            outStream.println("Written fasta file, " + outputPath + ", with " + outputCount + " sequences");
             outStream.println();
         }
 
-        writeFastaFile(outSequences, outputPath);
-
     }
 
     /**
-     * Annotates the tips of a tree with a set of columns from the metadata table
-     * @param sequenceMap
+     * Annotates the header of a sequence record with a set of columns from the metadata table
+     * @param record
      * @param metadata
      * @param columnNames
      * @param replace
      * @param ignoreMissing
+     * @return the relabelled record or null if it is to be skipped
      */
-    private List<Sequence> relabelSequences(Map<String, Sequence> sequenceMap,
-                                            Map<String, CSVRecord> metadata,
-                                            String[] columnNames,
-                                            String headerDelimiter,
-                                            String defaultValue,
-                                            boolean replace,
-                                            boolean annotateDescription,
-                                            boolean ignoreMissing,
-                                            boolean skipMissing ) {
-
-        List<Sequence> relabelledSequences = new ArrayList<>();
-
-        int missingCount = 0;
-
-        for (String key : sequenceMap.keySet()) {
-            Sequence sequence = sequenceMap.get(key);
-            CSVRecord record = metadata.get(key);
-
-            if (record == null) {
-                if (!ignoreMissing && !skipMissing && defaultValue == null) {
-                    errorStream.println("Sequence index, " + key + ", not found in metadata table and no default value supplied");
-                    System.exit(1);
-                } else {
-                    missingCount += 1;
-                }
+    private FastaRecord relabelSequence(FastaRecord record,
+                                        MetadataTable metadata,
+                                        String[] columnNames,
+                                        String headerDelimiter,
+                                        String defaultValue,
+                                        boolean replace,
+                                        boolean annotateDescription,
+                                        boolean ignoreMissing,
+                                        boolean skipMissing ) {
+
+        String key = getSequenceID(record);
+        int row = metadata.getRowIndex(key);
+
+        if (row < 0) {
+            if (!ignoreMissing && !skipMissing && defaultValue == null) {
+                errorStream.println("Sequence index, " + key + ", not found in metadata table and no default value supplied");
+                System.exit(1);
+            } else {
+                missingCount += 1;
             }
+        }
 
-            if (record != null || defaultValue != null) {
-                StringBuilder sequenceHeader = new StringBuilder();
-                boolean first = true;
-                if (!replace || annotateDescription) {
-                    sequenceHeader.append(sequence.getTaxon().getName());
-                    if (annotateDescription) {
-                        sequenceHeader.append(" ");
-                    } else {
-                        first = false;
-                    }
-                }
-
-                for (String name : columnNames) {
-                    if (!first) {
-                        sequenceHeader.append(headerDelimiter);
-                    }
-                    sequenceHeader.append(record != null ? record.get(name) : defaultValue);
+        if (row >= 0 || defaultValue != null) {
+            StringBuilder sequenceHeader = new StringBuilder();
+            boolean first = true;
+            if (!replace || annotateDescription) {
+                sequenceHeader.append(record.getName());
+                if (annotateDescription) {
+                    sequenceHeader.append(" ");
+                } else {
                     first = false;
                 }
-                relabelledSequences.add(
-                        new BasicSequence(sequence.getSequenceType(), Taxon.getTaxon(sequenceHeader.toString()), sequence.getStates())
-                );
-
-            } else if (ignoreMissing) {
-                relabelledSequences.add(sequence);
             }
-        }
 
-        if (isVerbose && missingCount > 0) {
-            if (ignoreMissing) {
-                outStream.println("Unmatched sequences: " + missingCount + " left unannotated");
-            } else if (skipMissing) {
-                outStream.println("Unmatched sequences: " + missingCount + " skipped and not written to output");
-            } else if (defaultValue != null) {
-                outStream.println("Unmatched sequences: " + missingCount + " given default values");
+            for (String name : columnNames) {
+                if (!first) {
+                    sequenceHeader.append(headerDelimiter);
+                }
+                sequenceHeader.append(row >= 0 ? metadata.getString(row, name) : defaultValue);
+                first = false;
             }
-            outStream.println();
+            return record.withHeader(sequenceHeader.toString());
+
+        } else if (ignoreMissing) {
+            return record;
         }
 
-        return relabelledSequences;
+        return null;
     }
 
 }
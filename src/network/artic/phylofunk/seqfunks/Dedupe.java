@@ -1,16 +1,14 @@
 package network.artic.phylofunk.seqfunks;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
-import jebl.evolution.sequences.BasicSequence;
-import jebl.evolution.sequences.Sequence;
-
-import jebl.evolution.taxa.Taxon;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
-import org.apache.commons.csv.CSVRecord;
 
 import network.artic.phylofunk.funks.FunkFactory;
+import network.artic.phylofunk.funks.MetadataTable;
 
 import static network.artic.phylofunk.funks.FunkOptions.*;
 
@@ -36,6 +34,7 @@ public class Dedupe extends SequenceFunk {
             options.addOption(OUTPUT_METADATA);
             METADATA.setRequired(false);
             options.addOption(METADATA);
+            options.addOption(METADATA_INDEX);
             options.addOption(INDEX_COLUMN);
             options.addOption(INDEX_FIELD);
             options.addOption(TARGET_COLUMN);
@@ -58,6 +57,14 @@ public class Dedupe extends SequenceFunk {
                     isVerbose);
         }
 
+        @Override
+        public Set<String> getMetadataColumnNames(CommandLine commandLine) {
+            if (commandLine.hasOption("output-metadata")) {
+                return null;
+            }
+            return collectColumnNames(commandLine.getOptionValues("target-column"));
+        }
+
     };
 
     public Dedupe(String fastaFileName,
@@ -96,31 +103,125 @@ public class Dedupe extends SequenceFunk {
             }
         }
 
-        List<Sequence> sequences = readFasta(fastaFileName);
+        // the last record with each id: its number in the file and, if it can be copied from the
+        // file, its offset and length
+        Map<String, Integer> slots = new HashMap<>();
+        int[] recordIndices = new int[1 << 10];
+        long[] offsets = new long[1 << 10];
+        long[] lengths = new long[1 << 10];
+        int recordCount = 0;
+        FastaRecord lastRecord = null;
+
+        FastaReader reader = null;
+        try {
+            reader = FastaReader.open(fastaFileName);
+        } catch (IOException ioe) {
+            errorStream.println("Error reading sequence file: " + ioe.getMessage());
+            System.exit(1);
+        }
+
+        // the first pass only reads the headers
+        startPhase("read sequences");
+        try {
+            FastaRecord record = reader.readRecord();
+            while (record != null) {
+                String id = getSequenceID(record);
+                Integer slot = slots.get(id);
+                if (slot == null) {
+                    slot = slots.size();
+                    if (slot == recordIndices.length) {
+                        recordIndices = Arrays.copyOf(recordIndices, slot * 2);
+                        offsets = Arrays.copyOf(offsets, slot * 2);
+                        lengths = Arrays.copyOf(lengths, slot * 2);
+                    }
+                    slots.put(id, slot);
+                }
+                recordIndices[slot] = recordCount;
+                offsets[slot] = record.getOffset();
+                lengths[slot] = record.getLength();
+                recordCount++;
+                lastRecord = record;
+                record = reader.readRecord();
+            }
+        } catch (IOException ioe) {
+            errorStream.println("Error reading sequence file, " + fastaFileName + ": " + ioe.getMessage());
+            System.exit(1);
+        }
+        endPhase();
 
-        Map<String, Sequence> sequenceMap = getSequenceMap(sequences, true);
+        if (isVerbose) {
+            outStream.println("Read sequence file: " + fastaFileName);
+            outStream.println("        Sequences: " + recordCount);
+            outStream.println("     Distinct ids: " + slots.size());
+            outStream.println();
+        }
 
-        Map<String, Sequence> outSequences;
+        Map<String, Integer> outSlots;
 
         if (!targetColumn.isEmpty() || targetField > 0) {
-            outSequences = dedupeSequences(sequenceMap, metadata, targetColumn, targetField, fieldDelimiter);
+            outSlots = dedupeSequences(slots, recordIndices, metadata, targetColumn, targetField, fieldDelimiter);
         } else {
-            // dedupe on the entire sequence label which will already have been done in the sequenceMap
-            outSequences = sequenceMap;
+            // dedupe on the entire sequence label which will already have been done by the slots
+            outSlots = slots;
         }
 
+        // the records are written in the order they are in the file
+        List<String> outKeys = new ArrayList<>(outSlots.keySet());
+        final int[] indices = recordIndices;
+        outKeys.sort(Comparator.comparingInt(key -> indices[outSlots.get(key)]));
+
         if (isVerbose) {
-            outStream.println("Writing fasta file, " + outputFileName + ", with " + outSequences.size() + " de-duplicated sequences.");
+            outStream.println("Writing fasta file, " + outputFileName + ", with " + outKeys.size() + " de-duplicated sequences.");
             outStream.println();
         }
 
-        writeFastaFile(new ArrayList<>(outSequences.values()), outputFileName);
+        // the second pass copies the records, straight from the file by their offsets if it is
+        // uncompressed, otherwise by reading it again
+        startPhase("write");
+        try {
+            FastaWriter writer = FastaWriter.open(outputFileName);
+            FileChannel channel = (lastRecord != null ? lastRecord.getChannel() : null);
+            if (channel != null) {
+                for (String key : outKeys) {
+                    int slot = outSlots.get(key);
+                    if (recordIndices[slot] == recordCount - 1) {
+                        // the last record may not end with a line break
+                        writer.write(lastRecord);
+                    } else {
+                        writer.write(channel, offsets[slot], lengths[slot]);
+                    }
+                }
+            } else if (!outKeys.isEmpty()) {
+                BitSet outRecords = new BitSet(recordCount);
+                for (int slot : outSlots.values()) {
+                    outRecords.set(recordIndices[slot]);
+                }
+                reader.close();
+                reader = FastaReader.open(fastaFileName);
+                int index = 0;
+                FastaRecord record = reader.readRecord();
+                while (record != null) {
+                    if (outRecords.get(index)) {
+                        writer.write(record);
+                    }
+                    index++;
+                    record = reader.readRecord();
+                }
+            }
+            writer.close();
+            reader.close();
+        } catch (IOException ioe) {
+            errorStream.println("Error writing fasta file: " + ioe.getMessage());
+            System.exit(1);
+        }
+        endPhase();
 
         if (outputMetadataFileName != null && metadata != null) {
-            List<CSVRecord> metadataRows = new ArrayList<>();
-            for (String key : outSequences.keySet()) {
-                if (metadata.containsKey(key)) {
-                    metadataRows.add(metadata.get(key));
+            List<Integer> metadataRows = new ArrayList<>();
+            for (String key : outKeys) {
+                int row = metadata.getRowIndex(key);
+                if (row >= 0) {
+                    metadataRows.add(row);
                 }
             }
             if (isVerbose) {
@@ -132,25 +233,33 @@ public class Dedupe extends SequenceFunk {
 
     }
 
-    private Map<String, Sequence> dedupeSequences(Map<String, Sequence> sequenceMap, Map<String, CSVRecord> metadata, String targetColumn, int targetField, String fieldDelimiter) {
+    /**
+     * Keeps one sequence id for each value of the target column or label field: the one whose
+     * record is last in the file.
+     * @return the slots of the ids kept
+     */
+    private Map<String, Integer> dedupeSequences(Map<String, Integer> slots, int[] recordIndices, MetadataTable metadata, String targetColumn, int targetField, String fieldDelimiter) {
         Map<String, String> uniqueMap = new HashMap<>();
 
-        for (String key : sequenceMap.keySet()) {
+        for (String key : slots.keySet()) {
             String targetValue = null;
-            if (metadata != null) {
-                CSVRecord record = metadata.get(key);
+            if (!targetColumn.isEmpty()) {
+                int row = metadata.getRowIndex(key);
 
-                if (record == null) {
+                if (row < 0) {
                     errorStream.println("Sequence index, " + key + ", not found in metadata table.");
                     System.exit(1);
                 }
 
-                targetValue = record.get(targetColumn);
+                targetValue = metadata.getString(row, targetColumn);
             } else if (targetField > 0) {
                 targetValue = getLabelField(key, targetField, fieldDelimiter);
             }
 
-            uniqueMap.put(targetValue, key);
+            String other = uniqueMap.get(targetValue);
+            if (other == null || recordIndices[slots.get(other)] < recordIndices[slots.get(key)]) {
+                uniqueMap.put(targetValue, key);
+            }
         }
 
 //        if (isVerbose && missingCount > 0) {
@@ -164,12 +273,11 @@ public class Dedupe extends SequenceFunk {
 //            outStream.println();
 //        }
 
-        Map<String, Sequence> uniqueSequenceMap = new HashMap<>();
+        Map<String, Integer> uniqueSlots = new HashMap<>();
         for (String key : uniqueMap.values()) {
-            uniqueSequenceMap.put(key, sequenceMap.get(key));
+            uniqueSlots.put(key, slots.get(key));
         }
 
-        return uniqueSequenceMap;
+        return uniqueSlots;
     }
 }
-
@@ -1,13 +1,14 @@
 package network.artic.phylofunk.seqfunks;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
-import org.apache.commons.csv.CSVRecord;
 
 import network.artic.phylofunk.funks.FunkFactory;
+import network.artic.phylofunk.funks.ValueMatcher;
 
 import static network.artic.phylofunk.funks.FunkOptions.*;
 
@@ -35,12 +36,15 @@ public class Extract extends SequenceFunk {
             options.addOption(TAXA);
             METADATA.setRequired(false);
             options.addOption(METADATA);
+            options.addOption(METADATA_INDEX);
             options.addOption(INDEX_COLUMN);
             options.addOption(INDEX_FIELD);
             options.addOption(FIELD_DELIMITER);
             options.addOption(MATCH_COLUMN);
             options.addOption(MATCH_FIELD);
             options.addOption(IGNORE_MISSING);
+            options.addOption(FASTA_INDEX);
+            options.addOption(THREADS);
         }
 
         @Override
@@ -58,9 +62,46 @@ public class Extract extends SequenceFunk {
                     commandLine.getOptionValues("match-column"),
                     commandLine.getOptionValues("match-field"),
                     commandLine.hasOption("ignore-missing"),
+                    commandLine.hasOption("fasta-index"),
+                    Integer.parseInt(commandLine.getOptionValue("threads", "1")),
                     isVerbose);
         }
 
+        @Override
+        public Set<String> getMetadataColumnNames(CommandLine commandLine) {
+            if (commandLine.hasOption("output-metadata")) {
+                return null;
+            }
+            Set<String> columns = new HashSet<>();
+            String[] matches = commandLine.getOptionValues("match-column");
+            if (matches != null) {
+                for (String match : matches) {
+                    columns.add(match.split("=")[0]);
+                }
+            }
+            return columns;
+        }
+
+        @Override
+        public Map<String, List<Pattern>> getMetadataRowFilters(CommandLine commandLine) {
+            String[] matches = commandLine.getOptionValues("match-column");
+            if (matches == null) {
+                return null;
+            }
+            // only the rows that match are used (including for the output metadata)
+            Map<String, List<Pattern>> filters = new HashMap<>();
+            for (String match : matches) {
+                String[] parts = match.split("=");
+                if (parts.length > 2) {
+                    // reported as an error when the command is created
+                    return null;
+                }
+                filters.computeIfAbsent(parts[0], k -> new ArrayList<>())
+                        .add(Pattern.compile(parts.length == 2 ? parts[1] : ".*"));
+            }
+            return filters;
+        }
+
     };
 
 
@@ -76,6 +117,8 @@ public class Extract extends SequenceFunk {
                    String[] columnMatches,
                    String[] fieldMatches,
                    boolean ignoreMissing,
+                   boolean isBuildingFastaIndex,
+                   int threadCount,
                    boolean isVerbose) {
 
         super(metadataFileName, taxaFileName, indexColumn, indexField, headerDelimiter, isVerbose);
@@ -148,48 +191,85 @@ public class Extract extends SequenceFunk {
             }
         }
 
+        // the patterns for each column and field compiled into matchers that remember the result
+        // for each distinct value
+        List<ValueMatcher> columnMatchers = new ArrayList<>();
+        for (String column : columnPatterns.keySet()) {
+            columnMatchers.add(new ValueMatcher(columnPatterns.get(column), metadata, metadata.getColumnIndex(column)));
+        }
+        Map<Integer, ValueMatcher> fieldMatchers = new HashMap<>();
+        for (int field : fieldPatterns.keySet()) {
+            fieldMatchers.put(field, new ValueMatcher(fieldPatterns.get(field)));
+        }
+
         Set<String> matchedSequenceKeySet = new HashSet<>();
 
-        processSequences(fastaFileName, outputFileName, sequence -> {
-            String index = getSequenceID(sequence);
-
-            if (taxa == null || this.taxa.contains(index)) {
-                boolean match = true;
-                if (!columnPatterns.isEmpty()) {
-                    CSVRecord record = metadata.get(index);
-                    for (String column : columnPatterns.keySet()) {
-                        String value = record.get(column);
-                        List<Pattern> matchList = columnPatterns.get(column);
-                        for (Pattern pattern : matchList) {
-                            if (!pattern.matcher(value).find()) {
+        // rows read from a metadata index as they are looked up are added to the table so this
+        // can only be done on one thread
+        if (threadCount > 1 && !columnMatchers.isEmpty() && !metadata.isLoaded()) {
+            if (isVerbose) {
+                outStream.println("Metadata rows are read from the metadata index: using one thread");
+            }
+            threadCount = 1;
+        }
+        // with several threads the matches are found out of order so are kept with their offset
+        // in the file and added to the set in file order at the end (so the output metadata is in
+        // the same order)
+        Map<String, Long> matchedSequenceOffsets = (threadCount > 1 ? new ConcurrentHashMap<>() : null);
+
+        // with just a list of taxa only their records need to be read if the file is indexed
+        Set<String> indexedKeySet = null;
+        if (taxa != null && !remove && outputFileName != null) {
+            indexedKeySet = extractIndexedSequences(fastaFileName, outputFileName, taxa, isBuildingFastaIndex);
+        }
+
+        if (indexedKeySet != null) {
+            matchedSequenceKeySet.addAll(indexedKeySet);
+        } else {
+            processSequences(fastaFileName, outputFileName, threadCount, record -> {
+                String index = getSequenceID(record);
+
+                if (taxa == null || this.taxa.contains(index)) {
+                    boolean match = true;
+                    if (!columnMatchers.isEmpty()) {
+                        int row = metadata.getRowIndex(index);
+                        for (ValueMatcher matcher : columnMatchers) {
+                            if (!(row >= 0 ? matcher.matches(row) : matcher.matches(""))) {
                                 match = false;
+                                break;
                             }
-
                         }
                     }
-                }
 
-                if (!fieldPatterns.isEmpty()) {
-                    for (int field : fieldPatterns.keySet()) {
-                        String value = getLabelField(sequence.getTaxon().getName(), field, fieldDelimiter);
-                        List<Pattern> matchList = fieldPatterns.get(field);
-                        for (Pattern pattern : matchList) {
-                            if (!pattern.matcher(value).find()) {
+                    if (match && !fieldMatchers.isEmpty()) {
+                        for (int field : fieldMatchers.keySet()) {
+                            String value = getLabelField(record.getName(), field, fieldDelimiter);
+                            if (!fieldMatchers.get(field).matches(value)) {
                                 match = false;
+                                break;
                             }
+                        }
+                    }
 
+                    if (match) {
+                        if (matchedSequenceOffsets != null) {
+                            matchedSequenceOffsets.merge(index, record.getOffset(), Math::min);
+                        } else {
+                            matchedSequenceKeySet.add(index);
                         }
                     }
-                }
 
-                if (match) {
-                    matchedSequenceKeySet.add(index);
+                    return (match == remove ? null : record);
                 }
+                return null;
+            });
 
-                return (match == remove ? null : sequence);
+            if (matchedSequenceOffsets != null) {
+                matchedSequenceOffsets.entrySet().stream()
+                        .sorted(Map.Entry.comparingByValue())
+                        .forEach(entry -> matchedSequenceKeySet.add(entry.getKey()));
             }
-            return null;
-        });
+        }
 
         if (isVerbose) {
             outStream.println("Matched taxa: " + matchedSequenceKeySet.size());
@@ -197,10 +277,11 @@ public class Extract extends SequenceFunk {
         }
 
         if (outputMetadataFileName != null) {
-            List<CSVRecord> metadataRows = new ArrayList<>();
+            List<Integer> metadataRows = new ArrayList<>();
             for (String key : matchedSequenceKeySet) {
-                if (metadata.containsKey(key)) {
-                    metadataRows.add(metadata.get(key));
+                int row = metadata.getRowIndex(key);
+                if (row >= 0) {
+                    metadataRows.add(row);
                 }
             }
             if (metadataRows.isEmpty()) {
@@ -0,0 +1,216 @@
+package network.artic.phylofunk.seqfunks;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A FASTA index in the layout of samtools faidx (the FASTA file name with '.fai' appended). Each
+ * line has the name of a sequence, the number of bases, the offset of the first base and the
+ * number of bases and bytes in each line. With it the records for a set of names can be copied
+ * from an uncompressed FASTA file without reading the rest of it.
+ *
+ * An index is only used if it is not older than the FASTA file and the header found for each
+ * record has the indexed name. A file can only be indexed if all the lines of each sequence are
+ * the same length, except the last, so the end of each record can be calculated.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+final class FastaIndex {
+    static final String EXTENSION = ".fai";
+
+    /**
+     * A line of the index
+     */
+    static final class Entry {
+        final String name;
+        final long length;
+        final long offset;
+        final long lineBases;
+        final long lineWidth;
+
+        Entry(String name, long length, long offset, long lineBases, long lineWidth) {
+            this.name = name;
+            this.length = length;
+            this.offset = offset;
+            this.lineBases = lineBases;
+            this.lineWidth = lineWidth;
+        }
+
+        /**
+         * @return the number of bytes of the sequence lines (including the last line break)
+         */
+        long getSequenceBytes() {
+            if (length == 0) {
+                return 0;
+            }
+            long fullLines = (length - 1) / lineBases;
+            return fullLines * lineWidth + (length - fullLines * lineBases) + (lineWidth - lineBases);
+        }
+    }
+
+    private FastaIndex() {
+    }
+
+    static String getIndexFileName(String fileName) {
+        return fileName + EXTENSION;
+    }
+
+    /**
+     * @param fileName the FASTA file
+     * @return true if the FASTA file has an index that is not older than it
+     */
+    static boolean isUpToDate(String fileName) throws IOException {
+        Path indexPath = Paths.get(getIndexFileName(fileName));
+        return Files.exists(indexPath) &&
+                Files.getLastModifiedTime(indexPath).compareTo(Files.getLastModifiedTime(Paths.get(fileName))) >= 0;
+    }
+
+    /**
+     * Builds the index of a FASTA file and writes it next to the file
+     * @param fileName the FASTA file (uncompressed)
+     * @throws IOException if the file can't be read or indexed or the index can't be written
+     */
+    static void build(String fileName) throws IOException {
+        // write to a temporary file and move it into place so another process never sees part of it
+        Path indexPath = Paths.get(getIndexFileName(fileName));
+        Path tempPath = Paths.get(indexPath + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+        try {
+            try (FastaReader reader = FastaReader.open(fileName);
+                 Writer out = new BufferedWriter(new OutputStreamWriter(
+                         Files.newOutputStream(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), StandardCharsets.UTF_8), 1 << 16)) {
+                FastaRecord record = reader.readRecord();
+                while (record != null) {
+                    if (record.getChannel() == null) {
+                        throw new IOException("compressed files can't be indexed");
+                    }
+                    if (!reader.hasRegularLines()) {
+                        throw new IOException("the lines of sequence " + record.getName() + " are not all the same length");
+                    }
+                    out.write(record.getName());
+                    out.write('\t');
+                    out.write(Long.toString(reader.getSequenceLength()));
+                    out.write('\t');
+                    out.write(Long.toString(record.getOffset() + record.getSequenceOffset()));
+                    out.write('\t');
+                    out.write(Long.toString(reader.getLineBases()));
+                    out.write('\t');
+                    out.write(Long.toString(reader.getLineWidth()));
+                    out.write('\n');
+                    record = reader.readRecord();
+                }
+            }
+            try {
+                Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Reads the entries of the index of a FASTA file
+     * @param fileName the FASTA file
+     * @param names the names of the sequences to read the entries for
+     * @return the entries in the order they are in the index
+     * @throws IOException
+     */
+    static List<Entry> read(String fileName, Predicate<String> names) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(getIndexFileName(fileName)), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            while (line != null) {
+                int end = line.indexOf('\t');
+                if (end > 0 && names.test(line.substring(0, end))) {
+                    String[] fields = line.split("\t");
+                    if (fields.length < 5) {
+                        throw new IOException("badly formed line in FASTA index: " + line);
+                    }
+                    try {
+                        entries.add(new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                                Long.parseLong(fields[3]), Long.parseLong(fields[4])));
+                    } catch (NumberFormatException nfe) {
+                        throw new IOException("badly formed line in FASTA index: " + line);
+                    }
+                }
+                line = reader.readLine();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Finds the record of an index entry in the FASTA file: the header line is found by reading
+     * back from the first base.
+     * @param channel the FASTA file
+     * @param entry
+     * @return the record
+     * @throws IOException if the record doesn't match the entry
+     */
+    static FastaRecord getRecord(FileChannel channel, Entry entry) throws IOException {
+        long size = channel.size();
+        long headerEnd = entry.offset - 1;
+        if (headerEnd < 1 || entry.offset > size) {
+            throw new IOException("FASTA index doesn't match the file (sequence " + entry.name + ")");
+        }
+
+        // read back from the line break at the end of the header until the start of the line
+        long start = -1;
+        int length = 1 << 10;
+        while (start < 0) {
+            long from = Math.max(0, headerEnd - length);
+            byte[] bytes = readFully(channel, from, (int) (headerEnd - from));
+            int i = bytes.length - 1;
+            while (i >= 0 && bytes[i] != '\n') {
+                i--;
+            }
+            if (i >= 0 || from == 0) {
+                start = from + i + 1;
+            } else if (length >= (1 << 26)) {
+                throw new IOException("FASTA index doesn't match the file (sequence " + entry.name + ")");
+            }
+            length *= 4;
+        }
+
+        byte[] bytes = readFully(channel, start, (int) (headerEnd - start));
+        int headerLength = bytes.length;
+        if (headerLength > 0 && bytes[headerLength - 1] == '\r') {
+            headerLength--;
+        }
+        if (headerLength == 0 || bytes[0] != '>') {
+            throw new IOException("FASTA index doesn't match the file (sequence " + entry.name + ")");
+        }
+        String header = new String(bytes, 1, headerLength - 1, StandardCharsets.UTF_8);
+
+        long end = entry.offset + entry.getSequenceBytes();
+        boolean hasLineEnd = true;
+        if (end > size) {
+            // the last record of a file that doesn't end with a line break
+            end = size;
+            hasLineEnd = false;
+        }
+        FastaRecord record = new FastaRecord(header, channel, null, start, end - start, (int) (entry.offset - start), hasLineEnd);
+        if (!record.getName().equals(entry.name)) {
+            throw new IOException("FASTA index doesn't match the file (sequence " + entry.name + ")");
+        }
+        return record;
+    }
+
+    private static byte[] readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.array();
+    }
+}
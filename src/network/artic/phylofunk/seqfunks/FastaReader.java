@@ -0,0 +1,284 @@
+package network.artic.phylofunk.seqfunks;
+
+import network.artic.phylofunk.funks.Funk;
+import network.artic.phylofunk.funks.MappedFileInputStream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the records of a FASTA file without decoding the sequences. The bytes are only scanned
+ * for the line breaks so the header lines can be found and each record is returned with its
+ * header and where it is in the file. If the file is uncompressed the sequences are left in the
+ * file (and copied from there by FastaWriter), otherwise the bytes of each record are kept with
+ * it.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public final class FastaReader implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final InputStream in;
+    private final FileChannel channel;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    // the offset in the file of the start of the buffer
+    private long bufferOffset = 0;
+    private int position = 0;
+    private int limit = 0;
+
+    // the header and, if the file can't be read again, the bytes of the current record
+    private byte[] headerBytes = new byte[1 << 10];
+    private int headerLength;
+    private byte[] recordBytes;
+    private int recordLength;
+
+    // the layout of the sequence lines of the current record
+    private long sequenceLength;
+    private long lineBases;
+    private long lineWidth;
+    private boolean hasRegularLines;
+    // whether a line shorter than the first (or a blank line) has been read
+    private boolean isLastLine;
+
+    /**
+     * Constructor
+     * @param in
+     * @param channel the channel of the file being read by the stream (if it is uncompressed) or null
+     */
+    public FastaReader(InputStream in, FileChannel channel) {
+        this.in = in;
+        this.channel = channel;
+        if (channel == null) {
+            recordBytes = new byte[1 << 16];
+        }
+    }
+
+    /**
+     * Opens a FASTA file (which may be compressed)
+     * @param fileName
+     * @return the reader
+     * @throws IOException
+     */
+    public static FastaReader open(String fileName) throws IOException {
+        InputStream in = Funk.openInputStream(fileName);
+        FileChannel channel = (in instanceof MappedFileInputStream ? ((MappedFileInputStream) in).getChannel() : null);
+        return new FastaReader(in, channel);
+    }
+
+    /**
+     * Reads the next record
+     * @return the record or null at the end of the file
+     * @throws IOException
+     */
+    public FastaRecord readRecord() throws IOException {
+        if (!findRecord()) {
+            return null;
+        }
+
+        long offset = bufferOffset + position;
+        headerLength = 0;
+        recordLength = 0;
+        keep(position, position + 1);
+        position++;
+
+        // the header line
+        boolean hasLineEnd = false;
+        while (true) {
+            if (position == limit && !refill()) {
+                break;
+            }
+            int start = position;
+            int i = position;
+            while (i < limit && buffer[i] != '\n') {
+                i++;
+            }
+            appendHeader(start, i);
+            if (i < limit) {
+                hasLineEnd = true;
+                i++;
+            }
+            keep(start, i);
+            position = i;
+            if (hasLineEnd) {
+                break;
+            }
+        }
+        if (headerLength > 0 && headerBytes[headerLength - 1] == '\r') {
+            headerLength--;
+        }
+        String header = new String(headerBytes, 0, headerLength, StandardCharsets.UTF_8);
+        int sequenceOffset = (int) (bufferOffset + position - offset);
+
+        // the sequence lines up to the next line starting with '>' (there are none if the file
+        // ended in the header line)
+        sequenceLength = 0;
+        lineBases = 0;
+        lineWidth = 0;
+        hasRegularLines = true;
+        isLastLine = false;
+        if (hasLineEnd) {
+            long lineLength = 0;
+            byte previous = 0;
+            while (true) {
+                if (position == limit && !refill()) {
+                    break;
+                }
+                if (hasLineEnd && buffer[position] == '>') {
+                    break;
+                }
+                int start = position;
+                int i = position;
+                while (i < limit && buffer[i] != '\n') {
+                    i++;
+                }
+                lineLength += i - start;
+                if (i > start) {
+                    previous = buffer[i - 1];
+                }
+                hasLineEnd = (i < limit);
+                if (hasLineEnd) {
+                    addLine(lineLength - (lineLength > 0 && previous == '\r' ? 1 : 0), lineLength + 1);
+                    lineLength = 0;
+                    i++;
+                }
+                keep(start, i);
+                position = i;
+            }
+            if (lineLength > 0) {
+                // the last line of the file without a line break
+                addLine(lineLength - (previous == '\r' ? 1 : 0), -1);
+            }
+        }
+
+        long length = bufferOffset + position - offset;
+        byte[] bytes = (channel == null ? Arrays.copyOf(recordBytes, recordLength) : null);
+        return new FastaRecord(header, channel, bytes, offset, length, sequenceOffset, hasLineEnd);
+    }
+
+    /**
+     * @return the number of bases in the sequence of the last record read
+     */
+    public long getSequenceLength() {
+        return sequenceLength;
+    }
+
+    /**
+     * @return the number of bases in each line of the sequence of the last record read (the
+     * length of the first line)
+     */
+    public long getLineBases() {
+        return lineBases;
+    }
+
+    /**
+     * @return the number of bytes in each line of the sequence of the last record read,
+     * including the line break
+     */
+    public long getLineWidth() {
+        return lineWidth;
+    }
+
+    /**
+     * @return true if all the lines of the sequence of the last record read are the same length
+     * except the last one, which may be shorter, so the position of any base can be calculated
+     * (as required by a FASTA index)
+     */
+    public boolean hasRegularLines() {
+        return hasRegularLines;
+    }
+
+    /**
+     * Records a sequence line of the current record
+     * @param bases the number of bases (the length of the line without the line break)
+     * @param width the number of bytes including the line break (-1 if there isn't one)
+     */
+    private void addLine(long bases, long width) {
+        if (bases == 0) {
+            // blank lines are only allowed after the sequence
+            isLastLine = true;
+            return;
+        }
+        if (lineBases == 0) {
+            lineBases = bases;
+            lineWidth = (width < 0 ? bases + 1 : width);
+        } else if (isLastLine || bases > lineBases || (width >= 0 && width - bases != lineWidth - lineBases)) {
+            hasRegularLines = false;
+        } else if (bases < lineBases) {
+            isLastLine = true;
+        }
+        sequenceLength += bases;
+    }
+
+    /**
+     * Moves to the '>' of the next record, skipping any blank lines at the start of the file.
+     * @return false if the end of the file has been reached
+     */
+    private boolean findRecord() throws IOException {
+        while (true) {
+            if (position == limit && !refill()) {
+                return false;
+            }
+            byte b = buffer[position];
+            if (b == '>') {
+                return true;
+            }
+            if (b != '\n' && b != '\r' && b != ' ' && b != '\t') {
+                throw new IOException("expected a '>' at the start of a sequence record (offset " + (bufferOffset + position) + ")");
+            }
+            position++;
+        }
+    }
+
+    private boolean refill() throws IOException {
+        bufferOffset += limit;
+        position = 0;
+        limit = 0;
+        int n = in.read(buffer, 0, buffer.length);
+        while (n == 0) {
+            n = in.read(buffer, 0, buffer.length);
+        }
+        if (n < 0) {
+            return false;
+        }
+        limit = n;
+        return true;
+    }
+
+    private void appendHeader(int start, int end) {
+        int n = end - start;
+        if (headerLength + n > headerBytes.length) {
+            headerBytes = Arrays.copyOf(headerBytes, Math.max(headerBytes.length * 2, headerLength + n));
+        }
+        System.arraycopy(buffer, start, headerBytes, headerLength, n);
+        headerLength += n;
+    }
+
+    /**
+     * Keeps bytes of the current record if they can't be read from the file again
+     */
+    private void keep(int start, int end) throws IOException {
+        if (channel != null) {
+            return;
+        }
+        int n = end - start;
+        if (recordLength + n > recordBytes.length) {
+            if ((long) recordLength + n > Integer.MAX_VALUE - 8) {
+                throw new IOException("sequence record too long to hold in memory");
+            }
+            recordBytes = Arrays.copyOf(recordBytes, (int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) recordBytes.length * 2, recordLength + n)));
+        }
+        System.arraycopy(buffer, start, recordBytes, recordLength, n);
+        recordLength += n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,120 @@
+package network.artic.phylofunk.seqfunks;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * A record of a FASTA file read by FastaReader: the header line and where the record is in the
+ * file. The sequence is never decoded - it is copied to the output by FastaWriter as it is in
+ * the file (straight from the file if it is uncompressed, otherwise from a copy of the record's
+ * bytes).
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public final class FastaRecord {
+    private final String header;
+    private final boolean isRelabelled;
+
+    // the file the record is in (if it can be read from again) or the bytes of the record
+    private final FileChannel channel;
+    private final byte[] bytes;
+
+    private final long offset;
+    private final long length;
+    private final int sequenceOffset;
+    private final boolean hasLineEnd;
+
+    FastaRecord(String header, FileChannel channel, byte[] bytes, long offset, long length, int sequenceOffset, boolean hasLineEnd) {
+        this(header, false, channel, bytes, offset, length, sequenceOffset, hasLineEnd);
+    }
+
+    private FastaRecord(String header, boolean isRelabelled, FileChannel channel, byte[] bytes, long offset, long length, int sequenceOffset, boolean hasLineEnd) {
+        this.header = header;
+        this.isRelabelled = isRelabelled;
+        this.channel = channel;
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.sequenceOffset = sequenceOffset;
+        this.hasLineEnd = hasLineEnd;
+    }
+
+    /**
+     * @return the header line (without the '>')
+     */
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the sequence name - the header up to the first space or tab
+     */
+    public String getName() {
+        for (int i = 0; i < header.length(); i++) {
+            char c = header.charAt(i);
+            if (c == ' ' || c == '\t') {
+                return header.substring(0, i);
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Returns a copy of this record with a different header line (the sequence is unchanged)
+     * @param header
+     * @return the record
+     */
+    public FastaRecord withHeader(String header) {
+        return new FastaRecord(header, true, channel, bytes, offset, length, sequenceOffset, hasLineEnd);
+    }
+
+    /**
+     * @return true if the header has been changed from the one in the file
+     */
+    boolean isRelabelled() {
+        return isRelabelled;
+    }
+
+    /**
+     * @return the file the record is in or null if the bytes of the record are held
+     */
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the bytes of the record or null if it is read from the file
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the offset of the record (its '>') in the file (after any decompression)
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the length of the record in bytes, including the header line and any blank lines
+     * after the sequence
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the offset of the sequence lines from the start of the record
+     */
+    int getSequenceOffset() {
+        return sequenceOffset;
+    }
+
+    /**
+     * @return false if the record is at the end of a file that doesn't end with a line break
+     */
+    boolean hasLineEnd() {
+        return hasLineEnd;
+    }
+}
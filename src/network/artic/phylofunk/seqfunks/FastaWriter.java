@@ -0,0 +1,173 @@
+package network.artic.phylofunk.seqfunks;
+
+import network.artic.phylofunk.funks.Funk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the records read by FastaReader. A record with its header unchanged is copied exactly
+ * as it was in the file; otherwise the new header line is written followed by the record's
+ * sequence lines. Records in an uncompressed file are copied with FileChannel.transferTo, so if
+ * the output is a file too the sequences never leave the kernel, and a run of records that
+ * follow each other in the file is copied in a single transfer. Anything else is written
+ * through a large buffer.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public final class FastaWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 20;
+    // the longest run of records copied in one transfer (so the end of it has only just been
+    // read and is still in the page cache)
+    private static final long MAX_TRANSFER_SIZE = 1L << 26;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] bytes = buffer.array();
+    private int position = 0;
+
+    // a range of a file still to be transferred
+    private FileChannel source = null;
+    private long sourceStart;
+    private long sourceEnd;
+
+    /**
+     * Constructor
+     * @param channel
+     */
+    public FastaWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens a file for writing (compressed if the name ends in '.gz' or '.bgz')
+     * @param fileName
+     * @return the writer
+     * @throws IOException
+     */
+    public static FastaWriter open(String fileName) throws IOException {
+        return new FastaWriter(Funk.openChannel(fileName));
+    }
+
+    /**
+     * Writes a record
+     * @param record
+     * @throws IOException
+     */
+    public void write(FastaRecord record) throws IOException {
+        int start = 0;
+        if (record.isRelabelled()) {
+            writeByte('>');
+            byte[] header = record.getHeader().getBytes(StandardCharsets.UTF_8);
+            writeBytes(header, 0, header.length);
+            writeByte('\n');
+            start = record.getSequenceOffset();
+        }
+        long length = record.getLength() - start;
+        if (record.getChannel() != null) {
+            transfer(record.getChannel(), record.getOffset() + start, length);
+        } else {
+            writeBytes(record.getBytes(), start, (int) length);
+        }
+        if (length > 0 && !record.hasLineEnd()) {
+            writeByte('\n');
+        }
+    }
+
+    /**
+     * Copies records from an uncompressed FASTA file as they are
+     * @param source the file
+     * @param offset the offset of the first record's '>'
+     * @param length the length of the records (which must end with a line break)
+     * @throws IOException
+     */
+    public void write(FileChannel source, long offset, long length) throws IOException {
+        transfer(source, offset, length);
+    }
+
+    private void transfer(FileChannel source, long start, long length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (source == this.source && start == sourceEnd && sourceEnd - sourceStart + length <= MAX_TRANSFER_SIZE) {
+            sourceEnd += length;
+            return;
+        }
+        flush();
+        this.source = source;
+        sourceStart = start;
+        sourceEnd = start + length;
+    }
+
+    private void writeByte(char b) throws IOException {
+        if (source != null) {
+            flushTransfer();
+        }
+        if (position == bytes.length) {
+            flushBuffer();
+        }
+        bytes[position++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] source, int offset, int length) throws IOException {
+        if (this.source != null) {
+            flushTransfer();
+        }
+        int end = offset + length;
+        while (offset < end) {
+            if (position == bytes.length) {
+                flushBuffer();
+            }
+            int n = Math.min(end - offset, bytes.length - position);
+            System.arraycopy(source, offset, bytes, position, n);
+            position += n;
+            offset += n;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.clear();
+        buffer.limit(position);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        position = 0;
+    }
+
+    private void flushTransfer() throws IOException {
+        long start = sourceStart;
+        while (start < sourceEnd) {
+            long n = source.transferTo(start, sourceEnd - start, channel);
+            if (n <= 0) {
+                throw new IOException("sequence file ended before the record being copied");
+            }
+            start += n;
+        }
+        source = null;
+    }
+
+    /**
+     * Writes out anything buffered or waiting to be transferred
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (source != null) {
+            flushTransfer();
+        }
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -1,10 +1,7 @@
 package network.artic.phylofunk.seqfunks;
 
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.security.MessageDigest;
@@ -84,7 +81,7 @@ public class Hashes extends SequenceFunk {
         AtomicInteger collisionCount = new AtomicInteger();
 
         try {
-            PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(outputFileName)));
+            PrintWriter writer = new PrintWriter(openWriter(outputFileName));
 
             writer.print("sequence_name,full_hash");
             if (length > 0) {
@@ -96,7 +93,7 @@ public class Hashes extends SequenceFunk {
             Map<String, String> shortenedHashMap = new HashMap<>();
             Set<String> sequenceSet = new HashSet<>();
 
-            FastaImporter importer = new FastaImporter(new FileReader(alignmentFileName), SequenceType.NUCLEOTIDE);
+            FastaImporter importer = new FastaImporter(openReader(alignmentFileName), SequenceType.NUCLEOTIDE);
             importer.importSequences(
                     sequence -> {
                         String seq = sequence.getString();
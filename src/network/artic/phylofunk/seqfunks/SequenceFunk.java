@@ -7,17 +7,26 @@ import jebl.evolution.sequences.SequenceType;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
 import jebl.evolution.trees.SimpleRootedTree;
-import jebl.util.ProgressListener;
 import network.artic.phylofunk.funks.Funk;
 import network.artic.phylofunk.treefunks.FormatType;
 import network.artic.phylofunk.treefunks.TreeProcessor;
 import org.apache.commons.csv.CSVRecord;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static java.util.stream.Collectors.toMap;
 
@@ -26,6 +35,9 @@ import static java.util.stream.Collectors.toMap;
  * @version $
  */
 public class SequenceFunk extends Funk {
+    // the most records (and bytes of records held in memory) in a batch processed by a worker
+    private static final int BATCH_SIZE = 1024;
+    private static final int BATCH_BYTES = 1 << 20;
 
     Set<String> taxa = null;
 
@@ -63,7 +75,7 @@ public class SequenceFunk extends Funk {
 
         List<Sequence> sequences = null;
         try {
-            FastaImporter importer = new FastaImporter(new FileReader(fastaFileName), SequenceType.NUCLEOTIDE);
+            FastaImporter importer = new FastaImporter(openReader(fastaFileName), SequenceType.NUCLEOTIDE);
             sequences = importer.importSequences();
 
         } catch (IOException ioe) {
@@ -89,73 +101,280 @@ public class SequenceFunk extends Funk {
     }
 
     final void processSequences(String sequenceFileName, String outputFileName, SequenceProcessor process) {
+        processSequences(sequenceFileName, outputFileName, 1, process);
+    }
+
+    /**
+     * Reads the records of a FASTA file, passing each to the processor, and writes the records
+     * it returns. The sequences are not decoded: the records are copied as they are in the file
+     * (with a new header line if the processor gave one). If threadCount is greater than 1 then
+     * the processor is applied to batches of records concurrently (so it must be thread safe) but
+     * the records are written in the order they are in the file.
+     * @param sequenceFileName
+     * @param outputFileName the output file or null if there is no output
+     * @param threadCount
+     * @param process
+     */
+    final void processSequences(String sequenceFileName, String outputFileName, int threadCount, SequenceProcessor process) {
 
         if (isVerbose) {
             outStream.println("  Reading sequence file: " + sequenceFileName);
         }
 
-        FastaImporter importer = null;
-        FastaExporter exporter1 = null;
+        FastaReader reader = null;
+        FastaWriter writer = null;
 
         try {
-            importer = new FastaImporter(new FileReader(sequenceFileName), SequenceType.NUCLEOTIDE);
+            reader = FastaReader.open(sequenceFileName);
         } catch (IOException ioe) {
             errorStream.println("Error reading sequence file: " + ioe.getMessage());
             System.exit(1);
         }
 
-        FileWriter writer = null;
-
         if (outputFileName != null) {
             try {
                 if (isVerbose) {
                     outStream.println("  Writing sequence file: " + outputFileName);
                 }
-                writer = new FileWriter(outputFileName);
-                exporter1 = new FastaExporter(writer);
+                writer = FastaWriter.open(outputFileName);
             } catch (IOException ioe) {
                 errorStream.println("Error writing sequence file: " + ioe.getMessage());
                 System.exit(1);
             }
         }
 
-        final FastaExporter exporter = exporter1;
-
+        startPhase("process sequences");
         try {
-            final int[] count = {0};
+            int count;
+            if (threadCount > 1) {
+                if (isVerbose) {
+                    outStream.println("  Threads: " + threadCount);
+                }
+                count = processSequencesConcurrently(reader, writer, threadCount, process);
+            } else {
+                count = 0;
+                FastaRecord record = reader.readRecord();
+                while (record != null) {
+                    FastaRecord outRecord = process.processSequence(record);
+                    if (outRecord != null && writer != null) {
+                        writer.write(outRecord);
+                    }
 
-            ImmediateSequenceImporter.Callback callback = seq -> {
-                Sequence outSeq = process.processSequence(seq);
+                    count++;
+                    if (isVerbose && count % 10000 == 0) {
+                        outStream.println("Number of sequences processed: " + count);
+                    }
+                    record = reader.readRecord();
+                }
+            }
 
-                try {
-                    if (outSeq != null) {
-                        exporter.exportSequence(outSeq);
+            // the writer may still be copying from the sequence file so is closed first
+            if (writer != null) {
+                writer.close();
+            }
+            reader.close();
+            if (isVerbose) {
+                outStream.println("Total sequences processed: " + count);
+                outStream.println();
+            }
+        } catch (IOException ioe) {
+            errorStream.println("Error processing sequence file, " + sequenceFileName + ": " + ioe.getMessage());
+            System.exit(1);
+        }
+        endPhase();
+
+    }
+
+    /**
+     * A reader thread reads batches of records and hands them to a pool of workers to process.
+     * The pending batches are held in a queue in file order and the calling thread writes the
+     * results from its head. The queue is bounded so the reader can't get too far ahead of the
+     * workers or the writer.
+     * @return the number of records processed
+     */
+    private int processSequencesConcurrently(FastaReader reader, FastaWriter writer, int threadCount, SequenceProcessor process) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "sequence-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        BlockingQueue<Future<List<FastaRecord>>> pending = new ArrayBlockingQueue<>(threadCount * 2);
+        // put in the queue after the last batch
+        final Future<List<FastaRecord>> end = CompletableFuture.completedFuture(Collections.emptyList());
+
+        Thread readerThread = new Thread(() -> {
+            Future<List<FastaRecord>> next;
+            try {
+                List<FastaRecord> batch = readBatch(reader);
+                while (!batch.isEmpty()) {
+                    final List<FastaRecord> records = batch;
+                    pending.put(executor.submit(() -> {
+                        // each record is replaced by the one to write (or null)
+                        for (int i = 0; i < records.size(); i++) {
+                            records.set(i, process.processSequence(records.get(i)));
+                        }
+                        return records;
+                    }));
+                    batch = readBatch(reader);
+                }
+                next = end;
+            } catch (InterruptedException ie) {
+                // the writer has stopped
+                return;
+            } catch (Throwable t) {
+                // anything that stops the reader (including a RuntimeException or an Error such
+                // as running out of memory on a huge record) is passed on to the writer, which
+                // would otherwise wait for the next batch forever
+                CompletableFuture<List<FastaRecord>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(t);
+                next = failed;
+            }
+            try {
+                pending.put(next);
+            } catch (InterruptedException ie) {
+                // the writer has stopped
+            }
+        }, "sequence-reader");
+        readerThread.setDaemon(true);
+
+        int count = 0;
+        try {
+            readerThread.start();
+            Future<List<FastaRecord>> batch = takeBatch(pending);
+            while (batch != end) {
+                List<FastaRecord> records = getResult(batch);
+                for (FastaRecord record : records) {
+                    if (record != null && writer != null) {
+                        writer.write(record);
                     }
-                } catch (IOException ioe) {
-                    errorStream.println("Error processing sequence file: " + ioe.getMessage());
-                    System.exit(1);
                 }
 
-                count[0]++;
-                if (isVerbose && count[0] % 10000 == 0) {
-                    outStream.println("Number of sequences processed: " + count[0]);
+                if (isVerbose && (count + records.size()) / 10000 > count / 10000) {
+                    outStream.println("Number of sequences processed: " + (count + records.size()));
                 }
-            };
-            importer.importSequences(callback, ProgressListener.EMPTY);
+                count += records.size();
+                batch = takeBatch(pending);
+            }
+        } finally {
+            readerThread.interrupt();
+            executor.shutdownNow();
+        }
+        return count;
+    }
 
-            writer.close();
-            if (isVerbose) {
-                outStream.println("Total sequences processed: " + count[0]);
-                outStream.println();
+    private static List<FastaRecord> readBatch(FastaReader reader) throws IOException {
+        List<FastaRecord> batch = new ArrayList<>();
+        long size = 0;
+        while (batch.size() < BATCH_SIZE && size < BATCH_BYTES) {
+            FastaRecord record = reader.readRecord();
+            if (record == null) {
+                break;
             }
-        } catch (ImportException ie) {
-            errorStream.println("Error parsing sequence file, " + sequenceFileName + ": " + ie.getMessage());
+            batch.add(record);
+            size += (record.getBytes() != null ? record.getBytes().length : record.getHeader().length());
+        }
+        return batch;
+    }
+
+    private static Future<List<FastaRecord>> takeBatch(BlockingQueue<Future<List<FastaRecord>>> pending) throws IOException {
+        try {
+            return pending.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing sequences");
+        }
+    }
+
+    private static List<FastaRecord> getResult(Future<List<FastaRecord>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing sequences");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Writes the sequences with a set of ids, reading only their records from the FASTA file using
+     * its index (see FastaIndex). The records are written in the order they are in the file.
+     * @param sequenceFileName
+     * @param outputFileName
+     * @param ids
+     * @param isBuildingIndex whether to build the index if it is missing or out of date
+     * @return the ids of the sequences written or null if there is no index to use (the whole file
+     * should be read instead)
+     */
+    final Set<String> extractIndexedSequences(String sequenceFileName, String outputFileName, Set<String> ids, boolean isBuildingIndex) {
+        String indexFileName = FastaIndex.getIndexFileName(sequenceFileName);
+        List<FastaIndex.Entry> entries = null;
+        try {
+            if (isCompressedFile(sequenceFileName)) {
+                if (isBuildingIndex) {
+                    errorStream.println("FASTA index can't be used with a compressed file: reading the whole file");
+                }
+                return null;
+            }
+            if (!FastaIndex.isUpToDate(sequenceFileName)) {
+                if (!isBuildingIndex) {
+                    return null;
+                }
+                if (isVerbose) {
+                    outStream.println("  Building FASTA index: " + indexFileName);
+                }
+                startPhase("index sequences");
+                try {
+                    FastaIndex.build(sequenceFileName);
+                } catch (IOException ioe) {
+                    errorStream.println("Unable to write FASTA index (" + ioe.getMessage() + "): reading the whole file");
+                    endPhase();
+                    return null;
+                }
+                endPhase();
+            }
+            entries = FastaIndex.read(sequenceFileName, name -> ids.contains(getSequenceID(name)));
+        } catch (IOException ioe) {
+            errorStream.println("Error reading FASTA index, " + indexFileName + ": " + ioe.getMessage());
             System.exit(1);
+        }
+        entries.sort(Comparator.comparingLong(entry -> entry.offset));
+
+        if (isVerbose) {
+            outStream.println("  Reading sequence file: " + sequenceFileName + " (using index " + indexFileName + ")");
+            outStream.println("  Writing sequence file: " + outputFileName);
+        }
+
+        Set<String> foundIds = new HashSet<>();
+        startPhase("process sequences");
+        try (FileChannel channel = FileChannel.open(Paths.get(sequenceFileName), StandardOpenOption.READ);
+             FastaWriter writer = FastaWriter.open(outputFileName)) {
+            for (FastaIndex.Entry entry : entries) {
+                writer.write(FastaIndex.getRecord(channel, entry));
+                foundIds.add(getSequenceID(entry.name));
+            }
         } catch (IOException ioe) {
-            errorStream.println("Error processing sequence file: " + ioe.getMessage());
+            errorStream.println("Error processing sequence file, " + sequenceFileName + ": " + ioe.getMessage());
             System.exit(1);
         }
+        endPhase();
+
+        if (isVerbose) {
+            outStream.println("Total sequences read using index: " + entries.size());
+            outStream.println();
+        }
 
+        return foundIds;
     }
 
     protected void readTaxa(String taxaFileName, String indexColumn) {
@@ -166,12 +385,12 @@ public class SequenceFunk extends Funk {
         try {
             TreeImporter importer = null;
 
-            String format = getTreeFileType(new FileReader(taxaFileName));
+            String format = getTreeFileType(openReader(taxaFileName));
 
             if (format.equals("nexus")) {
-                importer = new NexusImporter(new FileReader(taxaFileName));
+                importer = new NexusImporter(openReader(taxaFileName));
             } else if (format.equals("newick")) {
-                importer = new NewickImporter(new FileReader(taxaFileName), false);
+                importer = new NewickImporter(openReader(taxaFileName), false);
             } else {
                 // not a tree file - do nothing...
             }
@@ -180,7 +399,7 @@ public class SequenceFunk extends Funk {
                 RootedTree tree = (RootedTree) importer.importNextTree();
                 taxa = new HashSet<>(getTaxonMap(tree).values());
             } else {
-                taxa = readCSV(taxaFileName, indexColumn).keySet();
+                taxa = readCSV(taxaFileName, indexColumn, Collections.emptySet()).getKeys();
             }
 
         } catch (IOException ioe) {
@@ -217,7 +436,15 @@ public class SequenceFunk extends Funk {
     }
 
     final String getSequenceID(Sequence sequence) {
-        String index = sequence.getTaxon().getName();
+        return getSequenceID(sequence.getTaxon().getName());
+    }
+
+    final String getSequenceID(FastaRecord record) {
+        return getSequenceID(record.getName());
+    }
+
+    private String getSequenceID(String name) {
+        String index = name;
         if (indexField > 0) { // index header fields indexed from 1
             index = getLabelField(index, indexField, fieldDelimiter);
         }
@@ -283,7 +510,7 @@ public class SequenceFunk extends Funk {
      */
     static void writeFastaFile(List<Sequence> sequences, String fileName) {
         try {
-            FileWriter writer = new FileWriter(fileName);
+            Writer writer = openWriter(fileName);
 
             SequenceExporter exporter = new FastaExporter(writer);
 
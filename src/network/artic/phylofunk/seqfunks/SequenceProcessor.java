@@ -1,11 +1,16 @@
 package network.artic.phylofunk.seqfunks;
 
-import jebl.evolution.sequences.Sequence;
-
 /**
  * @author Andrew Rambaut
  * @version $
  */
 public interface SequenceProcessor {
-    Sequence processSequence(Sequence sequence);
+    /**
+     * Processes a record. If sequences are processed on more than one thread this is called
+     * concurrently.
+     * @param record
+     * @return the record to write (which may be the same record or one with a new header) or
+     * null to leave it out
+     */
+    FastaRecord processSequence(FastaRecord record);
 }
@@ -1,6 +1,7 @@
 package network.artic.phylofunk.treefunks;
 
 import java.util.Map;
+import java.util.Set;
 
 import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
@@ -8,9 +9,9 @@ import jebl.evolution.trees.RootedTree;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
-import org.apache.commons.csv.CSVRecord;
 
 import network.artic.phylofunk.funks.FunkFactory;
+import network.artic.phylofunk.funks.MetadataTable;
 import static network.artic.phylofunk.treefunks.TreeOptions.*;
 
 /**
@@ -36,6 +37,7 @@ public class Annotate extends TreeFunk {
             options.addOption(OUTPUT_FILE);
             options.addOption(OUTPUT_FORMAT);
             options.addOption(METADATA);
+            options.addOption(METADATA_INDEX);
             options.addOption(INDEX_COLUMN);
             options.addOption(INDEX_FIELD);
             options.addOption(FIELD_DELIMITER);
@@ -74,6 +76,11 @@ public class Annotate extends TreeFunk {
                     isVerbose);
         }
 
+        @Override
+        public Set<String> getMetadataColumnNames(CommandLine commandLine) {
+            return collectColumnNames(commandLine.getOptionValues("label-fields"), commandLine.getOptionValues("tip-attributes"));
+        }
+
     };
 
     public Annotate(String treeFileName,
@@ -96,8 +103,8 @@ public class Annotate extends TreeFunk {
         Map<Taxon, String> taxonMap = getTaxonMap(tree);
 
         if (annotationColumns != null && annotationColumns.length > 0) {
-            if (outputFormat != FormatType.NEXUS) {
-                errorStream.println("Tip annotations are only compatible with NEXUS output format");
+            if (outputFormat == FormatType.NEWICK) {
+                errorStream.println("Tip annotations are not compatible with Newick output format");
                 System.exit(1);
             }
 
@@ -135,7 +142,7 @@ public class Annotate extends TreeFunk {
      */
     private void annotateTips(RootedTree tree,
                               Map<Taxon, String> taxonMap,
-                              Map<String, CSVRecord> metadata,
+                              MetadataTable metadata,
                               String[] columnNames,
                               boolean replace,
                               boolean ignoreMissing) {
@@ -145,16 +152,17 @@ public class Annotate extends TreeFunk {
 
         for (Node tip : tree.getExternalNodes()) {
             String key = taxonMap.get(tree.getTaxon(tip));
-            CSVRecord record = metadata.get(key);
-            if (record == null) {
+            int row = metadata.getRowIndex(key);
+            if (row < 0) {
                 if (!ignoreMissing) {
                     errorStream.println("Tip index, " + key + ", not found in metadata table");
                     System.exit(1);
                 }
             } else {
                 for (String name : columnNames) {
-                    if (!record.get(name).isEmpty()) {
-                        tip.setAttribute(name, record.get(name));
+                    String value = metadata.getString(row, name);
+                    if (!value.isEmpty()) {
+                        tip.setAttribute(name, value);
                     }
                 }
             }
@@ -171,15 +179,15 @@ public class Annotate extends TreeFunk {
      */
     private void relabelTips(RootedTree tree,
                              Map<Taxon, String> taxonMap,
-                             Map<String, CSVRecord> metadata,
+                             MetadataTable metadata,
                              String[] columnNames,
                              String headerDelimiter,
                              boolean replace,
                              boolean ignoreMissing) {
         for (Node tip : tree.getExternalNodes()) {
             String key = taxonMap.get(tree.getTaxon(tip));
-            CSVRecord record = metadata.get(key);
-            if (record == null) {
+            int row = metadata.getRowIndex(key);
+            if (row < 0) {
                 if (!ignoreMissing) {
                     errorStream.println("Tip index, " + key + ", not found in metadata table");
                     System.exit(1);
@@ -197,7 +205,7 @@ public class Annotate extends TreeFunk {
                         tipLabel.append(headerDelimiter);
                         first = false;
                     }
-                    tipLabel.append(record.get(name));
+                    tipLabel.append(metadata.getString(row, name));
                 }
                 tree.renameTaxa(tree.getTaxon(tip), Taxon.getTaxon(tipLabel.toString()));
             }
@@ -0,0 +1,279 @@
+package network.artic.phylofunk.treefunks;
+
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.Tree;
+
+import java.awt.Color;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static network.artic.phylofunk.treefunks.BinaryTreeImporter.*;
+
+/**
+ * Writes trees in a binary format that can be reloaded much more quickly than parsing NEXUS or
+ * Newick (see BinaryTreeImporter for the layout). The topology, branch lengths, tip labels and
+ * all the tree, node and branch attributes are kept. Attribute values that are not numbers,
+ * booleans, strings, colours or arrays of these are stored as their string representation.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public class BinaryTreeExporter implements CompactTreeExporter {
+
+    private final DataOutputStream output;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final DataOutputStream blockOutput = new DataOutputStream(block);
+
+    /**
+     * Constructor
+     * @param output
+     * @throws IOException
+     */
+    public BinaryTreeExporter(OutputStream output) throws IOException {
+        this.output = new DataOutputStream(output);
+        this.output.write(MAGIC);
+        this.output.writeInt(VERSION);
+    }
+
+    @Override
+    public void exportTree(Tree tree) {
+        try {
+            exportCompactTree(CompactTree.fromRootedTree((RootedTree) tree));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    @Override
+    public void exportTrees(Collection<? extends Tree> trees) {
+        for (Tree tree : trees) {
+            exportTree(tree);
+        }
+    }
+
+    @Override
+    public void exportCompactTree(CompactTree tree) throws IOException {
+        int nodeCount = tree.getNodeCount();
+
+        output.writeByte(TREE_TAG);
+        output.writeInt(nodeCount);
+        output.writeInt(tree.getExternalNodeCount());
+        output.writeByte((tree.hasLengths() ? HAS_LENGTHS : 0) | (tree.conceptuallyUnrooted() ? UNROOTED : 0));
+
+        blockOutput.writeInt(tree.getAttributeMap().size());
+        for (Map.Entry<String, Object> entry : tree.getAttributeMap().entrySet()) {
+            writeString(entry.getKey());
+            writeValue(entry.getValue());
+        }
+        writeBlock();
+
+        for (String label : tree.getLabels()) {
+            writeString(label);
+        }
+        writeBlock();
+
+        ByteBuffer buffer = ByteBuffer.allocate(nodeCount * 4);
+        for (int i = 0; i < nodeCount; i++) {
+            buffer.putInt(tree.getChildCount(i));
+        }
+        writeBlock(buffer);
+
+        if (tree.hasLengths()) {
+            buffer = ByteBuffer.allocate(nodeCount * 8);
+            for (int i = 0; i < nodeCount; i++) {
+                buffer.putDouble(tree.getLength(i));
+            }
+            writeBlock(buffer);
+        }
+
+        writeAttributes(tree, false);
+        writeAttributes(tree, true);
+    }
+
+    private void writeAttributes(CompactTree tree, boolean isEdges) throws IOException {
+        int nodeCount = tree.getNodeCount();
+
+        // find the distinct lists of names and the columns
+        Map<String, Integer> columnIndices = new LinkedHashMap<>();
+        Map<List<String>, Integer> schemaIndices = new LinkedHashMap<>();
+        int[] nodeSchemas = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            List<String> names = Arrays.asList(isEdges ? tree.getEdgeAttributeNames(i) : tree.getNodeAttributeNames(i));
+            Integer schema = schemaIndices.get(names);
+            if (schema == null) {
+                schema = schemaIndices.size();
+                schemaIndices.put(names, schema);
+                for (String name : names) {
+                    if (!columnIndices.containsKey(name)) {
+                        columnIndices.put(name, columnIndices.size());
+                    }
+                }
+            }
+            nodeSchemas[i] = schema;
+        }
+
+        if (columnIndices.isEmpty()) {
+            blockOutput.writeInt(0);
+            writeBlock();
+            return;
+        }
+
+        blockOutput.writeInt(columnIndices.size());
+        for (String name : columnIndices.keySet()) {
+            writeString(name);
+        }
+        blockOutput.writeInt(schemaIndices.size());
+        for (List<String> names : schemaIndices.keySet()) {
+            blockOutput.writeInt(names.size());
+            for (String name : names) {
+                blockOutput.writeInt(columnIndices.get(name));
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            blockOutput.writeInt(nodeSchemas[i]);
+        }
+
+        List<Object> values = new ArrayList<>();
+        for (String name : columnIndices.keySet()) {
+            values.clear();
+            for (int i = 0; i < nodeCount; i++) {
+                String[] names = (isEdges ? tree.getEdgeAttributeNames(i) : tree.getNodeAttributeNames(i));
+                if (Arrays.asList(names).contains(name)) {
+                    values.add(isEdges ? tree.getEdgeAttribute(i, name) : tree.getNodeAttribute(i, name));
+                }
+            }
+            writeColumn(values);
+        }
+        writeBlock();
+    }
+
+    private void writeColumn(List<Object> values) throws IOException {
+        int type = -1;
+        for (Object value : values) {
+            int valueType = getColumnType(value);
+            if (type < 0) {
+                type = valueType;
+            } else if (type != valueType) {
+                type = MIXED;
+                break;
+            }
+        }
+
+        blockOutput.writeByte(type);
+        switch (type) {
+            case DOUBLE:
+                for (Object value : values) {
+                    blockOutput.writeDouble((Double) value);
+                }
+                break;
+            case INTEGER:
+                for (Object value : values) {
+                    blockOutput.writeInt((Integer) value);
+                }
+                break;
+            case BOOLEAN:
+                for (Object value : values) {
+                    blockOutput.writeByte((Boolean) value ? 1 : 0);
+                }
+                break;
+            case STRING:
+                // each distinct string is only written once
+                Map<String, Integer> strings = new LinkedHashMap<>();
+                for (Object value : values) {
+                    strings.putIfAbsent((String) value, strings.size());
+                }
+                blockOutput.writeInt(strings.size());
+                for (String string : strings.keySet()) {
+                    writeString(string);
+                }
+                for (Object value : values) {
+                    blockOutput.writeInt(strings.get(value));
+                }
+                break;
+            default:
+                for (Object value : values) {
+                    writeValue(value);
+                }
+        }
+    }
+
+    private static int getColumnType(Object value) {
+        if (value instanceof Double) {
+            return DOUBLE;
+        }
+        if (value instanceof Integer) {
+            return INTEGER;
+        }
+        if (value instanceof Boolean) {
+            return BOOLEAN;
+        }
+        if (value instanceof String) {
+            return STRING;
+        }
+        return MIXED;
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            blockOutput.writeByte(NULL);
+        } else if (value instanceof Double) {
+            blockOutput.writeByte(DOUBLE);
+            blockOutput.writeDouble((Double) value);
+        } else if (value instanceof Integer) {
+            blockOutput.writeByte(INTEGER);
+            blockOutput.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            blockOutput.writeByte(BOOLEAN);
+            blockOutput.writeByte((Boolean) value ? 1 : 0);
+        } else if (value instanceof Float) {
+            blockOutput.writeByte(FLOAT);
+            blockOutput.writeFloat((Float) value);
+        } else if (value instanceof Long) {
+            blockOutput.writeByte(LONG);
+            blockOutput.writeLong((Long) value);
+        } else if (value instanceof Color) {
+            blockOutput.writeByte(COLOR);
+            blockOutput.writeInt(((Color) value).getRGB());
+        } else if (value instanceof Object[]) {
+            Object[] values = (Object[]) value;
+            blockOutput.writeByte(ARRAY);
+            blockOutput.writeInt(values.length);
+            for (Object v : values) {
+                writeValue(v);
+            }
+        } else {
+            blockOutput.writeByte(STRING);
+            writeString(value.toString());
+        }
+    }
+
+    private void writeString(String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        blockOutput.writeInt(bytes.length);
+        blockOutput.write(bytes);
+    }
+
+    private void writeBlock() throws IOException {
+        blockOutput.flush();
+        output.writeInt(block.size());
+        block.writeTo(output);
+        block.reset();
+    }
+
+    private void writeBlock(ByteBuffer buffer) throws IOException {
+        output.writeInt(buffer.position());
+        output.write(buffer.array(), 0, buffer.position());
+    }
+
+    @Override
+    public void close() {
+        try {
+            output.writeByte(END_TAG);
+            output.close();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+}
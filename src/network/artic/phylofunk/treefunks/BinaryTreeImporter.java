@@ -0,0 +1,368 @@
+package network.artic.phylofunk.treefunks;
+
+import jebl.evolution.io.ImportException;
+import jebl.evolution.io.TreeImporter;
+import jebl.evolution.trees.Tree;
+
+import java.awt.Color;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Reads trees written by BinaryTreeExporter. The file starts with a magic number and version and
+ * then each tree is a set of length prefixed blocks: the tip labels, the number of children of
+ * each node (in post-order so the tree can be rebuilt with a stack), the branch lengths and then
+ * the node and branch attributes as a column per attribute name. Each block is read in one go and
+ * decoded from memory so reloading a tree is much quicker than parsing the text.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public class BinaryTreeImporter implements TreeImporter, CompactTreeImporter {
+    static final byte[] MAGIC = { (byte) 0x89, 'P', 'F', 'T', 0x0D, 0x0A, 0x1A, 0x0A };
+    static final int VERSION = 1;
+
+    static final int END_TAG = 0;
+    static final int TREE_TAG = 1;
+
+    static final int HAS_LENGTHS = 1;
+    static final int UNROOTED = 2;
+
+    // value types
+    static final int NULL = 0;
+    static final int DOUBLE = 1;
+    static final int INTEGER = 2;
+    static final int BOOLEAN = 3;
+    static final int STRING = 4;
+    static final int FLOAT = 5;
+    static final int LONG = 6;
+    static final int COLOR = 7;
+    static final int ARRAY = 8;
+    // a column with a mixture of types with each value tagged with its type
+    static final int MIXED = 9;
+
+    private final DataInputStream input;
+    private boolean isHeaderRead = false;
+    private int nextTag = -1;
+
+    /**
+     * Constructor
+     * @param input
+     */
+    public BinaryTreeImporter(InputStream input) {
+        this.input = new DataInputStream(input);
+    }
+
+    /**
+     * Checks the first bytes of a file for the magic number.
+     * @param header the first bytes of the file
+     * @param length the number of bytes in header
+     * @return true if it is a binary tree file
+     */
+    static boolean isBinaryTreeFile(byte[] header, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean hasTree() throws IOException, ImportException {
+        if (!isHeaderRead) {
+            byte[] magic = new byte[MAGIC.length];
+            try {
+                input.readFully(magic);
+            } catch (EOFException eofe) {
+                throw new ImportException.BadFormatException("Not a binary tree file");
+            }
+            if (!isBinaryTreeFile(magic, magic.length)) {
+                throw new ImportException.BadFormatException("Not a binary tree file");
+            }
+            int version = input.readInt();
+            if (version != VERSION) {
+                throw new ImportException.BadFormatException("Unsupported binary tree file version: " + version);
+            }
+            isHeaderRead = true;
+        }
+        if (nextTag < 0) {
+            nextTag = input.read();
+            if (nextTag < 0) {
+                throw new ImportException.BadFormatException("Unexpected end of binary tree file");
+            }
+        }
+        return nextTag == TREE_TAG;
+    }
+
+    @Override
+    public CompactTree importNextCompactTree() throws IOException, ImportException {
+        if (!hasTree()) {
+            return null;
+        }
+        nextTag = -1;
+        try {
+            return readTree();
+        } catch (EOFException eofe) {
+            throw new ImportException.BadFormatException("Unexpected end of binary tree file");
+        }
+    }
+
+    @Override
+    public boolean skipNextTree() throws IOException, ImportException {
+        if (!hasTree()) {
+            return false;
+        }
+        nextTag = -1;
+        try {
+            input.readInt(); // node count
+            input.readInt(); // external node count
+            int flags = input.readByte();
+            // the tree attributes, labels, child counts, lengths and node and branch attributes
+            int blockCount = ((flags & HAS_LENGTHS) != 0 ? 6 : 5);
+            for (int i = 0; i < blockCount; i++) {
+                skipBlock();
+            }
+        } catch (EOFException eofe) {
+            throw new ImportException.BadFormatException("Unexpected end of binary tree file");
+        }
+        return true;
+    }
+
+    @Override
+    public Tree importNextTree() throws IOException, ImportException {
+        CompactTree tree = importNextCompactTree();
+        return (tree != null ? tree.toRootedTree() : null);
+    }
+
+    @Override
+    public List<Tree> importTrees() throws IOException, ImportException {
+        List<Tree> trees = new ArrayList<>();
+        while (hasTree()) {
+            trees.add(importNextTree());
+        }
+        return trees;
+    }
+
+    @Override
+    public Iterator<Tree> iterator() {
+        return new Iterator<Tree>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return hasTree();
+                } catch (IOException | ImportException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public Tree next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return importNextTree();
+                } catch (IOException | ImportException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private void skipBlock() throws IOException {
+        int length = input.readInt();
+        while (length > 0) {
+            int skipped = input.skipBytes(length);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+        }
+    }
+
+    private ByteBuffer readBlock() throws IOException {
+        int length = input.readInt();
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private CompactTree readTree() throws IOException, ImportException {
+        int nodeCount = input.readInt();
+        int externalNodeCount = input.readInt();
+        int flags = input.readByte();
+
+        CompactTree tree = new CompactTree(nodeCount);
+        tree.setConceptuallyUnrooted((flags & UNROOTED) != 0);
+
+        ByteBuffer buffer = readBlock();
+        int attributeCount = buffer.getInt();
+        for (int i = 0; i < attributeCount; i++) {
+            tree.setAttribute(readString(buffer), readValue(buffer));
+        }
+
+        String[] labels = new String[externalNodeCount];
+        buffer = readBlock();
+        for (int i = 0; i < externalNodeCount; i++) {
+            labels[i] = readString(buffer);
+        }
+
+        int[] childCounts = new int[nodeCount];
+        readBlock().asIntBuffer().get(childCounts);
+
+        int[] stack = new int[64];
+        int stackSize = 0;
+        int tip = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            int node;
+            if (childCounts[i] == 0) {
+                if (tip == externalNodeCount) {
+                    throw new ImportException.BadFormatException("Bad tree structure in binary tree file");
+                }
+                try {
+                    node = tree.addExternalNode(labels[tip++]);
+                } catch (IllegalArgumentException iae) {
+                    throw new ImportException.DuplicateTaxaException(iae.getMessage());
+                }
+            } else {
+                if (childCounts[i] > stackSize) {
+                    throw new ImportException.BadFormatException("Bad tree structure in binary tree file");
+                }
+                stackSize -= childCounts[i];
+                node = tree.addInternalNode(stack, stackSize, stackSize + childCounts[i]);
+            }
+            if (stackSize == stack.length) {
+                stack = Arrays.copyOf(stack, stackSize * 2);
+            }
+            stack[stackSize++] = node;
+        }
+        if (stackSize != 1 || tip != externalNodeCount) {
+            throw new ImportException.BadFormatException("Bad tree structure in binary tree file");
+        }
+
+        if ((flags & HAS_LENGTHS) != 0) {
+            double[] lengths = new double[nodeCount];
+            readBlock().asDoubleBuffer().get(lengths);
+            tree.setLengths(lengths);
+        }
+
+        readAttributes(readBlock(), tree, nodeCount, false);
+        readAttributes(readBlock(), tree, nodeCount, true);
+
+        return tree;
+    }
+
+    private void readAttributes(ByteBuffer buffer, CompactTree tree, int nodeCount, boolean isEdges) throws ImportException {
+        int columnCount = buffer.getInt();
+        if (columnCount == 0) {
+            return;
+        }
+        String[] names = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            names[i] = readString(buffer);
+        }
+
+        int schemaCount = buffer.getInt();
+        List<String[]> schemaNames = new ArrayList<>();
+        boolean[][] schemaColumns = new boolean[schemaCount][columnCount];
+        for (int i = 0; i < schemaCount; i++) {
+            String[] schema = new String[buffer.getInt()];
+            for (int j = 0; j < schema.length; j++) {
+                int column = buffer.getInt();
+                schema[j] = names[column];
+                schemaColumns[i][column] = true;
+            }
+            schemaNames.add(schema);
+        }
+
+        int[] nodeSchemas = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodeSchemas[i] = buffer.getInt();
+        }
+
+        Map<String, Object[]> columns = new HashMap<>();
+        for (int i = 0; i < columnCount; i++) {
+            Object[] values = new Object[nodeCount];
+            int type = buffer.get();
+            String[] strings = null;
+            if (type == STRING) {
+                strings = new String[buffer.getInt()];
+                for (int j = 0; j < strings.length; j++) {
+                    strings[j] = readString(buffer);
+                }
+            }
+            for (int j = 0; j < nodeCount; j++) {
+                if (schemaColumns[nodeSchemas[j]][i]) {
+                    switch (type) {
+                        case DOUBLE:
+                            values[j] = buffer.getDouble();
+                            break;
+                        case INTEGER:
+                            values[j] = buffer.getInt();
+                            break;
+                        case BOOLEAN:
+                            values[j] = buffer.get() != 0;
+                            break;
+                        case STRING:
+                            values[j] = strings[buffer.getInt()];
+                            break;
+                        case MIXED:
+                            values[j] = readValue(buffer);
+                            break;
+                        default:
+                            throw new ImportException.BadFormatException("Unknown attribute type in binary tree file: " + type);
+                    }
+                }
+            }
+            columns.put(names[i], values);
+        }
+
+        tree.setAttributeColumns(isEdges, schemaNames, nodeSchemas, columns);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String string = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+    private static Object readValue(ByteBuffer buffer) throws ImportException {
+        int type = buffer.get();
+        switch (type) {
+            case NULL:
+                return null;
+            case DOUBLE:
+                return buffer.getDouble();
+            case INTEGER:
+                return buffer.getInt();
+            case BOOLEAN:
+                return buffer.get() != 0;
+            case STRING:
+                return readString(buffer);
+            case FLOAT:
+                return buffer.getFloat();
+            case LONG:
+                return buffer.getLong();
+            case COLOR:
+                return new Color(buffer.getInt(), true);
+            case ARRAY:
+                Object[] values = new Object[buffer.getInt()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = readValue(buffer);
+                }
+                return values;
+            default:
+                throw new ImportException.BadFormatException("Unknown attribute type in binary tree file: " + type);
+        }
+    }
+}
@@ -1,8 +1,7 @@
 package network.artic.phylofunk.treefunks;
 
-import jebl.evolution.graphs.Node;
-import jebl.evolution.trees.MutableRootedTree;
-import jebl.evolution.trees.RootedTree;
+import java.util.Collections;
+import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
@@ -56,6 +55,12 @@ public class Collapse extends TreeFunk {
                     isVerbose);
         }
 
+        @Override
+        public Set<String> getTreeAttributeNames(CommandLine commandLine) {
+            // the attributes are removed before the tree is written
+            return Collections.emptySet();
+        }
+
     };
 
     public Collapse(String treeFileName,
@@ -71,24 +76,14 @@ public class Collapse extends TreeFunk {
             System.exit(1);
         }
 
-        RootedTree tree = readTree(treeFileName);
+        CompactTree tree = readCompactTree(treeFileName);
+        // the annotations have never been written out by this command
+        tree.clearAttributes();
+        tree.setConceptuallyUnrooted(false);
 
-        MutableRootedTree outTree = new MutableRootedTree(tree);
+        CompactTree outTree = tree.collapseShortBranches(branchThreshold, false);
 
-        int count = 0;
-        for (Node node : outTree.getInternalNodes()) {
-            if (outTree.getLength(node) < branchThreshold) {
-                Node parent = outTree.getParent(node);
-                if (parent != null) {
-                    outTree.removeChild(node, parent);
-                    for (Node child : outTree.getChildren(node)) {
-                        outTree.addChild(child, parent);
-                    }
-                    count += 1;
-                }
-
-            }
-        }
+        int count = tree.getNodeCount() - outTree.getNodeCount();
 
         if (isVerbose) {
             outStream.println("Branches collapsed: " + count);
@@ -0,0 +1,1020 @@
+package network.artic.phylofunk.treefunks;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.SimpleRootedTree;
+import jebl.util.Attributable;
+
+import java.util.*;
+
+/**
+ * A rooted tree held in primitive arrays rather than as a graph of jebl node objects. Each node
+ * is an index with parent, first child and next sibling links, a branch length and (calculated
+ * when needed) a height. Tip labels are held once in a label table and the attributes of the
+ * nodes are stored in columns (one array per attribute name) with each node keeping the order its
+ * attributes were set in so they are written out the same as jebl's.
+ *
+ * The jebl Taxon for a tip is only made when asked for. Taxon.getTaxon keeps every name in a
+ * global registry which it scans in full every 10,000 new names so making millions of them
+ * takes far longer than reading the tree.
+ *
+ * The nodes are always numbered in post-order (the order the Newick is read) so the children of
+ * a node have lower indices than it, the tips below a node form a contiguous range and the root
+ * is the last node. Operations that change the topology return a new tree.
+ *
+ * There are adapters to and from jebl's RootedTree so commands can use this where the size of
+ * the tree matters.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+final class CompactTree implements Attributable {
+    static final int NONE = -1;
+
+    private int nodeCount = 0;
+    private int externalNodeCount = 0;
+
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] lastChildren;
+    private int[] nextSiblings;
+    private int[] labels;
+    private double[] lengths;
+    private double[] heights = null;
+
+    private boolean hasLengths = false;
+    private boolean conceptuallyUnrooted = false;
+
+    // the label table - a tip's label is its position in this list
+    private final List<String> labelNames;
+    private Taxon[] taxa = new Taxon[16];
+    private final Map<String, Integer> labelNodes;
+
+    private final AttributeColumns nodeAttributes = new AttributeColumns();
+    private final AttributeColumns edgeAttributes = new AttributeColumns();
+    private Map<String, Object> treeAttributes = null;
+
+    /**
+     * Constructor
+     */
+    CompactTree() {
+        this(1024);
+    }
+
+    /**
+     * Constructor
+     * @param capacity the expected number of nodes
+     */
+    CompactTree(int capacity) {
+        capacity = Math.max(capacity, 16);
+        parents = new int[capacity];
+        firstChildren = new int[capacity];
+        lastChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        labels = new int[capacity];
+        lengths = new double[capacity];
+        // a binary tree has just over half its nodes as tips
+        labelNames = new ArrayList<>(capacity / 2 + 1);
+        labelNodes = new HashMap<>(capacity);
+    }
+
+    private int newNode() {
+        if (nodeCount == parents.length) {
+            int capacity = nodeCount * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            lastChildren = Arrays.copyOf(lastChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            labels = Arrays.copyOf(labels, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        int node = nodeCount++;
+        parents[node] = NONE;
+        firstChildren[node] = NONE;
+        lastChildren[node] = NONE;
+        nextSiblings[node] = NONE;
+        labels[node] = NONE;
+        heights = null;
+        return node;
+    }
+
+    /**
+     * Adds a tip with the given label.
+     * @param label
+     * @return the node
+     * @throws IllegalArgumentException if the label is already in the tree
+     */
+    int addExternalNode(String label) {
+        return addExternalNode(label, false);
+    }
+
+    /**
+     * Adds a tip with the given label. If duplicates are allowed then looking a label up
+     * will give the first tip with it.
+     * @param label
+     * @param allowDuplicates
+     * @return the node
+     */
+    private int addExternalNode(String label, boolean allowDuplicates) {
+        if (labelNodes.putIfAbsent(label, nodeCount) != null && !allowDuplicates) {
+            throw new IllegalArgumentException("duplicate taxon: " + label);
+        }
+        int node = newNode();
+        labels[node] = labelNames.size();
+        labelNames.add(label);
+        externalNodeCount++;
+        return node;
+    }
+
+    /**
+     * Adds a tip for the taxon.
+     * @param taxon
+     * @return the node
+     * @throws IllegalArgumentException if the taxon is already in the tree
+     */
+    int addExternalNode(Taxon taxon) {
+        int node = addExternalNode(taxon.getName());
+        setTaxon(labels[node], taxon);
+        return node;
+    }
+
+    private void setTaxon(int label, Taxon taxon) {
+        if (label >= taxa.length) {
+            taxa = Arrays.copyOf(taxa, Math.max(label + 1, taxa.length * 2));
+        }
+        taxa[label] = taxon;
+    }
+
+    /**
+     * Adds an internal node which is the parent of the given nodes. The children must be nodes
+     * without a parent so this is added after all its descendents.
+     * @param children an array holding the children
+     * @param from the index of the first child in the array
+     * @param to the index after the last child
+     * @return the node
+     */
+    int addInternalNode(int[] children, int from, int to) {
+        int node = newNode();
+        int previous = NONE;
+        for (int i = from; i < to; i++) {
+            int child = children[i];
+            parents[child] = node;
+            if (previous == NONE) {
+                firstChildren[node] = child;
+            } else {
+                nextSiblings[previous] = child;
+            }
+            previous = child;
+        }
+        lastChildren[node] = previous;
+        return node;
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    int getExternalNodeCount() {
+        return externalNodeCount;
+    }
+
+    int getInternalNodeCount() {
+        return nodeCount - externalNodeCount;
+    }
+
+    int getRootNode() {
+        return nodeCount - 1;
+    }
+
+    boolean isRoot(int node) {
+        return node == nodeCount - 1;
+    }
+
+    boolean isExternal(int node) {
+        return firstChildren[node] == NONE;
+    }
+
+    int getParent(int node) {
+        return parents[node];
+    }
+
+    int getFirstChild(int node) {
+        return firstChildren[node];
+    }
+
+    int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    int getChildCount(int node) {
+        int count = 0;
+        for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param node
+     * @return the number of tips below the node (the tips are the nodes counted back from it)
+     */
+    int getExternalNodeCount(int node) {
+        int count = 0;
+        for (int i = getFirstNode(node); i <= node; i++) {
+            if (firstChildren[i] == NONE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param node
+     * @return the lowest numbered node in the subtree (the subtree is this up to node)
+     */
+    int getFirstNode(int node) {
+        while (firstChildren[node] != NONE) {
+            node = firstChildren[node];
+        }
+        return node;
+    }
+
+    /**
+     * @param node
+     * @return the label of the tip or null for an internal node
+     */
+    String getLabel(int node) {
+        return labels[node] == NONE ? null : labelNames.get(labels[node]);
+    }
+
+    /**
+     * @param node
+     * @return the taxon of the tip or null for an internal node
+     */
+    Taxon getTaxon(int node) {
+        int label = labels[node];
+        if (label == NONE) {
+            return null;
+        }
+        Taxon taxon = (label < taxa.length ? taxa[label] : null);
+        if (taxon == null) {
+            taxon = Taxon.getTaxon(labelNames.get(label));
+            setTaxon(label, taxon);
+        }
+        return taxon;
+    }
+
+    /**
+     * @param label
+     * @return the tip with the label or NONE if it isn't in the tree
+     */
+    int getNode(String label) {
+        Integer node = labelNodes.get(label);
+        return node == null ? NONE : node;
+    }
+
+    /**
+     * @return the tip labels in the order of the tips
+     */
+    List<String> getLabels() {
+        return Collections.unmodifiableList(labelNames);
+    }
+
+    boolean hasLengths() {
+        return hasLengths;
+    }
+
+    double getLength(int node) {
+        if (!hasLengths) {
+            throw new IllegalArgumentException("This tree has no branch lengths");
+        }
+        return lengths[node];
+    }
+
+    void setLength(int node, double length) {
+        lengths[node] = length;
+        hasLengths = true;
+        heights = null;
+    }
+
+    /**
+     * Sets all the branch lengths at once.
+     * @param lengths the lengths in node order
+     */
+    void setLengths(double[] lengths) {
+        System.arraycopy(lengths, 0, this.lengths, 0, nodeCount);
+        hasLengths = true;
+        heights = null;
+    }
+
+    /**
+     * Multiplies all the branch lengths by a factor.
+     * @param factor
+     */
+    void scaleLengths(double factor) {
+        for (int i = 0; i < nodeCount; i++) {
+            lengths[i] = lengths[i] * factor;
+        }
+        heights = null;
+    }
+
+    /**
+     * Gets the height of the node (the time before the most recent tip). As jebl, these are
+     * calculated from the branch lengths, ignoring any that are not positive.
+     * @param node
+     * @return the height
+     */
+    double getHeight(int node) {
+        if (!hasLengths) {
+            throw new IllegalArgumentException("This tree has no node heights");
+        }
+        if (heights == null) {
+            calculateHeights();
+        }
+        return heights[node];
+    }
+
+    private void calculateHeights() {
+        double[] distances = new double[nodeCount];
+        // parents come after their children so go backwards from the root
+        for (int i = nodeCount - 1; i >= 0; i--) {
+            double distance = (parents[i] == NONE ? 0.0 : distances[parents[i]]);
+            if (lengths[i] > 0.0) {
+                distance += lengths[i];
+            }
+            distances[i] = distance;
+        }
+        double maxHeight = 0.0;
+        for (int i = 0; i < nodeCount; i++) {
+            if (firstChildren[i] == NONE && distances[i] > maxHeight) {
+                maxHeight = distances[i];
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            distances[i] = maxHeight - distances[i];
+        }
+        heights = distances;
+    }
+
+    /**
+     * Replaces the branch lengths with the differences in the heights of the nodes (as jebl's
+     * trees give the lengths once the heights have been calculated). This only differs from the
+     * lengths where they were negative or by rounding.
+     */
+    void setLengthsFromHeights() {
+        getHeight(getRootNode());
+        for (int i = 0; i < nodeCount - 1; i++) {
+            lengths[i] = heights[parents[i]] - heights[i];
+        }
+        heights = null;
+    }
+
+    boolean conceptuallyUnrooted() {
+        return conceptuallyUnrooted;
+    }
+
+    void setConceptuallyUnrooted(boolean conceptuallyUnrooted) {
+        this.conceptuallyUnrooted = conceptuallyUnrooted;
+    }
+
+    // Node and branch attributes
+
+    Object getNodeAttribute(int node, String name) {
+        return nodeAttributes.get(node, name);
+    }
+
+    void setNodeAttribute(int node, String name, Object value) {
+        nodeAttributes.set(node, name, value);
+    }
+
+    void removeNodeAttribute(int node, String name) {
+        nodeAttributes.remove(node, name);
+    }
+
+    /**
+     * @param node
+     * @return the names of the node's attributes in the order they were set
+     */
+    String[] getNodeAttributeNames(int node) {
+        return nodeAttributes.names(node);
+    }
+
+    /**
+     * @param node
+     * @return a view of the attributes of the node
+     */
+    Attributable getNodeAttributes(int node) {
+        return nodeAttributes.view(node);
+    }
+
+    /**
+     * @param node
+     * @return a view of the attributes of the branch above the node
+     */
+    Attributable getEdgeAttributes(int node) {
+        return edgeAttributes.view(node);
+    }
+
+    /**
+     * @param node
+     * @return the names of the attributes of the branch above the node in the order they were set
+     */
+    String[] getEdgeAttributeNames(int node) {
+        return edgeAttributes.names(node);
+    }
+
+    Object getEdgeAttribute(int node, String name) {
+        return edgeAttributes.get(node, name);
+    }
+
+    /**
+     * Replaces all the node or branch attributes at once.
+     * @param isEdges set the attributes of the branches rather than the nodes
+     * @param schemaNames the distinct lists of attribute names
+     * @param nodeSchemas the index into schemaNames for each node
+     * @param columns the values of each attribute in node order
+     */
+    void setAttributeColumns(boolean isEdges, List<String[]> schemaNames, int[] nodeSchemas, Map<String, Object[]> columns) {
+        (isEdges ? edgeAttributes : nodeAttributes).load(schemaNames, nodeSchemas, columns);
+    }
+
+    /**
+     * Removes the attributes of all the nodes, branches and the tree.
+     */
+    void clearAttributes() {
+        nodeAttributes.clear();
+        edgeAttributes.clear();
+        treeAttributes = null;
+    }
+
+    // Tree attributes
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (treeAttributes == null) {
+            treeAttributes = new LinkedHashMap<>();
+        }
+        treeAttributes.put(name, value);
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return treeAttributes == null ? null : treeAttributes.get(name);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        if (treeAttributes != null) {
+            treeAttributes.remove(name);
+        }
+    }
+
+    @Override
+    public Set<String> getAttributeNames() {
+        return treeAttributes == null ? Collections.<String>emptySet() : treeAttributes.keySet();
+    }
+
+    @Override
+    public Map<String, Object> getAttributeMap() {
+        return treeAttributes == null ? Collections.<String, Object>emptyMap() : Collections.unmodifiableMap(treeAttributes);
+    }
+
+    // Operations
+
+    /**
+     * Collapses the internal branches that are shorter than the threshold, joining the children
+     * of the node below to the node above. The result is the same as removing the nodes from a
+     * jebl MutableRootedTree one at a time in post-order: the children that are kept come first,
+     * in their original order, followed by the children of collapsed nodes.
+     * @param threshold
+     * @param isInclusive also collapse branches equal to the threshold
+     * @return the new tree
+     */
+    CompactTree collapseShortBranches(double threshold, boolean isInclusive) {
+        int root = getRootNode();
+        boolean[] collapsed = new boolean[nodeCount];
+        for (int i = 0; i < root; i++) {
+            if (firstChildren[i] != NONE) {
+                double length = getLength(i);
+                collapsed[i] = (isInclusive ? length <= threshold : length < threshold);
+            }
+        }
+
+        // build the new child lists as linked lists so collapsed lists can be appended in one go
+        int[] heads = new int[nodeCount];
+        int[] tails = new int[nodeCount];
+        int[] nexts = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            heads[i] = NONE;
+            tails[i] = NONE;
+            if (firstChildren[i] == NONE) {
+                continue;
+            }
+            for (int child = firstChildren[i]; child != NONE; child = nextSiblings[child]) {
+                if (!collapsed[child]) {
+                    append(i, child, child, heads, tails, nexts);
+                }
+            }
+            for (int child = firstChildren[i]; child != NONE; child = nextSiblings[child]) {
+                if (collapsed[child] && heads[child] != NONE) {
+                    append(i, heads[child], tails[child], heads, tails, nexts);
+                }
+            }
+        }
+
+        return copy(root, heads, nexts);
+    }
+
+    private static void append(int node, int head, int tail, int[] heads, int[] tails, int[] nexts) {
+        if (heads[node] == NONE) {
+            heads[node] = head;
+        } else {
+            nexts[tails[node]] = head;
+        }
+        tails[node] = tail;
+        nexts[tail] = NONE;
+    }
+
+    /**
+     * Makes a new tree with the nodes below root with the given child lists (numbering the nodes
+     * in post-order). The lengths, attributes and tree attributes are copied.
+     */
+    private CompactTree copy(int root, int[] heads, int[] nexts) {
+        CompactTree tree = new CompactTree(nodeCount);
+        tree.hasLengths = hasLengths;
+        tree.conceptuallyUnrooted = conceptuallyUnrooted;
+        if (treeAttributes != null) {
+            tree.treeAttributes = new LinkedHashMap<>(treeAttributes);
+        }
+
+        int[] stack = new int[16];
+        int[] positions = new int[16];
+        int[] children = new int[nodeCount];
+        int childCount = 0;
+        int[] childStarts = new int[16];
+
+        int depth = 0;
+        stack[0] = root;
+        positions[0] = heads[root];
+        childStarts[0] = 0;
+        while (depth >= 0) {
+            int node = stack[depth];
+            int next = positions[depth];
+            if (next != NONE && heads[node] != NONE) {
+                positions[depth] = nexts[next];
+                if (heads[next] == NONE) {
+                    // a tip
+                    int newNode = copyTip(next, tree);
+                    copyNode(next, tree, newNode);
+                    children[childCount++] = newNode;
+                } else {
+                    depth++;
+                    if (depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                        positions = Arrays.copyOf(positions, depth * 2);
+                        childStarts = Arrays.copyOf(childStarts, depth * 2);
+                    }
+                    stack[depth] = next;
+                    positions[depth] = heads[next];
+                    childStarts[depth] = childCount;
+                }
+            } else {
+                int newNode;
+                if (heads[node] == NONE) {
+                    newNode = copyTip(node, tree);
+                } else {
+                    newNode = tree.addInternalNode(children, childStarts[depth], childCount);
+                    childCount = childStarts[depth];
+                }
+                copyNode(node, tree, newNode);
+                depth--;
+                if (depth >= 0) {
+                    children[childCount++] = newNode;
+                }
+            }
+        }
+        return tree;
+    }
+
+    private int copyTip(int node, CompactTree tree) {
+        int newNode = tree.addExternalNode(getLabel(node));
+        if (labels[node] < taxa.length && taxa[labels[node]] != null) {
+            tree.setTaxon(tree.labels[newNode], taxa[labels[node]]);
+        }
+        return newNode;
+    }
+
+    private void copyNode(int node, CompactTree tree, int newNode) {
+        tree.lengths[newNode] = lengths[node];
+        nodeAttributes.copyTo(node, tree.nodeAttributes, newNode);
+        edgeAttributes.copyTo(node, tree.edgeAttributes, newNode);
+    }
+
+    /**
+     * Makes the subtree connecting the given tips, as jebl's RootedSubtree: nodes left with a
+     * single child are removed, the node heights are kept and the branch lengths are calculated
+     * from them. Node attributes are copied but not those of the branches or the tree.
+     * @param includedLabels the labels of the tips to keep
+     * @return the new tree
+     */
+    CompactTree getSubtree(Set<String> includedLabels) {
+        CompactTree tree = new CompactTree(includedLabels.size() * 2);
+
+        double[] newHeights = new double[nodeCount];
+        int[] newNodes = new int[nodeCount];
+        int[] children = new int[nodeCount];
+
+        for (int i = 0; i < nodeCount; i++) {
+            int newNode = NONE;
+            if (firstChildren[i] == NONE) {
+                if (includedLabels.contains(getLabel(i))) {
+                    newNode = copyTip(i, tree);
+                }
+            } else {
+                int childCount = 0;
+                for (int child = firstChildren[i]; child != NONE; child = nextSiblings[child]) {
+                    if (newNodes[child] != NONE) {
+                        children[childCount++] = newNodes[child];
+                    }
+                }
+                if (childCount == 1) {
+                    // pass the only child up
+                    newNodes[i] = children[0];
+                    continue;
+                }
+                if (childCount > 1) {
+                    newNode = tree.addInternalNode(children, 0, childCount);
+                }
+            }
+            if (newNode != NONE) {
+                nodeAttributes.copyTo(i, tree.nodeAttributes, newNode);
+                newHeights[newNode] = getHeight(i);
+            }
+            newNodes[i] = newNode;
+        }
+
+        for (int i = 0; i < tree.nodeCount; i++) {
+            int parent = tree.parents[i];
+            double parentHeight = (parent == NONE ? newHeights[i] : newHeights[parent]);
+            tree.lengths[i] = (newHeights[i] >= 0.0 ? parentHeight - newHeights[i] : 1.0);
+        }
+        tree.hasLengths = true;
+
+        return tree;
+    }
+
+    // Statistics (as the equivalent functions in jebl's RootedTreeUtils and Utils)
+
+    boolean isBinary() {
+        for (int i = 0; i < nodeCount; i++) {
+            if (firstChildren[i] != NONE && getChildCount(i) > 2) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isUltrametric(double tolerance) {
+        for (int i = 0; i < nodeCount; i++) {
+            if (firstChildren[i] == NONE && Math.abs(getHeight(i)) > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    double getMaxTipHeight(int node) {
+        double max = -Double.MAX_VALUE;
+        for (int i = getFirstNode(node); i <= node; i++) {
+            if (firstChildren[i] == NONE && getHeight(i) > max) {
+                max = getHeight(i);
+            }
+        }
+        return max;
+    }
+
+    double getMinTipHeight(int node) {
+        double min = Double.MAX_VALUE;
+        for (int i = getFirstNode(node); i <= node; i++) {
+            if (firstChildren[i] == NONE && getHeight(i) < min) {
+                min = getHeight(i);
+            }
+        }
+        return min;
+    }
+
+    /**
+     * @param node
+     * @return the mean distance from the node to the tips below it
+     */
+    double getAverageTipDistance(int node) {
+        if (firstChildren[node] == NONE) {
+            return 0.0;
+        }
+        double height = getHeight(node);
+        double sum = 0.0;
+        int count = 0;
+        for (int i = getFirstNode(node); i <= node; i++) {
+            if (firstChildren[i] == NONE) {
+                sum += height - getHeight(i);
+                count++;
+            }
+        }
+        return sum / count;
+    }
+
+    /**
+     * @return the largest number of nodes from the root to a tip (not counting the tip)
+     */
+    int getMaxLevels() {
+        int[] levels = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            if (firstChildren[i] != NONE) {
+                int max = 0;
+                for (int child = firstChildren[i]; child != NONE; child = nextSiblings[child]) {
+                    max = Math.max(max, levels[child]);
+                }
+                levels[i] = max + 1;
+            }
+        }
+        return levels[getRootNode()];
+    }
+
+    /**
+     * @return the sum of the branch lengths (summed internal branches first as jebl)
+     */
+    double getTotalLength() {
+        int root = getRootNode();
+        double length = 0.0;
+        for (int i = 0; i < root; i++) {
+            if (firstChildren[i] != NONE) {
+                length += getLength(i);
+            }
+        }
+        for (int i = 0; i < root; i++) {
+            if (firstChildren[i] == NONE) {
+                length += getLength(i);
+            }
+        }
+        return length;
+    }
+
+    // Adapters
+
+    /**
+     * Makes a compact copy of a jebl tree.
+     * @param tree
+     * @return the new tree
+     */
+    static CompactTree fromRootedTree(RootedTree tree) {
+        CompactTree compactTree = new CompactTree(tree.getNodes().size());
+        compactTree.hasLengths = tree.hasLengths();
+        compactTree.conceptuallyUnrooted = tree.conceptuallyUnrooted();
+        for (Map.Entry<String, Object> entry : tree.getAttributeMap().entrySet()) {
+            compactTree.setAttribute(entry.getKey(), entry.getValue());
+        }
+
+        // an explicit stack of nodes and the position in their children
+        List<Node> stack = new ArrayList<>();
+        List<Iterator<Node>> iterators = new ArrayList<>();
+        int[] children = new int[tree.getNodes().size()];
+        int childCount = 0;
+        int[] childStarts = new int[16];
+
+        stack.add(tree.getRootNode());
+        iterators.add(tree.getChildren(tree.getRootNode()).iterator());
+        while (!stack.isEmpty()) {
+            int depth = stack.size() - 1;
+            Iterator<Node> iterator = iterators.get(depth);
+            if (iterator.hasNext()) {
+                Node child = iterator.next();
+                if (depth + 1 == childStarts.length) {
+                    childStarts = Arrays.copyOf(childStarts, childStarts.length * 2);
+                }
+                childStarts[depth + 1] = childCount;
+                stack.add(child);
+                iterators.add(tree.getChildren(child).iterator());
+            } else {
+                Node node = stack.remove(depth);
+                iterators.remove(depth);
+                int newNode;
+                if (tree.isExternal(node)) {
+                    // jebl trees can end up with tips with the same name (e.g., when relabelled
+                    // by annotate) and these are still written
+                    Taxon taxon = tree.getTaxon(node);
+                    newNode = compactTree.addExternalNode(taxon.getName(), true);
+                    compactTree.setTaxon(compactTree.labels[newNode], taxon);
+                } else {
+                    newNode = compactTree.addInternalNode(children, childStarts[depth], childCount);
+                    childCount = childStarts[depth];
+                }
+                if (compactTree.hasLengths) {
+                    compactTree.lengths[newNode] = tree.getLength(node);
+                }
+                for (Map.Entry<String, Object> entry : node.getAttributeMap().entrySet()) {
+                    compactTree.nodeAttributes.set(newNode, entry.getKey(), entry.getValue());
+                }
+                if (tree instanceof SimpleRootedTree && !tree.isRoot(node)) {
+                    for (Map.Entry<String, Object> entry : ((SimpleRootedTree) tree).getParentEdge(node).getAttributeMap().entrySet()) {
+                        compactTree.edgeAttributes.set(newNode, entry.getKey(), entry.getValue());
+                    }
+                }
+                children[childCount++] = newNode;
+            }
+        }
+        return compactTree;
+    }
+
+    /**
+     * Makes a jebl tree with the same topology, branch lengths and attributes.
+     * @return the new tree
+     */
+    SimpleRootedTree toRootedTree() {
+        SimpleRootedTree tree = new SimpleRootedTree();
+        Node[] nodes = new Node[nodeCount];
+        List<Node> children = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            if (firstChildren[i] == NONE) {
+                nodes[i] = tree.createExternalNode(getTaxon(i));
+            } else {
+                children.clear();
+                for (int child = firstChildren[i]; child != NONE; child = nextSiblings[child]) {
+                    children.add(nodes[child]);
+                }
+                nodes[i] = tree.createInternalNode(children);
+            }
+            if (hasLengths) {
+                tree.setLength(nodes[i], lengths[i]);
+            }
+            for (String name : nodeAttributes.names(i)) {
+                nodes[i].setAttribute(name, nodeAttributes.get(i, name));
+            }
+        }
+        for (int i = 0; i < nodeCount - 1; i++) {
+            for (String name : edgeAttributes.names(i)) {
+                tree.getParentEdge(nodes[i]).setAttribute(name, edgeAttributes.get(i, name));
+            }
+        }
+        if (treeAttributes != null) {
+            for (Map.Entry<String, Object> entry : treeAttributes.entrySet()) {
+                tree.setAttribute(entry.getKey(), entry.getValue());
+            }
+        }
+        tree.setConceptuallyUnrooted(conceptuallyUnrooted);
+        return tree;
+    }
+
+    /**
+     * Attributes for a set of nodes. The values are held in an array per attribute name and each
+     * node has a 'schema' - the list of names it has, in the order they were set - which is
+     * shared between all the nodes with the same names (in a tree typically a handful).
+     */
+    private static final class AttributeColumns {
+        private static final String[] NO_NAMES = new String[0];
+
+        private int[] schemas = new int[0];
+        private final List<String[]> schemaNames = new ArrayList<>();
+        private final List<Map<String, Integer>> schemaAdditions = new ArrayList<>();
+        private final Map<List<String>, Integer> schemaIndex = new HashMap<>();
+        private final Map<String, Object[]> columns = new HashMap<>();
+
+        AttributeColumns() {
+            getSchema(NO_NAMES);
+        }
+
+        private int getSchema(String[] names) {
+            List<String> key = Arrays.asList(names);
+            Integer schema = schemaIndex.get(key);
+            if (schema == null) {
+                schema = schemaNames.size();
+                schemaNames.add(names);
+                schemaAdditions.add(new HashMap<>());
+                schemaIndex.put(key, schema);
+            }
+            return schema;
+        }
+
+        private int getSchema(int node) {
+            return node < schemas.length ? schemas[node] : 0;
+        }
+
+        private void setSchema(int node, int schema) {
+            if (node >= schemas.length) {
+                if (schema == 0) {
+                    return;
+                }
+                schemas = Arrays.copyOf(schemas, Math.max(node + 1, schemas.length * 2));
+            }
+            schemas[node] = schema;
+        }
+
+        String[] names(int node) {
+            return schemaNames.get(getSchema(node));
+        }
+
+        Object get(int node, String name) {
+            Object[] column = columns.get(name);
+            if (column == null || node >= column.length) {
+                return null;
+            }
+            return column[node];
+        }
+
+        void set(int node, String name, Object value) {
+            int schema = getSchema(node);
+            boolean hasName = false;
+            for (String n : schemaNames.get(schema)) {
+                if (n.equals(name)) {
+                    hasName = true;
+                    break;
+                }
+            }
+            if (!hasName) {
+                Integer next = schemaAdditions.get(schema).get(name);
+                if (next == null) {
+                    String[] names = schemaNames.get(schema);
+                    String[] newNames = Arrays.copyOf(names, names.length + 1);
+                    newNames[names.length] = name;
+                    next = getSchema(newNames);
+                    schemaAdditions.get(schema).put(name, next);
+                }
+                setSchema(node, next);
+            }
+
+            Object[] column = columns.get(name);
+            if (column == null || node >= column.length) {
+                int length = Math.max(node + 1, Math.max(schemas.length, column == null ? 0 : column.length * 2));
+                column = (column == null ? new Object[length] : Arrays.copyOf(column, length));
+                columns.put(name, column);
+            }
+            column[node] = value;
+        }
+
+        void remove(int node, String name) {
+            String[] names = names(node);
+            List<String> newNames = new ArrayList<>(Arrays.asList(names));
+            if (newNames.remove(name)) {
+                setSchema(node, getSchema(newNames.toArray(new String[0])));
+                columns.get(name)[node] = null;
+            }
+        }
+
+        void clear() {
+            schemas = new int[0];
+            columns.clear();
+        }
+
+        void load(List<String[]> names, int[] nodeSchemas, Map<String, Object[]> columns) {
+            int[] schemaMap = new int[names.size()];
+            for (int i = 0; i < schemaMap.length; i++) {
+                schemaMap[i] = getSchema(names.get(i));
+            }
+            schemas = new int[nodeSchemas.length];
+            for (int i = 0; i < nodeSchemas.length; i++) {
+                schemas[i] = schemaMap[nodeSchemas[i]];
+            }
+            this.columns.clear();
+            this.columns.putAll(columns);
+        }
+
+        void copyTo(int node, AttributeColumns destination, int destinationNode) {
+            for (String name : names(node)) {
+                destination.set(destinationNode, name, get(node, name));
+            }
+        }
+
+        Attributable view(final int node) {
+            return new Attributable() {
+                @Override
+                public void setAttribute(String name, Object value) {
+                    set(node, name, value);
+                }
+
+                @Override
+                public Object getAttribute(String name) {
+                    return get(node, name);
+                }
+
+                @Override
+                public void removeAttribute(String name) {
+                    remove(node, name);
+                }
+
+                @Override
+                public Set<String> getAttributeNames() {
+                    return new LinkedHashSet<>(Arrays.asList(names(node)));
+                }
+
+                @Override
+                public Map<String, Object> getAttributeMap() {
+                    Map<String, Object> map = new LinkedHashMap<>();
+                    for (String name : names(node)) {
+                        map.put(name, get(node, name));
+                    }
+                    return map;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package network.artic.phylofunk.treefunks;
+
+import jebl.evolution.io.TreeExporter;
+
+import java.io.IOException;
+
+/**
+ * A tree exporter that can write CompactTrees directly without building jebl's node objects.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+interface CompactTreeExporter extends TreeExporter {
+
+    /**
+     * Writes a CompactTree.
+     * @param tree
+     */
+    void exportCompactTree(CompactTree tree) throws IOException;
+}
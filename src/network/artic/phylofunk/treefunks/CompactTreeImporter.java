@@ -0,0 +1,27 @@
+package network.artic.phylofunk.treefunks;
+
+import jebl.evolution.io.ImportException;
+
+import java.io.IOException;
+
+/**
+ * A tree importer that can read trees directly into CompactTrees without building jebl's node
+ * objects, or skip over trees without reading them at all.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+interface CompactTreeImporter {
+
+    /**
+     * Reads the next tree as a CompactTree.
+     * @return the tree or null if there are no more trees
+     */
+    CompactTree importNextCompactTree() throws IOException, ImportException;
+
+    /**
+     * Moves past the next tree without parsing it.
+     * @return false if there are no more trees
+     */
+    boolean skipNextTree() throws IOException, ImportException;
+}
@@ -1,12 +1,13 @@
 package network.artic.phylofunk.treefunks;
 
-import jebl.evolution.trees.RootedTree;
 import jebl.evolution.trees.SortedRootedTree;
 import network.artic.phylofunk.funks.FunkFactory;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.OptionGroup;
 import org.apache.commons.cli.Options;
 
+import java.util.Set;
+
 import static network.artic.phylofunk.treefunks.TreeOptions.*;
 
 
@@ -30,6 +31,7 @@ public class Convert extends TreeFunk {
             options.addOption(INPUT);
             options.addOption(OUTPUT_FILE);
             options.addOption(OUTPUT_FORMAT);
+            options.addOption(PRECISION);
         }
 
         @Override
@@ -46,32 +48,44 @@ public class Convert extends TreeFunk {
                 }
             }
 
+            int precision = Integer.parseInt(commandLine.getOptionValue("precision", Integer.toString(TreeWriter.DEFAULT_LENGTH_PRECISION)));
+            if (precision < 0 || precision > 17) {
+                errorStream.println("Precision should be between 0 and 17 significant digits\n");
+                System.exit(1);
+                return;
+            }
+
             new Convert(
                     commandLine.getOptionValue("input"),
                     commandLine.getOptionValue("output"),
                     format,
+                    precision,
                     isVerbose);
         }
+
+        @Override
+        public Set<String> getTreeAttributeNames(CommandLine commandLine) {
+            return getOutputTreeAttributeNames(commandLine);
+        }
     };
 
 
     public Convert(String treeFileName,
                    String outputPath,
                    FormatType outputFormat,
+                   int lengthPrecision,
                    boolean isVerbose) {
 
         super(isVerbose);
 
-        RootedTree tree = readTree(treeFileName);
-
-        RootedTree outTree = tree;
+        CompactTree outTree = readCompactTree(treeFileName);
 
         if (isVerbose) {
             outStream.println("Writing tree file, " + outputPath + ", in " + outputFormat.name().toLowerCase() + " format");
             outStream.println();
         }
 
-        writeTreeFile(outTree, outputPath, outputFormat);
+        writeTreeFile(outTree, outputPath, outputFormat, lengthPrecision);
     }
 
 }
@@ -1,9 +1,6 @@
 package network.artic.phylofunk.treefunks;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.*;
 
 import jebl.evolution.graphs.Node;
@@ -14,6 +11,7 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 
 import network.artic.phylofunk.funks.FunkFactory;
+import network.artic.phylofunk.funks.MetadataWriter;
 import static network.artic.phylofunk.treefunks.TreeOptions.*;
 
 /**
@@ -59,6 +57,12 @@ public class Extract extends TreeFunk {
                     isVerbose);
         }
 
+        @Override
+        public Set<String> getTreeAttributeNames(CommandLine commandLine) {
+            String[] attributeNames = commandLine.getOptionValues("tip-attributes");
+            return (attributeNames != null ? new HashSet<>(Arrays.asList(attributeNames)) : null);
+        }
+
     };
 
     public Extract(String treeFileName,
@@ -96,29 +100,23 @@ public class Extract extends TreeFunk {
                 }
             }
 
-            PrintWriter writer = null;
-            try {
-                writer = new PrintWriter(Files.newBufferedWriter(Paths.get(outputFileName)));
-
-                writer.print(indexColumn + ",");
-                writer.println(String.join(",", attributeNames));
+            try (MetadataWriter writer = MetadataWriter.open(outputFileName, false)) {
+                writer.writeValue(indexColumn);
+                for (String attributeName : attributeNames) {
+                    writer.writeValue(attributeName);
+                }
+                writer.endRow();
 
                 for (Node tip : tree.getExternalNodes()) {
                     String name = taxonMap.get(tree.getTaxon(tip));
                     if (targetTaxaList.isEmpty() || targetTaxaList.contains(name)) {
-                        writer.print(name);
+                        writer.writeValue(name);
                         for (String attributeName : attributeNames) {
-                            writer.print(",");
-                            Object value = tip.getAttribute(attributeName);
-                            if (value != null) {
-                                writer.print(value);
-                            }
+                            writer.writeValue(tip.getAttribute(attributeName));
                         }
-                        writer.println();
+                        writer.endRow();
                     }
                 }
-
-                writer.close();
             } catch (IOException ioe) {
                 errorStream.println("Error opening output file: " + ioe.getMessage());
                 System.exit(1);
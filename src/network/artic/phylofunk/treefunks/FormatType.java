@@ -2,5 +2,6 @@ package network.artic.phylofunk.treefunks;
 
 public enum FormatType {
     NEXUS,
-    NEWICK
+    NEWICK,
+    BINARY
 }
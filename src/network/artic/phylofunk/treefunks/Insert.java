@@ -37,6 +37,7 @@ public class Insert extends TreeFunk {
         public void setOptions(Options options) {
             options.addOption(INPUT);
             options.addOption(METADATA);
+            options.addOption(METADATA_INDEX);
             options.addOption(OUTPUT_FILE);
             options.addOption(OUTPUT_FORMAT);
             options.addOption(INDEX_COLUMN);
@@ -74,6 +75,11 @@ public class Insert extends TreeFunk {
                     commandLine.hasOption("ignore-missing"),
                     isVerbose);
         }
+
+        @Override
+        public Set<String> getMetadataColumnNames(CommandLine commandLine) {
+            return collectColumnNames(commandLine.getOptionValues("destination-column"));
+        }
     };
 
     public Insert(String treeFileName,
@@ -100,9 +106,15 @@ public class Insert extends TreeFunk {
 
         int insertionCount = 0;
 
-        for (String key : metadata.keySet()) {
+        int destinationIndex = metadata.getColumnIndex(destinationColumn);
+        if (destinationIndex < 0) {
+            errorStream.println("Destination column, " + destinationColumn + ", not found in metadata table");
+            System.exit(1);
+        }
 
-            String destination = metadata.get(key).get(destinationColumn);
+        for (int row = 0; row < metadata.getRowCount(); row++) {
+            String key = metadata.getKey(row);
+            String destination = metadata.getString(row, destinationIndex);
             if (!destination.isEmpty()) {
                 Node tip = tipMap.get(destination);
 
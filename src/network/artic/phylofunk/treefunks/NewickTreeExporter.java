@@ -0,0 +1,62 @@
+package network.artic.phylofunk.treefunks;
+
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.Tree;
+import jebl.evolution.trees.Utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+
+/**
+ * Writes trees in Newick format, one per line. The output is the same as jebl's NewickExporter
+ * (apart from the precision of branch lengths if this is changed).
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public class NewickTreeExporter implements CompactTreeExporter {
+
+    private final TreeWriter writer;
+
+    /**
+     * Constructor
+     * @param channel
+     * @param lengthPrecision the significant digits for branch lengths or 0 to write them in full
+     */
+    public NewickTreeExporter(WritableByteChannel channel, int lengthPrecision) {
+        writer = new TreeWriter(channel, lengthPrecision);
+    }
+
+    @Override
+    public void exportTree(Tree tree) {
+        try {
+            exportCompactTree(CompactTree.fromRootedTree(tree instanceof RootedTree ? (RootedTree) tree : Utils.rootTheTree(tree)));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    @Override
+    public void exportTrees(Collection<? extends Tree> trees) {
+        for (Tree tree : trees) {
+            exportTree(tree);
+        }
+    }
+
+    @Override
+    public void exportCompactTree(CompactTree tree) throws IOException {
+        writer.writeTree(tree, false);
+        writer.writeLine(";");
+    }
+
+    @Override
+    public void close() {
+        try {
+            writer.close();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+}
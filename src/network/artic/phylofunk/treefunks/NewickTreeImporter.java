@@ -0,0 +1,131 @@
+package network.artic.phylofunk.treefunks;
+
+import jebl.evolution.io.ImportException;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.Tree;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A streaming Newick tree importer that reads bytes through a TreeTokenizer instead of going
+ * through a Reader. A drop in replacement for jebl's NewickImporter producing the same trees.
+ * Meta comments ('[&...]') are also read as node attributes.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public class NewickTreeImporter implements SplittableTreeImporter, CompactTreeImporter {
+
+    private final TreeParser parser;
+    private final TreeTokenizer tokenizer;
+
+    private Set<String> attributeNames = null;
+
+    private final ThreadLocal<TreeParser> bytesParser = ThreadLocal.withInitial(() -> {
+        TreeParser parser = new TreeParser(new TreeTokenizer(new byte[0], 0, 0), false);
+        parser.setAttributeNames(attributeNames);
+        return parser;
+    });
+
+    /**
+     * Constructor
+     * @param input
+     */
+    public NewickTreeImporter(InputStream input) {
+        this(input, null);
+    }
+
+    /**
+     * Constructor
+     * @param input
+     * @param attributeNames the node and branch attributes to read or null to read them all
+     */
+    public NewickTreeImporter(InputStream input, Set<String> attributeNames) {
+        this.tokenizer = new TreeTokenizer(input);
+        this.parser = new TreeParser(tokenizer, false);
+        this.attributeNames = attributeNames;
+        this.parser.setAttributeNames(attributeNames);
+    }
+
+    @Override
+    public boolean hasTree() throws IOException, ImportException {
+        return tokenizer.skipUntil('(');
+    }
+
+    @Override
+    public Tree importNextTree() throws IOException, ImportException {
+        if (!tokenizer.skipUntil('(')) {
+            throw new ImportException("No tree found");
+        }
+        return parser.readTree();
+    }
+
+    @Override
+    public CompactTree importNextCompactTree() throws IOException, ImportException {
+        if (!tokenizer.skipUntil('(')) {
+            return null;
+        }
+        return parser.readCompactTree();
+    }
+
+    @Override
+    public byte[] readNextTreeBytes() throws IOException {
+        if (!tokenizer.skipUntil('(')) {
+            return null;
+        }
+        return tokenizer.readStatement(null);
+    }
+
+    @Override
+    public boolean skipNextTree() throws IOException {
+        return tokenizer.skipUntil('(') && tokenizer.skipStatement();
+    }
+
+    @Override
+    public RootedTree parseTreeBytes(byte[] bytes) throws IOException, ImportException {
+        TreeParser parser = bytesParser.get();
+        parser.getTokenizer().setInput(bytes, 0, bytes.length);
+        return parser.readTree();
+    }
+
+    @Override
+    public List<Tree> importTrees() throws IOException, ImportException {
+        List<Tree> trees = new ArrayList<>();
+        while (hasTree()) {
+            trees.add(importNextTree());
+        }
+        return trees;
+    }
+
+    @Override
+    public Iterator<Tree> iterator() {
+        return new Iterator<Tree>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return hasTree();
+                } catch (IOException | ImportException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public Tree next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return importNextTree();
+                } catch (IOException | ImportException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+}
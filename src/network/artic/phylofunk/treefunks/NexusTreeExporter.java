@@ -0,0 +1,106 @@
+package network.artic.phylofunk.treefunks;
+
+import jebl.evolution.io.NexusImporter;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.Tree;
+import jebl.evolution.trees.Utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes trees in NEXUS format with their attributes as comments. The output is the same as
+ * jebl's NexusExporter (apart from the precision of branch lengths if this is changed).
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public class NexusTreeExporter implements CompactTreeExporter {
+    // tree attributes which are written as part of the tree command rather than as comments
+    private static final List<String> EXCLUDED_TREE_ATTRIBUTES = Arrays.asList("name", "R", "U");
+
+    private final TreeWriter writer;
+    private boolean isTreesBlockOpen = false;
+
+    /**
+     * Constructor
+     * @param channel
+     * @param lengthPrecision the significant digits for branch lengths or 0 to write them in full
+     * @throws IOException
+     */
+    public NexusTreeExporter(WritableByteChannel channel, int lengthPrecision) throws IOException {
+        writer = new TreeWriter(channel, lengthPrecision);
+        writer.writeLine("#NEXUS");
+    }
+
+    @Override
+    public void exportTree(Tree tree) {
+        try {
+            CompactTree compactTree;
+            if (tree instanceof RootedTree) {
+                compactTree = CompactTree.fromRootedTree((RootedTree) tree);
+            } else {
+                compactTree = CompactTree.fromRootedTree(Utils.rootTheTree(tree));
+                compactTree.setConceptuallyUnrooted(true);
+            }
+            exportCompactTree(compactTree);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    @Override
+    public void exportTrees(Collection<? extends Tree> trees) {
+        for (Tree tree : trees) {
+            exportTree(tree);
+        }
+    }
+
+    @Override
+    public void exportCompactTree(CompactTree tree) throws IOException {
+        if (!isTreesBlockOpen) {
+            writer.writeLine("begin trees;");
+            isTreesBlockOpen = true;
+        }
+
+        Object name = tree.getAttribute("name");
+        writer.write("\ttree ");
+        // jebl's NexusExporter calls every unnamed tree tree_1
+        writer.write(name != null ? NexusImporter.makeIntoAllowableIdentifier(name.toString()) : "tree_1");
+        writer.write(" = ");
+        writer.write(tree.conceptuallyUnrooted() ? "[&U] " : "[&R] ");
+
+        boolean isFirst = true;
+        for (Map.Entry<String, Object> entry : tree.getAttributeMap().entrySet()) {
+            String key = entry.getKey();
+            if (!EXCLUDED_TREE_ATTRIBUTES.contains(key) && !key.startsWith("&") && entry.getValue() != null) {
+                writer.write(isFirst ? "[&" : ",");
+                isFirst = false;
+                writer.writeAttribute(key, entry.getValue());
+            }
+        }
+        if (!isFirst) {
+            writer.write(']');
+        }
+
+        writer.writeTree(tree, true);
+        writer.writeLine(";");
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (isTreesBlockOpen) {
+                writer.writeLine("end;");
+            }
+            writer.close();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+}
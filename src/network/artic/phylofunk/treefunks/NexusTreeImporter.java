@@ -0,0 +1,483 @@
+package network.artic.phylofunk.treefunks;
+
+import jebl.evolution.io.ImportException;
+import jebl.evolution.io.NexusExporter;
+import jebl.evolution.io.NexusImporter;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.SimpleRootedTree;
+import jebl.evolution.trees.Tree;
+import jebl.util.Attributable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A streaming NEXUS tree importer that reads bytes through a TreeTokenizer instead of going
+ * through a Reader. The taxa block and translate table are read once and each tree's tip tokens
+ * are then resolved directly against them (see TreeParser.setTranslation). Only the TAXA and TREES
+ * blocks are read - all others are skipped. A drop in replacement for jebl's NexusImporter for
+ * reading trees, producing the same trees.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+public class NexusTreeImporter implements SplittableTreeImporter, CompactTreeImporter {
+    private static final boolean[] NO_DELIMITERS = TreeTokenizer.delimiters("");
+    private static final boolean[] COMMAND_DELIMITERS = TreeTokenizer.delimiters(";");
+    private static final boolean[] NAME_DELIMITERS = TreeTokenizer.delimiters("=;");
+    private static final boolean[] TRANSLATE_DELIMITERS = TreeTokenizer.delimiters(",;");
+
+    private final TreeTokenizer tokenizer;
+    private final TreeParser parser;
+
+    private boolean isReadingTreesBlock = false;
+    private boolean isFinished = false;
+    private List<Taxon> taxonList = null;
+    private String lastToken = null;
+
+    private Map<String, Taxon> translationMap = null;
+
+    private SimpleRootedTree nextTree = null;
+
+    private Set<String> attributeNames = null;
+
+    private final ThreadLocal<TreeParser> bytesParser = ThreadLocal.withInitial(() -> {
+        TreeParser parser = new TreeParser(new TreeTokenizer(new byte[0], 0, 0), true);
+        parser.setTranslation(translationMap);
+        parser.setAttributeNames(attributeNames);
+        return parser;
+    });
+
+    /**
+     * Constructor
+     * @param input
+     */
+    public NexusTreeImporter(InputStream input) {
+        this(input, null);
+    }
+
+    /**
+     * Constructor
+     * @param input
+     * @param attributeNames the node and branch attributes to read or null to read them all
+     */
+    public NexusTreeImporter(InputStream input, Set<String> attributeNames) {
+        this.tokenizer = new TreeTokenizer(input);
+        this.parser = new TreeParser(tokenizer, true);
+        this.attributeNames = attributeNames;
+        this.parser.setAttributeNames(attributeNames);
+    }
+
+    @Override
+    public boolean hasTree() throws IOException, ImportException {
+        if (isFinished) {
+            return false;
+        }
+        if (!isReadingTreesBlock) {
+            isReadingTreesBlock = startReadingTrees();
+            if (!isReadingTreesBlock) {
+                isFinished = true;
+                return false;
+            }
+            readTreesBlockHeader();
+        }
+        if (nextTree == null) {
+            nextTree = readNextTree();
+            if (nextTree == null) {
+                isFinished = true;
+            }
+        }
+        return nextTree != null;
+    }
+
+    @Override
+    public CompactTree importNextCompactTree() throws IOException, ImportException {
+        if (nextTree != null) {
+            // already read by hasTree
+            CompactTree tree = CompactTree.fromRootedTree(nextTree);
+            nextTree = null;
+            return tree;
+        }
+        if (!startNextTree()) {
+            return null;
+        }
+
+        CompactTree tree = (CompactTree) readTreeCommand(tokenizer, parser, lastToken, true);
+
+        // the next command
+        tokenizer.readToken(COMMAND_DELIMITERS);
+        lastToken = tokenizer.getToken();
+
+        return tree;
+    }
+
+    @Override
+    public byte[] readNextTreeBytes() throws IOException, ImportException {
+        if (!startNextTree()) {
+            return null;
+        }
+
+        byte[] bytes = tokenizer.readStatement((lastToken + " ").getBytes(StandardCharsets.UTF_8));
+
+        // the next command
+        tokenizer.readToken(COMMAND_DELIMITERS);
+        lastToken = tokenizer.getToken();
+
+        return bytes;
+    }
+
+    @Override
+    public boolean skipNextTree() throws IOException, ImportException {
+        if (nextTree != null) {
+            // already read by hasTree
+            nextTree = null;
+            return true;
+        }
+        if (!startNextTree()) {
+            return false;
+        }
+
+        tokenizer.skipStatement();
+
+        // the next command
+        tokenizer.readToken(COMMAND_DELIMITERS);
+        lastToken = tokenizer.getToken();
+
+        return true;
+    }
+
+    @Override
+    public RootedTree parseTreeBytes(byte[] bytes) throws IOException, ImportException {
+        TreeParser parser = bytesParser.get();
+        TreeTokenizer tokenizer = parser.getTokenizer();
+        tokenizer.setInput(bytes, 0, bytes.length);
+        tokenizer.readToken(COMMAND_DELIMITERS);
+        return (SimpleRootedTree) readTreeCommand(tokenizer, parser, tokenizer.getToken(), false);
+    }
+
+    @Override
+    public Tree importNextTree() throws IOException, ImportException {
+        if (!hasTree()) {
+            return null;
+        }
+        Tree tree = nextTree;
+        nextTree = null;
+        return tree;
+    }
+
+    @Override
+    public List<Tree> importTrees() throws IOException, ImportException {
+        List<Tree> trees = new ArrayList<>();
+        while (hasTree()) {
+            trees.add(importNextTree());
+        }
+        if (trees.isEmpty()) {
+            throw new ImportException("TREES block is missing");
+        }
+        return trees;
+    }
+
+    @Override
+    public Iterator<Tree> iterator() {
+        return new Iterator<Tree>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return hasTree();
+                } catch (IOException | ImportException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public Tree next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return importNextTree();
+                } catch (IOException | ImportException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Moves on to the TREES block if it hasn't been reached yet and checks there is another TREE
+     * command (the name of which will have been read into lastToken).
+     * @return false if there are no more trees
+     */
+    private boolean startNextTree() throws IOException, ImportException {
+        if (isFinished) {
+            return false;
+        }
+        if (!isReadingTreesBlock) {
+            isReadingTreesBlock = startReadingTrees();
+            if (!isReadingTreesBlock) {
+                isFinished = true;
+                return false;
+            }
+            readTreesBlockHeader();
+        }
+        if (isEndOfBlock(lastToken)) {
+            isFinished = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the TREES block, reading any TAXA block on the way.
+     * @return false if there is no TREES block
+     */
+    private boolean startReadingTrees() throws IOException, ImportException {
+        taxonList = null;
+        while (true) {
+            // find the next BEGIN command
+            do {
+                tokenizer.readToken(NO_DELIMITERS);
+                if (tokenizer.getLastDelimiter() < 0 && tokenizer.getTokenLength() == 0) {
+                    return false;
+                }
+            } while (!tokenizer.tokenEqualsIgnoreCase("BEGIN"));
+
+            tokenizer.readToken(COMMAND_DELIMITERS);
+            if (tokenizer.tokenEqualsIgnoreCase("TAXA")) {
+                taxonList = readTaxaBlock();
+            } else if (tokenizer.tokenEqualsIgnoreCase("TREES")) {
+                return true;
+            }
+        }
+    }
+
+    private List<Taxon> readTaxaBlock() throws IOException, ImportException {
+        int taxonCount = 0;
+
+        while (true) {
+            tokenizer.readToken(NO_DELIMITERS);
+            if (tokenizer.getLastDelimiter() < 0 && tokenizer.getTokenLength() == 0) {
+                throw new ImportException.MissingFieldException("TAXLABELS");
+            }
+            if (tokenizer.tokenEqualsIgnoreCase("TAXLABELS")) {
+                break;
+            }
+            if (tokenizer.tokenEqualsIgnoreCase("DIMENSIONS")) {
+                do {
+                    tokenizer.readToken(NAME_DELIMITERS);
+                    String subcommand = tokenizer.getToken();
+                    if (tokenizer.getLastDelimiter() != '=') {
+                        throw new ImportException.BadFormatException("Unknown subcommand, '" + subcommand + "', or missing '=' in DIMENSIONS command");
+                    }
+                    if (!subcommand.equalsIgnoreCase("NTAX")) {
+                        throw new ImportException.BadFormatException("Unknown subcommand, '" + subcommand + "', in DIMENSIONS command");
+                    }
+                    tokenizer.readToken(COMMAND_DELIMITERS);
+                    try {
+                        taxonCount = Integer.parseInt(tokenizer.getToken());
+                    } catch (NumberFormatException nfe) {
+                        throw new ImportException("Number format error: " + nfe.getMessage());
+                    }
+                } while (tokenizer.getLastDelimiter() != ';' && tokenizer.getLastDelimiter() >= 0);
+            }
+        }
+
+        if (taxonCount == 0) {
+            throw new ImportException.MissingFieldException("NTAXA");
+        }
+
+        List<Taxon> taxa = new ArrayList<>();
+        do {
+            tokenizer.readToken(COMMAND_DELIMITERS);
+            if (tokenizer.getTokenLength() == 0) {
+                throw new ImportException.UnknownTaxonException("Expected nonempty taxon name, got empty string");
+            }
+            Taxon taxon = Taxon.getTaxon(tokenizer.getToken());
+            taxa.add(taxon);
+            parser.parseAndClearMetaComments(taxon);
+        } while (tokenizer.getLastDelimiter() != ';');
+
+        if (taxa.size() != taxonCount) {
+            throw new ImportException.BadFormatException("Number of taxa doesn't match NTAXA field");
+        }
+
+        // find the end of the block
+        do {
+            tokenizer.readToken(COMMAND_DELIMITERS);
+        } while (!tokenizer.tokenEqualsIgnoreCase("END") && !tokenizer.tokenEqualsIgnoreCase("ENDBLOCK") &&
+                tokenizer.getLastDelimiter() >= 0);
+
+        return taxa;
+    }
+
+    /**
+     * Reads the commands at the start of the TREES block up to the first TREE command. The
+     * translate table (or the taxa block if there isn't one) is handed to the parser once here.
+     */
+    private void readTreesBlockHeader() throws IOException, ImportException {
+        Map<String, Taxon> translationMap = new HashMap<>();
+        Set<Taxon> taxonSet = (taxonList != null ? new HashSet<>(taxonList) : null);
+
+        do {
+            tokenizer.readToken(NO_DELIMITERS);
+            if (tokenizer.getLastDelimiter() < 0 && tokenizer.getTokenLength() == 0) {
+                break;
+            }
+            lastToken = tokenizer.getToken();
+
+            if (lastToken.equalsIgnoreCase("TRANSLATE")) {
+                do {
+                    tokenizer.readToken(TRANSLATE_DELIMITERS);
+                    String key = tokenizer.getToken();
+                    int delimiter = tokenizer.getLastDelimiter();
+                    if (delimiter == ',' || delimiter == ';') {
+                        if (key.length() == 0 && delimiter == ';') {
+                            break;
+                        }
+                        throw new ImportException.BadFormatException("Missing taxon label in TRANSLATE command of TREES block");
+                    }
+
+                    tokenizer.readToken(TRANSLATE_DELIMITERS);
+                    String label = tokenizer.getToken();
+                    delimiter = tokenizer.getLastDelimiter();
+                    if (delimiter != ',' && delimiter != ';') {
+                        throw new ImportException.BadFormatException("Expecting ',' or ';' after taxon label in TRANSLATE command of TREES block");
+                    }
+
+                    Taxon taxon = Taxon.getTaxon(label);
+                    if (taxonSet != null && !taxonSet.contains(taxon)) {
+                        StringBuilder message = new StringBuilder("Expected: ").append(label).append("\nActual taxa:\n");
+                        for (Taxon taxon1 : taxonList) {
+                            message.append(taxon1).append("\n");
+                        }
+                        throw new ImportException.UnknownTaxonException(message.toString());
+                    }
+                    translationMap.put(key, taxon);
+                } while (tokenizer.getLastDelimiter() != ';');
+
+                tokenizer.readToken(COMMAND_DELIMITERS);
+                lastToken = tokenizer.getToken();
+            } else if (taxonList != null) {
+                for (Taxon taxon : taxonList) {
+                    translationMap.put(taxon.getName(), taxon);
+                }
+            }
+        } while (!lastToken.equalsIgnoreCase("TREE") && !lastToken.equalsIgnoreCase("UTREE"));
+
+        this.translationMap = translationMap;
+        parser.setTranslation(translationMap);
+    }
+
+    private static boolean isEndOfBlock(String command) {
+        return command == null || command.length() == 0 ||
+                command.equalsIgnoreCase("END") || command.equalsIgnoreCase("ENDBLOCK");
+    }
+
+    /**
+     * Reads the next tree. The command name has already been read (into lastToken) and on return
+     * the name of the next command will have been.
+     * @return the tree or null if the end of the block has been reached
+     */
+    private SimpleRootedTree readNextTree() throws IOException, ImportException {
+        if (isEndOfBlock(lastToken)) {
+            return null;
+        }
+
+        SimpleRootedTree tree = (SimpleRootedTree) readTreeCommand(tokenizer, parser, lastToken, false);
+
+        // the next command
+        tokenizer.readToken(COMMAND_DELIMITERS);
+        lastToken = tokenizer.getToken();
+
+        return tree;
+    }
+
+    /**
+     * Reads a TREE command up to the closing ';'.
+     * @param tokenizer
+     * @param parser
+     * @param command the command name which has already been read
+     * @param isCompact read the tree into a CompactTree rather than a SimpleRootedTree
+     * @return
+     */
+    private static Attributable readTreeCommand(TreeTokenizer tokenizer, TreeParser parser, String command, boolean isCompact) throws IOException, ImportException {
+        boolean isUnrooted = command.equalsIgnoreCase("UTREE");
+        if (!isUnrooted && !command.equalsIgnoreCase("TREE")) {
+            throw new ImportException.BadFormatException("Unknown command '" + command + "' in TREES block");
+        }
+        if (tokenizer.nextCharacter() == '*') {
+            tokenizer.readCharacter();
+        }
+        for (String comment : tokenizer.getMetaComments()) {
+            if (comment.equalsIgnoreCase("U")) {
+                isUnrooted = true;
+            }
+        }
+        tokenizer.clearMetaComments();
+
+        tokenizer.readToken(NAME_DELIMITERS);
+        if (tokenizer.getTokenLength() == 0) {
+            throw new ImportException("At least one tree has no name");
+        }
+        String name = NexusImporter.makeIntoAllowableIdentifier(tokenizer.getToken());
+        if (tokenizer.getLastDelimiter() != '=') {
+            throw new ImportException.BadFormatException("Missing label for tree '" + name + "' or missing '=' in TREE command of TREES block");
+        }
+
+        if (tokenizer.nextCharacter() != '(') {
+            throw new ImportException.BadFormatException("Missing tree definition in TREE command of TREES block");
+        }
+        List<String> treeComments = new ArrayList<>(tokenizer.getMetaComments());
+        tokenizer.clearMetaComments();
+
+        Attributable tree = (isCompact ? parser.readCompactTree() : parser.readTree());
+
+        if (!NexusExporter.isGeneratedTreeName(name)) {
+            tree.setAttribute("name", name);
+        }
+
+        if (tokenizer.getLastDelimiter() == ':') {
+            // a root length which is ignored
+            tokenizer.readDouble(COMMAND_DELIMITERS);
+        }
+        if (tokenizer.getLastDelimiter() != ';') {
+            throw new ImportException.BadFormatException("Expecting ';' after tree, '" + name + "', TREE command of TREES block");
+        }
+
+        for (String comment : treeComments) {
+            String key = comment;
+            if (key.contains("=")) {
+                key = key.substring(0, key.indexOf("="));
+            }
+            if (key.toUpperCase().equals("U")) {
+                isUnrooted = true;
+            } else if (comment.matches("^W\\s+[\\+\\-]?[\\d\\.]+")) {
+                tree.setAttribute("weight", Float.valueOf(comment.substring(2)));
+            } else if (!key.toUpperCase().equals("R")) {
+                try {
+                    TreeParser.parseMetaCommentPairs(comment, tree);
+                } catch (ImportException.BadFormatException bfe) {
+                    // set it to the comment
+                    tree.setAttribute("comment", comment);
+                }
+            }
+        }
+        if (isCompact) {
+            ((CompactTree) tree).setConceptuallyUnrooted(isUnrooted);
+        } else {
+            ((SimpleRootedTree) tree).setConceptuallyUnrooted(isUnrooted);
+        }
+
+        return tree;
+    }
+}
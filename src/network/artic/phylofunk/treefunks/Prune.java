@@ -2,14 +2,8 @@ package network.artic.phylofunk.treefunks;
 
 import java.util.*;
 
-import jebl.evolution.graphs.Node;
-import jebl.evolution.taxa.Taxon;
-import jebl.evolution.trees.RootedSubtree;
-import jebl.evolution.trees.RootedTree;
-
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
-import org.apache.commons.csv.CSVRecord;
 
 import network.artic.phylofunk.funks.FunkFactory;
 import static network.artic.phylofunk.treefunks.TreeOptions.*;
@@ -36,6 +30,7 @@ public class Prune extends TreeFunk {
             options.addOption(TAXA);
             METADATA.setRequired(false);
             options.addOption(METADATA);
+            options.addOption(METADATA_INDEX);
             options.addOption(OUTPUT_FILE);
             options.addOption(OUTPUT_FORMAT);
             options.addOption(OUTPUT_METADATA);
@@ -75,6 +70,17 @@ public class Prune extends TreeFunk {
                     commandLine.hasOption("ignore-missing"),
                     isVerbose);
         }
+
+        @Override
+        public Set<String> getTreeAttributeNames(CommandLine commandLine) {
+            return getOutputTreeAttributeNames(commandLine);
+        }
+
+        @Override
+        public Set<String> getMetadataColumnNames(CommandLine commandLine) {
+            // the metadata is only used for the output metadata file
+            return (commandLine.hasOption("output-metadata") ? null : Collections.emptySet());
+        }
     };
 
 
@@ -103,32 +109,34 @@ public class Prune extends TreeFunk {
             throw new IllegalArgumentException("prune command requires a taxon list and/or additional target taxa");
         }
 
-        RootedTree tree = readTree(treeFileName);
+        CompactTree tree = readCompactTree(treeFileName);
 
-        Map<Taxon, String> taxonMap = getTaxonMap(tree);
+        Map<String, String> labelMap = getLabelMap(tree);
+
+        Set<String> targetTaxaSet = new HashSet<>(targetTaxaList);
 
         if (!ignoreMissing) {
+            Set<String> tipIndices = new HashSet<>(labelMap.values());
             for (String key : targetTaxaList) {
-                if (!taxonMap.containsValue(key)) {
+                if (!tipIndices.contains(key)) {
                     errorStream.println("Taxon, " + key + ", not found in tree");
                     System.exit(1);
                 }
             }
         }
 
-        // subtree option in JEBL requires the taxa that are to be included
-        Set<Taxon> includedTaxa = new HashSet<>();
+        // the subtree is made from the tips that are to be included
+        Set<String> includedTaxa = new HashSet<>();
 
-        for (Node tip : tree.getExternalNodes()) {
-            Taxon taxon = tree.getTaxon(tip);
-            String index = taxonMap.get(taxon);
-            if (targetTaxaList.contains(index) == keepTaxa) {
-                includedTaxa.add(taxon);
+        for (String label : tree.getLabels()) {
+            String index = labelMap.get(label);
+            if (targetTaxaSet.contains(index) == keepTaxa) {
+                includedTaxa.add(label);
             }
         }
 
         if (isVerbose) {
-            outStream.println("   Number of taxa pruned: " + (tree.getExternalNodes().size() - includedTaxa.size()) );
+            outStream.println("   Number of taxa pruned: " + (tree.getExternalNodeCount() - includedTaxa.size()) );
             outStream.println("Number of taxa remaining: " + includedTaxa.size());
             outStream.println();
         }
@@ -138,7 +146,7 @@ public class Prune extends TreeFunk {
             System.exit(1);
         }
 
-        RootedTree outTree = new RootedSubtree(tree, includedTaxa);
+        CompactTree outTree = tree.getSubtree(includedTaxa);
 
         if (isVerbose) {
             outStream.println("Writing tree file, " + outputFileName + ", in " + outputFormat.name().toLowerCase() + " format");
@@ -148,9 +156,12 @@ public class Prune extends TreeFunk {
         writeTreeFile(outTree, outputFileName, outputFormat);
 
         if (outputMetadataFileName != null) {
-            List<CSVRecord> metadataRows = new ArrayList<>();
-            for (Taxon taxon : includedTaxa) {
-                metadataRows.add(metadata.get(taxonMap.get(taxon)));
+            List<Integer> metadataRows = new ArrayList<>();
+            for (String label : includedTaxa) {
+                int row = metadata.getRowIndex(labelMap.get(label));
+                if (row >= 0) {
+                    metadataRows.add(row);
+                }
             }
             if (isVerbose) {
                 outStream.println("Writing metadata file, " + outputMetadataFileName);
@@ -78,8 +78,8 @@ public class Reconstruct extends TreeFunk {
 
         super(isVerbose);
 
-        if (outputFormat != FormatType.NEXUS) {
-            errorStream.println("Annotations are only compatible with NEXUS output format");
+        if (outputFormat == FormatType.NEWICK) {
+            errorStream.println("Annotations are not compatible with Newick output format");
             System.exit(1);
         }
 
@@ -1,5 +1,7 @@
 package network.artic.phylofunk.treefunks;
 
+import java.util.Set;
+
 import jebl.evolution.trees.RootedTree;
 import jebl.evolution.trees.SortedRootedTree;
 
@@ -31,6 +33,7 @@ public class Reorder extends TreeFunk {
             options.addOption(INPUT);
             METADATA.setRequired(false);
             options.addOption(METADATA);
+            options.addOption(METADATA_INDEX);
             options.addOption(INDEX_COLUMN);
             options.addOption(INDEX_FIELD);
             options.addOption(FIELD_DELIMITER);
@@ -73,6 +76,11 @@ public class Reorder extends TreeFunk {
                     commandLine.getOptionValues("sort-by"),
                     isVerbose);
         }
+
+        @Override
+        public Set<String> getTreeAttributeNames(CommandLine commandLine) {
+            return getOutputTreeAttributeNames(commandLine);
+        }
     };
 
 
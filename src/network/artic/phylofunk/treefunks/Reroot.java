@@ -75,6 +75,11 @@ public class Reroot extends TreeFunk {
                     commandLine.getOptionValues("outgroups"),
                     isVerbose);
         }
+
+        @Override
+        public Set<String> getTreeAttributeNames(CommandLine commandLine) {
+            return getOutputTreeAttributeNames(commandLine);
+        }
     };
 
 
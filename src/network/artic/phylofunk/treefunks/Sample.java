@@ -1,9 +1,6 @@
 package network.artic.phylofunk.treefunks;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -16,6 +13,7 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 
 import network.artic.phylofunk.funks.FunkFactory;
+import network.artic.phylofunk.funks.MetadataWriter;
 import static network.artic.phylofunk.treefunks.TreeOptions.*;
 
 
@@ -38,6 +36,7 @@ public class Sample extends TreeFunk {
         public void setOptions(Options options) {
             options.addOption(INPUT);
             options.addOption(METADATA);
+            options.addOption(METADATA_INDEX);
             options.addOption(TAXA);
             options.addOption(OUTPUT_PATH);
             options.addOption(OUTPUT_PREFIX);
@@ -88,6 +87,11 @@ public class Sample extends TreeFunk {
                     commandLine.hasOption("ignore-missing"),
                     isVerbose);
         }
+
+        @Override
+        public Set<String> getMetadataColumnNames(CommandLine commandLine) {
+            return collectColumnNames(commandLine.getOptionValues("collapse-by"), commandLine.getOptionValues("clump-by"));
+        }
     };
 
     enum CollapseType {
@@ -413,31 +417,21 @@ public class Sample extends TreeFunk {
      */
     void writeSubtreeRoots(Map<String, Subtree> subtreeMap, String outputFileName) {
 
-        try {
-            PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(outputFileName)));
-
-            writer.println("type,name,attribute_name,attribute_value,tip_count,min_divergence,max_divergence,tips");
+        try (MetadataWriter writer = MetadataWriter.open(outputFileName, false)) {
+            writer.writeRow("type", "name", "attribute_name", "attribute_value", "tip_count", "min_divergence", "max_divergence", "tips");
 
             for (String key : subtreeMap.keySet()) {
                 Subtree subtree = subtreeMap.get(key);
-                writer.print(subtree.type);
-                writer.print(",");
-                writer.print(subtree.name);
-                writer.print(",");
-                writer.print(subtree.attributeName);
-                writer.print(",");
-                writer.print(subtree.attributeValue);
-                writer.print(",");
-                writer.print(subtree.tips.size());
-                writer.print(",");
-                writer.print(subtree.minDivergence);
-                writer.print(",");
-                writer.print(subtree.maxDivergence);
-                writer.print(",");
-                writer.println(String.join("|", subtree.tips));
+                writer.writeValue(subtree.type);
+                writer.writeValue(subtree.name);
+                writer.writeValue(subtree.attributeName);
+                writer.writeValue(subtree.attributeValue);
+                writer.writeValue(subtree.tips.size());
+                writer.writeValue(subtree.minDivergence);
+                writer.writeValue(subtree.maxDivergence);
+                writer.writeValue(String.join("|", subtree.tips));
+                writer.endRow();
             }
-
-            writer.close();
         } catch (IOException e) {
             errorStream.println("Error writing metadata file: " + e.getMessage());
             System.exit(1);
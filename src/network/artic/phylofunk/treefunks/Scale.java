@@ -1,9 +1,7 @@
 package network.artic.phylofunk.treefunks;
 
-import jebl.evolution.graphs.Node;
-import jebl.evolution.trees.MutableRootedTree;
-import jebl.evolution.trees.RootedTree;
-import jebl.evolution.trees.RootedTreeUtils;
+import java.util.Collections;
+import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.OptionGroup;
@@ -71,6 +69,12 @@ public class Scale extends TreeFunk {
                     Double.parseDouble(commandLine.getOptionValue("height", "1.0")),
                     isVerbose);
         }
+
+        @Override
+        public Set<String> getTreeAttributeNames(CommandLine commandLine) {
+            // the attributes are removed before the tree is written
+            return Collections.emptySet();
+        }
     };
 
     public Scale(String treeFileName,
@@ -84,15 +88,19 @@ public class Scale extends TreeFunk {
 
         super(isVerbose);
 
-        RootedTree tree = readTree(treeFileName);
+        CompactTree tree = readCompactTree(treeFileName);
+        // the annotations have never been written out by this command
+        tree.clearAttributes();
+        tree.setConceptuallyUnrooted(false);
 
         if (scaleRootHeight) {
             if (rootHeight <= 0.0) {
                 errorStream.println("Root height should be > 0.0");
                 System.exit(1);
             }
-            double tipDistance = RootedTreeUtils.getAverageTipDistance(tree, tree.getRootNode());
+            double tipDistance = tree.getAverageTipDistance(tree.getRootNode());
             scaleFactor = rootHeight / tipDistance;
+            tree.setLengthsFromHeights();
             if (isVerbose) {
                 outStream.println("Scaling root height to: " + rootHeight);
             }
@@ -105,28 +113,14 @@ public class Scale extends TreeFunk {
             outStream.println("Scaling all branch lengths by: " + scaleFactor);
         }
 
-        MutableRootedTree outTree = new MutableRootedTree(tree);
-
-        for (Node node : outTree.getNodes()) {
-            outTree.setLength(node, outTree.getLength(node) * scaleFactor);
-        }
-        int scaleCount = outTree.getNodes().size();
+        tree.scaleLengths(scaleFactor);
+        int scaleCount = tree.getNodeCount();
 
+        CompactTree outTree = tree;
         int collapseCount = 0;
         if (branchThreshold >= 0.0) {
-            for (Node node : outTree.getInternalNodes()) {
-                if (outTree.getLength(node) <= branchThreshold) {
-                    Node parent = outTree.getParent(node);
-                    if (parent != null) {
-                        outTree.removeChild(node, parent);
-                        for (Node child : outTree.getChildren(node)) {
-                            outTree.addChild(child, parent);
-                        }
-                        collapseCount += 1;
-                    }
-
-                }
-            }
+            outTree = tree.collapseShortBranches(branchThreshold, true);
+            collapseCount = tree.getNodeCount() - outTree.getNodeCount();
         }
 
         if (isVerbose) {
@@ -1,6 +1,7 @@
 package network.artic.phylofunk.treefunks;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -37,6 +38,7 @@ public class Split extends TreeFunk {
             options.addOption(INPUT);
             METADATA.setRequired(false);
             options.addOption(METADATA);
+            options.addOption(METADATA_INDEX);
             options.addOption(OUTPUT_PATH);
             options.addOption(OUTPUT_PREFIX);
             options.addOption(OUTPUT_FORMAT);
@@ -71,6 +73,12 @@ public class Split extends TreeFunk {
                     commandLine.getOptionValue("attribute"),
                     isVerbose);
         }
+
+        @Override
+        public Set<String> getMetadataColumnNames(CommandLine commandLine) {
+            // splits on the tip attributes in the tree
+            return Collections.emptySet();
+        }
     };
 
     public Split(String treeFileName,
@@ -0,0 +1,31 @@
+package network.artic.phylofunk.treefunks;
+
+import jebl.evolution.io.ImportException;
+import jebl.evolution.io.TreeImporter;
+import jebl.evolution.trees.RootedTree;
+
+import java.io.IOException;
+
+/**
+ * A tree importer that can hand out the raw text of each tree so that the parsing can be done
+ * on other threads. Trees are read in order by readNextTreeBytes (on one thread) and
+ * parseTreeBytes can then be called concurrently.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+interface SplittableTreeImporter extends TreeImporter {
+
+    /**
+     * Reads the raw bytes of the next tree.
+     * @return the bytes or null if there are no more trees
+     */
+    byte[] readNextTreeBytes() throws IOException, ImportException;
+
+    /**
+     * Parses a tree from bytes returned by readNextTreeBytes. Thread safe.
+     * @param bytes
+     * @return
+     */
+    RootedTree parseTreeBytes(byte[] bytes) throws IOException, ImportException;
+}
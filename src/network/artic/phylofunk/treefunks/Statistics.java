@@ -1,10 +1,8 @@
 package network.artic.phylofunk.treefunks;
 
 import java.io.PrintStream;
-
-import jebl.evolution.trees.RootedTree;
-import jebl.evolution.trees.RootedTreeUtils;
-import jebl.evolution.trees.Utils;
+import java.util.Collections;
+import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
@@ -44,6 +42,12 @@ public class Statistics extends TreeFunk {
                     commandLine.getOptionValues("stats"),
                     isVerbose);
         }
+
+        @Override
+        public Set<String> getTreeAttributeNames(CommandLine commandLine) {
+            // only the shape of the tree is needed
+            return Collections.emptySet();
+        }
     };
 
     enum StatisticType {
@@ -57,7 +61,7 @@ public class Statistics extends TreeFunk {
 
         super(isVerbose);
 
-        RootedTree tree = readTree(treeFileName);
+        CompactTree tree = readCompactTree(treeFileName);
 
         writeStatistics(tree, outStream);
 
@@ -102,16 +106,16 @@ public class Statistics extends TreeFunk {
 //        finalWriter.close();
     }
 
-    private void writeStatistics(RootedTree tree, PrintStream out) {
-        out.println("tip count\t" + (RootedTreeUtils.getTipCount(tree, tree.getRootNode())));
-        out.println("binary?\t" + (RootedTreeUtils.isBinary(tree)));
-        out.println("ultrametric?\t" + (RootedTreeUtils.isUltrametric(tree, 0.0001)));
+    private void writeStatistics(CompactTree tree, PrintStream out) {
+        out.println("tip count\t" + (tree.getExternalNodeCount()));
+        out.println("binary?\t" + (tree.isBinary()));
+        out.println("ultrametric?\t" + (tree.isUltrametric(0.0001)));
         out.println("root height\t" + (tree.getHeight(tree.getRootNode())));
-        out.println("max tip height\t" + (RootedTreeUtils.getMaxTipHeight(tree, tree.getRootNode())));
-        out.println("min tip height\t" + (RootedTreeUtils.getMinTipHeight(tree, tree.getRootNode())));
-        out.println("root to tip distance\t" + (RootedTreeUtils.getAverageTipDistance(tree, tree.getRootNode())));
-        out.println("max node count\t" + Utils.maxLevels(tree));
-        out.println("total length\t" + Utils.getLength(tree));
+        out.println("max tip height\t" + (tree.getMaxTipHeight(tree.getRootNode())));
+        out.println("min tip height\t" + (tree.getMinTipHeight(tree.getRootNode())));
+        out.println("root to tip distance\t" + (tree.getAverageTipDistance(tree.getRootNode())));
+        out.println("max node count\t" + tree.getMaxLevels());
+        out.println("total length\t" + tree.getTotalLength());
     }
 
 
@@ -1,9 +1,7 @@
 package network.artic.phylofunk.treefunks;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -18,6 +16,7 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 
 import network.artic.phylofunk.funks.FunkFactory;
+import network.artic.phylofunk.funks.MetadataWriter;
 
 import static network.artic.phylofunk.funks.FunkOptions.*;
 import static network.artic.phylofunk.funks.FunkOptions.INDEX_COLUMN;
@@ -48,10 +47,32 @@ public class TMRCA extends TreeFunk {
             options.addOption(INDEX_FIELD);
             options.addOption(FunkOptions.FIELD_DELIMITER);
             options.addOption(STEM);
+            options.addOption(THREADS);
+            options.addOption(BURNIN);
+            options.addOption(THIN);
+            options.addOption(SAMPLE_SIZE);
+            options.addOption(SEED);
         }
 
         @Override
         public void create(CommandLine commandLine, boolean isVerbose) {
+            int burnin = Integer.parseInt(commandLine.getOptionValue("burnin", "0"));
+            if (burnin < 0) {
+                errorStream.println("Burnin should be 0 or more\n");
+                System.exit(1);
+            }
+            int thin = Integer.parseInt(commandLine.getOptionValue("thin", "1"));
+            if (thin < 1) {
+                errorStream.println("Thin should be 1 or more\n");
+                System.exit(1);
+            }
+            int sampleSize = Integer.parseInt(commandLine.getOptionValue("sample", "0"));
+            if (commandLine.hasOption("sample") && sampleSize < 1) {
+                errorStream.println("Sample size should be 1 or more\n");
+                System.exit(1);
+            }
+            long seed = (commandLine.hasOption("seed") ? Long.parseLong(commandLine.getOptionValue("seed")) : System.currentTimeMillis());
+
             new TMRCA(
                     commandLine.getOptionValue("input"),
                     commandLine.getOptionValue("taxon-file"),
@@ -62,8 +83,19 @@ public class TMRCA extends TreeFunk {
                     commandLine.getOptionValue("field-delimeter", DEFAULT_DELIMITER),
                     commandLine.hasOption("stem"),
                     commandLine.hasOption("ignore-missing"),
+                    Integer.parseInt(commandLine.getOptionValue("threads", "1")),
+                    burnin,
+                    thin,
+                    sampleSize,
+                    seed,
                     isVerbose);
         }
+
+        @Override
+        public Set<String> getTreeAttributeNames(CommandLine commandLine) {
+            // only the tree name which is a tree attribute
+            return Collections.emptySet();
+        }
     };
 
     public TMRCA(String treeFileName,
@@ -75,10 +107,17 @@ public class TMRCA extends TreeFunk {
                  String headerDelimiter,
                  boolean isStem,
                  boolean ignoreMissing,
+                 int threadCount,
+                 int burnin,
+                 int thin,
+                 int sampleSize,
+                 long seed,
                  boolean isVerbose) {
 
         super(null, taxaFileName, indexColumn, indexHeader, headerDelimiter, isVerbose);
 
+        setTreeSelection(burnin, thin, sampleSize, seed);
+
         if (isVerbose) {
             outStream.println("Finding TMRCAs in trees for taxon set" );
             outStream.println();
@@ -95,27 +134,20 @@ public class TMRCA extends TreeFunk {
             }
         }
 
-        PrintWriter tmpWriter = null;
+        MetadataWriter tmpWriter = null;
         if (outputFileName != null) {
             try {
-                tmpWriter = new PrintWriter(Files.newBufferedWriter(Paths.get(outputFileName)));
+                tmpWriter = MetadataWriter.open(outputFileName, true);
+                tmpWriter.writeRow("tree", "tmrca");
             } catch (IOException ioe) {
                 errorStream.println("Error opening output file: " + ioe.getMessage());
                 System.exit(1);
             }
         }
 
-        final PrintWriter outputMetadataWriter = tmpWriter;
-
-        if (outputMetadataWriter != null) {
-            outputMetadataWriter.print("tree");
-            outputMetadataWriter.print("\t");
-            outputMetadataWriter.print("tmrca");
-            outputMetadataWriter.println();
-
-        }
+        final MetadataWriter outputMetadataWriter = tmpWriter;
 
-        processTrees(treeFileName, tree -> {
+        processTrees(treeFileName, threadCount, tree -> {
             double tmrca = 0;
 
             try {
@@ -126,18 +158,22 @@ public class TMRCA extends TreeFunk {
                 System.exit(1);
             }
 
+            return new Object[] { String.valueOf(tree.getAttribute("name")), tmrca };
+        }, result -> {
             if (outputMetadataWriter != null) {
-                        outputMetadataWriter.print(tree.getAttribute("name"));
-                        outputMetadataWriter.print("\t");
-                        outputMetadataWriter.print(tmrca);
-                        outputMetadataWriter.println();
+                outputMetadataWriter.writeValue(result[0]);
+                outputMetadataWriter.writeValue(result[1]);
+                outputMetadataWriter.endRow();
             }
-
-            return null;
         });
 
         if (outputMetadataWriter != null) {
-            outputMetadataWriter.close();
+            try {
+                outputMetadataWriter.close();
+            } catch (IOException ioe) {
+                errorStream.println("Error writing output file: " + ioe.getMessage());
+                System.exit(1);
+            }
         }
 
     }
@@ -6,13 +6,19 @@ import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
 import jebl.evolution.trees.SimpleRootedTree;
 import network.artic.phylofunk.funks.Funk;
-import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.cli.CommandLine;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 import static java.util.stream.Collectors.toMap;
 
@@ -30,6 +36,14 @@ public class TreeFunk extends Funk {
 
     Set<String> taxa = null;
 
+    // which trees are processed from a file of many (e.g., a posterior sample)
+    private int burnin = 0;
+    private int thin = 1;
+    private int sampleSize = 0;
+    private long seed = 0;
+    // the position in the file of the next tree to be read by processTrees
+    private int treeIndex = 0;
+
     /**
      * Constructor
      * @param isVerbose
@@ -73,23 +87,16 @@ public class TreeFunk extends Funk {
     protected void readTaxa(String taxaFileName, String indexColumn) {
 
         try {
-            TreeImporter importer = null;
-
-            FormatType format = getTreeFileType(new FileReader(taxaFileName));
-
-            if (format == FormatType.NEXUS) {
-                importer = new NexusImporter(new FileReader(taxaFileName));
-            } else if (format == FormatType.NEWICK) {
-                importer = new NewickImporter(new FileReader(taxaFileName), false);
-            } else {
-                // not a tree file - do nothing...
-            }
+            // null if not a tree file
+            TreeImporter importer = createTreeImporter(taxaFileName);
 
             if (importer != null) {
+                startPhase("read tree");
                 RootedTree tree = (RootedTree) importer.importNextTree();
+                endPhase();
                 taxa = new HashSet<>(getTaxonMap(tree).values());
             } else {
-                taxa = readCSV(taxaFileName, indexColumn).keySet();
+                taxa = readCSV(taxaFileName, indexColumn, Collections.emptySet()).getKeys();
             }
 
         } catch (IOException ioe) {
@@ -119,16 +126,13 @@ public class TreeFunk extends Funk {
             outStream.println("Reading treefile: " + treeFileName);
         }
 
-        try {
-            TreeImporter importer = null;
-
-            FormatType format = getTreeFileType(new FileReader(treeFileName));
+        long startTime = System.nanoTime();
+        long startAllocated = getAllocatedBytes();
+        startPhase("read tree");
 
-            if (format == FormatType.NEXUS) {
-                importer = new NexusImporter(new FileReader(treeFileName));
-            } else if (format == FormatType.NEWICK) {
-                importer = new NewickImporter(new FileReader(treeFileName), false);
-            } else {
+        try {
+            TreeImporter importer = createTreeImporter(treeFileName);
+            if (importer == null) {
                 errorStream.println("Unrecognised tree format in file, " + treeFileName);
                 System.exit(1);
             }
@@ -144,94 +148,205 @@ public class TreeFunk extends Funk {
             errorStream.println("Error parsing tree file, " + treeFileName + ": " + ie.getMessage());
             System.exit(1);
         }
+        endPhase();
 
         if (isVerbose) {
             if (trees.size() > 1) {
                 outStream.println(" Number of trees: " + trees.size());
             }
             outStream.println("  Number of tips: " + trees.get(0).getExternalNodes().size());
+            outStream.println("      Parse time: " + String.format("%.3f", (System.nanoTime() - startTime) / 1.0E9) + " secs");
+            if (startAllocated >= 0) {
+                outStream.println(" Allocated bytes: " + (getAllocatedBytes() - startAllocated));
+            }
             outStream.println();
         }
 
         return trees;
     }
 
-    final void processTrees(String treeFileName, TreeProcessor function) {
-        processTrees(treeFileName, null, null, function);
-    }
-
-    final void processTrees(String treeFileName, String outputFileName, FormatType outputFormat, TreeProcessor function) {
+    /**
+     * Reads the first tree in the file into a CompactTree
+     * @param treeFileName
+     * @return
+     */
+    final CompactTree readCompactTree(String treeFileName) {
+        CompactTree tree = null;
 
         if (isVerbose) {
-            outStream.println("  Reading treefile: " + treeFileName);
+            outStream.println("Reading treefile: " + treeFileName);
         }
 
-        TreeImporter importer = null;
-        TreeExporter exporter = null;
+        long startTime = System.nanoTime();
+        long startAllocated = getAllocatedBytes();
+        startPhase("read tree");
 
         try {
-
-            FormatType format = getTreeFileType(new FileReader(treeFileName));
-
-            if (format == FormatType.NEXUS) {
-                importer = new NexusImporter(new FileReader(treeFileName));
-            } else if (format == FormatType.NEWICK) {
-                importer = new NewickImporter(new FileReader(treeFileName), false);
-            } else {
+            TreeImporter importer = createTreeImporter(treeFileName);
+            if (importer == null) {
                 errorStream.println("Unrecognised tree format in file, " + treeFileName);
                 System.exit(1);
             }
+
+            tree = ((CompactTreeImporter) importer).importNextCompactTree();
+            if (tree == null) {
+                errorStream.println("No trees found in file, " + treeFileName);
+                System.exit(1);
+            }
+
         } catch (IOException ioe) {
             errorStream.println("Error reading tree file: " + ioe.getMessage());
             System.exit(1);
+        } catch (ImportException ie) {
+            errorStream.println("Error parsing tree file, " + treeFileName + ": " + ie.getMessage());
+            System.exit(1);
         }
+        endPhase();
+
+        if (isVerbose) {
+            outStream.println("  Number of tips: " + tree.getExternalNodeCount());
+            outStream.println("      Parse time: " + String.format("%.3f", (System.nanoTime() - startTime) / 1.0E9) + " secs");
+            if (startAllocated >= 0) {
+                outStream.println(" Allocated bytes: " + (getAllocatedBytes() - startAllocated));
+            }
+            outStream.println();
+        }
+
+        return tree;
+    }
+
+    /**
+     * Sets which trees processTrees will process. The first burnin trees are discarded, then only
+     * every thin-th tree is kept and, if sampleSize is greater than 0, a random sample of that
+     * many of these is taken. The trees that are not wanted are skipped without being parsed.
+     * @param burnin the number of trees to discard from the start
+     * @param thin keep every thin-th tree after the burnin
+     * @param sampleSize the number of trees to sample (0 for all)
+     * @param seed the random number seed for the sample
+     */
+    void setTreeSelection(int burnin, int thin, int sampleSize, long seed) {
+        this.burnin = burnin;
+        this.thin = thin;
+        this.sampleSize = sampleSize;
+        this.seed = seed;
+    }
 
-        FileWriter writer = null;
+    /**
+     * Receives the results of processing each tree, in the order the trees appear in the file.
+     * @param <T>
+     */
+    interface TreeResultCollector<T> {
+        void collect(T result) throws IOException;
+    }
+
+    final void processTrees(String treeFileName, TreeProcessor function) {
+        processTrees(treeFileName, null, null, 1, function);
+    }
+
+    final void processTrees(String treeFileName, String outputFileName, FormatType outputFormat, TreeProcessor function) {
+        processTrees(treeFileName, outputFileName, outputFormat, 1, function);
+    }
+
+    final void processTrees(String treeFileName, String outputFileName, FormatType outputFormat, int threadCount, TreeProcessor function) {
+        TreeExporter exporter = null;
 
         if (outputFileName != null) {
             try {
                 if (isVerbose) {
                     outStream.println("  Writing treefile: " + outputFileName);
                 }
-                writer = new FileWriter(outputFileName);
-
-                switch (outputFormat) {
-                    case NEXUS:
-                        exporter = new NexusExporter(writer);
-                        break;
-                    case NEWICK:
-                        exporter = new NewickExporter(writer);
-                        break;
-                    default:
-                        throw new IllegalArgumentException("Unknown format: " + outputFormat);
-                }
-
+                exporter = createTreeExporter(outputFileName, outputFormat, TreeWriter.DEFAULT_LENGTH_PRECISION);
             } catch (IOException ioe) {
                 errorStream.println("Error writing tree file: " + ioe.getMessage());
                 System.exit(1);
             }
         }
 
-        try {
-            int count = 0;
-            while (importer.hasTree()) {
-                RootedTree tree = function.processTree((RootedTree) importer.importNextTree());
-
-                if (exporter != null) {
-                    exporter.exportTree(tree);
-                }
-                count++;
-                if (isVerbose && count % 100 == 0) {
-                    outStream.println("Number of trees processed: " + count);
+        final TreeExporter treeExporter = exporter;
+        processTrees(treeFileName, threadCount, function::processTree, tree -> {
+            if (treeExporter != null) {
+                startPhase("write");
+                try {
+                    treeExporter.exportTree(tree);
+                } catch (UncheckedIOException uioe) {
+                    throw uioe.getCause();
                 }
+                endPhase();
             }
+        });
 
-            if (exporter != null) {
+        if (exporter != null) {
+            startPhase("write");
+            try {
                 exporter.close();
+            } catch (UncheckedIOException uioe) {
+                errorStream.println("Error writing tree file: " + uioe.getCause().getMessage());
+                System.exit(1);
+            }
+            endPhase();
+        }
+    }
+
+    /**
+     * Reads each tree in a file, applies the function and passes the result to the collector. If
+     * threadCount is greater than 1 then the trees are parsed and the function applied concurrently
+     * (so the function must be thread safe) but the collector is always given the results on the
+     * calling thread in the original order of the trees.
+     * @param treeFileName
+     * @param threadCount
+     * @param function
+     * @param collector
+     * @param <T>
+     */
+    final <T> void processTrees(String treeFileName, int threadCount, Function<RootedTree, T> function, TreeResultCollector<T> collector) {
+
+        if (isVerbose) {
+            outStream.println("  Reading treefile: " + treeFileName);
+        }
+
+        TreeImporter importer = null;
+
+        try {
+            importer = createTreeImporter(treeFileName);
+            if (importer == null) {
+                errorStream.println("Unrecognised tree format in file, " + treeFileName);
+                System.exit(1);
+            }
+        } catch (IOException ioe) {
+            errorStream.println("Error reading tree file: " + ioe.getMessage());
+            System.exit(1);
+        }
+
+        long startTime = System.nanoTime();
+
+        try {
+            treeIndex = 0;
+            BitSet sample = null;
+            if (sampleSize > 0) {
+                sample = sampleTrees(treeFileName);
+            }
+
+            int count;
+            if (threadCount > 1 && importer instanceof SplittableTreeImporter) {
+                if (isVerbose) {
+                    outStream.println("           Threads: " + threadCount);
+                }
+                count = processTreesConcurrently((SplittableTreeImporter) importer, sample, threadCount, function, collector);
+            } else {
+                count = 0;
+                RootedTree tree;
+                while ((tree = readNextSelectedTree(importer, sample)) != null) {
+                    collector.collect(function.apply(tree));
+                    count++;
+                    if (isVerbose && count % 100 == 0) {
+                        outStream.println("Number of trees processed: " + count);
+                    }
+                }
             }
 
             if (isVerbose) {
                 outStream.println("Total trees processed: " + count);
+                outStream.println("  Processing time: " + String.format("%.3f", (System.nanoTime() - startTime) / 1.0E9) + " secs");
                 outStream.println();
             }
 
@@ -245,18 +360,210 @@ public class TreeFunk extends Funk {
 
     }
 
+    /**
+     * The main thread splits the file into the raw text of each tree and hands these to a pool of
+     * workers to parse and process. The pending results are held in a queue in file order and are
+     * collected from its head so the output is the same as when processed sequentially. The queue
+     * is bounded so the reader can't get too far ahead of the workers.
+     * @return the number of trees processed
+     */
+    private <T> int processTreesConcurrently(SplittableTreeImporter importer, BitSet sample, int threadCount,
+                                             Function<RootedTree, T> function, TreeResultCollector<T> collector) throws IOException, ImportException {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "tree-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int maxPending = threadCount * 4;
+        Deque<Future<T>> pending = new ArrayDeque<>();
 
+        int count = 0;
+        try {
+            byte[] bytes = readNextSelectedTreeBytes(importer, sample);
+            while (bytes != null || !pending.isEmpty()) {
+                while (bytes != null && pending.size() < maxPending) {
+                    final byte[] treeBytes = bytes;
+                    pending.add(executor.submit(() -> function.apply(importer.parseTreeBytes(treeBytes))));
+                    bytes = readNextSelectedTreeBytes(importer, sample);
+                }
 
-    private FormatType getTreeFileType(Reader reader) throws IOException {
-//        String line = bufferedReader.readLine();
-//        while (line != null && line.length() == 0) {
-//            line = bufferedReader.readLine();
-//        }
+                collector.collect(getResult(pending.removeFirst()));
+                count++;
+                if (isVerbose && count % 100 == 0) {
+                    outStream.println("Number of trees processed: " + count);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return count;
+    }
+
+    private RootedTree readNextSelectedTree(TreeImporter importer, BitSet sample) throws IOException, ImportException {
+        startPhase("read tree");
+        RootedTree tree = null;
+        if (skipUnselectedTrees((CompactTreeImporter) importer, sample) && importer.hasTree()) {
+            tree = (RootedTree) importer.importNextTree();
+            treeIndex++;
+        }
+        endPhase();
+        return tree;
+    }
+
+    private byte[] readNextSelectedTreeBytes(SplittableTreeImporter importer, BitSet sample) throws IOException, ImportException {
+        startPhase("read tree");
+        byte[] bytes = null;
+        if (skipUnselectedTrees((CompactTreeImporter) importer, sample)) {
+            bytes = importer.readNextTreeBytes();
+            treeIndex++;
+        }
+        endPhase();
+        return bytes;
+    }
+
+    /**
+     * Skips trees until the next one that has been selected (by the burnin, thinning and sample).
+     * @return false if there are no more trees
+     */
+    private boolean skipUnselectedTrees(CompactTreeImporter importer, BitSet sample) throws IOException, ImportException {
+        if (sample != null && treeIndex >= burnin && (treeIndex - burnin) / thin >= sample.length()) {
+            // all the sampled trees have been read
+            return false;
+        }
+        while (!isTreeSelected(treeIndex, sample)) {
+            if (!importer.skipNextTree()) {
+                return false;
+            }
+            treeIndex++;
+        }
+        return true;
+    }
+
+    private boolean isTreeSelected(int index, BitSet sample) {
+        if (index < burnin || (index - burnin) % thin != 0) {
+            return false;
+        }
+        return sample == null || sample.get((index - burnin) / thin);
+    }
+
+    /**
+     * Counts the trees in the file (skipping over them) and chooses a random sample of sampleSize
+     * of those left after the burnin and thinning.
+     * @return the positions of the chosen trees (among those left) or null if all are to be kept
+     */
+    private BitSet sampleTrees(String treeFileName) throws IOException, ImportException {
+        int count = 0;
+        try (BufferedInputStream input = new BufferedInputStream(openInputStream(treeFileName), 1 << 16)) {
+            CompactTreeImporter importer = (CompactTreeImporter) createTreeImporter(input);
+            while (importer.skipNextTree()) {
+                count++;
+            }
+        }
+        int keptCount = Math.max(0, (count - burnin + thin - 1) / thin);
+
+        if (isVerbose) {
+            outStream.println("  Number of trees: " + count);
+            outStream.println("   Sampling trees: " + Math.min(sampleSize, keptCount) + " of " + keptCount + " (seed " + seed + ")");
+        }
+
+        if (sampleSize >= keptCount) {
+            return null;
+        }
+
+        // Floyd's algorithm for choosing sampleSize distinct positions
+        Random random = new Random(seed);
+        BitSet sample = new BitSet(keptCount);
+        for (int i = keptCount - sampleSize; i < keptCount; i++) {
+            int j = random.nextInt(i + 1);
+            sample.set(sample.get(j) ? i : j);
+        }
+        return sample;
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException, ImportException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing trees");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof ImportException) {
+                throw (ImportException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * The node and branch attributes needed by a command that reads trees and writes them out
+     * again: none if they are to be written as Newick (which has no attributes) otherwise all.
+     * @param commandLine
+     * @return
+     */
+    static Set<String> getOutputTreeAttributeNames(CommandLine commandLine) {
+        if ("newick".equalsIgnoreCase(commandLine.getOptionValue("f"))) {
+            return Collections.emptySet();
+        }
+        return null;
+    }
+
+    /**
+     * Creates a streaming importer for the tree file
+     * @param treeFileName
+     * @return the importer or null if the file is not a recognised tree format
+     * @throws IOException
+     */
+    private TreeImporter createTreeImporter(String treeFileName) throws IOException {
+        return createTreeImporter(new BufferedInputStream(openInputStream(treeFileName), 1 << 16));
+    }
 
-        char[] head = new char[1024];
+    private TreeImporter createTreeImporter(BufferedInputStream input) throws IOException {
+        FormatType format = getTreeFileType(input);
 
-        int charsRead = reader.read(head, 0, head.length);
-        String headString = new String(head).trim().toUpperCase();
+        if (format == FormatType.NEXUS) {
+            return new NexusTreeImporter(input, getTreeAttributeNames());
+        } else if (format == FormatType.NEWICK) {
+            return new NewickTreeImporter(input, getTreeAttributeNames());
+        } else if (format == FormatType.BINARY) {
+            return new BinaryTreeImporter(input);
+        }
+        input.close();
+        return null;
+    }
+
+    /**
+     * Looks at the start of the file to determine the tree format. The stream is reset back to the
+     * start afterwards.
+     * @param input
+     * @return the format or null if not a tree file
+     * @throws IOException
+     */
+    private FormatType getTreeFileType(BufferedInputStream input) throws IOException {
+        byte[] head = new byte[1024];
+
+        input.mark(head.length);
+        int length = 0;
+        int n;
+        while (length < head.length && (n = input.read(head, length, head.length - length)) > 0) {
+            length += n;
+        }
+        input.reset();
+
+        if (BinaryTreeImporter.isBinaryTreeFile(head, length)) {
+            return FormatType.BINARY;
+        }
+
+        String headString = new String(head, 0, length, StandardCharsets.ISO_8859_1).trim().toUpperCase();
 
         if (headString.startsWith("#NEXUS")) {
             return FormatType.NEXUS;
@@ -289,6 +596,31 @@ public class TreeFunk extends Funk {
         return taxonMap;
     }
 
+    /**
+     * Gets the index (the whole label or one field of it) for each tip label
+     * @param tree
+     * @return a map of tip labels to indices
+     */
+    final Map<String, String> getLabelMap(CompactTree tree) {
+        Map<String, String> labelMap = new HashMap<>();
+
+        for (String label : tree.getLabels()) {
+            String index = label;
+            if (indexHeader > 0) { // index header indexed from 1
+                // if an index header field has been specified then split it out (otherwise use the entire name)
+                String[] headers = label.split(headerDelimiter);
+                if (indexHeader > headers.length) {
+                    errorStream.println("Tip name, " + label + ", doesn't have enough fields (index-header = " + indexHeader + ")");
+                    System.exit(1);
+                }
+                index = headers[indexHeader - 1];
+            }
+            labelMap.put(label, index);
+        }
+
+        return labelMap;
+    }
+
 
     final Map<String, Node> getTipMap(RootedTree tree) {
         Map<String, Node> tipMap = new HashMap<>();
@@ -401,10 +733,11 @@ public class TreeFunk extends Funk {
     }
 
     String getTipAnnotation(String tipIndex, String columnName, boolean ignoreMissing) {
-        CSVRecord record = metadata.get(tipIndex);
-        if (record != null) {
-            if (!record.get(columnName).isEmpty()) {
-                return record.get(columnName);
+        int row = metadata.getRowIndex(tipIndex);
+        if (row >= 0) {
+            String value = metadata.getString(row, columnName);
+            if (!value.isEmpty()) {
+                return value;
             }
         } else if (!ignoreMissing) {
             errorStream.println("Tip index, " + tipIndex + ", not found in metadata table");
@@ -558,34 +891,72 @@ public class TreeFunk extends Funk {
         writeTreeFile(Collections.singletonList(tree), fileName, format);
     }
 
+    /**
+     * Writes a compact tree
+     * @param tree
+     * @param fileName
+     */
+    void writeTreeFile(CompactTree tree, String fileName, FormatType format) {
+        writeTreeFile(tree, fileName, format, TreeWriter.DEFAULT_LENGTH_PRECISION);
+    }
+
+    /**
+     * Writes a compact tree
+     * @param tree
+     * @param fileName
+     * @param lengthPrecision the significant digits for branch lengths or 0 to write them in full
+     */
+    void writeTreeFile(CompactTree tree, String fileName, FormatType format, int lengthPrecision) {
+        startPhase("write");
+        try {
+            CompactTreeExporter exporter = createTreeExporter(fileName, format, lengthPrecision);
+            exporter.exportCompactTree(tree);
+            exporter.close();
+        } catch (IOException | UncheckedIOException e) {
+            errorStream.println("Error writing tree file: " + e.getMessage());
+            System.exit(1);
+        }
+        endPhase();
+    }
+
     /**
      * Writes a tree file with a list of trees
      * @param trees
      * @param fileName
      */
     void writeTreeFile(List<RootedTree> trees, String fileName, FormatType format) {
+        startPhase("write");
         try {
-            FileWriter writer = new FileWriter(fileName);
-
-            TreeExporter exporter;
-
-            switch (format) {
-                case NEXUS:
-                    exporter = new NexusExporter(writer);
-                    break;
-                case NEWICK:
-                    exporter = new NewickExporter(writer);
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unknown format: " + format);
-            }
+            TreeExporter exporter = createTreeExporter(fileName, format, TreeWriter.DEFAULT_LENGTH_PRECISION);
 
             exporter.exportTrees(trees);
             exporter.close();
-        } catch (IOException e) {
+        } catch (IOException | UncheckedIOException e) {
             errorStream.println("Error writing tree file: " + e.getMessage());
             System.exit(1);
         }
+        endPhase();
+    }
+
+    /**
+     * Creates an exporter to write a tree file in the given format
+     * @param fileName
+     * @param format
+     * @param lengthPrecision the significant digits for branch lengths or 0 to write them in full
+     * @return the exporter
+     * @throws IOException
+     */
+    private CompactTreeExporter createTreeExporter(String fileName, FormatType format, int lengthPrecision) throws IOException {
+        switch (format) {
+            case NEXUS:
+                return new NexusTreeExporter(openChannel(fileName), lengthPrecision);
+            case NEWICK:
+                return new NewickTreeExporter(openChannel(fileName), lengthPrecision);
+            case BINARY:
+                return new BinaryTreeExporter(openOutputStream(fileName));
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
+        }
     }
 
     /**
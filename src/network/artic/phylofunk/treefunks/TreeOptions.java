@@ -27,12 +27,20 @@ class TreeOptions extends FunkOptions {
 
     final static Option OUTPUT_FORMAT = Option.builder("f")
             .longOpt("format")
-            .argName("nexus|newick")
+            .argName("nexus|newick|binary")
             .hasArg()
             .required(false)
-            .desc("output file format (nexus or newick)")
+            .desc("output file format (nexus, newick or binary)")
             .type(String.class).build();
 
+    final static Option PRECISION = Option.builder()
+            .longOpt("precision")
+            .argName("digits")
+            .hasArg()
+            .required(false)
+            .desc("significant digits for branch lengths in nexus and newick output (default 6, 0 for full precision)")
+            .type(Integer.class).build();
+
     final static Option OUTPUT_TAXA = Option.builder()
             .longOpt("output-taxa")
             .required(false)
@@ -261,5 +269,37 @@ class TreeOptions extends FunkOptions {
             .desc("find the time of the stem above the MRCA (default false)")
             .type(String.class).build();
 
+    final static Option BURNIN = Option.builder()
+            .longOpt("burnin")
+            .argName("number")
+            .hasArg()
+            .required(false)
+            .desc("the number of trees to discard from the start of the file (default 0)")
+            .type(Integer.class).build();
+
+    final static Option THIN = Option.builder()
+            .longOpt("thin")
+            .argName("number")
+            .hasArg()
+            .required(false)
+            .desc("only use every nth tree after the burnin (default 1)")
+            .type(Integer.class).build();
+
+    final static Option SAMPLE_SIZE = Option.builder()
+            .longOpt("sample")
+            .argName("number")
+            .hasArg()
+            .required(false)
+            .desc("use a random sample of this many trees (after the burnin and thinning)")
+            .type(Integer.class).build();
+
+    final static Option SEED = Option.builder()
+            .longOpt("seed")
+            .argName("number")
+            .hasArg()
+            .required(false)
+            .desc("the random number seed for --sample (default from the clock)")
+            .type(Long.class).build();
+
 }
 
@@ -0,0 +1,606 @@
+package network.artic.phylofunk.treefunks;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.io.ImportException;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.SimpleRootedTree;
+import jebl.util.Attributable;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds jebl trees from the tokens of a TreeTokenizer. The Newick is read with an explicit stack
+ * rather than recursively (so very deep trees don't overflow) and the nodes are created directly.
+ * Tip labels are looked up in a table keyed on the raw bytes so labels seen in previous trees
+ * don't have to be decoded again, or, for NEXUS files with a translate block, straight from the
+ * tip number to the taxon.
+ *
+ * The semantics follow jebl's NewickImporter and NexusImporter: branch lengths default to 1.0
+ * for Newick trees and are left unset for NEXUS trees; internal node labels become a 'label'
+ * attribute and meta comments ('[&...]') become node or branch attributes.
+ *
+ * The attributes read can be limited to a set of names (see setAttributeNames). Values of other
+ * attributes are not parsed and if no attributes are wanted the tokenizer skips the meta comments
+ * without storing them.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+final class TreeParser {
+    static final boolean[] NODE_DELIMITERS = TreeTokenizer.delimiters(":(),;");
+    static final boolean[] LENGTH_DELIMITERS = TreeTokenizer.delimiters(",():;");
+
+    private static final Pattern META_COMMENT_PATTERN = Pattern.compile(
+            "(\"[^\"]*\"+|[^,=\\s]+)\\s*(=\\s*(\\{(\\{[^\\}]+\\},?)+\\}|\\{[^\\}]+\\}|\"[^\"]*\"+|[^,]+))?");
+
+    private final TreeTokenizer tokenizer;
+    private final boolean isNexus;
+
+    private final List<Node> nodeStack = new ArrayList<>();
+    private int[] cladeStarts = new int[64];
+    private int[] compactStack = new int[64];
+    private int compactTreeCapacity = 1024;
+
+    private byte[][] labelKeys = new byte[1024][];
+    private String[] labelNames = new String[1024];
+    private Taxon[] labelTaxa = new Taxon[1024];
+    private int labelCount = 0;
+
+    private Map<String, Taxon> translationMap = null;
+    private Taxon[] translationTable = null;
+
+    private String lastLabel = null;
+
+    private Set<String> attributeNames = null;
+
+    /**
+     * Constructor
+     * @param tokenizer
+     * @param isNexus whether to follow the NEXUS rules for lengths, labels and errors
+     */
+    TreeParser(TreeTokenizer tokenizer, boolean isNexus) {
+        this.tokenizer = tokenizer;
+        this.isNexus = isNexus;
+    }
+
+    TreeTokenizer getTokenizer() {
+        return tokenizer;
+    }
+
+    /**
+     * Limits the node and branch attributes that are read to the given names (an internal node
+     * label is the attribute 'label'). Tree attributes are always read.
+     * @param attributeNames the names of the attributes to keep or null to keep all of them
+     */
+    void setAttributeNames(Set<String> attributeNames) {
+        this.attributeNames = attributeNames;
+    }
+
+    /**
+     * Sets a translation from tip tokens to taxa (as given by a NEXUS translate block or taxa
+     * block). Any tip not in the map is an error. Integer keys (as written by BEAST and most
+     * other programs) are also put into an array so the tip tokens can be looked up directly from
+     * their bytes.
+     * @param translationMap
+     */
+    void setTranslation(Map<String, Taxon> translationMap) {
+        if (translationMap.isEmpty()) {
+            this.translationMap = null;
+            this.translationTable = null;
+            return;
+        }
+        this.translationMap = translationMap;
+
+        int maxKey = -1;
+        for (String key : translationMap.keySet()) {
+            int value = parseIndex(key);
+            if (value > maxKey) {
+                maxKey = value;
+            }
+        }
+        if (maxKey >= 0 && maxKey <= translationMap.size() * 4) {
+            translationTable = new Taxon[maxKey + 1];
+            for (Map.Entry<String, Taxon> entry : translationMap.entrySet()) {
+                int value = parseIndex(entry.getKey());
+                if (value >= 0) {
+                    translationTable[value] = entry.getValue();
+                }
+            }
+        } else {
+            translationTable = null;
+        }
+    }
+
+    /**
+     * @return the key as a non-negative integer or -1 if it isn't one in canonical form
+     */
+    private static int parseIndex(String key) {
+        if (key.length() == 0 || key.length() > 9 || (key.length() > 1 && key.charAt(0) == '0')) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char ch = key.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            value = value * 10 + (ch - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Reads a tree. The tokenizer should be positioned at the opening '(' of the tree and on
+     * return the last delimiter will be the one following the root (usually ';').
+     * @return
+     */
+    SimpleRootedTree readTree() throws IOException, ImportException {
+        SimpleRootedTree tree = new SimpleRootedTree();
+
+        nodeStack.clear();
+        tokenizer.setSkippingMetaComments(attributeNames != null && attributeNames.isEmpty());
+        int depth = 0;
+
+        tokenizer.readCharacter(); // the opening '('
+        cladeStarts[depth++] = 0;
+
+        while (true) {
+            // the start of a branch
+            tokenizer.clearMetaComments();
+            int ch = tokenizer.nextCharacter();
+            if (ch < 0) {
+                throw new ImportException.BadFormatException("Unexpected end of file in tree");
+            }
+            if (ch == '(') {
+                tokenizer.readCharacter();
+                if (depth == cladeStarts.length) {
+                    cladeStarts = Arrays.copyOf(cladeStarts, depth * 2);
+                }
+                cladeStarts[depth++] = nodeStack.size();
+                continue;
+            }
+
+            Node node = readExternalNode(tree);
+
+            while (true) {
+                readBranchLength(tree, node);
+                nodeStack.add(node);
+
+                int delimiter = tokenizer.getLastDelimiter();
+                if (delimiter == ',') {
+                    break;
+                }
+                if (delimiter != ')') {
+                    throw new ImportException.BadFormatException("Missing closing ')' in tree" +
+                            (lastLabel != null && !isNexus ? " - after tip " + lastLabel : ""));
+                }
+
+                // close the clade
+                depth--;
+                List<Node> children = nodeStack.subList(cladeStarts[depth], nodeStack.size());
+                node = tree.createInternalNode(children);
+                children.clear();
+
+                readInternalNodeLabel(node);
+
+                if (depth == 0) {
+                    tokenizer.setSkippingMetaComments(false);
+                    return tree;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a tree into a CompactTree. As readTree but the nodes are indices held on an int stack.
+     * @return
+     */
+    CompactTree readCompactTree() throws IOException, ImportException {
+        CompactTree tree = new CompactTree(compactTreeCapacity);
+
+        int nodeCount = 0;
+        tokenizer.setSkippingMetaComments(attributeNames != null && attributeNames.isEmpty());
+        int depth = 0;
+
+        tokenizer.readCharacter(); // the opening '('
+        cladeStarts[depth++] = 0;
+
+        while (true) {
+            // the start of a branch
+            tokenizer.clearMetaComments();
+            int ch = tokenizer.nextCharacter();
+            if (ch < 0) {
+                throw new ImportException.BadFormatException("Unexpected end of file in tree");
+            }
+            if (ch == '(') {
+                tokenizer.readCharacter();
+                if (depth == cladeStarts.length) {
+                    cladeStarts = Arrays.copyOf(cladeStarts, depth * 2);
+                }
+                cladeStarts[depth++] = nodeCount;
+                continue;
+            }
+
+            int node = readExternalNode(tree);
+
+            while (true) {
+                readBranchLength(tree, node);
+                if (nodeCount == compactStack.length) {
+                    compactStack = Arrays.copyOf(compactStack, nodeCount * 2);
+                }
+                compactStack[nodeCount++] = node;
+
+                int delimiter = tokenizer.getLastDelimiter();
+                if (delimiter == ',') {
+                    break;
+                }
+                if (delimiter != ')') {
+                    throw new ImportException.BadFormatException("Missing closing ')' in tree" +
+                            (lastLabel != null && !isNexus ? " - after tip " + lastLabel : ""));
+                }
+
+                // close the clade
+                depth--;
+                node = tree.addInternalNode(compactStack, cladeStarts[depth], nodeCount);
+                nodeCount = cladeStarts[depth];
+
+                readInternalNodeLabel(tree.getNodeAttributes(node));
+
+                if (depth == 0) {
+                    // start the next tree with room for as many nodes as this one
+                    compactTreeCapacity = tree.getNodeCount();
+                    tokenizer.setSkippingMetaComments(false);
+                    return tree;
+                }
+            }
+        }
+    }
+
+    private int readExternalNode(CompactTree tree) throws IOException, ImportException {
+        tokenizer.readToken(NODE_DELIMITERS);
+
+        if (tokenizer.getTokenLength() == 0) {
+            throw new ImportException.UnknownTaxonException("Emtpy node names are not allowed.");
+        }
+
+        String label = getLabel();
+        lastLabel = label;
+
+        int node;
+        try {
+            node = tree.addExternalNode(label);
+        } catch (IllegalArgumentException iae) {
+            throw new ImportException.DuplicateTaxaException(iae.getMessage());
+        }
+        if (tokenizer.getMetaComments().size() > 0) {
+            parseAndClearMetaComments(tree.getNodeAttributes(node));
+        }
+
+        return node;
+    }
+
+    private void readBranchLength(CompactTree tree, int node) throws IOException, ImportException {
+        if (tokenizer.getLastDelimiter() == ':') {
+            tree.setLength(node, tokenizer.readDouble(LENGTH_DELIMITERS));
+            if (tokenizer.getMetaComments().size() > 0) {
+                parseAndClearMetaComments(tree.getEdgeAttributes(node));
+            }
+        } else if (!isNexus) {
+            tree.setLength(node, 1.0);
+        }
+    }
+
+    private Node readExternalNode(SimpleRootedTree tree) throws IOException, ImportException {
+        tokenizer.readToken(NODE_DELIMITERS);
+
+        if (tokenizer.getTokenLength() == 0) {
+            throw new ImportException.UnknownTaxonException("Emtpy node names are not allowed.");
+        }
+
+        Taxon taxon = getTaxon();
+        lastLabel = taxon.getName();
+
+        Node node;
+        try {
+            node = tree.createExternalNode(taxon);
+        } catch (IllegalArgumentException iae) {
+            throw new ImportException.DuplicateTaxaException(iae.getMessage());
+        }
+        parseAndClearMetaComments(node);
+
+        return node;
+    }
+
+    private void readInternalNodeLabel(Attributable node) throws IOException, ImportException {
+        tokenizer.readToken(NODE_DELIMITERS);
+        if (tokenizer.getTokenLength() > 0) {
+            String label = tokenizer.getToken();
+            if (isNexus) {
+                label = label.trim();
+            }
+            if (label.length() > 0 && (attributeNames == null || attributeNames.contains("label"))) {
+                node.setAttribute("label", parseValue(label));
+            }
+        }
+        parseAndClearMetaComments(node);
+    }
+
+    private void readBranchLength(SimpleRootedTree tree, Node node) throws IOException, ImportException {
+        if (tokenizer.getLastDelimiter() == ':') {
+            tree.setLength(node, tokenizer.readDouble(LENGTH_DELIMITERS));
+            if (tokenizer.getMetaComments().size() > 0) {
+                parseAndClearMetaComments(tree.getParentEdge(node));
+            }
+        } else if (!isNexus) {
+            tree.setLength(node, 1.0);
+        }
+    }
+
+    /**
+     * Finds the taxon for the current token, only decoding the label the first time it is seen.
+     * @return
+     */
+    private Taxon getTaxon() throws ImportException {
+        if (translationMap != null) {
+            return getTranslatedTaxon();
+        }
+
+        int index = findLabel();
+        Taxon taxon = labelTaxa[index];
+        if (taxon == null) {
+            try {
+                taxon = Taxon.getTaxon(labelNames[index]);
+            } catch (IllegalArgumentException iae) {
+                if (isNexus) {
+                    throw new ImportException.UnknownTaxonException(iae.getMessage());
+                }
+                throw new ImportException.DuplicateTaxaException(iae.getMessage());
+            }
+            labelTaxa[index] = taxon;
+        }
+        return taxon;
+    }
+
+    /**
+     * Finds the label for the current token without making a jebl Taxon for it (which is slow
+     * for very large numbers of tips).
+     * @return
+     */
+    private String getLabel() throws ImportException {
+        if (translationMap != null) {
+            return getTranslatedTaxon().getName();
+        }
+        int index = findLabel();
+        return labelNames[index];
+    }
+
+    private Taxon getTranslatedTaxon() throws ImportException {
+        byte[] bytes = tokenizer.getTokenBytes();
+        int length = tokenizer.getTokenLength();
+
+        if (translationTable != null && length <= 9 && (length == 1 || bytes[0] != '0')) {
+            int index = 0;
+            for (int i = 0; i < length && index >= 0; i++) {
+                index = (bytes[i] >= '0' && bytes[i] <= '9' ? index * 10 + (bytes[i] - '0') : -1);
+            }
+            if (index >= 0 && index < translationTable.length && translationTable[index] != null) {
+                return translationTable[index];
+            }
+        }
+        String label = tokenizer.getToken();
+        Taxon taxon = translationMap.get(label);
+        if (taxon == null) {
+            throw new ImportException.UnknownTaxonException("Taxon in tree, '" + label + "' is unknown");
+        }
+        return taxon;
+    }
+
+    /**
+     * Looks up the current token in the table of labels, adding it if it hasn't been seen before.
+     * @return the position in the table
+     */
+    private int findLabel() {
+        byte[] bytes = tokenizer.getTokenBytes();
+        int length = tokenizer.getTokenLength();
+
+        if ((labelCount + 1) * 2 > labelKeys.length) {
+            rehashLabels();
+        }
+
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+
+        int mask = labelKeys.length - 1;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        while (labelKeys[index] != null) {
+            byte[] key = labelKeys[index];
+            if (key.length == length && equals(key, bytes, length)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+
+        labelKeys[index] = Arrays.copyOf(bytes, length);
+        labelNames[index] = tokenizer.getToken();
+        labelCount++;
+        return index;
+    }
+
+    private static boolean equals(byte[] key, byte[] bytes, int length) {
+        for (int i = 0; i < length; i++) {
+            if (key[i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehashLabels() {
+        byte[][] oldKeys = labelKeys;
+        String[] oldNames = labelNames;
+        Taxon[] oldTaxa = labelTaxa;
+        labelKeys = new byte[oldKeys.length * 2][];
+        labelNames = new String[oldKeys.length * 2];
+        labelTaxa = new Taxon[oldKeys.length * 2];
+        int mask = labelKeys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            byte[] key = oldKeys[i];
+            if (key != null) {
+                int hash = 0;
+                for (byte b : key) {
+                    hash = 31 * hash + b;
+                }
+                int index = (hash ^ (hash >>> 16)) & mask;
+                while (labelKeys[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                labelKeys[index] = key;
+                labelNames[index] = oldNames[i];
+                labelTaxa[index] = oldTaxa[i];
+            }
+        }
+    }
+
+    void parseAndClearMetaComments(Attributable item) throws ImportException.BadFormatException {
+        List<String> comments = tokenizer.getMetaComments();
+        if (comments.size() > 0) {
+            for (String comment : comments) {
+                parseMetaCommentPairs(comment, item, attributeNames);
+            }
+            tokenizer.clearMetaComments();
+        }
+    }
+
+    /**
+     * Parses the key=value pairs of a meta comment into attributes (as jebl's NexusImporter).
+     * @param meta
+     * @param item
+     */
+    static void parseMetaCommentPairs(String meta, Attributable item) throws ImportException.BadFormatException {
+        parseMetaCommentPairs(meta, item, null);
+    }
+
+    /**
+     * Parses the key=value pairs of a meta comment into attributes but only those with the given
+     * names.
+     * @param meta
+     * @param item
+     * @param attributeNames the names of the attributes to keep or null to keep all of them
+     */
+    private static void parseMetaCommentPairs(String meta, Attributable item, Set<String> attributeNames) throws ImportException.BadFormatException {
+        if (attributeNames != null && !containsAny(meta, attributeNames)) {
+            // none of the wanted attributes can be in this comment
+            return;
+        }
+
+        Matcher matcher = META_COMMENT_PATTERN.matcher(meta);
+
+        while (matcher.find()) {
+            String label = matcher.group(1);
+            if (label.charAt(0) == '\"') {
+                label = label.substring(1, label.length() - 1);
+            }
+            if (label.trim().length() == 0) {
+                throw new ImportException.BadFormatException("Badly formatted attribute: '" + matcher.group() + "'");
+            }
+            if (attributeNames != null && !attributeNames.contains(label)) {
+                continue;
+            }
+            final String value = matcher.group(2);
+            if (value != null && value.trim().length() > 0) {
+                // there is a specified value so try to parse it
+                item.setAttribute(label, parseValue(value.substring(1)));
+            } else {
+                item.setAttribute(label, Boolean.TRUE);
+            }
+        }
+    }
+
+    private static boolean containsAny(String meta, Set<String> attributeNames) {
+        for (String name : attributeNames) {
+            if (meta.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses an attribute value into an array, colour, string, boolean, integer or double (as
+     * jebl's NexusImporter).
+     * @param value
+     * @return
+     */
+    static Object parseValue(String value) {
+        value = value.trim();
+
+        if (value.startsWith("{")) {
+            // the value is a list so recursively parse the elements
+            // and return an array
+            value = value.substring(1, value.length() - 1);
+            String[] elements;
+            if (value.startsWith("{")) {
+                elements = value.replaceAll("\\},\\{", "}@,@{").split("@,@");
+            } else {
+                elements = value.split(",");
+            }
+            Object[] values = new Object[elements.length];
+            for (int i = 0; i < elements.length; i++) {
+                values[i] = parseValue(elements[i]);
+            }
+            return values;
+        }
+
+        if (value.startsWith("#")) {
+            // I am not sure whether this is a good idea but
+            // I am going to assume that a # denotes an RGB colour
+            String colourValue = value.substring(1);
+            if (colourValue.startsWith("-")) {
+                // old style decimal colour
+                try {
+                    return Color.decode(colourValue);
+                } catch (NumberFormatException nfe1) {
+                    // not a colour
+                }
+            } else {
+                return Color.decode("0x" + colourValue);
+            }
+        }
+
+        // A string qouted by a nexus exporter or similar
+        if (value.startsWith("\"") && value.endsWith("\"")) {
+            return value.subSequence(1, value.length() - 1);
+        }
+
+        if (value.equalsIgnoreCase("TRUE") || value.equalsIgnoreCase("FALSE")) {
+            return Boolean.valueOf(value);
+        }
+
+        // Attempt to format the value as an integer
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException nfe1) {
+            // not an integer
+        }
+
+        // Attempt to format the value as a double
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException nfe2) {
+            // not a double
+        }
+
+        // return the trimmed string
+        return value;
+    }
+}
@@ -0,0 +1,613 @@
+package network.artic.phylofunk.treefunks;
+
+import jebl.evolution.io.ImportException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A byte-oriented tokenizer for Newick and NEXUS tree files. Reads from a large buffer rather
+ * than character by character through a Reader and decodes tokens in place so that labels and
+ * branch lengths don't need to go through intermediate Strings. Follows the tokenizing rules of
+ * jebl's ImportHelper (quoting, comment and delimiter handling) so the trees built are the same.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+final class TreeTokenizer {
+    static final int BUFFER_SIZE = 1 << 20;
+
+    private static final boolean[] WHITESPACE = new boolean[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            WHITESPACE[i] = i < 128 && Character.isWhitespace((char) i);
+        }
+    }
+
+    // the characters after which a quote starts a quoted label
+    private static final boolean[] TOKEN_STARTS = delimiters("(),:=");
+    static {
+        for (int i = 0; i < 256; i++) {
+            TOKEN_STARTS[i] |= WHITESPACE[i];
+        }
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final InputStream input;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+
+    private byte[] token = new byte[256];
+    private int tokenLength = 0;
+    private boolean tokenIsAscii = true;
+
+    private int lastDelimiter = 0;
+
+    private byte[] comment = new byte[256];
+    private int commentLength = 0;
+    private final List<String> metaComments = new ArrayList<>();
+    private boolean isSkippingMetaComments = false;
+
+    private byte[] statement = new byte[1024];
+    private int statementLength = 0;
+
+    /**
+     * Constructor for a tokenizer reading from a stream
+     * @param input
+     */
+    TreeTokenizer(InputStream input) {
+        this.input = input;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.position = 0;
+        this.limit = 0;
+    }
+
+    /**
+     * Constructor for a tokenizer over a block of bytes already in memory
+     * @param bytes
+     * @param offset
+     * @param length
+     */
+    TreeTokenizer(byte[] bytes, int offset, int length) {
+        this.input = null;
+        this.buffer = bytes;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Resets a tokenizer created over a block of bytes to read a new block.
+     * @param bytes
+     * @param offset
+     * @param length
+     */
+    void setInput(byte[] bytes, int offset, int length) {
+        if (input != null) {
+            throw new IllegalStateException("Tokenizer is reading from a stream");
+        }
+        this.buffer = bytes;
+        this.position = offset;
+        this.limit = offset + length;
+        this.lastDelimiter = 0;
+        this.metaComments.clear();
+    }
+
+    /**
+     * Creates a delimiter table for use with readToken
+     * @param delimiters
+     * @return
+     */
+    static boolean[] delimiters(String delimiters) {
+        boolean[] table = new boolean[256];
+        for (int i = 0; i < delimiters.length(); i++) {
+            table[delimiters.charAt(i)] = true;
+        }
+        return table;
+    }
+
+    private boolean fill() throws IOException {
+        if (position < limit) {
+            return true;
+        }
+        if (input == null) {
+            return false;
+        }
+        int count;
+        do {
+            count = input.read(buffer, 0, buffer.length);
+        } while (count == 0);
+        if (count < 0) {
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+
+    /**
+     * @return the next byte (consumed) or -1 at the end of the input
+     */
+    int read() throws IOException {
+        if (position >= limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    /**
+     * @return the next byte (not consumed) or -1 at the end of the input
+     */
+    int peek() throws IOException {
+        if (position >= limit && !fill()) {
+            return -1;
+        }
+        return buffer[position] & 0xFF;
+    }
+
+    /**
+     * Skips whitespace and comments and returns the next character without consuming it.
+     * @return the next character or -1 at the end of the input
+     */
+    int nextCharacter() throws IOException {
+        while (true) {
+            int ch = peek();
+            if (ch < 0) {
+                return -1;
+            }
+            if (WHITESPACE[ch]) {
+                position++;
+            } else if (ch == '[') {
+                position++;
+                skipComment(false);
+            } else {
+                return ch;
+            }
+        }
+    }
+
+    /**
+     * Skips whitespace and comments and returns the next character, consuming it.
+     * @return the next character or -1 at the end of the input
+     */
+    int readCharacter() throws IOException {
+        int ch = nextCharacter();
+        if (ch >= 0) {
+            position++;
+        }
+        return ch;
+    }
+
+    /**
+     * Skips raw bytes up to the given character which is left unconsumed.
+     * @param target
+     * @return false if the end of the input was reached first
+     */
+    boolean skipUntil(int target) throws IOException {
+        while (true) {
+            if (position >= limit && !fill()) {
+                return false;
+            }
+            while (position < limit) {
+                if ((buffer[position] & 0xFF) == target) {
+                    return true;
+                }
+                position++;
+            }
+        }
+    }
+
+    /**
+     * Copies the raw bytes of a statement up to and including the next ';' that is not inside a
+     * quoted label or a comment. This allows a tree to be read here and parsed elsewhere.
+     * @param prefix bytes to put at the start of the returned statement (may be null)
+     * @return the statement or null if the end of the input has been reached
+     */
+    byte[] readStatement(byte[] prefix) throws IOException {
+        statementLength = 0;
+        if (prefix != null) {
+            for (byte b : prefix) {
+                appendStatement(b);
+            }
+        }
+        if (!scanStatement(true)) {
+            return null;
+        }
+        return Arrays.copyOf(statement, statementLength);
+    }
+
+    /**
+     * Skips the raw bytes of a statement up to and including the next ';' that is not inside a
+     * quoted label or a comment without copying or decoding them.
+     * @return false if the end of the input had already been reached
+     */
+    boolean skipStatement() throws IOException {
+        return scanStatement(false);
+    }
+
+    /**
+     * Scans to the end of a statement working directly on the buffer a block at a time (as this
+     * is also used to skip over whole trees without parsing them).
+     */
+    private boolean scanStatement(boolean isCopying) throws IOException {
+        boolean isEmpty = true;
+        boolean isTokenStart = true;
+        boolean isQuoteEnding = false;
+        int quote = -1;
+        int commentQuote = -1;
+        int level = 0;
+
+        while (position < limit || fill()) {
+            isEmpty = false;
+            byte[] bytes = buffer;
+            int start = position;
+            int end = limit;
+            int p = start;
+            boolean isEnded = false;
+
+            while (p < end && !isEnded) {
+                int ch = bytes[p++] & 0xFF;
+
+                if (isQuoteEnding) {
+                    isQuoteEnding = false;
+                    if (ch == quote) {
+                        // a doubled quote within the label
+                        continue;
+                    }
+                    quote = -1;
+                    isTokenStart = false;
+                }
+
+                if (level > 0) {
+                    if (ch == '"' || ch == '\'') {
+                        if (commentQuote < 0) {
+                            commentQuote = ch;
+                        } else if (commentQuote == ch) {
+                            commentQuote = -1;
+                        }
+                    } else if (commentQuote < 0 && ch == '[') {
+                        level++;
+                    } else if (commentQuote < 0 && ch == ']') {
+                        level--;
+                        isTokenStart = true;
+                    }
+                } else if (quote >= 0) {
+                    if (ch == quote) {
+                        isQuoteEnding = true;
+                    }
+                } else if (ch == '[') {
+                    level = 1;
+                    commentQuote = -1;
+                } else if (ch == ';') {
+                    isEnded = true;
+                } else if (isTokenStart && (ch == '\'' || ch == '"')) {
+                    quote = ch;
+                } else {
+                    isTokenStart = TOKEN_STARTS[ch];
+                }
+            }
+
+            if (isCopying) {
+                appendStatement(bytes, start, p - start);
+            }
+            position = p;
+            if (isEnded) {
+                return true;
+            }
+        }
+        return !isEmpty;
+    }
+
+    private void appendStatement(int ch) {
+        if (statementLength == statement.length) {
+            statement = grow(statement);
+        }
+        statement[statementLength++] = (byte) ch;
+    }
+
+    private void appendStatement(byte[] bytes, int offset, int length) {
+        while (statementLength + length > statement.length) {
+            statement = grow(statement);
+        }
+        System.arraycopy(bytes, offset, statement, statementLength, length);
+        statementLength += length;
+    }
+
+    /**
+     * Reads a comment - the opening '[' has been consumed. If it is a meta comment ('[&...]')
+     * then the content is stored for retrieval by getMetaComments.
+     * @param honourQuotes whether brackets inside quotes should be ignored
+     */
+    private void skipComment(boolean honourQuotes) throws IOException {
+        boolean isMeta = false;
+        int ch = peek();
+        if (ch == '&') {
+            position++;
+            isMeta = !isSkippingMetaComments;
+            commentLength = 0;
+        } else if (ch == '!') {
+            position++;
+        }
+
+        int level = 1;
+        int quote = -1;
+        while (level > 0) {
+            ch = read();
+            if (ch < 0) {
+                break;
+            }
+            if (honourQuotes && (ch == '"' || ch == '\'')) {
+                if (quote < 0) {
+                    quote = ch;
+                } else if (quote == ch) {
+                    quote = -1;
+                }
+            }
+            if (quote < 0 && ch == '[') {
+                level++;
+            } else if (quote < 0 && ch == ']') {
+                level--;
+            } else if (isMeta) {
+                if (commentLength == comment.length) {
+                    comment = grow(comment);
+                }
+                comment[commentLength++] = (byte) ch;
+            }
+        }
+
+        if (isMeta) {
+            metaComments.add(new String(comment, 0, commentLength, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Reads a token, stopping at any of the delimiters (see delimiters()), whitespace or a
+     * comment. Quoted tokens can contain any characters with the quote character doubled. After
+     * a token ended by whitespace or a comment, a following delimiter is consumed and becomes the
+     * last delimiter.
+     * @param delimiters
+     */
+    void readToken(boolean[] delimiters) throws IOException {
+        tokenLength = 0;
+        tokenIsAscii = true;
+
+        int quote = -1;
+        boolean isFirst = true;
+        boolean isWhitespaceEnded = false;
+
+        nextCharacter();
+
+        while (true) {
+            int ch = read();
+            if (ch < 0) {
+                lastDelimiter = -1;
+                break;
+            }
+            if (quote >= 0) {
+                if (ch == quote) {
+                    int ch2 = read();
+                    if (ch2 == quote) {
+                        append(ch);
+                        continue;
+                    }
+                    lastDelimiter = ' ';
+                    if (ch2 == '[') {
+                        skipComment(true);
+                    } else if (ch2 >= 0) {
+                        position--;
+                    }
+                    isWhitespaceEnded = true;
+                    break;
+                }
+                append(ch);
+            } else if (isFirst && (ch == '\'' || ch == '"')) {
+                quote = ch;
+                isFirst = false;
+            } else if (ch == '[') {
+                skipComment(true);
+                lastDelimiter = ' ';
+                isWhitespaceEnded = true;
+                break;
+            } else if (WHITESPACE[ch]) {
+                lastDelimiter = ' ';
+                isWhitespaceEnded = true;
+                break;
+            } else if (delimiters[ch]) {
+                lastDelimiter = ch;
+                break;
+            } else {
+                append(ch);
+                isFirst = false;
+            }
+        }
+
+        if (isWhitespaceEnded) {
+            int ch = nextCharacter();
+            if (ch >= 0 && delimiters[ch]) {
+                position++;
+                lastDelimiter = ch;
+            }
+        }
+    }
+
+    private void append(int ch) {
+        if (tokenLength == token.length) {
+            token = grow(token);
+        }
+        if (ch >= 128) {
+            tokenIsAscii = false;
+        }
+        token[tokenLength++] = (byte) ch;
+    }
+
+    private static byte[] grow(byte[] bytes) {
+        byte[] newBytes = new byte[bytes.length * 2];
+        System.arraycopy(bytes, 0, newBytes, 0, bytes.length);
+        return newBytes;
+    }
+
+    /**
+     * @return the delimiter that ended the last token (a space if it was whitespace or a comment,
+     * -1 if the end of the input)
+     */
+    int getLastDelimiter() {
+        return lastDelimiter;
+    }
+
+    /**
+     * @return the last token as a String
+     */
+    String getToken() {
+        return new String(token, 0, tokenLength,
+                tokenIsAscii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares the last token to an ASCII keyword ignoring case without decoding it.
+     * @param keyword
+     * @return
+     */
+    boolean tokenEqualsIgnoreCase(String keyword) {
+        if (tokenLength != keyword.length()) {
+            return false;
+        }
+        for (int i = 0; i < tokenLength; i++) {
+            if (Character.toUpperCase((char) (token[i] & 0xFF)) != Character.toUpperCase(keyword.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getTokenLength() {
+        return tokenLength;
+    }
+
+    /**
+     * Gives direct access to the token bytes (valid up to getTokenLength()) until the next token
+     * is read.
+     * @return
+     */
+    byte[] getTokenBytes() {
+        return token;
+    }
+
+    /**
+     * Reads a token and parses it as a double.
+     * @param delimiters
+     * @return
+     */
+    double readDouble(boolean[] delimiters) throws IOException, ImportException {
+        readToken(delimiters);
+        return getTokenDouble();
+    }
+
+    /**
+     * Parses the last token as a double. Plain decimals with up to 15 significant digits and a
+     * modest exponent are converted directly (exactly, as the mantissa and power of ten are both
+     * representable as doubles); anything else falls back to Double.parseDouble.
+     * @return
+     */
+    double getTokenDouble() throws ImportException {
+        int i = 0;
+        int end = tokenLength;
+        boolean isNegative = false;
+        if (i < end && (token[i] == '-' || token[i] == '+')) {
+            isNegative = token[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digitCount = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean isFast = true;
+
+        while (i < end && token[i] >= '0' && token[i] <= '9') {
+            mantissa = mantissa * 10 + (token[i] - '0');
+            if (mantissa != 0) {
+                significantDigits++;
+            }
+            digitCount++;
+            i++;
+        }
+        if (i < end && token[i] == '.') {
+            i++;
+            while (i < end && token[i] >= '0' && token[i] <= '9') {
+                mantissa = mantissa * 10 + (token[i] - '0');
+                if (mantissa != 0) {
+                    significantDigits++;
+                }
+                exponent--;
+                digitCount++;
+                i++;
+            }
+        }
+        if (digitCount == 0 || significantDigits > 15) {
+            isFast = false;
+        }
+        if (isFast && i < end && (token[i] == 'e' || token[i] == 'E')) {
+            i++;
+            boolean isNegativeExponent = false;
+            if (i < end && (token[i] == '-' || token[i] == '+')) {
+                isNegativeExponent = token[i] == '-';
+                i++;
+            }
+            int value = 0;
+            int exponentDigits = 0;
+            while (i < end && token[i] >= '0' && token[i] <= '9' && exponentDigits < 4) {
+                value = value * 10 + (token[i] - '0');
+                exponentDigits++;
+                i++;
+            }
+            if (exponentDigits == 0) {
+                isFast = false;
+            }
+            exponent += isNegativeExponent ? -value : value;
+        }
+
+        if (isFast && i == end && exponent >= -22 && exponent <= 22) {
+            double value = (double) mantissa;
+            if (exponent < 0) {
+                value /= POWERS_OF_TEN[-exponent];
+            } else if (exponent > 0) {
+                value *= POWERS_OF_TEN[exponent];
+            }
+            return isNegative ? -value : value;
+        }
+
+        try {
+            return Double.parseDouble(getToken());
+        } catch (NumberFormatException nfe) {
+            throw new ImportException("Number format error: " + nfe.getMessage());
+        }
+    }
+
+    /**
+     * @return the meta comments ('[&...]') read since the last call to clearMetaComments
+     */
+    List<String> getMetaComments() {
+        return metaComments;
+    }
+
+    void clearMetaComments() {
+        metaComments.clear();
+    }
+
+    /**
+     * Sets whether meta comments should be skipped over like other comments rather than stored
+     * (so none of their content is copied or decoded).
+     * @param isSkippingMetaComments
+     */
+    void setSkippingMetaComments(boolean isSkippingMetaComments) {
+        this.isSkippingMetaComments = isSkippingMetaComments;
+    }
+}
@@ -0,0 +1,282 @@
+package network.artic.phylofunk.treefunks;
+
+import network.artic.phylofunk.funks.DoubleFormatter;
+
+import java.awt.Color;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the text of NEXUS and Newick trees into a large byte buffer which is written to a
+ * channel when full. Names, attributes and numbers are written in the same form as jebl's
+ * NexusExporter and NewickExporter but without building a string for each node.
+ *
+ * @author Andrew Rambaut
+ * @version $
+ */
+final class TreeWriter implements Closeable {
+    /**
+     * The number of significant digits jebl's exporters write for branch lengths
+     */
+    static final int DEFAULT_LENGTH_PRECISION = 6;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] bytes = buffer.array();
+    private int position = 0;
+
+    private final DoubleFormatter formatter = new DoubleFormatter();
+    private final int lengthPrecision;
+
+    /**
+     * Constructor
+     * @param channel
+     * @param lengthPrecision the significant digits for branch lengths or 0 to write them in full
+     */
+    TreeWriter(WritableByteChannel channel, int lengthPrecision) {
+        this.channel = channel;
+        this.lengthPrecision = lengthPrecision;
+    }
+
+    void write(char c) throws IOException {
+        if (position == bytes.length) {
+            flush();
+        }
+        bytes[position++] = (byte) c;
+    }
+
+    void write(String string) throws IOException {
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x80) {
+                writeBytes(string.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (position == bytes.length) {
+                flush();
+            }
+            bytes[position++] = (byte) c;
+        }
+    }
+
+    private void writeBytes(byte[] source) throws IOException {
+        int offset = 0;
+        while (offset < source.length) {
+            if (position == bytes.length) {
+                flush();
+            }
+            int n = Math.min(source.length - offset, bytes.length - position);
+            System.arraycopy(source, offset, bytes, position, n);
+            position += n;
+            offset += n;
+        }
+    }
+
+    void writeLine(String string) throws IOException {
+        write(string);
+        newLine();
+    }
+
+    void newLine() throws IOException {
+        write(LINE_SEPARATOR);
+    }
+
+    void writeInt(int value) throws IOException {
+        ensureCapacity(DoubleFormatter.MAX_LENGTH);
+        position = DoubleFormatter.writeInt(value, bytes, position);
+    }
+
+    /**
+     * Writes a double in the form of Double.toString
+     * @param value
+     */
+    void writeDouble(double value) throws IOException {
+        ensureCapacity(DoubleFormatter.MAX_LENGTH);
+        position = formatter.format(value, bytes, position);
+    }
+
+    /**
+     * Writes a branch length to the precision given to the constructor (in the form of
+     * String.format("%.6g") by default).
+     * @param value
+     */
+    void writeLength(double value) throws IOException {
+        if (lengthPrecision == 0) {
+            writeDouble(value);
+        } else {
+            ensureCapacity(DoubleFormatter.MAX_LENGTH + lengthPrecision);
+            position = formatter.format(value, lengthPrecision, bytes, position);
+        }
+    }
+
+    /**
+     * Writes the tree in Newick form (without the closing semicolon). It walks the tree using
+     * the parent and sibling links so very deep trees don't need a deep stack.
+     * @param tree
+     * @param isNexus whether to write the node attributes as comments and double single quotes in
+     *                names
+     */
+    void writeTree(CompactTree tree, boolean isNexus) throws IOException {
+        int root = tree.getRootNode();
+        int node = root;
+        while (true) {
+            while (!tree.isExternal(node)) {
+                write('(');
+                node = tree.getFirstChild(node);
+            }
+            writeName(tree.getLabel(node), isNexus);
+            writeNodeSuffix(tree, node, isNexus, true);
+
+            while (node != root) {
+                int sibling = tree.getNextSibling(node);
+                if (sibling != CompactTree.NONE) {
+                    write(',');
+                    node = sibling;
+                    break;
+                }
+                node = tree.getParent(node);
+                write(')');
+                writeNodeSuffix(tree, node, isNexus, node != root);
+            }
+            if (node == root) {
+                return;
+            }
+        }
+    }
+
+    private void writeNodeSuffix(CompactTree tree, int node, boolean isNexus, boolean hasLength) throws IOException {
+        if (isNexus) {
+            String[] names = tree.getNodeAttributeNames(node);
+            boolean isFirst = true;
+            for (String name : names) {
+                Object value = tree.getNodeAttribute(node, name);
+                if (!name.startsWith("&") && value != null) {
+                    write(isFirst ? "[&" : ",");
+                    isFirst = false;
+                    writeAttribute(name, value);
+                }
+            }
+            if (!isFirst) {
+                write(']');
+            }
+        }
+        if (hasLength && tree.hasLengths()) {
+            write(':');
+            writeLength(tree.getLength(node));
+        }
+    }
+
+    /**
+     * Writes a taxon name, in single quotes if it has anything other than letters, digits,
+     * underscores and hyphens.
+     * @param name
+     * @param isEscaped whether single quotes in the name are doubled (as in NEXUS)
+     */
+    void writeName(String name, boolean isEscaped) throws IOException {
+        if (isPlainName(name)) {
+            write(name);
+            return;
+        }
+        write('\'');
+        if (isEscaped && name.indexOf('\'') >= 0) {
+            write(name.replace("'", "''"));
+        } else {
+            write(name);
+        }
+        write('\'');
+    }
+
+    /**
+     * The same test as matching the regular expression ^(\w|-)+$
+     */
+    private static boolean isPlainName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes an attribute as name=value, the name in double quotes if it contains a space.
+     * @param name
+     * @param value
+     */
+    void writeAttribute(String name, Object value) throws IOException {
+        if (name.indexOf(' ') >= 0) {
+            write('\"');
+            write(name);
+            write('\"');
+        } else {
+            write(name);
+        }
+        write('=');
+        writeAttributeValue(value);
+    }
+
+    private void writeAttributeValue(Object value) throws IOException {
+        if (value instanceof Object[]) {
+            Object[] values = (Object[]) value;
+            write('{');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    write(',');
+                }
+                writeAttributeValue(values[i]);
+            }
+            write('}');
+        } else if (value instanceof Color) {
+            write('#');
+            write(Integer.toHexString(((Color) value).getRGB()).substring(2));
+        } else if (value instanceof String) {
+            write('\"');
+            write((String) value);
+            write('\"');
+        } else if (value instanceof Double) {
+            writeDouble((Double) value);
+        } else if (value instanceof Integer) {
+            writeInt((Integer) value);
+        } else {
+            write(String.valueOf(value));
+        }
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (position + length > bytes.length) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes out the buffer
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        buffer.clear();
+        buffer.limit(position);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        position = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}